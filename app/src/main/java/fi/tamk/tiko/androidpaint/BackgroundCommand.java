@@ -0,0 +1,42 @@
+package fi.tamk.tiko.androidpaint;
+
+/**
+ * Command that changes the color of the background.
+ */
+public class BackgroundCommand extends Command {
+
+    /**
+     * The new color of the background.
+     */
+    private int color;
+
+    /**
+     * The color of the background before the change.
+     */
+    private int previousColor;
+
+    /**
+     * Constructs the object and sets its attributes.
+     *
+     * @param color The new color of the background.
+     * @param previousColor The color of the background before the change.
+     */
+    public BackgroundCommand(int color, int previousColor) {
+        this.color = color;
+        this.previousColor = previousColor;
+    }
+
+    /**
+     * @return The new color of the background.
+     */
+    public int getColor() {
+        return color;
+    }
+
+    /**
+     * @return The color of the background before the change.
+     */
+    public int getPreviousColor() {
+        return previousColor;
+    }
+}
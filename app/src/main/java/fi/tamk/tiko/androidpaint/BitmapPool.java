@@ -0,0 +1,217 @@
+package fi.tamk.tiko.androidpaint;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * Pool of mutable bitmaps that are no longer in use. Bitmaps are sorted
+ * into buckets by their size and config, so that code that needs a bitmap
+ * of a certain size can reuse an old one instead of allocating a new one.
+ * The pool has a memory limit, and the bitmaps that were put in the pool
+ * first are dropped when the limit is exceeded.
+ */
+public class BitmapPool {
+
+    /**
+     * Free bitmaps, one deque for each combination of size and config.
+     */
+    private final HashMap<Long, ArrayDeque<Bitmap>> buckets = new HashMap<>();
+
+    /**
+     * All free bitmaps in the order they were put in the pool, oldest first.
+     */
+    private final ArrayDeque<Bitmap> order = new ArrayDeque<>();
+
+    /**
+     * The largest number of bytes the free bitmaps may take.
+     */
+    private long maxBytes;
+
+    /**
+     * Number of bytes the free bitmaps take.
+     */
+    private long currentBytes;
+
+    /**
+     * Number of requests that were served with a bitmap from the pool.
+     */
+    private long hits;
+
+    /**
+     * Number of requests that had to allocate a new bitmap.
+     */
+    private long misses;
+
+    /**
+     * Number of bitmaps dropped from the pool to stay under the limit.
+     */
+    private long evictions;
+
+    /**
+     * Constructs an empty pool.
+     *
+     * @param maxBytes The largest number of bytes the free bitmaps may take.
+     */
+    public BitmapPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns a transparent bitmap of the given size and config, reusing
+     * a bitmap from the pool if there is one.
+     *
+     * @param width The width of the bitmap.
+     * @param height The height of the bitmap.
+     * @param config The config of the bitmap.
+     * @return A mutable bitmap that has been erased to transparent.
+     */
+    public Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = null;
+        synchronized (this) {
+            ArrayDeque<Bitmap> bucket = buckets.get(key(width, height, config));
+            if (bucket != null) {
+                bitmap = bucket.pollFirst();
+            }
+            if (bitmap != null) {
+                order.remove(bitmap);
+                currentBytes -= bitmap.getAllocationByteCount();
+                hits++;
+            } else {
+                misses++;
+            }
+        }
+
+        if (bitmap == null) {
+            return Bitmap.createBitmap(width, height, config);
+        }
+        bitmap.eraseColor(Color.TRANSPARENT);
+        return bitmap;
+    }
+
+    /**
+     * Puts a bitmap that is no longer used into the pool. The caller
+     * must not use the bitmap after this. Immutable, recycled and too
+     * large bitmaps are recycled instead.
+     *
+     * @param bitmap The bitmap to put in the pool.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        int bytes = bitmap.getAllocationByteCount();
+        if (!bitmap.isMutable() || bytes > maxBytes) {
+            bitmap.recycle();
+            return;
+        }
+
+        long key = key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        ArrayDeque<Bitmap> bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new ArrayDeque<>();
+            buckets.put(key, bucket);
+        }
+        bucket.addFirst(bitmap);
+        order.addLast(bitmap);
+        currentBytes += bytes;
+        trimToSize(maxBytes);
+    }
+
+    /**
+     * Releases free bitmaps according to how badly the system needs
+     * memory. Should be called from onTrimMemory of the activity.
+     *
+     * @param level The level given to onTrimMemory.
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(maxBytes / 2);
+        }
+    }
+
+    /**
+     * Releases all free bitmaps.
+     */
+    public void clear() {
+        trimToSize(0);
+    }
+
+    /**
+     * Drops the oldest free bitmaps until the pool takes at most the
+     * given number of bytes.
+     *
+     * @param size The number of bytes the pool may take after trimming.
+     */
+    public synchronized void trimToSize(long size) {
+        while (currentBytes > size && !order.isEmpty()) {
+            Bitmap bitmap = order.pollFirst();
+            buckets.get(key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig()))
+                    .remove(bitmap);
+            currentBytes -= bitmap.getAllocationByteCount();
+            evictions++;
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * @param maxBytes The largest number of bytes the free bitmaps may take.
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trimToSize(maxBytes);
+    }
+
+    /**
+     * @return The largest number of bytes the free bitmaps may take.
+     */
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return Number of bytes the free bitmaps take.
+     */
+    public synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    /**
+     * @return Number of requests that were served with a bitmap from the pool.
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * @return Number of requests that had to allocate a new bitmap.
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * @return Number of bitmaps dropped from the pool to stay under the limit.
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * @param width The width of a bitmap.
+     * @param height The height of a bitmap.
+     * @param config The config of a bitmap.
+     * @return Key of the bucket for bitmaps of the given size and config.
+     */
+    private static long key(int width, int height, Bitmap.Config config) {
+        int configIndex = config == null ? 0 : config.ordinal() + 1;
+        return ((long) width << 32) | ((long) height << 4) | configIndex;
+    }
+}
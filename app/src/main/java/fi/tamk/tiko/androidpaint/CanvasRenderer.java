@@ -0,0 +1,134 @@
+package fi.tamk.tiko.androidpaint;
+
+import android.graphics.Canvas;
+import android.graphics.MaskFilter;
+import android.graphics.Paint;
+import android.graphics.RectF;
+
+/**
+ * Renderer that draws on an android.graphics.Canvas. The canvas is set
+ * before drawing, so one renderer can draw on the view and on the tiles
+ * of the surface.
+ */
+public class CanvasRenderer implements Renderer {
+
+    /**
+     * Paint whose attributes are set for each line and shape. It must be
+     * a stroking, anti-aliased paint with round joins.
+     */
+    private final Paint paint;
+
+    /**
+     * Filter used for lines with emboss effect.
+     */
+    private final MaskFilter emboss;
+
+    /**
+     * Filter used for lines with blur effect.
+     */
+    private final MaskFilter blur;
+
+    /**
+     * Reusable rectangle for drawing rectangles and ovals.
+     */
+    private final RectF rect = new RectF();
+
+    /**
+     * The canvas that is drawn on.
+     */
+    private Canvas canvas;
+
+    /**
+     * Constructs the object and sets its attributes.
+     *
+     * @param paint Paint whose attributes are set for each line and shape.
+     * @param emboss Filter used for lines with emboss effect.
+     * @param blur Filter used for lines with blur effect.
+     */
+    public CanvasRenderer(Paint paint, MaskFilter emboss, MaskFilter blur) {
+        this.paint = paint;
+        this.emboss = emboss;
+        this.blur = blur;
+    }
+
+    /**
+     * @param canvas The canvas that is drawn on from now on.
+     */
+    public void setCanvas(Canvas canvas) {
+        this.canvas = canvas;
+    }
+
+    @Override
+    public void fill(int color) {
+        canvas.drawColor(color);
+    }
+
+    @Override
+    public void drawPath(DrawPath path, boolean effects) {
+        paint.setColor(path.getColor());
+        paint.setStrokeWidth(path.getStrokeWidth());
+        paint.setStrokeCap(path.getCap());
+        paint.setMaskFilter(null);
+
+        if (effects) {
+            if (path.getEmboss())
+                paint.setMaskFilter(emboss);
+            else if (path.getBlur())
+                paint.setMaskFilter(blur);
+        }
+
+        canvas.drawPath(path.getPath(), paint);
+    }
+
+    @Override
+    public void drawRect(float left, float top, float right, float bottom, int color, float strokeWidth) {
+        setShapePaint(color, strokeWidth);
+        canvas.drawRect(left, top, right, bottom, paint);
+    }
+
+    @Override
+    public void drawRoundRect(float left, float top, float right, float bottom, float radius,
+                              int color, float strokeWidth) {
+        setShapePaint(color, strokeWidth);
+        rect.set(left, top, right, bottom);
+        canvas.drawRoundRect(rect, radius, radius, paint);
+    }
+
+    @Override
+    public void drawOval(float left, float top, float right, float bottom, int color, float strokeWidth) {
+        setShapePaint(color, strokeWidth);
+        rect.set(left, top, right, bottom);
+        canvas.drawOval(rect, paint);
+    }
+
+    @Override
+    public void drawCircle(float x, float y, float radius, int color, float strokeWidth) {
+        setShapePaint(color, strokeWidth);
+        canvas.drawCircle(x, y, radius, paint);
+    }
+
+    @Override
+    public void fillRects(int[] rects, int color) {
+        paint.setColor(color);
+        paint.setMaskFilter(null);
+        paint.setStyle(Paint.Style.FILL);
+        paint.setAntiAlias(false);
+        for (int i = 0; i < rects.length; i += 4) {
+            canvas.drawRect(rects[i], rects[i + 1], rects[i + 2], rects[i + 3], paint);
+        }
+        paint.setAntiAlias(true);
+        paint.setStyle(Paint.Style.STROKE);
+    }
+
+    /**
+     * Sets the paint attributes for drawing the outline of a shape.
+     *
+     * @param color The color of the outline.
+     * @param strokeWidth The width of the outline.
+     */
+    private void setShapePaint(int color, float strokeWidth) {
+        paint.setColor(color);
+        paint.setStrokeWidth(strokeWidth);
+        paint.setMaskFilter(null);
+    }
+}
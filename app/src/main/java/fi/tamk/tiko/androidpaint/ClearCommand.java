@@ -0,0 +1,52 @@
+package fi.tamk.tiko.androidpaint;
+
+/**
+ * Command that clears the drawing, removing all lines, shapes, layers
+ * and the loaded image and setting the background back to its default
+ * color.
+ * Commands before a clear never have to be replayed to redraw the
+ * drawing after it.
+ */
+public class ClearCommand extends Command {
+
+    /**
+     * Index of the lines and shapes that were on the drawing when it was
+     * cleared, kept so that undoing the clear does not have to rebuild
+     * it. Null while the clear is undone.
+     */
+    private SpatialIndex<Command> clearedIndex;
+
+    /**
+     * The layers that were in the stack when the drawing was cleared, as
+     * returned by LayerStack.saveStructure. Null while the clear is undone.
+     */
+    private int[] clearedLayers;
+
+    /**
+     * @return Index of the lines and shapes that were cleared, or null.
+     */
+    public SpatialIndex<Command> getClearedIndex() {
+        return clearedIndex;
+    }
+
+    /**
+     * @param clearedIndex Index of the lines and shapes that were cleared.
+     */
+    public void setClearedIndex(SpatialIndex<Command> clearedIndex) {
+        this.clearedIndex = clearedIndex;
+    }
+
+    /**
+     * @return The layers that were cleared, or null.
+     */
+    public int[] getClearedLayers() {
+        return clearedLayers;
+    }
+
+    /**
+     * @param clearedLayers The layers that were cleared.
+     */
+    public void setClearedLayers(int[] clearedLayers) {
+        this.clearedLayers = clearedLayers;
+    }
+}
@@ -38,6 +38,28 @@ public class ColorCircle extends ColorShape {
         this.radius = radius;
     }
 
+    /**
+     * Creates a circle whose diameter is the segment between two points.
+     *
+     * @param color The color in which the circle was drawn.
+     * @param strokeWidth The width of the line with which the circle
+     *                    was drawn.
+     * @param x0 X-coordinate of one end of the diameter.
+     * @param y0 Y-coordinate of one end of the diameter.
+     * @param x1 X-coordinate of the other end of the diameter.
+     * @param y1 Y-coordinate of the other end of the diameter.
+     * @return The circle.
+     */
+    public static ColorCircle fromDiameter(int color, int strokeWidth,
+                                           float x0, float y0, float x1, float y1) {
+        // Shift the center of the circle to halfway between the points
+        // and halve the distance between them to get the radius.
+        float dx = x0 - x1;
+        float dy = y0 - y1;
+        float radius = (float) (Math.sqrt((dx * dx) + (dy * dy)) / 2);
+        return new ColorCircle(color, strokeWidth, x0 - dx / 2, y0 - dy / 2, radius);
+    }
+
     /**
      * @return X-coordinate of the center of the circle.
      */
@@ -58,4 +80,14 @@ public class ColorCircle extends ColorShape {
     public float getRadius() {
         return radius;
     }
+
+    /**
+     * Draws the circle with the given renderer.
+     *
+     * @param renderer The renderer the circle is drawn with.
+     */
+    @Override
+    public void render(Renderer renderer) {
+        renderer.drawCircle(x, y, radius, getColor(), getStrokeWidth());
+    }
 }
@@ -4,12 +4,21 @@ import android.graphics.RectF;
 
 /**
  * Class that saves the information necessary for saving drawn rectangles
- * into a List and drawing them on the canvas.
+ * into a List and drawing them on the canvas. The location is kept in
+ * floats, so that the rectangle can be created and rendered without
+ * Android classes, and a RectF is only made when one is asked for.
  */
 public class ColorRect extends ColorShape {
 
     /**
-     * RectF object that contains location of the rectangle in floats.
+     * Location of the rectangle as given when it was drawn. The edges
+     * may be in either order.
+     */
+    private float left, top, right, bottom;
+
+    /**
+     * RectF object that contains location of the rectangle in floats,
+     * made when first needed.
      */
     private RectF rectangle;
 
@@ -30,8 +39,30 @@ public class ColorRect extends ColorShape {
      *              this rectangle is.
      */
     public ColorRect(int color, int strokeWidth, RectF rectangle, RectangleShape shape) {
-        super(color, strokeWidth);
+        this(color, strokeWidth, rectangle.left, rectangle.top, rectangle.right, rectangle.bottom, shape);
         this.rectangle = rectangle;
+    }
+
+    /**
+     * Constructs the object and sets its attributes.
+     *
+     * @param color The color in which the rectangle was drawn.
+     * @param strokeWidth The width of the line with which the
+     *                    rectangle was drawn.
+     * @param left Left edge of the rectangle.
+     * @param top Top edge of the rectangle.
+     * @param right Right edge of the rectangle.
+     * @param bottom Bottom edge of the rectangle.
+     * @param shape Enum that determines what kind of rectangle
+     *              this rectangle is.
+     */
+    public ColorRect(int color, int strokeWidth, float left, float top, float right, float bottom,
+                     RectangleShape shape) {
+        super(color, strokeWidth);
+        this.left = left;
+        this.top = top;
+        this.right = right;
+        this.bottom = bottom;
         this.shape = shape;
     }
 
@@ -39,13 +70,54 @@ public class ColorRect extends ColorShape {
      * @return RectF object that contains location of the rectangle in floats.
      */
     public RectF getRectangle() {
+        if (rectangle == null) {
+            rectangle = new RectF(left, top, right, bottom);
+        }
         return rectangle;
     }
 
+    /**
+     * @return Left edge of the rectangle as it was drawn.
+     */
+    public float getLeft() {
+        return left;
+    }
+
+    /**
+     * @return Top edge of the rectangle as it was drawn.
+     */
+    public float getTop() {
+        return top;
+    }
+
+    /**
+     * @return Right edge of the rectangle as it was drawn.
+     */
+    public float getRight() {
+        return right;
+    }
+
+    /**
+     * @return Bottom edge of the rectangle as it was drawn.
+     */
+    public float getBottom() {
+        return bottom;
+    }
+
     /**
      * @return Enum that determines what kind of rectangle this rectangle is.
      */
     public RectangleShape getShape() {
         return shape;
     }
+
+    /**
+     * Draws the rectangle with the given renderer.
+     *
+     * @param renderer The renderer the rectangle is drawn with.
+     */
+    @Override
+    public void render(Renderer renderer) {
+        shape.render(renderer, left, top, right, bottom, getColor(), getStrokeWidth());
+    }
 }
@@ -0,0 +1,259 @@
+package fi.tamk.tiko.androidpaint;
+
+import java.util.Arrays;
+
+/**
+ * Reads the colors the user sees at a point by compositing the layers of
+ * the drawing for only the area that is sampled, so that the dropper
+ * never has to render the whole view. Colors can be averaged over a
+ * square kernel to pick the color of a textured or anti-aliased area
+ * instead of a single pixel.
+ *
+ * Colors are ARGB without premultiplied alpha, like the colors returned
+ * by android.graphics.Bitmap.getPixel. Layers that implement BlendedLayer
+ * are mixed with their opacity and blend mode, like on the screen.
+ */
+public class ColorSampler {
+
+    /**
+     * One layer of the drawing that colors are read from.
+     */
+    public interface Layer {
+
+        /**
+         * Reads the colors of an area of the layer row by row. Pixels
+         * outside of the layer are transparent.
+         *
+         * @param out Array the colors are stored into, at least
+         *            width * height long.
+         * @param x Left edge of the area.
+         * @param y Top edge of the area.
+         * @param width Width of the area.
+         * @param height Height of the area.
+         */
+        void getPixels(int[] out, int x, int y, int width, int height);
+    }
+
+    /**
+     * Layer that is mixed with the layers under it with an opacity and
+     * a blend mode instead of being drawn over them.
+     */
+    public interface BlendedLayer extends Layer {
+
+        /**
+         * @return Opacity of the layer from 0 to 255, 0 if it is hidden.
+         */
+        int getOpacity();
+
+        /**
+         * @return How the colors of the layer are mixed with the layers
+         *         under it.
+         */
+        LayerBlend getBlend();
+    }
+
+    /**
+     * Layer that is mixed with the opacity and blend mode it had when it
+     * was made, so that it can be read on another thread while the
+     * state of the layer it was made from changes.
+     */
+    public static class FixedLayer implements BlendedLayer {
+
+        /**
+         * The layer the colors are read from.
+         */
+        private final Layer layer;
+
+        /**
+         * Opacity of the layer from 0 to 255.
+         */
+        private final int opacity;
+
+        /**
+         * How the colors of the layer are mixed with the layers under it.
+         */
+        private final LayerBlend blend;
+
+        /**
+         * Constructs the object and sets its attributes.
+         *
+         * @param layer The layer the colors are read from.
+         * @param opacity Opacity of the layer from 0 to 255.
+         * @param blend How the colors of the layer are mixed with the
+         *              layers under it.
+         */
+        public FixedLayer(Layer layer, int opacity, LayerBlend blend) {
+            this.layer = layer;
+            this.opacity = opacity;
+            this.blend = blend;
+        }
+
+        @Override
+        public void getPixels(int[] out, int x, int y, int width, int height) {
+            layer.getPixels(out, x, y, width, height);
+        }
+
+        @Override
+        public int getOpacity() {
+            return opacity;
+        }
+
+        @Override
+        public LayerBlend getBlend() {
+            return blend;
+        }
+    }
+
+    /**
+     * The layers from the bottom to the top.
+     */
+    private Layer[] layers;
+
+    /**
+     * Colors of the layer that is being composited.
+     */
+    private int[] scratch = new int[0];
+
+    /**
+     * Constructs the sampler.
+     *
+     * @param layers The layers of the drawing from the bottom to the top.
+     */
+    public ColorSampler(Layer... layers) {
+        this.layers = layers;
+    }
+
+    /**
+     * Replaces the layers that colors are read from, after layers of the
+     * drawing have been added, removed or reordered.
+     *
+     * @param layers The layers of the drawing from the bottom to the top.
+     */
+    public void setLayers(Layer... layers) {
+        this.layers = layers;
+    }
+
+    /**
+     * Reads the composited colors of an area row by row.
+     *
+     * @param out Array the colors are stored into, at least
+     *            width * height long.
+     * @param x Left edge of the area.
+     * @param y Top edge of the area.
+     * @param width Width of the area.
+     * @param height Height of the area.
+     */
+    public void sample(int[] out, int x, int y, int width, int height) {
+        sample(out, 0, x, y, width, height);
+    }
+
+    /**
+     * Reads the composited colors of an area row by row into the given
+     * position of an array, so that a large area can be read in bands
+     * without a temporary array of its size.
+     *
+     * @param out Array the colors are stored into.
+     * @param offset Index of out the first color is stored at.
+     * @param x Left edge of the area.
+     * @param y Top edge of the area.
+     * @param width Width of the area.
+     * @param height Height of the area.
+     */
+    public void sample(int[] out, int offset, int x, int y, int width, int height) {
+        int count = width * height;
+        Arrays.fill(out, offset, offset + count, 0);
+        if (scratch.length < count) {
+            scratch = new int[count];
+        }
+        for (Layer layer : layers) {
+            if (layer instanceof BlendedLayer) {
+                BlendedLayer blended = (BlendedLayer) layer;
+                int opacity = blended.getOpacity();
+                if (opacity == 0) {
+                    continue;
+                }
+                LayerBlend blend = blended.getBlend();
+                layer.getPixels(scratch, x, y, width, height);
+                for (int i = 0; i < count; i++) {
+                    out[offset + i] = blend.composite(scratch[i], out[offset + i], opacity);
+                }
+            } else {
+                layer.getPixels(scratch, x, y, width, height);
+                for (int i = 0; i < count; i++) {
+                    out[offset + i] = compositeOver(scratch[i], out[offset + i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Releases the temporary array, which grows to the largest area
+     * sampled.
+     */
+    public void trimMemory() {
+        scratch = new int[0];
+    }
+
+    /**
+     * Returns the average composited color of a square centered at the
+     * given pixel.
+     *
+     * @param x X-coordinate of the center pixel.
+     * @param y Y-coordinate of the center pixel.
+     * @param kernel Width of the square, an odd number.
+     * @param out Temporary array of at least kernel * kernel colors.
+     * @return The average color.
+     */
+    public int sampleAverage(int x, int y, int kernel, int[] out) {
+        sample(out, x - kernel / 2, y - kernel / 2, kernel, kernel);
+        return average(out, kernel, 0, 0, kernel);
+    }
+
+    /**
+     * Returns the average of a square of colors in an array of rows,
+     * weighting each color by its alpha so that transparent pixels do
+     * not darken the result.
+     *
+     * @param colors The colors row by row.
+     * @param stride Number of colors in a row.
+     * @param left Column of the left edge of the square.
+     * @param top Row of the top edge of the square.
+     * @param kernel Width of the square.
+     * @return The average color.
+     */
+    public static int average(int[] colors, int stride, int left, int top, int kernel) {
+        long alpha = 0;
+        long red = 0;
+        long green = 0;
+        long blue = 0;
+        for (int y = top; y < top + kernel; y++) {
+            for (int x = left; x < left + kernel; x++) {
+                int color = colors[y * stride + x];
+                int a = color >>> 24;
+                alpha += a;
+                red += ((color >> 16) & 0xFF) * a;
+                green += ((color >> 8) & 0xFF) * a;
+                blue += (color & 0xFF) * a;
+            }
+        }
+        if (alpha == 0) {
+            return 0;
+        }
+        int count = kernel * kernel;
+        return (int) ((alpha + count / 2) / count) << 24
+                | (int) ((red + alpha / 2) / alpha) << 16
+                | (int) ((green + alpha / 2) / alpha) << 8
+                | (int) ((blue + alpha / 2) / alpha);
+    }
+
+    /**
+     * Draws a color over another with the source over rule.
+     *
+     * @param top The color on top.
+     * @param bottom The color below it.
+     * @return The color that is seen.
+     */
+    public static int compositeOver(int top, int bottom) {
+        return SoftwareRenderer.blendPixel(bottom, top, top >>> 24);
+    }
+}
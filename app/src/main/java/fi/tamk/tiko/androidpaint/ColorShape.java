@@ -3,8 +3,9 @@ package fi.tamk.tiko.androidpaint;
 /**
  * Super class used to pass its methods and attributes to subclasses,
  * and also to create a List that can contain all kinds of shapes.
+ * Each shape draws itself through a Renderer.
  */
-public class ColorShape {
+public abstract class ColorShape extends Command {
 
     /**
      * The color in which the shape was drawn.
@@ -40,4 +41,11 @@ public class ColorShape {
     public int getStrokeWidth() {
         return strokeWidth;
     }
+
+    /**
+     * Draws the shape with the given renderer.
+     *
+     * @param renderer The renderer the shape is drawn with.
+     */
+    public abstract void render(Renderer renderer);
 }
@@ -0,0 +1,29 @@
+package fi.tamk.tiko.androidpaint;
+
+/**
+ * Super class of everything that is saved in the drawing history, so
+ * that lines, shapes and changes to the whole drawing can be kept in
+ * one list in the order they were made, and undone and redone.
+ */
+public abstract class Command {
+
+    /**
+     * Id of the layer a line or shape is drawn on. Zero is the id of the
+     * bottom layer every drawing starts with.
+     */
+    private int layer;
+
+    /**
+     * @return Id of the layer a line or shape is drawn on.
+     */
+    public int getLayer() {
+        return layer;
+    }
+
+    /**
+     * @param layer Id of the layer a line or shape is drawn on.
+     */
+    public void setLayer(int layer) {
+        this.layer = layer;
+    }
+}
@@ -0,0 +1,293 @@
+package fi.tamk.tiko.androidpaint;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Ordered history of all commands made on the drawing, with undo and
+ * redo. Commands before the current position are applied, and commands
+ * after it have been undone and can be redone until a new command is
+ * added.
+ *
+ * The history also keeps checkpoints, which are snapshots of the drawing
+ * after every checkpointInterval commands. To show the drawing at some
+ * position, only the commands after the nearest checkpoint or clear
+ * before it have to be replayed. The memory taken by checkpoints is
+ * limited, and the oldest checkpoints are dropped first.
+ */
+public class CommandHistory {
+
+    /**
+     * Snapshot of the drawing after a certain number of commands.
+     */
+    public interface Checkpoint {
+
+        /**
+         * @return Number of bytes the snapshot takes.
+         */
+        long getByteCount();
+
+        /**
+         * Releases the memory of the snapshot. Called when the
+         * checkpoint is dropped from the history.
+         */
+        void release();
+    }
+
+    /**
+     * All commands, both applied and undone.
+     */
+    private final ArrayList<Command> commands = new ArrayList<>();
+
+    /**
+     * Number of applied commands. Commands at this index and after it
+     * have been undone.
+     */
+    private int position;
+
+    /**
+     * Checkpoints keyed by the number of commands applied before them.
+     */
+    private final TreeMap<Integer, Checkpoint> checkpoints = new TreeMap<>();
+
+    /**
+     * Number of bytes the checkpoints take.
+     */
+    private long checkpointBytes;
+
+    /**
+     * Number of commands between checkpoints.
+     */
+    private int checkpointInterval;
+
+    /**
+     * The largest number of bytes the checkpoints may take.
+     */
+    private long maxCheckpointBytes;
+
+    /**
+     * Constructs an empty history.
+     *
+     * @param checkpointInterval Number of commands between checkpoints.
+     * @param maxCheckpointBytes The largest number of bytes the
+     *                           checkpoints may take.
+     */
+    public CommandHistory(int checkpointInterval, long maxCheckpointBytes) {
+        this.checkpointInterval = checkpointInterval;
+        this.maxCheckpointBytes = maxCheckpointBytes;
+    }
+
+    /**
+     * Adds a command after the applied ones. Undone commands after the
+     * current position can no longer be redone, so they are removed
+     * along with their checkpoints.
+     *
+     * @param command The command to add.
+     * @param removed List that the removed undone commands are added to,
+     *                so that their resources can be released.
+     */
+    public void add(Command command, List<Command> removed) {
+        while (commands.size() > position) {
+            removed.add(commands.remove(commands.size() - 1));
+        }
+        while (!checkpoints.isEmpty() && checkpoints.lastKey() > position) {
+            removeCheckpoint(checkpoints.lastKey());
+        }
+        commands.add(command);
+        position++;
+    }
+
+    /**
+     * Moves the position one command back.
+     *
+     * @return The undone command, or null if there is nothing to undo.
+     */
+    public Command undo() {
+        if (position == 0) {
+            return null;
+        }
+        position--;
+        return commands.get(position);
+    }
+
+    /**
+     * Moves the position one command forward.
+     *
+     * @return The redone command, or null if there is nothing to redo.
+     */
+    public Command redo() {
+        if (position == commands.size()) {
+            return null;
+        }
+        return commands.get(position++);
+    }
+
+    /**
+     * @return Whether there is a command to undo.
+     */
+    public boolean canUndo() {
+        return position > 0;
+    }
+
+    /**
+     * @return Whether there is a command to redo.
+     */
+    public boolean canRedo() {
+        return position < commands.size();
+    }
+
+    /**
+     * @return Number of applied commands.
+     */
+    public int getPosition() {
+        return position;
+    }
+
+    /**
+     * @return Number of commands, both applied and undone.
+     */
+    public int size() {
+        return commands.size();
+    }
+
+    /**
+     * @param index Index of a command.
+     * @return The command at the index.
+     */
+    public Command get(int index) {
+        return commands.get(index);
+    }
+
+    /**
+     * Returns the position that replaying has to start from to show the
+     * drawing after the given number of commands. This is the last clear
+     * command before the position, or the last checkpoint before it if
+     * that comes later, or zero if there is neither.
+     *
+     * @param target Number of commands that should be applied.
+     * @return Index of the first command to replay. If there is a
+     *         checkpoint at this index, it has to be restored first.
+     */
+    public int findReplayStart(int target) {
+        Integer checkpoint = checkpoints.floorKey(target);
+        int start = checkpoint == null ? 0 : checkpoint;
+        for (int i = target - 1; i >= start; i--) {
+            if (commands.get(i) instanceof ClearCommand) {
+                return i;
+            }
+        }
+        return start;
+    }
+
+    /**
+     * @param at Number of commands applied before the checkpoint.
+     * @return The checkpoint, or null if there is none.
+     */
+    public Checkpoint getCheckpoint(int at) {
+        return checkpoints.get(at);
+    }
+
+    /**
+     * @param at Number of applied commands.
+     * @return The latest checkpoint before that position, or null if
+     *         there is none.
+     */
+    public Checkpoint getCheckpointBefore(int at) {
+        Map.Entry<Integer, Checkpoint> entry = checkpoints.lowerEntry(at);
+        return entry != null ? entry.getValue() : null;
+    }
+
+    /**
+     * @return Whether a checkpoint should be made at the current position.
+     */
+    public boolean needsCheckpoint() {
+        return checkpointInterval > 0
+                && position > 0
+                && position % checkpointInterval == 0
+                && !checkpoints.containsKey(position);
+    }
+
+    /**
+     * Stores a checkpoint at the current position. Oldest checkpoints
+     * are dropped if the checkpoints take too much memory.
+     *
+     * @param checkpoint Snapshot of the drawing at the current position.
+     */
+    public void putCheckpoint(Checkpoint checkpoint) {
+        Checkpoint old = checkpoints.put(position, checkpoint);
+        if (old != null) {
+            checkpointBytes -= old.getByteCount();
+            old.release();
+        }
+        checkpointBytes += checkpoint.getByteCount();
+        trimCheckpoints(maxCheckpointBytes);
+    }
+
+    /**
+     * @return Number of checkpoints.
+     */
+    public int getCheckpointCount() {
+        return checkpoints.size();
+    }
+
+    /**
+     * @return Number of bytes the checkpoints take.
+     */
+    public long getCheckpointBytes() {
+        return checkpointBytes;
+    }
+
+    /**
+     * @param checkpointInterval Number of commands between checkpoints.
+     */
+    public void setCheckpointInterval(int checkpointInterval) {
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    /**
+     * @param maxCheckpointBytes The largest number of bytes the
+     *                           checkpoints may take.
+     */
+    public void setMaxCheckpointBytes(long maxCheckpointBytes) {
+        this.maxCheckpointBytes = maxCheckpointBytes;
+        trimCheckpoints(maxCheckpointBytes);
+    }
+
+    /**
+     * Drops the oldest checkpoints until the checkpoints take at most
+     * the given number of bytes.
+     *
+     * @param maxBytes The number of bytes the checkpoints may take.
+     */
+    public void trimCheckpoints(long maxBytes) {
+        while (checkpointBytes > maxBytes && !checkpoints.isEmpty()) {
+            removeCheckpoint(checkpoints.firstKey());
+        }
+    }
+
+    /**
+     * Removes all commands and checkpoints.
+     *
+     * @param removed List that the removed commands are added to, so
+     *                that their resources can be released.
+     */
+    public void clear(List<Command> removed) {
+        removed.addAll(commands);
+        commands.clear();
+        position = 0;
+        trimCheckpoints(-1);
+    }
+
+    /**
+     * Removes and releases the checkpoint at the given position.
+     *
+     * @param at Number of commands applied before the checkpoint.
+     */
+    private void removeCheckpoint(int at) {
+        Checkpoint checkpoint = checkpoints.remove(at);
+        checkpointBytes -= checkpoint.getByteCount();
+        checkpoint.release();
+    }
+}
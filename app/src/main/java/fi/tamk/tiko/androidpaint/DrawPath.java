@@ -6,8 +6,62 @@ import android.graphics.Path;
 /**
  * Class that is used to save lines drawn on canvas. Contains information
  * about the color, style, width and location of the lines.
+ *
+ * The points of the line are stored in a float array borrowed from a
+ * shared pool, so the line can be measured and processed without
+ * Android classes. An android.graphics.Path is only built from the
+ * points when the line is drawn, and it is cached until points are added.
+ *
+ * A line read from a document can be created with only its style and
+ * bounds, in which case its points are read from a PointSource the
+ * first time they are needed.
  */
-public class DrawPath {
+public class DrawPath extends Command {
+
+    /**
+     * Style flag for lines that have an emboss effect applied to them.
+     */
+    public static final int FLAG_EMBOSS = 1;
+
+    /**
+     * Style flag for lines that have a blur effect applied to them.
+     */
+    public static final int FLAG_BLUR = 1 << 1;
+
+    /**
+     * Style flag for lines that were drawn with a square paint cap
+     * instead of a round one.
+     */
+    public static final int FLAG_SQUARE_CAP = 1 << 2;
+
+    /**
+     * Mask of the stroke width in the style header.
+     */
+    private static final int WIDTH_MASK = 0xFFFF;
+
+    /**
+     * Shift of the style flags in the style header.
+     */
+    private static final int FLAGS_SHIFT = 16;
+
+    /**
+     * Interface for reading the points of a line that was created
+     * without them.
+     */
+    public interface PointSource {
+
+        /**
+         * Adds all points of the line to it with addPoint.
+         *
+         * @param into The line whose points are read.
+         */
+        void readPoints(DrawPath into);
+    }
+
+    /**
+     * Pool that the point arrays of all lines are borrowed from.
+     */
+    private static final FloatArrayPool pointPool = new FloatArrayPool(8);
 
     /**
      * The color in which the line was drawn.
@@ -15,29 +69,71 @@ public class DrawPath {
     private int color;
 
     /**
-     * Whether the line had an emboss effect applied to it or not.
+     * Style header of the line. The lowest 16 bits contain the stroke
+     * width and the bits above them contain the style flags.
+     */
+    private int style;
+
+    /**
+     * The points of the line as x and y coordinate pairs.
+     */
+    private float[] points;
+
+    /**
+     * Number of floats in use in the points array, which is twice the
+     * number of points.
+     */
+    private int size;
+
+    /**
+     * Bounds of the points of the line.
      */
-    private boolean emboss;
+    private float left, top, right, bottom;
 
     /**
-     * Whether the line had a blur effect applied to it or not.
+     * Whether the line has been finished, after which no more points
+     * are added to it.
      */
-    private boolean blur;
+    private boolean finished;
 
     /**
-     * The width of the drawn line.
+     * Source that the points are read from when first needed, or null
+     * if the points have been read already.
      */
-    private int strokeWidth;
+    private PointSource pointSource;
 
     /**
-     * The path of the drawn line.
+     * The path of the drawn line, built from the points when needed.
      */
     private Path path;
 
     /**
-     * The paint cap that was used to draw the line (round or square).
+     * Number of points that have been added to the cached path.
      */
-    private Paint.Cap cap;
+    private int pathPointCount;
+
+    /**
+     * Whether the final segment of a finished line has been added to
+     * the cached path.
+     */
+    private boolean pathFinished;
+
+    /**
+     * Constructs the object and sets its attributes.
+     *
+     * @param color The color in which the line was drawn.
+     * @param strokeWidth The width of the drawn line.
+     * @param flags Combination of the FLAG_ constants.
+     */
+    public DrawPath(int color, int strokeWidth, int flags) {
+        this.color = color;
+        this.style = (strokeWidth & WIDTH_MASK) | (flags << FLAGS_SHIFT);
+        this.points = pointPool.acquire(FloatArrayPool.MIN_LENGTH);
+        this.left = Float.MAX_VALUE;
+        this.top = Float.MAX_VALUE;
+        this.right = -Float.MAX_VALUE;
+        this.bottom = -Float.MAX_VALUE;
+    }
 
     /**
      * Constructs the object and sets its attributes.
@@ -46,16 +142,150 @@ public class DrawPath {
      * @param emboss Whether the line had an emboss effect applied to it or not.
      * @param blur Whether the line had a blur effect applied to it or not.
      * @param strokeWidth The width of the drawn line.
-     * @param path The path of the drawn line.
      * @param cap The paint cap that was used to draw the line (round or square).
      */
-    public DrawPath(int color, boolean emboss, boolean blur, int strokeWidth, Path path, Paint.Cap cap) {
+    public DrawPath(int color, boolean emboss, boolean blur, int strokeWidth, Paint.Cap cap) {
+        this(color, strokeWidth,
+                (emboss ? FLAG_EMBOSS : 0)
+                | (blur ? FLAG_BLUR : 0)
+                | (cap == Paint.Cap.SQUARE ? FLAG_SQUARE_CAP : 0));
+    }
+
+    /**
+     * Constructs a finished line whose points are read from the given
+     * source the first time they are needed. The bounds must be the
+     * bounds of the points of the source.
+     *
+     * @param color The color in which the line was drawn.
+     * @param strokeWidth The width of the drawn line.
+     * @param flags Combination of the FLAG_ constants.
+     * @param left Left edge of the bounds of the points.
+     * @param top Top edge of the bounds of the points.
+     * @param right Right edge of the bounds of the points.
+     * @param bottom Bottom edge of the bounds of the points.
+     * @param pointSource Source that the points are read from.
+     */
+    public DrawPath(int color, int strokeWidth, int flags,
+                    float left, float top, float right, float bottom,
+                    PointSource pointSource) {
         this.color = color;
-        this.emboss = emboss;
-        this.blur = blur;
-        this.strokeWidth = strokeWidth;
-        this.path = path;
-        this.cap = cap;
+        this.style = (strokeWidth & WIDTH_MASK) | (flags << FLAGS_SHIFT);
+        this.left = left;
+        this.top = top;
+        this.right = right;
+        this.bottom = bottom;
+        this.finished = true;
+        this.pointSource = pointSource;
+    }
+
+    /**
+     * Adds a point to the end of the line. The points array is replaced
+     * with a larger one from the pool when it is full.
+     *
+     * @param x X-coordinate of the point.
+     * @param y Y-coordinate of the point.
+     */
+    public void addPoint(float x, float y) {
+        loadPoints();
+        if (points == null) {
+            points = pointPool.acquire(FloatArrayPool.MIN_LENGTH);
+        } else if (size + 2 > points.length) {
+            float[] larger = pointPool.acquire(points.length * 2);
+            System.arraycopy(points, 0, larger, 0, size);
+            pointPool.release(points);
+            points = larger;
+        }
+        points[size++] = x;
+        points[size++] = y;
+
+        left = Math.min(left, x);
+        top = Math.min(top, y);
+        right = Math.max(right, x);
+        bottom = Math.max(bottom, y);
+    }
+
+    /**
+     * Marks the line finished. The last point is connected with a
+     * straight segment when the path is built.
+     */
+    public void finish() {
+        finished = true;
+    }
+
+    /**
+     * Removes points that do not change the shape of the line by more
+     * than the tolerance. The bounds are left as they were, since the
+     * remaining points and the path built from them stay inside them.
+     *
+     * @param simplifier The simplifier used to choose the kept points.
+     * @param tolerance The largest distance a removed point may have from
+     *                  the simplified line.
+     * @return Number of points left in the line.
+     */
+    public int simplify(StrokeSimplifier simplifier, float tolerance) {
+        loadPoints();
+        int count = simplifier.simplify(points, size / 2, tolerance);
+        if (count * 2 != size) {
+            size = count * 2;
+            path = null;
+        }
+        return count;
+    }
+
+    /**
+     * Gives the points array back to the pool. The line must not be
+     * used after it has been recycled.
+     */
+    public void recycle() {
+        pointSource = null;
+        if (points != null) {
+            pointPool.release(points);
+            points = null;
+            size = 0;
+        }
+        path = null;
+    }
+
+    /**
+     * @return Number of point arrays of lines that had to be allocated
+     *         because the pool had none free.
+     */
+    public static long getPointArrayMissCount() {
+        return pointPool.getMissCount();
+    }
+
+    /**
+     * Returns a copy of the line with its own points array, which can be
+     * used on another thread while this line is changed or recycled. A
+     * line whose points have not been read yet shares its point source
+     * with the copy.
+     *
+     * @return Copy of the line.
+     */
+    public DrawPath copy() {
+        if (pointSource != null) {
+            DrawPath copy = new DrawPath(color, getStrokeWidth(), getFlags(),
+                    left, top, right, bottom, pointSource);
+            copy.setLayer(getLayer());
+            return copy;
+        }
+
+        DrawPath copy = new DrawPath(color, getStrokeWidth(), getFlags());
+        if (size > copy.points.length) {
+            pointPool.release(copy.points);
+            copy.points = pointPool.acquire(size);
+        }
+        if (size > 0) {
+            System.arraycopy(points, 0, copy.points, 0, size);
+        }
+        copy.size = size;
+        copy.left = left;
+        copy.top = top;
+        copy.right = right;
+        copy.bottom = bottom;
+        copy.finished = finished;
+        copy.setLayer(getLayer());
+        return copy;
     }
 
     /**
@@ -69,34 +299,175 @@ public class DrawPath {
      * @return Whether the line had an emboss effect applied to it or not.
      */
     public boolean getEmboss() {
-        return emboss;
+        return (getFlags() & FLAG_EMBOSS) != 0;
     }
 
     /**
      * @return Whether the line had a blur effect applied to it or not.
      */
     public boolean getBlur() {
-        return blur;
+        return (getFlags() & FLAG_BLUR) != 0;
     }
 
     /**
      * @return The width of the drawn line.
      */
     public int getStrokeWidth() {
-        return strokeWidth;
+        return style & WIDTH_MASK;
+    }
+
+    /**
+     * @return The style flags of the line as a combination of the
+     *         FLAG_ constants.
+     */
+    public int getFlags() {
+        return style >>> FLAGS_SHIFT;
+    }
+
+    /**
+     * @return The paint cap that was used to draw the line (round or square).
+     */
+    public Paint.Cap getCap() {
+        return (getFlags() & FLAG_SQUARE_CAP) != 0 ? Paint.Cap.SQUARE : Paint.Cap.ROUND;
+    }
+
+    /**
+     * @return Number of points in the line.
+     */
+    public int getPointCount() {
+        loadPoints();
+        return size / 2;
+    }
+
+    /**
+     * @param index Index of a point.
+     * @return X-coordinate of the point.
+     */
+    public float getX(int index) {
+        loadPoints();
+        return points[index * 2];
+    }
+
+    /**
+     * @param index Index of a point.
+     * @return Y-coordinate of the point.
+     */
+    public float getY(int index) {
+        loadPoints();
+        return points[index * 2 + 1];
+    }
+
+    /**
+     * Returns the backing array of the points as x and y coordinate pairs.
+     * Only the first getPointCount() * 2 values are in use. The array is
+     * replaced when points are added, so it must not be stored.
+     *
+     * @return The array of points.
+     */
+    public float[] getPoints() {
+        loadPoints();
+        return points;
+    }
+
+    /**
+     * @return Whether the line has been finished.
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * @return Left edge of the bounds of the points.
+     */
+    public float getLeft() {
+        return left;
     }
 
     /**
+     * @return Top edge of the bounds of the points.
+     */
+    public float getTop() {
+        return top;
+    }
+
+    /**
+     * @return Right edge of the bounds of the points.
+     */
+    public float getRight() {
+        return right;
+    }
+
+    /**
+     * @return Bottom edge of the bounds of the points.
+     */
+    public float getBottom() {
+        return bottom;
+    }
+
+    /**
+     * Returns the path of the drawn line. The path starts at the first
+     * point and continues with quadratic segments that use each point as
+     * the control point and end halfway to the next point, which smooths
+     * the line. Only points added after the previous call are appended
+     * to the cached path.
+     *
      * @return The path of the drawn line.
      */
     public Path getPath() {
+        loadPoints();
+        if (path == null) {
+            path = new Path();
+            pathPointCount = 0;
+            pathFinished = false;
+        }
+
+        int count = getPointCount();
+        if (pathPointCount == 0 && count > 0) {
+            path.moveTo(points[0], points[1]);
+            pathPointCount = 1;
+        }
+        for (int i = pathPointCount; i < count; i++) {
+            float prevX = points[i * 2 - 2];
+            float prevY = points[i * 2 - 1];
+            path.quadTo(prevX, prevY,
+                    (points[i * 2] + prevX) / 2,
+                    (points[i * 2 + 1] + prevY) / 2);
+        }
+        pathPointCount = count;
+
+        if (finished && !pathFinished && count > 0) {
+            path.lineTo(points[size - 2], points[size - 1]);
+            pathFinished = true;
+        }
         return path;
     }
 
     /**
-     * @return The paint cap that was used to draw the line (round or square).
+     * Draws the line with the given renderer.
+     *
+     * @param renderer The renderer the line is drawn with.
+     * @param effects Whether the blur or emboss effect is applied.
      */
-    public Paint.Cap getCap() {
-        return cap;
+    public void render(Renderer renderer, boolean effects) {
+        renderer.drawPath(this, effects);
+    }
+
+    /**
+     * @return Whether the points of the line are still waiting to be
+     *         read from its point source.
+     */
+    public boolean hasPendingPoints() {
+        return pointSource != null;
+    }
+
+    /**
+     * Reads the points from the point source, if the line has one.
+     */
+    private void loadPoints() {
+        if (pointSource != null) {
+            PointSource source = pointSource;
+            pointSource = null;
+            source.readPoints(this);
+        }
     }
 }
@@ -0,0 +1,1007 @@
+package fi.tamk.tiko.androidpaint;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Binary file format for saving the drawing as editable lines and shapes
+ * together with its undo history.
+ *
+ * A file starts with a fixed header, followed by these sections:
+ * <ul>
+ *     <li>Style dictionary: each distinct pair of color and style header
+ *     (stroke width and flags) once, as two ints.</li>
+ *     <li>Stroke table: one fixed size record per line with its style
+ *     index, point count, encoding, bounds and the offset of its points
+ *     in the point data.</li>
+ *     <li>Shape table: one fixed size record per shape with its kind,
+ *     style index and coordinates.</li>
+ *     <li>Command stream: one type byte per command in history order.
+ *     Lines and shapes take the next record of their table, and
+ *     background changes are followed by the new and previous color.
+ *     Fills are followed by their color, the number of their rectangles
+ *     and the rectangles as zigzag varint deltas. Changes to the layers
+ *     are followed by their kind, layer id and the index or state before
+ *     and after them. Lines, shapes and fills that are not on the base
+ *     layer are preceded by a layer prefix and their layer id, which do
+ *     not count as a command.</li>
+ *     <li>Point data: the points of each line, delta encoded and packed
+ *     as zigzag varints.</li>
+ * </ul>
+ * Coordinates that are exact multiples of 1/16 pixel are stored as
+ * deltas of fixed point values, which usually take one or two bytes.
+ * Other lines store deltas of the raw float bits, so every line is read
+ * back exactly as it was written.
+ *
+ * Files are read through a memory-mapped buffer. Only the tables are
+ * read when a file is opened, and the points of each line are decoded
+ * when the line is first drawn. Loaded images are not part of the
+ * document.
+ */
+public class DrawingDocument {
+
+    /**
+     * The first four bytes of every document, "APDD".
+     */
+    public static final int MAGIC = 0x44445041;
+
+    /**
+     * Version of the format written by this class.
+     */
+    public static final int VERSION = 3;
+
+    /**
+     * Size of the header in bytes.
+     */
+    private static final int HEADER_SIZE = 40;
+
+    /**
+     * Size of one entry of the style dictionary in bytes.
+     */
+    private static final int STYLE_SIZE = 8;
+
+    /**
+     * Size of one record of the stroke table in bytes.
+     */
+    private static final int STROKE_SIZE = 32;
+
+    /**
+     * Size of one record of the shape table in bytes.
+     */
+    private static final int SHAPE_SIZE = 24;
+
+    /**
+     * Command type of a line.
+     */
+    private static final byte TYPE_STROKE = 1;
+
+    /**
+     * Command type of a shape.
+     */
+    private static final byte TYPE_SHAPE = 2;
+
+    /**
+     * Command type of a background color change.
+     */
+    private static final byte TYPE_BACKGROUND = 3;
+
+    /**
+     * Command type of a clear.
+     */
+    private static final byte TYPE_CLEAR = 4;
+
+    /**
+     * Command type of a fill, added in version 2.
+     */
+    private static final byte TYPE_FILL = 5;
+
+    /**
+     * Command type of a change to the layers, added in version 3.
+     */
+    private static final byte TYPE_LAYER = 6;
+
+    /**
+     * Prefix of a line, shape or fill that is not on the base layer,
+     * added in version 3.
+     */
+    private static final byte TYPE_ON_LAYER = 7;
+
+    /**
+     * Point encoding that stores deltas of coordinates in 1/16 pixels.
+     */
+    private static final int ENCODING_FIXED = 0;
+
+    /**
+     * Point encoding that stores deltas of the raw bits of coordinates.
+     */
+    private static final int ENCODING_FLOAT = 1;
+
+    /**
+     * Number of fixed point steps in one pixel.
+     */
+    private static final float FIXED_SCALE = 16;
+
+    /**
+     * Shape kind of circles. Rectangles use the ordinal of their
+     * RectangleShape as their kind.
+     */
+    private static final int KIND_CIRCLE = 3;
+
+    /**
+     * Id of the base layer, which lines and shapes without a layer
+     * prefix are on.
+     */
+    private static final int BASE_LAYER = 0;
+
+    /**
+     * The width of the drawing the document was saved from.
+     */
+    private final int width;
+
+    /**
+     * The height of the drawing the document was saved from.
+     */
+    private final int height;
+
+    /**
+     * The commands of the document in history order.
+     */
+    private final List<Command> commands;
+
+    /**
+     * Number of applied commands. The commands after them were undone
+     * when the document was saved and can be redone.
+     */
+    private final int position;
+
+    /**
+     * Constructs the object and sets its attributes.
+     *
+     * @param width The width of the drawing.
+     * @param height The height of the drawing.
+     * @param commands The commands in history order.
+     * @param position Number of applied commands.
+     */
+    DrawingDocument(int width, int height, List<Command> commands, int position) {
+        this.width = width;
+        this.height = height;
+        this.commands = commands;
+        this.position = position;
+    }
+
+    /**
+     * @return The width of the drawing the document was saved from.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return The height of the drawing the document was saved from.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return The commands of the document in history order.
+     */
+    public List<Command> getCommands() {
+        return commands;
+    }
+
+    /**
+     * @return Number of applied commands.
+     */
+    public int getPosition() {
+        return position;
+    }
+
+    /**
+     * Renders the applied commands of the document with the given
+     * renderer. Only the lines and shapes after the last clear are drawn,
+     * over the background color in effect at the end. The layers are
+     * drawn in their order and hidden layers are left out, but their
+     * opacity and blend modes are not applied.
+     *
+     * @param renderer The renderer the drawing is drawn with.
+     * @param defaultBackground The background color of a new or cleared
+     *                          drawing.
+     */
+    public void render(Renderer renderer, int defaultBackground) {
+        int start = 0;
+        int background = defaultBackground;
+        List<Integer> layers = new ArrayList<>();
+        HashMap<Integer, Integer> states = new HashMap<>();
+        layers.add(BASE_LAYER);
+        for (int i = 0; i < position; i++) {
+            Command command = commands.get(i);
+            if (command instanceof ClearCommand) {
+                start = i + 1;
+                background = defaultBackground;
+                layers.clear();
+                layers.add(BASE_LAYER);
+                states.clear();
+            } else if (command instanceof BackgroundCommand) {
+                background = ((BackgroundCommand) command).getColor();
+            } else if (command instanceof LayerCommand) {
+                applyLayerCommand((LayerCommand) command, layers, states);
+            }
+        }
+
+        renderer.fill(background);
+        for (int layer : layers) {
+            Integer state = states.get(layer);
+            if (state != null && !LayerCommand.isVisible(state)) {
+                continue;
+            }
+            for (int i = start; i < position; i++) {
+                Command command = commands.get(i);
+                if (command.getLayer() != layer) {
+                    continue;
+                }
+                if (command instanceof DrawPath) {
+                    ((DrawPath) command).render(renderer, true);
+                } else if (command instanceof ColorShape) {
+                    ((ColorShape) command).render(renderer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies a change of the layers to a list of layer ids and a map of
+     * their states, for rendering without a LayerStack.
+     *
+     * @param command The change to apply.
+     * @param layers Ids of the layers from the bottom to the top.
+     * @param states Packed states of the layers that have been changed.
+     */
+    private static void applyLayerCommand(LayerCommand command, List<Integer> layers,
+                                          HashMap<Integer, Integer> states) {
+        Integer id = command.getLayer();
+        switch (command.getKind()) {
+            case LayerCommand.ADD:
+                layers.add(Math.max(0, Math.min(layers.size(), command.getTo())), id);
+                states.remove(id);
+                break;
+            case LayerCommand.REMOVE:
+                layers.remove(id);
+                break;
+            case LayerCommand.MOVE:
+                if (layers.remove(id)) {
+                    layers.add(Math.max(0, Math.min(layers.size(), command.getTo())), id);
+                }
+                break;
+            case LayerCommand.CHANGE:
+                states.put(id, command.getTo());
+                break;
+        }
+    }
+
+    /**
+     * Copies the commands of the given history into a document, so that
+     * it can be written on another thread while the history keeps
+     * changing. Lines are copied, since undone lines are recycled when
+     * new commands are added. Image commands are not stored in documents,
+     * so they are either left out or replaced with a placeholder.
+     *
+     * @param width The width of the drawing.
+     * @param height The height of the drawing.
+     * @param history The history whose commands are copied.
+     * @param imagePlaceholders Whether image commands are replaced with
+     *                          background changes that keep the previous
+     *                          color, so that the commands keep their
+     *                          positions in the history, instead of
+     *                          being left out.
+     * @return The document.
+     */
+    public static DrawingDocument copyOf(int width, int height, CommandHistory history,
+                                         boolean imagePlaceholders) {
+        List<Command> commands = new ArrayList<>(history.size());
+        int position = 0;
+        for (int i = 0; i < history.size(); i++) {
+            Command command = history.get(i);
+            if (command instanceof ImageCommand) {
+                if (!imagePlaceholders) {
+                    continue;
+                }
+                command = imagePlaceholder((ImageCommand) command);
+            } else if (command instanceof DrawPath) {
+                command = ((DrawPath) command).copy();
+            }
+            commands.add(command);
+            if (i < history.getPosition()) {
+                position++;
+            }
+        }
+        return new DrawingDocument(width, height, commands, position);
+    }
+
+    /**
+     * @param command An image load.
+     * @return Background change that stands in for the image load.
+     */
+    static BackgroundCommand imagePlaceholder(ImageCommand command) {
+        return new BackgroundCommand(command.getPreviousBackgroundColor(),
+                command.getPreviousBackgroundColor());
+    }
+
+    /**
+     * Writes the document into a file through a temporary file.
+     *
+     * @param file The file to write.
+     * @return Number of bytes written.
+     * @throws IOException If writing the file fails.
+     */
+    public long write(File file) throws IOException {
+        return write(file, width, height, commands, position);
+    }
+
+    /**
+     * Writes the given commands into a file. The file is first written
+     * under a temporary name and then renamed, so a failed save never
+     * leaves a partial document in place of the old one. Image commands
+     * are not written.
+     *
+     * @param file The file to write.
+     * @param width The width of the drawing.
+     * @param height The height of the drawing.
+     * @param commands The commands in history order.
+     * @param position Number of applied commands.
+     * @return Number of bytes written.
+     * @throws IOException If writing the file fails.
+     */
+    public static long write(File file, int width, int height,
+                             List<Command> commands, int position) throws IOException {
+        ByteBuffer[] sections = encode(width, height, commands, position);
+        long total = 0;
+        for (ByteBuffer section : sections) {
+            total += section.remaining();
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            FileChannel channel = out.getChannel();
+            long written = 0;
+            while (written < total) {
+                written += channel.write(sections);
+            }
+            channel.force(false);
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+        return total;
+    }
+
+    /**
+     * Encodes the given commands into the sections of a document.
+     *
+     * @param width The width of the drawing.
+     * @param height The height of the drawing.
+     * @param commands The commands in history order.
+     * @param position Number of applied commands.
+     * @return The header and the sections, ready to be written in order.
+     */
+    static ByteBuffer[] encode(int width, int height, List<Command> commands, int position) {
+        HashMap<Long, Integer> styleIndices = new HashMap<>();
+        ByteSink styles = new ByteSink(64);
+        ByteSink strokes = new ByteSink(256);
+        ByteSink shapes = new ByteSink(64);
+        ByteSink stream = new ByteSink(commands.size() + 16);
+        ByteSink points = new ByteSink(4096);
+        int strokeCount = 0;
+        int shapeCount = 0;
+
+        for (Command command : commands) {
+            if ((command instanceof DrawPath || command instanceof ColorShape)
+                    && command.getLayer() != BASE_LAYER) {
+                stream.put(TYPE_ON_LAYER);
+                stream.putInt(command.getLayer());
+            }
+            if (command instanceof DrawPath) {
+                DrawPath dp = (DrawPath) command;
+                int style = (dp.getFlags() << 16) | dp.getStrokeWidth();
+                int offset = points.size();
+                int encoding = encodePoints(dp, points);
+
+                strokes.putInt(styleIndex(styleIndices, styles, dp.getColor(), style));
+                strokes.putInt(dp.getPointCount());
+                strokes.putInt(offset);
+                strokes.putInt(encoding);
+                strokes.putFloat(dp.getLeft());
+                strokes.putFloat(dp.getTop());
+                strokes.putFloat(dp.getRight());
+                strokes.putFloat(dp.getBottom());
+                strokeCount++;
+                stream.put(TYPE_STROKE);
+            } else if (command instanceof FillRegion) {
+                stream.put(TYPE_FILL);
+                encodeRects((FillRegion) command, stream);
+            } else if (command instanceof ColorShape) {
+                ColorShape shape = (ColorShape) command;
+                shapes.putInt(shapeKind(shape));
+                shapes.putInt(styleIndex(styleIndices, styles, shape.getColor(), shape.getStrokeWidth()));
+                putShapeCoordinates(shape, shapes);
+                shapeCount++;
+                stream.put(TYPE_SHAPE);
+            } else if (command instanceof BackgroundCommand) {
+                BackgroundCommand bc = (BackgroundCommand) command;
+                stream.put(TYPE_BACKGROUND);
+                stream.putInt(bc.getColor());
+                stream.putInt(bc.getPreviousColor());
+            } else if (command instanceof ClearCommand) {
+                stream.put(TYPE_CLEAR);
+            } else if (command instanceof LayerCommand) {
+                LayerCommand lc = (LayerCommand) command;
+                stream.put(TYPE_LAYER);
+                stream.put((byte) lc.getKind());
+                stream.putInt(lc.getLayer());
+                stream.putInt(lc.getFrom());
+                stream.putInt(lc.getTo());
+            }
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putShort((short) VERSION);
+        header.putShort((short) HEADER_SIZE);
+        header.putInt(width);
+        header.putInt(height);
+        header.putInt(commands.size());
+        header.putInt(position);
+        header.putInt(styleIndices.size());
+        header.putInt(strokeCount);
+        header.putInt(shapeCount);
+        header.putInt(stream.size());
+        header.flip();
+
+        return new ByteBuffer[] {
+                header,
+                styles.toBuffer(),
+                strokes.toBuffer(),
+                shapes.toBuffer(),
+                stream.toBuffer(),
+                points.toBuffer()
+        };
+    }
+
+    /**
+     * Returns the index of the given color and style in the dictionary,
+     * adding them to it if they are not there yet.
+     *
+     * @param indices Indices of the styles added so far.
+     * @param styles The style dictionary being written.
+     * @param color The color of a line or shape.
+     * @param style The style header of a line or shape.
+     * @return Index of the style in the dictionary.
+     */
+    private static int styleIndex(HashMap<Long, Integer> indices, ByteSink styles, int color, int style) {
+        Long key = ((long) color << 32) | (style & 0xFFFFFFFFL);
+        Integer index = indices.get(key);
+        if (index == null) {
+            index = indices.size();
+            indices.put(key, index);
+            styles.putInt(color);
+            styles.putInt(style);
+        }
+        return index;
+    }
+
+    /**
+     * Writes the points of a line into the sink as zigzag varint deltas,
+     * using fixed point values if all coordinates can be stored exactly
+     * that way.
+     *
+     * @param dp The line whose points are written.
+     * @param out The sink the points are written to.
+     * @return The encoding that was used.
+     */
+    static int encodePoints(DrawPath dp, ByteSink out) {
+        float[] points = dp.getPoints();
+        int count = dp.getPointCount() * 2;
+
+        boolean fixed = true;
+        for (int i = 0; i < count && fixed; i++) {
+            float scaled = points[i] * FIXED_SCALE;
+            fixed = Math.abs(scaled) < (1 << 30) && Math.round(scaled) / FIXED_SCALE == points[i];
+        }
+
+        int prevX = 0;
+        int prevY = 0;
+        for (int i = 0; i < count; i += 2) {
+            int x = fixed ? Math.round(points[i] * FIXED_SCALE) : Float.floatToRawIntBits(points[i]);
+            int y = fixed ? Math.round(points[i + 1] * FIXED_SCALE) : Float.floatToRawIntBits(points[i + 1]);
+            out.putVarint(zigzag(x - prevX));
+            out.putVarint(zigzag(y - prevY));
+            prevX = x;
+            prevY = y;
+        }
+        return fixed ? ENCODING_FIXED : ENCODING_FLOAT;
+    }
+
+    /**
+     * Opens a document by mapping the file into memory. The tables are
+     * read right away, but the points of the lines are only decoded when
+     * they are first needed.
+     *
+     * @param file The file to read.
+     * @return The document.
+     * @throws IOException If the file cannot be read or is not a valid document.
+     */
+    public static DrawingDocument read(File file) throws IOException {
+        MappedByteBuffer buffer;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        return decode(buffer);
+    }
+
+    /**
+     * Decodes a document from the given buffer. Lines keep a reference to
+     * the buffer until their points have been decoded.
+     *
+     * @param buffer Buffer containing a whole document.
+     * @return The document.
+     * @throws IOException If the buffer does not contain a valid document.
+     */
+    static DrawingDocument decode(ByteBuffer buffer) throws IOException {
+        ByteBuffer in = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (in.remaining() < HEADER_SIZE || in.getInt(0) != MAGIC) {
+            throw new IOException("Not a drawing document");
+        }
+        int version = in.getShort(4);
+        if (version > VERSION) {
+            throw new IOException("Unsupported document version " + version);
+        }
+        int headerSize = in.getShort(6);
+        int width = in.getInt(8);
+        int height = in.getInt(12);
+        int commandCount = in.getInt(16);
+        int position = in.getInt(20);
+        int styleCount = in.getInt(24);
+        int strokeCount = in.getInt(28);
+        int shapeCount = in.getInt(32);
+        int streamLength = in.getInt(36);
+
+        int styleOffset = headerSize;
+        int strokeOffset = styleOffset + styleCount * STYLE_SIZE;
+        int shapeOffset = strokeOffset + strokeCount * STROKE_SIZE;
+        int streamOffset = shapeOffset + shapeCount * SHAPE_SIZE;
+        int pointOffset = streamOffset + streamLength;
+        if (styleCount < 0 || strokeCount < 0 || shapeCount < 0 || streamLength < 0
+                || pointOffset > in.limit() || position < 0 || position > commandCount) {
+            throw new IOException("Corrupt drawing document");
+        }
+
+        List<Command> commands = new ArrayList<>(commandCount);
+        int streamIndex = streamOffset;
+        int stroke = 0;
+        int shape = 0;
+        try {
+            for (int i = 0; i < commandCount; i++) {
+                if (streamIndex >= pointOffset) {
+                    throw new IOException("Corrupt drawing document");
+                }
+                byte type = in.get(streamIndex++);
+                int layer = BASE_LAYER;
+                if (type == TYPE_ON_LAYER) {
+                    layer = in.getInt(streamIndex);
+                    type = in.get(streamIndex + 4);
+                    streamIndex += 5;
+                }
+                switch (type) {
+                    case TYPE_STROKE: {
+                        int record = strokeOffset + STROKE_SIZE * stroke++;
+                        int styleRecord = styleOffset + STYLE_SIZE * in.getInt(record);
+                        int style = in.getInt(styleRecord + 4);
+                        int encoding = in.getInt(record + 12);
+                        DrawPath dp = new DrawPath(
+                                in.getInt(styleRecord),
+                                style & 0xFFFF,
+                                style >>> 16,
+                                in.getFloat(record + 16),
+                                in.getFloat(record + 20),
+                                in.getFloat(record + 24),
+                                in.getFloat(record + 28),
+                                new MappedPoints(in,
+                                        pointOffset + in.getInt(record + 8),
+                                        in.getInt(record + 4),
+                                        encoding));
+                        dp.setLayer(layer);
+                        commands.add(dp);
+                        break;
+                    }
+                    case TYPE_SHAPE: {
+                        int record = shapeOffset + SHAPE_SIZE * shape++;
+                        int kind = in.getInt(record);
+                        int styleRecord = styleOffset + STYLE_SIZE * in.getInt(record + 4);
+                        int color = in.getInt(styleRecord);
+                        int strokeWidth = in.getInt(styleRecord + 4) & 0xFFFF;
+                        ColorShape created = createShape(kind, color, strokeWidth,
+                                in.getFloat(record + 8),
+                                in.getFloat(record + 12),
+                                in.getFloat(record + 16),
+                                in.getFloat(record + 20));
+                        created.setLayer(layer);
+                        commands.add(created);
+                        break;
+                    }
+                    case TYPE_BACKGROUND:
+                        commands.add(new BackgroundCommand(
+                                in.getInt(streamIndex), in.getInt(streamIndex + 4)));
+                        streamIndex += 8;
+                        break;
+                    case TYPE_CLEAR:
+                        commands.add(new ClearCommand());
+                        break;
+                    case TYPE_FILL: {
+                        int[] index = {streamIndex};
+                        FillRegion fill = decodeRects(in, index);
+                        fill.setLayer(layer);
+                        commands.add(fill);
+                        streamIndex = index[0];
+                        break;
+                    }
+                    case TYPE_LAYER:
+                        commands.add(new LayerCommand(in.get(streamIndex),
+                                in.getInt(streamIndex + 1),
+                                in.getInt(streamIndex + 5),
+                                in.getInt(streamIndex + 9)));
+                        streamIndex += 13;
+                        break;
+                    default:
+                        throw new IOException("Unknown command type " + type);
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Corrupt drawing document", e);
+        }
+        if (stroke != strokeCount || shape != shapeCount) {
+            throw new IOException("Corrupt drawing document");
+        }
+        return new DrawingDocument(width, height, commands, position);
+    }
+
+    /**
+     * Points of one line in the point data of a document buffer.
+     */
+    private static class MappedPoints implements DrawPath.PointSource {
+
+        /**
+         * Buffer of the whole document.
+         */
+        private final ByteBuffer buffer;
+
+        /**
+         * Index of the first byte of the points in the buffer.
+         */
+        private final int offset;
+
+        /**
+         * Number of points.
+         */
+        private final int count;
+
+        /**
+         * How the points are encoded, one of the ENCODING_ constants.
+         */
+        private final int encoding;
+
+        /**
+         * Constructs the object and sets its attributes.
+         *
+         * @param buffer Buffer of the whole document.
+         * @param offset Index of the first byte of the points in the buffer.
+         * @param count Number of points.
+         * @param encoding How the points are encoded.
+         */
+        MappedPoints(ByteBuffer buffer, int offset, int count, int encoding) {
+            this.buffer = buffer;
+            this.offset = offset;
+            this.count = count;
+            this.encoding = encoding;
+        }
+
+        /**
+         * Decodes the points from the buffer into the given line.
+         *
+         * @param into The line whose points are read.
+         */
+        @Override
+        public void readPoints(DrawPath into) {
+            decodePoints(buffer, offset, count, encoding, into);
+        }
+    }
+
+    /**
+     * Decodes points written by encodePoints and adds them to a line.
+     *
+     * @param buffer The buffer to read from.
+     * @param offset Index of the first byte of the points in the buffer.
+     * @param count Number of points.
+     * @param encoding The encoding returned by encodePoints.
+     * @param into The line the points are added to.
+     */
+    static void decodePoints(ByteBuffer buffer, int offset, int count, int encoding, DrawPath into) {
+        int[] index = {offset};
+        int x = 0;
+        int y = 0;
+        for (int i = 0; i < count; i++) {
+            x += unzigzag(readVarint(buffer, index));
+            y += unzigzag(readVarint(buffer, index));
+            if (encoding == ENCODING_FIXED) {
+                into.addPoint(x / FIXED_SCALE, y / FIXED_SCALE);
+            } else {
+                into.addPoint(Float.intBitsToFloat(x), Float.intBitsToFloat(y));
+            }
+        }
+    }
+
+    /**
+     * Writes the color and rectangles of a fill into the sink. Each
+     * rectangle is written as the change of its left and top edges from
+     * the previous rectangle followed by its width and height, which
+     * usually take one or two bytes each.
+     *
+     * @param fill The fill to write.
+     * @param out The sink the fill is written to.
+     */
+    static void encodeRects(FillRegion fill, ByteSink out) {
+        int[] rects = fill.getRects();
+        out.putInt(fill.getColor());
+        out.putInt(fill.getRectCount());
+        int prevLeft = 0;
+        int prevTop = 0;
+        for (int i = 0; i < rects.length; i += 4) {
+            out.putVarint(zigzag(rects[i] - prevLeft));
+            out.putVarint(zigzag(rects[i + 1] - prevTop));
+            out.putVarint(rects[i + 2] - rects[i]);
+            out.putVarint(rects[i + 3] - rects[i + 1]);
+            prevLeft = rects[i];
+            prevTop = rects[i + 1];
+        }
+    }
+
+    /**
+     * Reads a fill written by encodeRects.
+     *
+     * @param buffer The buffer to read from.
+     * @param index Array holding the index of the fill, which is moved
+     *              past the fill.
+     * @return The fill.
+     * @throws IOException If the number of rectangles is not valid.
+     */
+    static FillRegion decodeRects(ByteBuffer buffer, int[] index) throws IOException {
+        int color = buffer.getInt(index[0]);
+        int count = buffer.getInt(index[0] + 4);
+        if (count < 0 || count > (buffer.limit() - index[0]) / 4) {
+            throw new IOException("Corrupt fill");
+        }
+        index[0] += 8;
+        int[] rects = new int[count * 4];
+        int left = 0;
+        int top = 0;
+        for (int i = 0; i < rects.length; i += 4) {
+            left += unzigzag(readVarint(buffer, index));
+            top += unzigzag(readVarint(buffer, index));
+            rects[i] = left;
+            rects[i + 1] = top;
+            rects[i + 2] = left + readVarint(buffer, index);
+            rects[i + 3] = top + readVarint(buffer, index);
+        }
+        return new FillRegion(color, rects);
+    }
+
+    /**
+     * @param shape A rectangle or circle.
+     * @return The kind of the shape stored in files.
+     */
+    static int shapeKind(ColorShape shape) {
+        return shape instanceof ColorCircle
+                ? KIND_CIRCLE
+                : ((ColorRect) shape).getShape().ordinal();
+    }
+
+    /**
+     * Writes the four coordinates of a shape: the edges of a rectangle,
+     * or the center and radius of a circle followed by zero.
+     *
+     * @param shape The shape whose coordinates are written.
+     * @param out The sink the coordinates are written to.
+     */
+    static void putShapeCoordinates(ColorShape shape, ByteSink out) {
+        if (shape instanceof ColorCircle) {
+            ColorCircle circle = (ColorCircle) shape;
+            out.putFloat(circle.getX());
+            out.putFloat(circle.getY());
+            out.putFloat(circle.getRadius());
+            out.putFloat(0);
+        } else {
+            ColorRect rect = (ColorRect) shape;
+            out.putFloat(rect.getLeft());
+            out.putFloat(rect.getTop());
+            out.putFloat(rect.getRight());
+            out.putFloat(rect.getBottom());
+        }
+    }
+
+    /**
+     * Creates a shape from the values written by shapeKind and
+     * putShapeCoordinates.
+     *
+     * @param kind The kind of the shape.
+     * @param color The color of the shape.
+     * @param strokeWidth The stroke width of the shape.
+     * @param a Left edge, or x-coordinate of the center of a circle.
+     * @param b Top edge, or y-coordinate of the center of a circle.
+     * @param c Right edge, or radius of a circle.
+     * @param d Bottom edge, unused for a circle.
+     * @return The shape.
+     * @throws IOException If the kind is not known.
+     */
+    static ColorShape createShape(int kind, int color, int strokeWidth,
+                                  float a, float b, float c, float d) throws IOException {
+        if (kind == KIND_CIRCLE) {
+            return new ColorCircle(color, strokeWidth, a, b, c);
+        }
+        if (kind < 0 || kind >= RectangleShape.values().length) {
+            throw new IOException("Unknown shape kind " + kind);
+        }
+        return new ColorRect(color, strokeWidth, a, b, c, d, RectangleShape.values()[kind]);
+    }
+
+    /**
+     * @param value A signed value.
+     * @return The value with its sign moved to the lowest bit, so that
+     *         small negative values also encode into few varint bytes.
+     */
+    static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    /**
+     * @param value A value returned by zigzag.
+     * @return The original signed value.
+     */
+    static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Reads a varint at the given index of the buffer.
+     *
+     * @param buffer The buffer to read from.
+     * @param index Array holding the index of the varint, which is moved
+     *              past the varint.
+     * @return The value of the varint.
+     */
+    static int readVarint(ByteBuffer buffer, int[] index) {
+        int value = 0;
+        int shift = 0;
+        int i = index[0];
+        byte b;
+        do {
+            b = buffer.get(i++);
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0 && shift < 35);
+        index[0] = i;
+        return value;
+    }
+
+    /**
+     * Growable little-endian byte array that the sections of a document
+     * and the records of the journal are built in.
+     */
+    static class ByteSink {
+
+        /**
+         * The bytes written so far, followed by unused space.
+         */
+        private byte[] bytes;
+
+        /**
+         * Number of bytes written.
+         */
+        private int size;
+
+        /**
+         * Constructs an empty sink.
+         *
+         * @param capacity Number of bytes to reserve space for.
+         */
+        ByteSink(int capacity) {
+            bytes = new byte[Math.max(capacity, 16)];
+        }
+
+        /**
+         * @return Number of bytes written.
+         */
+        int size() {
+            return size;
+        }
+
+        /**
+         * @param b Byte to write.
+         */
+        void put(byte b) {
+            ensure(1);
+            bytes[size++] = b;
+        }
+
+        /**
+         * @param other Sink whose written bytes are appended to this one.
+         */
+        void put(ByteSink other) {
+            ensure(other.size);
+            System.arraycopy(other.bytes, 0, bytes, size, other.size);
+            size += other.size;
+        }
+
+        /**
+         * @param value Int to write in four bytes.
+         */
+        void putInt(int value) {
+            ensure(4);
+            bytes[size++] = (byte) value;
+            bytes[size++] = (byte) (value >> 8);
+            bytes[size++] = (byte) (value >> 16);
+            bytes[size++] = (byte) (value >> 24);
+        }
+
+        /**
+         * @param value Float to write as its raw bits in four bytes.
+         */
+        void putFloat(float value) {
+            putInt(Float.floatToRawIntBits(value));
+        }
+
+        /**
+         * @param value Int to write in seven bit groups, lowest first,
+         *              with the high bit of each byte telling whether
+         *              more bytes follow.
+         */
+        void putVarint(int value) {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        /**
+         * @return Buffer over the written bytes.
+         */
+        ByteBuffer toBuffer() {
+            return ByteBuffer.wrap(bytes, 0, size);
+        }
+
+        /**
+         * Grows the array so that the given number of bytes fit after
+         * the written ones.
+         *
+         * @param extra Number of bytes about to be written.
+         */
+        private void ensure(int extra) {
+            if (size + extra > bytes.length) {
+                byte[] larger = new byte[Math.max(bytes.length * 2, size + extra)];
+                System.arraycopy(bytes, 0, larger, 0, size);
+                bytes = larger;
+            }
+        }
+    }
+}
@@ -0,0 +1,1059 @@
+package fi.tamk.tiko.androidpaint;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the changes made to the drawing, so that the
+ * drawing survives the process being killed in the background and the
+ * activity being recreated.
+ *
+ * Every executed command, undo and redo is encoded into a record on the
+ * UI thread and handed to a writer thread, which appends the records to
+ * the journal file in small batches and syncs the file to storage
+ * according to the sync policy. Each record has its length and a CRC32
+ * checksum, so a record that was only partly written when the process
+ * died is detected and dropped on the next start.
+ *
+ * When the journal grows past a threshold, a snapshot of the history is
+ * written as a DrawingDocument on the writer thread and a new, empty
+ * journal is started after it, so that replaying on startup stays fast.
+ * The writer also copies the history for the snapshot, while holding
+ * the lock that the history is changed under, so the UI thread only
+ * queues a request. The records queued before the copy are part of it
+ * and are not written after it.
+ * The snapshot and its journal share a generation number in their file
+ * names, and a new generation only replaces the old one once its
+ * snapshot has been completely written.
+ *
+ * Only one journal writes into a directory at a time. When the activity
+ * is recreated, the journal of the old activity is closed without
+ * waiting, and opening the journal of the new activity waits until the
+ * old writer has written its last records and stopped before reading
+ * the files. The wait has a time limit, so opening should be done off
+ * the UI thread and tried again if the old writer is still busy.
+ *
+ * The record methods must be called while holding the lock given with
+ * setLock, right after the history has been changed under the same lock.
+ *
+ * Loaded images are not journaled. An image load is stored as a
+ * background change that keeps the previous color, so that later undo
+ * and redo records still refer to the right commands.
+ */
+public class DrawingJournal {
+
+    /**
+     * How often the journal file is synced to storage.
+     */
+    public enum SyncPolicy {
+
+        /**
+         * Never sync. Records survive the process being killed, since
+         * they are in the file system cache, but not power loss.
+         */
+        NEVER,
+
+        /**
+         * Sync after every batch of records.
+         */
+        EVERY_BATCH,
+
+        /**
+         * Sync at most once in the sync interval.
+         */
+        INTERVAL
+    }
+
+    /**
+     * Tag used for logging journal errors and timings.
+     */
+    private static final String TAG = "DrawingJournal";
+
+    /**
+     * Start of the names of journal files, followed by the generation.
+     */
+    private static final String JOURNAL_PREFIX = "journal-";
+
+    /**
+     * Start of the names of snapshot files, followed by the generation.
+     */
+    private static final String BASE_PREFIX = "base-";
+
+    /**
+     * End of the names of journal files.
+     */
+    private static final String JOURNAL_SUFFIX = ".apj";
+
+    /**
+     * End of the names of snapshot files.
+     */
+    private static final String BASE_SUFFIX = ".apd";
+
+    /**
+     * How long the writer waits for more records before writing a batch.
+     */
+    private static final long BATCH_DELAY_MS = 50;
+
+    /**
+     * Default time between syncs with the INTERVAL policy.
+     */
+    public static final long DEFAULT_SYNC_INTERVAL_MS = 1000;
+
+    /**
+     * Default size of the journal after which it is compacted.
+     */
+    public static final long DEFAULT_COMPACT_THRESHOLD = 1024 * 1024;
+
+    /**
+     * Record type of a line.
+     */
+    private static final byte TYPE_STROKE = 1;
+
+    /**
+     * Record type of a shape.
+     */
+    private static final byte TYPE_SHAPE = 2;
+
+    /**
+     * Record type of a background color change.
+     */
+    private static final byte TYPE_BACKGROUND = 3;
+
+    /**
+     * Record type of a clear.
+     */
+    private static final byte TYPE_CLEAR = 4;
+
+    /**
+     * Record type of an undo.
+     */
+    private static final byte TYPE_UNDO = 5;
+
+    /**
+     * Record type of a redo.
+     */
+    private static final byte TYPE_REDO = 6;
+
+    /**
+     * Record type of a fill.
+     */
+    private static final byte TYPE_FILL = 7;
+
+    /**
+     * Record type of a change to the layers.
+     */
+    private static final byte TYPE_LAYER = 8;
+
+    /**
+     * Prefix of the type of a line, shape or fill that is not on the
+     * base layer, followed by the id of its layer.
+     */
+    private static final byte TYPE_ON_LAYER = 9;
+
+    /**
+     * Queue item that makes the writer write and sync right away.
+     */
+    private static final Object FLUSH = new Object();
+
+    /**
+     * Queue item that makes the writer write, sync and stop.
+     */
+    private static final Object CLOSE = new Object();
+
+    /**
+     * Receives the messages the journal logs. The journal logs through
+     * android.util.Log by default, and unit tests replace the logger,
+     * since they run on a plain JVM without the Android logging.
+     */
+    public interface Logger {
+
+        /**
+         * Logs a timing or other debug message.
+         *
+         * @param message The message.
+         */
+        void debug(String message);
+
+        /**
+         * Logs a problem that the journal recovered from.
+         *
+         * @param message The message.
+         * @param error The cause, or null.
+         */
+        void warn(String message, Throwable error);
+
+        /**
+         * Logs a failure.
+         *
+         * @param message The message.
+         * @param error The cause.
+         */
+        void error(String message, Throwable error);
+    }
+
+    /**
+     * Logger that writes into the Android log.
+     */
+    private static class AndroidLogger implements Logger {
+
+        @Override
+        public void debug(String message) {
+            Log.d(TAG, message);
+        }
+
+        @Override
+        public void warn(String message, Throwable error) {
+            Log.w(TAG, message, error);
+        }
+
+        @Override
+        public void error(String message, Throwable error) {
+            Log.e(TAG, message, error);
+        }
+    }
+
+    /**
+     * The logger of all journals.
+     */
+    private static volatile Logger logger = new AndroidLogger();
+
+    /**
+     * The journal most recently opened in each directory, until its
+     * writer stops. Guarded by itself.
+     */
+    private static final HashMap<File, DrawingJournal> OPEN_JOURNALS = new HashMap<>();
+
+    /**
+     * Request to compact the journal into a snapshot of a history, which
+     * the writer copies while holding the lock.
+     */
+    private static class Compaction {
+
+        /**
+         * The history to copy.
+         */
+        final CommandHistory history;
+
+        /**
+         * Constructs the object and sets its attributes.
+         *
+         * @param history The history to copy.
+         */
+        Compaction(CommandHistory history) {
+            this.history = history;
+        }
+    }
+
+    /**
+     * The directory the journal and snapshot files are kept in.
+     */
+    private final File dir;
+
+    /**
+     * The width of the drawing, stored in the snapshots.
+     */
+    private final int width;
+
+    /**
+     * The height of the drawing, stored in the snapshots.
+     */
+    private final int height;
+
+    /**
+     * Lock that the history is changed and the records are made under.
+     */
+    private volatile Object lock = this;
+
+    /**
+     * Records and commands waiting for the writer.
+     */
+    private final LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+
+    /**
+     * The thread that writes the records, or null before open. Kept
+     * after close, so that the thread can still be waited for.
+     */
+    private volatile Thread writer;
+
+    /**
+     * How often the journal is synced.
+     */
+    private volatile SyncPolicy syncPolicy = SyncPolicy.INTERVAL;
+
+    /**
+     * Time between syncs with the INTERVAL policy.
+     */
+    private volatile long syncIntervalMs = DEFAULT_SYNC_INTERVAL_MS;
+
+    /**
+     * Size of the journal after which it is compacted.
+     */
+    private volatile long compactThreshold = DEFAULT_COMPACT_THRESHOLD;
+
+    /**
+     * Set by the writer when the journal has grown past the threshold.
+     */
+    private volatile boolean compactionNeeded;
+
+    /**
+     * Whether a snapshot has been queued and not yet written.
+     */
+    private volatile boolean compactionQueued;
+
+    /**
+     * Size of the current journal file.
+     */
+    private volatile long journalBytes;
+
+    /**
+     * The generation of the current journal file. Only used by the
+     * writer after open.
+     */
+    private int generation;
+
+    /**
+     * The current journal file opened for appending. Only used by the
+     * writer after open.
+     */
+    private FileChannel channel;
+
+    /**
+     * Whether records have been written since the last sync.
+     */
+    private boolean unsynced;
+
+    /**
+     * Time of the last sync.
+     */
+    private long lastSyncTime;
+
+    /**
+     * Reusable list of the records of one batch.
+     */
+    private final ArrayList<ByteBuffer> pending = new ArrayList<>();
+
+    /**
+     * Constructs the journal without touching the files yet.
+     *
+     * @param dir The directory the journal files are kept in.
+     * @param width The width of the drawing.
+     * @param height The height of the drawing.
+     */
+    public DrawingJournal(File dir, int width, int height) {
+        this.dir = dir;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Sets the lock that the history is changed under and the record
+     * methods are called under, which the writer holds while it copies
+     * the history for a snapshot.
+     *
+     * @param lock The lock.
+     */
+    public void setLock(Object lock) {
+        this.lock = lock;
+    }
+
+    /**
+     * Replaces the logger of all journals.
+     *
+     * @param newLogger The logger.
+     */
+    public static void setLogger(Logger newLogger) {
+        logger = newLogger;
+    }
+
+    /**
+     * Replays the snapshot and journal left by the previous run, and
+     * starts the writer thread that appends new records after them. A
+     * partly written record at the end of the journal is cut off. If
+     * another journal was opened in the same directory before, it is
+     * closed and its writer is waited for first. Reads files, so it
+     * should not be called on the UI thread.
+     *
+     * @param timeoutMs The longest time to wait for the writer of the
+     *                  previous journal in milliseconds.
+     * @return The replayed drawing. It is empty on the first run.
+     * @throws IOException If the journal files cannot be read or created.
+     * @throws TimeoutException If the writer of the previous journal did
+     *                          not stop in time. Nothing has been read,
+     *                          and opening can be tried again.
+     */
+    public DrawingDocument open(long timeoutMs) throws IOException, TimeoutException {
+        long start = uptimeMillis();
+        File key = dir.getAbsoluteFile();
+        DrawingJournal previous;
+        synchronized (OPEN_JOURNALS) {
+            previous = OPEN_JOURNALS.put(key, this);
+        }
+        if (previous != null && previous != this && !previous.close(timeoutMs)) {
+            // Give the directory back, so that trying again waits for the
+            // previous writer again.
+            synchronized (OPEN_JOURNALS) {
+                if (OPEN_JOURNALS.get(key) == this) {
+                    OPEN_JOURNALS.put(key, previous);
+                }
+            }
+            throw new TimeoutException("The previous journal in " + dir + " is still writing");
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+
+        generation = findGeneration();
+        List<Command> commands = new ArrayList<>();
+        int position = 0;
+        File base = baseFile(generation);
+        if (base.exists()) {
+            try {
+                DrawingDocument document = DrawingDocument.read(base);
+                commands.addAll(document.getCommands());
+                position = document.getPosition();
+            } catch (IOException e) {
+                // The snapshot is unusable, and the journal after it is
+                // meaningless without it, so start over.
+                logger.error("Discarding unreadable snapshot " + base, e);
+                generation++;
+            }
+        }
+
+        File journal = journalFile(generation);
+        long valid = 0;
+        if (journal.exists()) {
+            byte[] bytes = readFully(journal);
+            int[] replayed = {position};
+            valid = replay(ByteBuffer.wrap(bytes), commands, replayed);
+            position = replayed[0];
+            if (valid < bytes.length) {
+                logger.warn("Dropping " + (bytes.length - valid) + " bytes of partial records", null);
+                try (RandomAccessFile raf = new RandomAccessFile(journal, "rw")) {
+                    raf.setLength(valid);
+                }
+            }
+        }
+        deleteOtherGenerations(generation);
+
+        channel = new FileOutputStream(journal, true).getChannel();
+        journalBytes = valid;
+        lastSyncTime = uptimeMillis();
+        writer = new Thread(this::runWriter, "DrawingJournal");
+        writer.setPriority(Thread.MIN_PRIORITY);
+        writer.start();
+
+        logger.debug("Replayed " + commands.size() + " commands from generation " + generation
+                + " and " + valid + " journal bytes in "
+                + (uptimeMillis() - start) + " ms");
+        return new DrawingDocument(width, height, commands, position);
+    }
+
+    /**
+     * Applies the records in the buffer to the given commands, stopping
+     * at the first incomplete or corrupt record.
+     *
+     * @param in Buffer containing the journal.
+     * @param commands The commands to apply the records to.
+     * @param applied Array holding the number of applied commands, which
+     *                is updated by the records.
+     * @return Number of bytes of valid records.
+     */
+    static long replay(ByteBuffer in, List<Command> commands, int[] applied) {
+        int position = applied[0];
+        in.order(ByteOrder.LITTLE_ENDIAN);
+        CRC32 crc = new CRC32();
+        int offset = 0;
+        int limit = in.limit();
+
+        while (offset + 8 <= limit) {
+            int length = in.getInt(offset);
+            if (length <= 0 || length > limit - offset - 8) {
+                break;
+            }
+            crc.reset();
+            crc.update(in.array(), in.arrayOffset() + offset + 4, length);
+            if ((int) crc.getValue() != in.getInt(offset + 4 + length)) {
+                break;
+            }
+
+            int index = offset + 4;
+            byte type = in.get(index++);
+            Command command = null;
+            try {
+                int layer = 0;
+                if (type == TYPE_ON_LAYER) {
+                    layer = in.getInt(index);
+                    type = in.get(index + 4);
+                    index += 5;
+                }
+                switch (type) {
+                    case TYPE_STROKE: {
+                        int style = in.getInt(index + 4);
+                        DrawPath dp = new DrawPath(in.getInt(index), style & 0xFFFF, style >>> 16);
+                        DrawingDocument.decodePoints(in, index + 16,
+                                in.getInt(index + 8), in.getInt(index + 12), dp);
+                        dp.finish();
+                        command = dp;
+                        break;
+                    }
+                    case TYPE_SHAPE:
+                        command = DrawingDocument.createShape(in.getInt(index),
+                                in.getInt(index + 4), in.getInt(index + 8),
+                                in.getFloat(index + 12), in.getFloat(index + 16),
+                                in.getFloat(index + 20), in.getFloat(index + 24));
+                        break;
+                    case TYPE_BACKGROUND:
+                        command = new BackgroundCommand(in.getInt(index), in.getInt(index + 4));
+                        break;
+                    case TYPE_CLEAR:
+                        command = new ClearCommand();
+                        break;
+                    case TYPE_FILL:
+                        command = DrawingDocument.decodeRects(in, new int[] {index});
+                        break;
+                    case TYPE_LAYER:
+                        command = new LayerCommand(in.get(index), in.getInt(index + 1),
+                                in.getInt(index + 5), in.getInt(index + 9));
+                        break;
+                    case TYPE_UNDO:
+                        if (position > 0) {
+                            position--;
+                        }
+                        break;
+                    case TYPE_REDO:
+                        if (position < commands.size()) {
+                            position++;
+                        }
+                        break;
+                    default:
+                        logger.warn("Unknown record type " + type, null);
+                        break;
+                }
+                if (command instanceof DrawPath || command instanceof ColorShape) {
+                    command.setLayer(layer);
+                }
+            } catch (IOException | IndexOutOfBoundsException e) {
+                logger.warn("Corrupt record at " + offset, e);
+                break;
+            }
+
+            if (command != null) {
+                while (commands.size() > position) {
+                    Command removed = commands.remove(commands.size() - 1);
+                    if (removed instanceof DrawPath) {
+                        ((DrawPath) removed).recycle();
+                    }
+                }
+                commands.add(command);
+                position++;
+            }
+            offset += 8 + length;
+        }
+
+        applied[0] = position;
+        return offset;
+    }
+
+    /**
+     * Records a command that was added to the history.
+     *
+     * @param command The executed command.
+     * @param history The history the command was added to.
+     */
+    public void recordExecute(Command command, CommandHistory history) {
+        queue.add(encode(command));
+        compactIfNeeded(history);
+    }
+
+    /**
+     * Records an undo.
+     *
+     * @param history The history that was undone.
+     */
+    public void recordUndo(CommandHistory history) {
+        queue.add(encodeEmpty(TYPE_UNDO));
+        compactIfNeeded(history);
+    }
+
+    /**
+     * Records a redo.
+     *
+     * @param history The history that was redone.
+     */
+    public void recordRedo(CommandHistory history) {
+        queue.add(encodeEmpty(TYPE_REDO));
+        compactIfNeeded(history);
+    }
+
+    /**
+     * Records that the whole history was replaced, for example by opening
+     * a document. The journal is compacted into a snapshot of the new
+     * history right away.
+     *
+     * @param history The new history.
+     */
+    public void recordReplace(CommandHistory history) {
+        compactionQueued = true;
+        queue.add(new Compaction(history));
+    }
+
+    /**
+     * Makes the writer write and sync the queued records without waiting
+     * for more. Should be called when the app goes to the background.
+     */
+    public void flush() {
+        queue.add(FLUSH);
+    }
+
+    /**
+     * Makes the writer write and sync the queued records and stop,
+     * without waiting for it. Records made after this are not written.
+     */
+    public void close() {
+        if (writer != null) {
+            queue.add(CLOSE);
+        }
+    }
+
+    /**
+     * Closes the journal and waits for the writer for at most the given
+     * time.
+     *
+     * @param timeoutMs The longest time to wait in milliseconds.
+     * @return Whether the writer has stopped.
+     */
+    public boolean close(long timeoutMs) {
+        close();
+        Thread thread = writer;
+        if (thread == null) {
+            return true;
+        }
+        try {
+            thread.join(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !thread.isAlive();
+    }
+
+    /**
+     * @param syncPolicy How often the journal is synced to storage.
+     */
+    public void setSyncPolicy(SyncPolicy syncPolicy) {
+        this.syncPolicy = syncPolicy;
+    }
+
+    /**
+     * @param syncIntervalMs Time between syncs with the INTERVAL policy.
+     */
+    public void setSyncInterval(long syncIntervalMs) {
+        this.syncIntervalMs = syncIntervalMs;
+    }
+
+    /**
+     * @param compactThreshold Size of the journal in bytes after which
+     *                         it is compacted.
+     */
+    public void setCompactThreshold(long compactThreshold) {
+        this.compactThreshold = compactThreshold;
+    }
+
+    /**
+     * @return Size of the current journal file in bytes.
+     */
+    public long getJournalBytes() {
+        return journalBytes;
+    }
+
+    /**
+     * Queues a compaction if the writer has asked for it and none is
+     * queued yet.
+     *
+     * @param history The current history.
+     */
+    private void compactIfNeeded(CommandHistory history) {
+        if (compactionNeeded && !compactionQueued) {
+            compactionQueued = true;
+            queue.add(new Compaction(history));
+        }
+    }
+
+    /**
+     * Encodes a command into a record.
+     *
+     * @param command The command to encode.
+     * @return The record, including its length and checksum.
+     */
+    static ByteBuffer encode(Command command) {
+        DrawingDocument.ByteSink payload = new DrawingDocument.ByteSink(64);
+        if (command instanceof ImageCommand) {
+            command = DrawingDocument.imagePlaceholder((ImageCommand) command);
+        }
+        if ((command instanceof DrawPath || command instanceof ColorShape)
+                && command.getLayer() != 0) {
+            payload.put(TYPE_ON_LAYER);
+            payload.putInt(command.getLayer());
+        }
+
+        if (command instanceof DrawPath) {
+            DrawPath dp = (DrawPath) command;
+            DrawingDocument.ByteSink points = new DrawingDocument.ByteSink(dp.getPointCount() * 3);
+            int encoding = DrawingDocument.encodePoints(dp, points);
+            payload.put(TYPE_STROKE);
+            payload.putInt(dp.getColor());
+            payload.putInt((dp.getFlags() << 16) | dp.getStrokeWidth());
+            payload.putInt(dp.getPointCount());
+            payload.putInt(encoding);
+            payload.put(points);
+        } else if (command instanceof FillRegion) {
+            payload.put(TYPE_FILL);
+            DrawingDocument.encodeRects((FillRegion) command, payload);
+        } else if (command instanceof ColorShape) {
+            ColorShape shape = (ColorShape) command;
+            payload.put(TYPE_SHAPE);
+            payload.putInt(DrawingDocument.shapeKind(shape));
+            payload.putInt(shape.getColor());
+            payload.putInt(shape.getStrokeWidth());
+            DrawingDocument.putShapeCoordinates(shape, payload);
+        } else if (command instanceof BackgroundCommand) {
+            BackgroundCommand bc = (BackgroundCommand) command;
+            payload.put(TYPE_BACKGROUND);
+            payload.putInt(bc.getColor());
+            payload.putInt(bc.getPreviousColor());
+        } else if (command instanceof LayerCommand) {
+            LayerCommand lc = (LayerCommand) command;
+            payload.put(TYPE_LAYER);
+            payload.put((byte) lc.getKind());
+            payload.putInt(lc.getLayer());
+            payload.putInt(lc.getFrom());
+            payload.putInt(lc.getTo());
+        } else {
+            payload.put(TYPE_CLEAR);
+        }
+        return frame(payload);
+    }
+
+    /**
+     * @param type Type of a record without payload.
+     * @return The record, including its length and checksum.
+     */
+    private static ByteBuffer encodeEmpty(byte type) {
+        DrawingDocument.ByteSink payload = new DrawingDocument.ByteSink(1);
+        payload.put(type);
+        return frame(payload);
+    }
+
+    /**
+     * Puts the length before the payload and its checksum after it.
+     *
+     * @param payload The type and payload of a record.
+     * @return The record.
+     */
+    private static ByteBuffer frame(DrawingDocument.ByteSink payload) {
+        ByteBuffer bytes = payload.toBuffer();
+        CRC32 crc = new CRC32();
+        crc.update(bytes.array(), 0, payload.size());
+
+        ByteBuffer record = ByteBuffer.allocate(payload.size() + 8).order(ByteOrder.LITTLE_ENDIAN);
+        record.putInt(payload.size());
+        record.put(bytes);
+        record.putInt((int) crc.getValue());
+        record.flip();
+        return record;
+    }
+
+    /**
+     * Main loop of the writer thread. Collects records into batches,
+     * writes them, syncs according to the policy, and compacts when a
+     * snapshot is queued.
+     */
+    private void runWriter() {
+        ArrayList<Object> batch = new ArrayList<>();
+        try {
+            while (true) {
+                Object item;
+                if (unsynced && syncPolicy == SyncPolicy.INTERVAL) {
+                    long wait = lastSyncTime + syncIntervalMs - uptimeMillis();
+                    item = queue.poll(Math.max(wait, 0), TimeUnit.MILLISECONDS);
+                    if (item == null) {
+                        sync(true);
+                        continue;
+                    }
+                } else {
+                    item = queue.take();
+                }
+
+                batch.add(item);
+                long deadline = uptimeMillis() + BATCH_DELAY_MS;
+                while (!isUrgent(item)) {
+                    long wait = deadline - uptimeMillis();
+                    if (wait <= 0 || (item = queue.poll(wait, TimeUnit.MILLISECONDS)) == null) {
+                        break;
+                    }
+                    batch.add(item);
+                }
+                queue.drainTo(batch);
+
+                boolean close = processBatch(batch);
+                batch.clear();
+                if (close) {
+                    channel.close();
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopped without closing; the records written so far are kept.
+        } catch (IOException e) {
+            logger.error("Closing journal failed", e);
+        } finally {
+            synchronized (OPEN_JOURNALS) {
+                File key = dir.getAbsoluteFile();
+                if (OPEN_JOURNALS.get(key) == this) {
+                    OPEN_JOURNALS.remove(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param item An item of the queue.
+     * @return Whether the item should be written without waiting for more.
+     */
+    private static boolean isUrgent(Object item) {
+        return item == FLUSH || item == CLOSE || item instanceof Compaction;
+    }
+
+    /**
+     * Writes the records of a batch and handles its other items.
+     *
+     * @param batch Items taken from the queue.
+     * @return Whether the writer should stop.
+     */
+    private boolean processBatch(List<Object> batch) {
+        boolean forceSync = false;
+        boolean close = false;
+        boolean compacted = false;
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                Object item = batch.get(i);
+                if (item instanceof ByteBuffer) {
+                    // Records queued before a snapshot was copied are in it.
+                    if (!compacted) {
+                        pending.add((ByteBuffer) item);
+                    }
+                } else if (item instanceof Compaction) {
+                    writePending();
+                    DrawingDocument snapshot;
+                    synchronized (lock) {
+                        snapshot = DrawingDocument.copyOf(width, height,
+                                ((Compaction) item).history, true);
+                        // No records are made while the lock is held, so
+                        // the queued ones are all older than the copy.
+                        queue.drainTo(batch);
+                    }
+                    compacted |= compact(snapshot);
+                } else if (item == FLUSH) {
+                    forceSync = true;
+                } else if (item == CLOSE) {
+                    forceSync = true;
+                    close = true;
+                }
+            }
+            writePending();
+            sync(forceSync);
+        } catch (IOException e) {
+            logger.error("Writing journal failed", e);
+            pending.clear();
+        }
+
+        if (journalBytes > compactThreshold) {
+            compactionNeeded = true;
+        }
+        return close;
+    }
+
+    /**
+     * Appends the pending records to the journal with one gathering write.
+     *
+     * @throws IOException If writing fails.
+     */
+    private void writePending() throws IOException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        ByteBuffer[] buffers = pending.toArray(new ByteBuffer[pending.size()]);
+        long total = 0;
+        for (ByteBuffer buffer : buffers) {
+            total += buffer.remaining();
+        }
+        long written = 0;
+        while (written < total) {
+            written += channel.write(buffers);
+        }
+        pending.clear();
+        journalBytes += total;
+        unsynced = true;
+    }
+
+    /**
+     * Syncs the journal to storage if the policy asks for it.
+     *
+     * @param force Whether to sync even if the interval has not passed.
+     * @throws IOException If syncing fails.
+     */
+    private void sync(boolean force) throws IOException {
+        SyncPolicy policy = syncPolicy;
+        if (!unsynced || policy == SyncPolicy.NEVER) {
+            return;
+        }
+        long now = uptimeMillis();
+        if (force || policy == SyncPolicy.EVERY_BATCH || now - lastSyncTime >= syncIntervalMs) {
+            channel.force(false);
+            lastSyncTime = now;
+            unsynced = false;
+        }
+    }
+
+    /**
+     * Writes the snapshot as the base of the next generation, starts an
+     * empty journal after it, and deletes the previous generation.
+     *
+     * @param snapshot Snapshot of the history.
+     * @return Whether the snapshot was written. Otherwise the records
+     *         keep being appended to the current journal.
+     */
+    private boolean compact(DrawingDocument snapshot) {
+        long start = uptimeMillis();
+        int next = generation + 1;
+        try {
+            long bytes = snapshot.write(baseFile(next));
+            FileChannel nextChannel = new FileOutputStream(journalFile(next)).getChannel();
+
+            channel.close();
+            channel = nextChannel;
+            generation = next;
+            deleteOtherGenerations(next);
+            logger.debug("Compacted " + journalBytes + " journal bytes into a " + bytes
+                    + " byte snapshot in " + (uptimeMillis() - start) + " ms");
+            journalBytes = 0;
+            unsynced = false;
+            compactionNeeded = false;
+            return true;
+        } catch (IOException e) {
+            logger.error("Compacting journal failed", e);
+            baseFile(next).delete();
+            return false;
+        } finally {
+            for (Command command : snapshot.getCommands()) {
+                if (command instanceof DrawPath) {
+                    ((DrawPath) command).recycle();
+                }
+            }
+            compactionQueued = false;
+        }
+    }
+
+    /**
+     * @return The newest generation that has a complete snapshot, or
+     *         zero if there is none.
+     */
+    private int findGeneration() {
+        int newest = 0;
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                int generation = parseGeneration(name, BASE_PREFIX, BASE_SUFFIX);
+                newest = Math.max(newest, generation);
+            }
+        }
+        return newest;
+    }
+
+    /**
+     * Deletes the snapshot and journal files of all other generations.
+     *
+     * @param keep The generation to keep.
+     */
+    private void deleteOtherGenerations(int keep) {
+        String[] names = dir.list();
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            int base = parseGeneration(name, BASE_PREFIX, BASE_SUFFIX);
+            int journal = parseGeneration(name, JOURNAL_PREFIX, JOURNAL_SUFFIX);
+            if ((base >= 0 && base != keep) || (journal >= 0 && journal != keep)) {
+                new File(dir, name).delete();
+            }
+        }
+    }
+
+    /**
+     * @param name Name of a file.
+     * @param prefix Start of the name.
+     * @param suffix End of the name.
+     * @return The generation in the name, or -1 if the name does not
+     *         have the given prefix and suffix.
+     */
+    private static int parseGeneration(String name, String prefix, String suffix) {
+        if (!name.startsWith(prefix) || !name.endsWith(suffix)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(prefix.length(), name.length() - suffix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return Milliseconds from a fixed but arbitrary moment, unaffected
+     *         by changes to the wall clock.
+     */
+    private static long uptimeMillis() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * @param generation A generation.
+     * @return The snapshot file of the generation.
+     */
+    private File baseFile(int generation) {
+        return new File(dir, BASE_PREFIX + generation + BASE_SUFFIX);
+    }
+
+    /**
+     * @param generation A generation.
+     * @return The journal file of the generation.
+     */
+    private File journalFile(int generation) {
+        return new File(dir, JOURNAL_PREFIX + generation + JOURNAL_SUFFIX);
+    }
+
+    /**
+     * @param file A file.
+     * @return The contents of the file.
+     * @throws IOException If reading fails.
+     */
+    private static byte[] readFully(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,375 @@
+package fi.tamk.tiko.androidpaint;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.MaskFilter;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Cache of finished lines with blur or emboss effect rasterized into
+ * bitmaps cropped to their bounds. Mask filters are slow software
+ * operations, so each effect line is filtered once on a background
+ * thread, and drawing it afterwards is a single bitmap blit.
+ *
+ * A line without a sprite is queued for rasterization the first time it
+ * is asked for, and the listener is told when its sprite is ready. The
+ * sprites are kept in least recently used order and the oldest ones are
+ * released to the bitmap pool when the cache grows past its limit. An
+ * evicted line is simply rasterized again the next time it is needed.
+ *
+ * All methods must be called on the UI thread, or while holding the lock
+ * given with setLock. Finished sprites are delivered on the UI thread
+ * while holding that lock.
+ */
+public class EffectSpriteCache {
+
+    /**
+     * Interface for hearing about finished sprites. Called on the UI
+     * thread.
+     */
+    public interface Listener {
+
+        /**
+         * Called when the sprite of a line has been rasterized.
+         *
+         * @param path The line whose sprite is ready.
+         */
+        void onSpriteReady(DrawPath path);
+    }
+
+    /**
+     * A rasterized line and the position of the bitmap in the drawing.
+     */
+    public static class Sprite {
+
+        /**
+         * The rasterized line.
+         */
+        final Bitmap bitmap;
+
+        /**
+         * Position of the left edge of the bitmap in the drawing.
+         */
+        final int left;
+
+        /**
+         * Position of the top edge of the bitmap in the drawing.
+         */
+        final int top;
+
+        /**
+         * Constructs the object and sets its attributes.
+         *
+         * @param bitmap The rasterized line.
+         * @param left Position of the left edge of the bitmap.
+         * @param top Position of the top edge of the bitmap.
+         */
+        Sprite(Bitmap bitmap, int left, int top) {
+            this.bitmap = bitmap;
+            this.left = left;
+            this.top = top;
+        }
+
+        /**
+         * Draws the sprite at its position.
+         *
+         * @param canvas Canvas the sprite is drawn on.
+         * @param paint Paint used for drawing the bitmap.
+         */
+        public void draw(Canvas canvas, Paint paint) {
+            canvas.drawBitmap(bitmap, left, top, paint);
+        }
+    }
+
+    /**
+     * Sprite sizes are rounded up to a multiple of this, so that bitmaps
+     * of evicted sprites can be reused from the pool for other lines.
+     */
+    private static final int SIZE_STEP = 64;
+
+    /**
+     * The thread that lines are rasterized on.
+     */
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "EffectSpriteCache");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    /**
+     * Handler that delivers finished sprites on the UI thread.
+     */
+    private final Handler uiHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * The sprites in least recently used order.
+     */
+    private final LinkedHashMap<DrawPath, Sprite> sprites = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Lines queued for rasterization, mapped to the copies that the
+     * background thread draws.
+     */
+    private final HashMap<DrawPath, DrawPath> pending = new HashMap<>();
+
+    /**
+     * Pool that sprite bitmaps are taken from and released to.
+     */
+    private final BitmapPool pool;
+
+    /**
+     * Filter used for lines with emboss effect.
+     */
+    private final MaskFilter emboss;
+
+    /**
+     * Filter used for lines with blur effect.
+     */
+    private final MaskFilter blur;
+
+    /**
+     * Paint used on the background thread.
+     */
+    private final Paint paint = new Paint();
+
+    /**
+     * Listener told about finished sprites, or null.
+     */
+    private Listener listener;
+
+    /**
+     * Lock held while a finished sprite is stored and the listener is told.
+     */
+    private Object lock = this;
+
+    /**
+     * Total size of the cached sprites in bytes.
+     */
+    private long currentBytes;
+
+    /**
+     * Largest total size of the cached sprites in bytes.
+     */
+    private long maxBytes;
+
+    /**
+     * Constructs the cache.
+     *
+     * @param pool Pool that sprite bitmaps are taken from.
+     * @param maxBytes Largest total size of the sprites in bytes.
+     * @param emboss Filter used for lines with emboss effect.
+     * @param blur Filter used for lines with blur effect.
+     */
+    public EffectSpriteCache(BitmapPool pool, long maxBytes, MaskFilter emboss, MaskFilter blur) {
+        this.pool = pool;
+        this.maxBytes = maxBytes;
+        this.emboss = emboss;
+        this.blur = blur;
+        paint.setAntiAlias(true);
+        paint.setDither(true);
+        paint.setStyle(Paint.Style.STROKE);
+        paint.setStrokeJoin(Paint.Join.ROUND);
+    }
+
+    /**
+     * @param listener Listener told about finished sprites, or null.
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the lock that is held while finished sprites are delivered,
+     * for when the cache is also used on a thread other than the UI thread.
+     *
+     * @param lock Lock that the other thread holds while using the cache.
+     */
+    public void setLock(Object lock) {
+        this.lock = lock;
+    }
+
+    /**
+     * Returns the sprite of a finished line, or queues the line for
+     * rasterization and returns null if it has no sprite yet.
+     *
+     * @param path A finished line with blur or emboss effect.
+     * @param bounds The area the line covers when drawn.
+     * @return The sprite, or null if it is not ready.
+     */
+    public Sprite get(DrawPath path, RectF bounds) {
+        Sprite sprite = sprites.get(path);
+        if (sprite == null && !pending.containsKey(path) && fits(bounds)) {
+            rasterize(path, bounds);
+        }
+        return sprite;
+    }
+
+    /**
+     * Returns the sprite of a finished line without queuing the line if
+     * it has no sprite.
+     *
+     * @param path A finished line with blur or emboss effect.
+     * @return The sprite, or null if it is not ready.
+     */
+    public Sprite peek(DrawPath path) {
+        return sprites.get(path);
+    }
+
+    /**
+     * @return Whether lines are being rasterized on the background
+     *         thread, which means that they are drawn without their
+     *         effect until their sprites are delivered.
+     */
+    public boolean isRasterizing() {
+        return !pending.isEmpty();
+    }
+
+    /**
+     * @param bounds The area a line covers when drawn.
+     * @return Whether a sprite of that size can be kept in the cache.
+     *         Larger lines have to be drawn with their filter directly.
+     */
+    public boolean fits(RectF bounds) {
+        return bytes(roundUp(bounds.width()), roundUp(bounds.height())) <= maxBytes / 4;
+    }
+
+    /**
+     * Copies the line and rasterizes the copy on the background thread.
+     *
+     * @param path The line to rasterize.
+     * @param bounds The area the line covers when drawn.
+     */
+    private void rasterize(DrawPath path, RectF bounds) {
+        // Reading the points of a lazily loaded line uses the point
+        // pool, so it is done here before copying.
+        path.getPointCount();
+        DrawPath copy = path.copy();
+        pending.put(path, copy);
+
+        int left = (int) Math.floor(bounds.left);
+        int top = (int) Math.floor(bounds.top);
+        int width = roundUp(bounds.width());
+        int height = roundUp(bounds.height());
+        executor.execute(() -> {
+            Bitmap bitmap = pool.get(width, height, Bitmap.Config.ARGB_8888);
+            Canvas canvas = new Canvas(bitmap);
+            canvas.translate(-left, -top);
+            paint.setColor(copy.getColor());
+            paint.setStrokeWidth(copy.getStrokeWidth());
+            paint.setStrokeCap(copy.getCap());
+            paint.setMaskFilter(copy.getEmboss() ? emboss : blur);
+            canvas.drawPath(copy.getPath(), paint);
+            Sprite sprite = new Sprite(bitmap, left, top);
+            uiHandler.post(() -> {
+                synchronized (lock) {
+                    deliver(path, sprite);
+                }
+            });
+        });
+    }
+
+    /**
+     * Stores a finished sprite, unless its line was removed while it was
+     * being rasterized, and tells the listener.
+     *
+     * @param path The rasterized line.
+     * @param sprite The sprite of the line.
+     */
+    private void deliver(DrawPath path, Sprite sprite) {
+        DrawPath copy = pending.remove(path);
+        if (copy == null) {
+            pool.put(sprite.bitmap);
+            return;
+        }
+        copy.recycle();
+
+        sprites.put(path, sprite);
+        currentBytes += bytes(sprite.bitmap.getWidth(), sprite.bitmap.getHeight());
+        trimToSize(maxBytes);
+        if (listener != null) {
+            listener.onSpriteReady(path);
+        }
+    }
+
+    /**
+     * Releases the sprite of a line that is no longer used, and forgets
+     * the line if it is still being rasterized.
+     *
+     * @param path The removed line.
+     */
+    public void remove(DrawPath path) {
+        Sprite sprite = sprites.remove(path);
+        if (sprite != null) {
+            currentBytes -= bytes(sprite.bitmap.getWidth(), sprite.bitmap.getHeight());
+            pool.put(sprite.bitmap);
+        }
+        // The background thread may still be drawing the copy of a
+        // pending line, so its points are left for the garbage collector.
+        pending.remove(path);
+    }
+
+    /**
+     * Releases the least recently used sprites until the cache is at
+     * most the given size.
+     *
+     * @param size The size in bytes to trim the cache to.
+     */
+    public void trimToSize(long size) {
+        Iterator<Map.Entry<DrawPath, Sprite>> it = sprites.entrySet().iterator();
+        while (currentBytes > size && it.hasNext()) {
+            Sprite sprite = it.next().getValue();
+            it.remove();
+            currentBytes -= bytes(sprite.bitmap.getWidth(), sprite.bitmap.getHeight());
+            pool.put(sprite.bitmap);
+        }
+    }
+
+    /**
+     * @return Total size of the cached sprites in bytes.
+     */
+    public long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    /**
+     * @return Number of cached sprites.
+     */
+    public int size() {
+        return sprites.size();
+    }
+
+    /**
+     * Stops the background thread after the running rasterization.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * @param size A width or height.
+     * @return The size rounded up to the next multiple of SIZE_STEP.
+     */
+    private static int roundUp(float size) {
+        int rounded = (int) Math.ceil(size);
+        return Math.max(SIZE_STEP, (rounded + SIZE_STEP - 1) / SIZE_STEP * SIZE_STEP);
+    }
+
+    /**
+     * @param width Width of a sprite.
+     * @param height Height of a sprite.
+     * @return Size of the sprite bitmap in bytes.
+     */
+    private static long bytes(int width, int height) {
+        return (long) width * height * 4;
+    }
+}
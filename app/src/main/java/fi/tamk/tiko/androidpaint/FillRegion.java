@@ -0,0 +1,104 @@
+package fi.tamk.tiko.androidpaint;
+
+/**
+ * Area filled with the bucket tool. The area is stored as rectangles of
+ * whole pixels that do not overlap, made by merging the spans of equal
+ * rows, so a fill takes a few bytes per row of its outline instead of a
+ * bitmap of the drawing. It is kept in the history and the index like
+ * the other shapes, so undoing it only redraws the area it covered.
+ */
+public class FillRegion extends ColorShape {
+
+    /**
+     * The rectangles as left, top, right and bottom edges, with the
+     * right and bottom edges outside of the area.
+     */
+    private final int[] rects;
+
+    /**
+     * Edges of the area that covers all the rectangles.
+     */
+    private final int left, top, right, bottom;
+
+    /**
+     * Constructs the object and sets its attributes.
+     *
+     * @param color The color the area is filled with.
+     * @param rects The rectangles as left, top, right and bottom edges.
+     *              The region owns the array from now on.
+     */
+    public FillRegion(int color, int[] rects) {
+        super(color, 0);
+        this.rects = rects;
+
+        int l = Integer.MAX_VALUE;
+        int t = Integer.MAX_VALUE;
+        int r = Integer.MIN_VALUE;
+        int b = Integer.MIN_VALUE;
+        for (int i = 0; i < rects.length; i += 4) {
+            l = Math.min(l, rects[i]);
+            t = Math.min(t, rects[i + 1]);
+            r = Math.max(r, rects[i + 2]);
+            b = Math.max(b, rects[i + 3]);
+        }
+        if (rects.length == 0) {
+            l = t = r = b = 0;
+        }
+        left = l;
+        top = t;
+        right = r;
+        bottom = b;
+    }
+
+    /**
+     * @return The rectangles as left, top, right and bottom edges.
+     */
+    public int[] getRects() {
+        return rects;
+    }
+
+    /**
+     * @return Number of rectangles.
+     */
+    public int getRectCount() {
+        return rects.length / 4;
+    }
+
+    /**
+     * @return Left edge of the area.
+     */
+    public int getLeft() {
+        return left;
+    }
+
+    /**
+     * @return Top edge of the area.
+     */
+    public int getTop() {
+        return top;
+    }
+
+    /**
+     * @return Right edge of the area.
+     */
+    public int getRight() {
+        return right;
+    }
+
+    /**
+     * @return Bottom edge of the area.
+     */
+    public int getBottom() {
+        return bottom;
+    }
+
+    /**
+     * Fills the rectangles with the given renderer.
+     *
+     * @param renderer The renderer the area is drawn with.
+     */
+    @Override
+    public void render(Renderer renderer) {
+        renderer.fillRects(rects, getColor());
+    }
+}
@@ -0,0 +1,137 @@
+package fi.tamk.tiko.androidpaint;
+
+import java.util.ArrayDeque;
+
+/**
+ * Pool of float arrays that is used to store the points of lines. Arrays
+ * are sorted into buckets by their length, which is always a power of two,
+ * so that an array released by a finished or removed line can be reused
+ * for the next one instead of allocating a new array.
+ */
+public class FloatArrayPool {
+
+    /**
+     * Length of the smallest array the pool hands out.
+     */
+    public static final int MIN_LENGTH = 64;
+
+    /**
+     * Number of buckets, the largest one containing arrays of length
+     * MIN_LENGTH * 2^(BUCKETS - 1).
+     */
+    private static final int BUCKETS = 16;
+
+    /**
+     * Free arrays, one deque for each length.
+     */
+    private final ArrayDeque<float[]>[] buckets;
+
+    /**
+     * The largest number of free arrays kept in each bucket.
+     */
+    private final int maxPerBucket;
+
+    /**
+     * Number of requests that had to allocate a new array.
+     */
+    private long misses;
+
+    /**
+     * Constructs the pool.
+     *
+     * @param maxPerBucket The largest number of free arrays kept for
+     *                     each length. Released arrays over the limit
+     *                     are left for the garbage collector.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public FloatArrayPool(int maxPerBucket) {
+        this.maxPerBucket = maxPerBucket;
+        buckets = new ArrayDeque[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * Returns an array that is at least the given length, reusing a
+     * released array if one is available.
+     *
+     * @param minLength The smallest acceptable length of the array.
+     * @return Array whose length is at least minLength. The length is a
+     *         power of two unless the array is too large to be pooled.
+     */
+    public synchronized float[] acquire(int minLength) {
+        int bucket = bucketFor(minLength);
+        if (bucket < BUCKETS) {
+            float[] array = buckets[bucket].pollFirst();
+            if (array != null) {
+                return array;
+            }
+        }
+        misses++;
+        return new float[bucket < BUCKETS ? lengthOf(bucket) : minLength];
+    }
+
+    /**
+     * Gives an array back to the pool so that it can be reused. The
+     * array must not be used by the caller after releasing it.
+     *
+     * @param array The array to release.
+     */
+    public synchronized void release(float[] array) {
+        int bucket = bucketFor(array.length);
+        if (bucket < BUCKETS
+                && lengthOf(bucket) == array.length
+                && buckets[bucket].size() < maxPerBucket) {
+            buckets[bucket].addFirst(array);
+        }
+    }
+
+    /**
+     * @return The number of free arrays in the pool.
+     */
+    public synchronized int getFreeCount() {
+        int count = 0;
+        for (ArrayDeque<float[]> bucket : buckets) {
+            count += bucket.size();
+        }
+        return count;
+    }
+
+    /**
+     * @return Number of requests that had to allocate a new array.
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Removes all free arrays from the pool.
+     */
+    public synchronized void clear() {
+        for (ArrayDeque<float[]> bucket : buckets) {
+            bucket.clear();
+        }
+    }
+
+    /**
+     * @param length Length of an array.
+     * @return Index of the smallest bucket whose arrays fit the length,
+     *         or BUCKETS if the length is too large for any bucket.
+     */
+    private static int bucketFor(int length) {
+        int bucket = 0;
+        while (bucket < BUCKETS && lengthOf(bucket) < length) {
+            bucket++;
+        }
+        return bucket;
+    }
+
+    /**
+     * @param bucket Index of a bucket.
+     * @return Length of the arrays in the bucket.
+     */
+    private static int lengthOf(int bucket) {
+        return MIN_LENGTH << bucket;
+    }
+}
@@ -0,0 +1,368 @@
+package fi.tamk.tiko.androidpaint;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Finds the area of similar colors connected to a pixel for the bucket
+ * tool. The area is filled a horizontal span at a time, and the seeds of
+ * the spans above and below are kept as pixel indices in a growable int
+ * stack, so no objects are allocated per pixel. The result is returned
+ * as rectangles made by merging the spans of equal rows, which is what
+ * FillRegion stores.
+ *
+ * A color is similar to the color of the seed pixel when none of its
+ * channels differs by more than the tolerance. On large images, the
+ * colors can be compared and the rectangles collected in bands of rows
+ * on several threads. Only the span filling itself, which is fast
+ * once the colors have been compared, runs on one thread.
+ *
+ * The fill keeps its arrays between fills of images of the same size,
+ * so it should be reused, and used from one thread at a time.
+ */
+public class FloodFill {
+
+    /**
+     * Default tolerance of the bucket tool.
+     */
+    public static final int DEFAULT_TOLERANCE = 32;
+
+    /**
+     * Number of pixels from which the work is split into bands when an
+     * executor is given.
+     */
+    public static final int PARALLEL_MIN_PIXELS = 512 * 512;
+
+    /**
+     * Mask value of a pixel that may still be filled.
+     */
+    private static final byte OPEN = 0;
+
+    /**
+     * Mask value of a pixel whose color is not similar.
+     */
+    private static final byte BLOCKED = 1;
+
+    /**
+     * Mask value of a filled pixel.
+     */
+    private static final byte FILLED = 2;
+
+    /**
+     * State of each pixel, one of OPEN, BLOCKED and FILLED.
+     */
+    private byte[] mask = new byte[0];
+
+    /**
+     * Indices of pixels that start a span still to be filled.
+     */
+    private int[] stack = new int[256];
+
+    /**
+     * Number of indices in the stack.
+     */
+    private int stackSize;
+
+    /**
+     * Rows and columns of the filled area, updated while filling.
+     */
+    private int minX, minY, maxX, maxY;
+
+    /**
+     * Finds the area of colors similar to the given pixel that is
+     * connected to it through the four neighbors of each pixel.
+     *
+     * @param pixels Colors of the image row by row.
+     * @param width The width of the image.
+     * @param height The height of the image.
+     * @param x X-coordinate of the seed pixel.
+     * @param y Y-coordinate of the seed pixel.
+     * @param tolerance Largest difference of a channel from 0 to 255.
+     * @param executor Executor the bands are run on, or null to do all
+     *                 work on the calling thread.
+     * @return The area as left, top, right and bottom edges of
+     *         rectangles, empty if the pixel is outside of the image.
+     * @throws InterruptedException If the thread is interrupted while
+     *                              waiting for the bands.
+     */
+    public int[] fill(int[] pixels, int width, int height, int x, int y, int tolerance,
+                      ExecutorService executor) throws InterruptedException {
+        if (x < 0 || y < 0 || x >= width || y >= height) {
+            return new int[0];
+        }
+        int count = width * height;
+        if (mask.length != count) {
+            mask = new byte[count];
+        }
+        int target = pixels[y * width + x];
+        int bands = executor != null && count >= PARALLEL_MIN_PIXELS
+                ? Math.min(height, Runtime.getRuntime().availableProcessors()) : 1;
+
+        if (bands > 1) {
+            runBands(executor, bands, height, (top, bottom) -> {
+                compare(pixels, width, top, bottom, target, tolerance);
+                return null;
+            });
+            fillSpans(width, height, x, y, pixels, target, -1);
+        } else {
+            Arrays.fill(mask, OPEN);
+            fillSpans(width, height, x, y, pixels, target, tolerance);
+        }
+
+        if (bands > 1 && maxY - minY >= bands) {
+            List<int[]> parts = runBands(executor, bands, maxY + 1 - minY,
+                    (top, bottom) -> collectRects(width, minY + top, minY + bottom));
+            int length = 0;
+            for (int[] part : parts) {
+                length += part.length;
+            }
+            int[] rects = new int[length];
+            int offset = 0;
+            for (int[] part : parts) {
+                System.arraycopy(part, 0, rects, offset, part.length);
+                offset += part.length;
+            }
+            return rects;
+        }
+        return collectRects(width, minY, maxY + 1);
+    }
+
+    /**
+     * Work done on one band of rows.
+     *
+     * @param <T> Type of the result of the band.
+     */
+    private interface Band<T> {
+
+        /**
+         * @param top First row of the band.
+         * @param bottom Row after the last row of the band.
+         * @return The result of the band.
+         */
+        T run(int top, int bottom);
+    }
+
+    /**
+     * Splits rows into bands of nearly equal height and runs the given
+     * work on each of them on the executor.
+     *
+     * @param executor The executor.
+     * @param bands Number of bands.
+     * @param rows Number of rows.
+     * @param band The work of one band, given rows relative to the first.
+     * @param <T> Type of the result of a band.
+     * @return The results of the bands from the top down.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    private static <T> List<T> runBands(ExecutorService executor, int bands, int rows, Band<T> band)
+            throws InterruptedException {
+        List<Callable<T>> tasks = new ArrayList<>(bands);
+        for (int i = 0; i < bands; i++) {
+            int top = rows * i / bands;
+            int bottom = rows * (i + 1) / bands;
+            tasks.add(() -> band.run(top, bottom));
+        }
+        List<T> results = new ArrayList<>(bands);
+        try {
+            for (Future<T> future : executor.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+        return results;
+    }
+
+    /**
+     * Marks the pixels of some rows whose color is not similar to the
+     * target color as blocked and the rest as open.
+     */
+    private void compare(int[] pixels, int width, int top, int bottom, int target, int tolerance) {
+        for (int i = top * width; i < bottom * width; i++) {
+            mask[i] = similar(pixels[i], target, tolerance) ? OPEN : BLOCKED;
+        }
+    }
+
+    /**
+     * Fills the spans connected to the seed pixel.
+     *
+     * @param width The width of the image.
+     * @param height The height of the image.
+     * @param x X-coordinate of the seed pixel.
+     * @param y Y-coordinate of the seed pixel.
+     * @param pixels Colors of the image.
+     * @param target Color of the seed pixel.
+     * @param tolerance Largest difference of a channel, or -1 if the
+     *                  colors have already been compared into the mask.
+     */
+    private void fillSpans(int width, int height, int x, int y,
+                           int[] pixels, int target, int tolerance) {
+        minX = maxX = x;
+        minY = maxY = y;
+        stackSize = 0;
+        push(y * width + x);
+
+        while (stackSize > 0) {
+            int seed = stack[--stackSize];
+            if (!open(seed, pixels, target, tolerance)) {
+                continue;
+            }
+            int row = seed / width;
+            int rowStart = row * width;
+            int left = seed;
+            while (left > rowStart && open(left - 1, pixels, target, tolerance)) {
+                left--;
+            }
+            int right = seed;
+            while (right < rowStart + width - 1 && open(right + 1, pixels, target, tolerance)) {
+                right++;
+            }
+            Arrays.fill(mask, left, right + 1, FILLED);
+
+            minX = Math.min(minX, left - rowStart);
+            maxX = Math.max(maxX, right - rowStart);
+            minY = Math.min(minY, row);
+            maxY = Math.max(maxY, row);
+
+            if (row > 0) {
+                pushSeeds(left - width, right - width, pixels, target, tolerance);
+            }
+            if (row < height - 1) {
+                pushSeeds(left + width, right + width, pixels, target, tolerance);
+            }
+        }
+    }
+
+    /**
+     * Pushes the first pixel of each run of open pixels between the
+     * given indices of a row.
+     */
+    private void pushSeeds(int from, int to, int[] pixels, int target, int tolerance) {
+        boolean inRun = false;
+        for (int i = from; i <= to; i++) {
+            if (open(i, pixels, target, tolerance)) {
+                if (!inRun) {
+                    push(i);
+                    inRun = true;
+                }
+            } else {
+                inRun = false;
+            }
+        }
+    }
+
+    /**
+     * Returns whether a pixel can still be filled, comparing its color
+     * and marking it blocked on the first visit if the colors have not
+     * been compared beforehand.
+     */
+    private boolean open(int index, int[] pixels, int target, int tolerance) {
+        byte state = mask[index];
+        if (state != OPEN) {
+            return false;
+        }
+        if (tolerance >= 0 && !similar(pixels[index], target, tolerance)) {
+            mask[index] = BLOCKED;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param index Index of a pixel to push onto the stack.
+     */
+    private void push(int index) {
+        if (stackSize == stack.length) {
+            stack = Arrays.copyOf(stack, stack.length * 2);
+        }
+        stack[stackSize++] = index;
+    }
+
+    /**
+     * Collects the filled pixels of some rows into rectangles, merging
+     * spans that are equal to a span of the row above.
+     *
+     * @param width The width of the image.
+     * @param top First row.
+     * @param bottom Row after the last row.
+     * @return The rectangles as left, top, right and bottom edges.
+     */
+    private int[] collectRects(int width, int top, int bottom) {
+        int[] rects = new int[64];
+        int size = 0;
+        // Spans of the previous row as left, right and rectangle index.
+        int[] previous = new int[48];
+        int previousSize = 0;
+        int[] current = new int[48];
+
+        for (int y = top; y < bottom; y++) {
+            int rowStart = y * width;
+            int currentSize = 0;
+            int p = 0;
+            int x = minX;
+            while (x <= maxX) {
+                if (mask[rowStart + x] != FILLED) {
+                    x++;
+                    continue;
+                }
+                int left = x;
+                while (x <= maxX && mask[rowStart + x] == FILLED) {
+                    x++;
+                }
+                while (p < previousSize && previous[p] < left) {
+                    p += 3;
+                }
+
+                int rect;
+                if (p < previousSize && previous[p] == left && previous[p + 1] == x) {
+                    rect = previous[p + 2];
+                    rects[rect + 3] = y + 1;
+                } else {
+                    if (size + 4 > rects.length) {
+                        rects = Arrays.copyOf(rects, rects.length * 2);
+                    }
+                    rect = size;
+                    rects[size++] = left;
+                    rects[size++] = y;
+                    rects[size++] = x;
+                    rects[size++] = y + 1;
+                }
+
+                if (currentSize + 3 > current.length) {
+                    current = Arrays.copyOf(current, current.length * 2);
+                }
+                current[currentSize++] = left;
+                current[currentSize++] = x;
+                current[currentSize++] = rect;
+            }
+
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+            previousSize = currentSize;
+        }
+        return Arrays.copyOf(rects, size);
+    }
+
+    /**
+     * @param color A color.
+     * @param target The color it is compared to.
+     * @param tolerance Largest difference of a channel.
+     * @return Whether no channel of the colors differs by more than the
+     *         tolerance.
+     */
+    static boolean similar(int color, int target, int tolerance) {
+        if (color == target) {
+            return true;
+        }
+        return Math.abs((color >>> 24) - (target >>> 24)) <= tolerance
+                && Math.abs(((color >> 16) & 0xFF) - ((target >> 16) & 0xFF)) <= tolerance
+                && Math.abs(((color >> 8) & 0xFF) - ((target >> 8) & 0xFF)) <= tolerance
+                && Math.abs((color & 0xFF) - (target & 0xFF)) <= tolerance;
+    }
+}
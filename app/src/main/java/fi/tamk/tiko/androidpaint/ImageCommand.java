@@ -0,0 +1,59 @@
+package fi.tamk.tiko.androidpaint;
+
+/**
+ * Command that loads an image under the lines and shapes and makes
+ * the background transparent.
+ */
+public class ImageCommand extends Command {
+
+    /**
+     * The loaded image.
+     */
+    private ImportedImage image;
+
+    /**
+     * The image that was loaded before this one, or null.
+     */
+    private ImportedImage previousImage;
+
+    /**
+     * The color of the background before the image was loaded.
+     */
+    private int previousBackgroundColor;
+
+    /**
+     * Constructs the object and sets its attributes.
+     *
+     * @param image The loaded image. The command owns the image from
+     *              now on.
+     * @param previousImage The image that was loaded before, or null.
+     * @param previousBackgroundColor The color of the background before
+     *                                the image was loaded.
+     */
+    public ImageCommand(ImportedImage image, ImportedImage previousImage, int previousBackgroundColor) {
+        this.image = image;
+        this.previousImage = previousImage;
+        this.previousBackgroundColor = previousBackgroundColor;
+    }
+
+    /**
+     * @return The loaded image.
+     */
+    public ImportedImage getImage() {
+        return image;
+    }
+
+    /**
+     * @return The image that was loaded before this one, or null.
+     */
+    public ImportedImage getPreviousImage() {
+        return previousImage;
+    }
+
+    /**
+     * @return The color of the background before the image was loaded.
+     */
+    public int getPreviousBackgroundColor() {
+        return previousBackgroundColor;
+    }
+}
@@ -0,0 +1,381 @@
+package fi.tamk.tiko.androidpaint;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.media.ExifInterface;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Imports images picked from the gallery on a background thread. The
+ * picked image is first copied into a private directory, since access
+ * to the picked uri may not last. Only the size of the image is read
+ * first, and the preview is then decoded with the largest power-of-two
+ * subsampling that still keeps it at least as large as the canvas, so
+ * that huge photos are never decoded at full resolution. Images with
+ * more pixels than the canvas keep their copy, from which tiles are
+ * decoded at full resolution when the view is zoomed in. Decoding reuses
+ * bitmaps from the BitmapPool when possible, and the EXIF orientation of
+ * photos is applied.
+ */
+public class ImageImporter {
+
+    /**
+     * Tag used for logging import timings and memory use.
+     */
+    private static final String TAG = "ImageImporter";
+
+    /**
+     * Size of the buffer used for copying picked images.
+     */
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Interface for receiving the result of an import. All methods are
+     * called on the UI thread.
+     */
+    public interface Listener {
+
+        /**
+         * Called when the image has been decoded.
+         *
+         * @param image The imported image. It has to be released when it
+         *              is no longer needed.
+         */
+        void onImported(ImportedImage image);
+
+        /**
+         * Called when the image could not be decoded.
+         *
+         * @param e The cause of the failure.
+         */
+        void onFailed(Exception e);
+    }
+
+    /**
+     * The thread that images are decoded on.
+     */
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ImageImporter");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    /**
+     * Handler that delivers results on the UI thread.
+     */
+    private final Handler uiHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Content resolver used for opening the picked images.
+     */
+    private final ContentResolver contentResolver;
+
+    /**
+     * Pool that decoding tries to reuse bitmaps from.
+     */
+    private final BitmapPool pool;
+
+    /**
+     * Directory that the copies of the imported images are kept in.
+     */
+    private final File importDir;
+
+    /**
+     * Paint that the preview is drawn with on the background thread.
+     */
+    private final Paint previewPaint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
+
+    /**
+     * Constructs the importer and deletes the copies of the images that
+     * were imported before the app was last closed, since imported
+     * images are not saved with the drawing.
+     *
+     * @param contentResolver Content resolver used for opening images.
+     * @param pool Pool that decoding tries to reuse bitmaps from.
+     * @param importDir Directory that the copies of the imported images
+     *                  are kept in.
+     */
+    public ImageImporter(ContentResolver contentResolver, BitmapPool pool, File importDir) {
+        this.contentResolver = contentResolver;
+        this.pool = pool;
+        this.importDir = importDir;
+        executor.execute(() -> {
+            File[] files = importDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts importing the image at the given uri on the background
+     * thread, with a preview of the given size.
+     *
+     * @param uri The uri of the image.
+     * @param targetWidth The width of the canvas the image is shown on.
+     * @param targetHeight The height of the canvas the image is shown on.
+     * @param listener Listener that receives the imported image.
+     */
+    public void importImage(Uri uri, int targetWidth, int targetHeight, Listener listener) {
+        executor.execute(() -> {
+            try {
+                ImportedImage image = decode(uri, targetWidth, targetHeight);
+                uiHandler.post(() -> listener.onImported(image));
+            } catch (Exception e) {
+                uiHandler.post(() -> listener.onFailed(e));
+            }
+        });
+    }
+
+    /**
+     * Stops the decoding thread after the running import.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Copies the image at the given uri into the import directory and
+     * decodes its preview, subsampled for the given target size, turned
+     * upright according to its EXIF orientation and stretched over the
+     * target size. The copy is deleted again if the image does not have
+     * more pixels than the target.
+     *
+     * @param uri The uri of the image.
+     * @param targetWidth The width of the canvas.
+     * @param targetHeight The height of the canvas.
+     * @return The imported image.
+     * @throws IOException If the image cannot be read or decoded.
+     */
+    private ImportedImage decode(Uri uri, int targetWidth, int targetHeight) throws IOException {
+        long start = SystemClock.uptimeMillis();
+        File file = copy(uri);
+        boolean keep = false;
+        try {
+            int orientation = readOrientation(file);
+
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(file.getPath(), options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                throw new IOException("Not an image: " + uri);
+            }
+            int sourceWidth = options.outWidth;
+            int sourceHeight = options.outHeight;
+            ImageTileGrid grid = orientationGrid(orientation, sourceWidth, sourceHeight,
+                    targetWidth, targetHeight);
+            boolean swapped = orientation == ExifInterface.ORIENTATION_ROTATE_90
+                    || orientation == ExifInterface.ORIENTATION_ROTATE_270
+                    || orientation == ExifInterface.ORIENTATION_TRANSPOSE
+                    || orientation == ExifInterface.ORIENTATION_TRANSVERSE;
+
+            // The target is compared against the image as it will be shown,
+            // so a rotated image is compared with the target turned sideways.
+            int sampleSize = calculateSampleSize(sourceWidth, sourceHeight,
+                    swapped ? targetHeight : targetWidth,
+                    swapped ? targetWidth : targetHeight);
+
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = sampleSize;
+            options.inMutable = true;
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            options.inBitmap = pool.get(
+                    (sourceWidth + sampleSize - 1) / sampleSize,
+                    (sourceHeight + sampleSize - 1) / sampleSize,
+                    Bitmap.Config.ARGB_8888);
+
+            Bitmap decoded;
+            try {
+                decoded = BitmapFactory.decodeFile(file.getPath(), options);
+            } catch (IllegalArgumentException e) {
+                // The pooled bitmap could not be reused for this image.
+                pool.put(options.inBitmap);
+                options.inBitmap = null;
+                decoded = BitmapFactory.decodeFile(file.getPath(), options);
+            }
+            if (decoded == null) {
+                pool.put(options.inBitmap);
+                throw new IOException("Could not decode " + uri);
+            }
+
+            // The preview is turned upright and stretched over the canvas
+            // in one step, with the same transformation as the tiles.
+            Bitmap preview = pool.get(targetWidth, targetHeight, Bitmap.Config.ARGB_8888);
+            float[] values = new float[9];
+            grid.getTransform(0, 0, (float) sourceWidth / decoded.getWidth(),
+                    (float) sourceHeight / decoded.getHeight(), values);
+            Matrix matrix = new Matrix();
+            matrix.setValues(values);
+            new Canvas(preview).drawBitmap(decoded, matrix, previewPaint);
+            long peakBytes = decoded.getAllocationByteCount() + preview.getAllocationByteCount();
+            pool.put(decoded);
+
+            keep = grid.getDensity() > 1;
+            BitmapRegionDecoder decoder = null;
+            if (keep) {
+                try {
+                    decoder = BitmapRegionDecoder.newInstance(file.getPath(), false);
+                } catch (IOException e) {
+                    // Formats such as GIF and BMP cannot be decoded in
+                    // parts, so only the preview of them is kept.
+                    Log.d(TAG, "No region decoder for " + uri + ": " + e);
+                    keep = false;
+                }
+            }
+            Log.d(TAG, "Imported " + sourceWidth + "x" + sourceHeight
+                    + " (sample size " + sampleSize
+                    + ", orientation " + orientation
+                    + ", into pooled bitmap " + (options.inBitmap != null)
+                    + ", tiled " + keep
+                    + ") in " + (SystemClock.uptimeMillis() - start) + " ms, peak "
+                    + (peakBytes / 1024) + " KB of bitmaps");
+            return new ImportedImage(preview, grid, keep ? file : null, decoder);
+        } finally {
+            if (!keep) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns the largest power of two that the image can be divided by
+     * while both of its sides stay at least as large as the target.
+     *
+     * @param width The width of the image.
+     * @param height The height of the image.
+     * @param targetWidth The width of the target.
+     * @param targetHeight The height of the target.
+     * @return The sample size to decode the image with.
+     */
+    static int calculateSampleSize(int width, int height, int targetWidth, int targetHeight) {
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= targetWidth
+                && height / (sampleSize * 2) >= targetHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Reads the EXIF orientation of an image.
+     *
+     * @param file The file of the image.
+     * @return One of the ExifInterface ORIENTATION_ constants.
+     */
+    private static int readOrientation(File file) {
+        try (InputStream in = new FileInputStream(file)) {
+            return new ExifInterface(in).getAttributeInt(
+                    ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+        } catch (IOException e) {
+            // Images without EXIF data are shown as they are.
+            return ExifInterface.ORIENTATION_NORMAL;
+        }
+    }
+
+    /**
+     * @param orientation One of the ExifInterface ORIENTATION_ constants.
+     * @param width The width of the image as it is stored.
+     * @param height The height of the image as it is stored.
+     * @param targetWidth The width of the canvas.
+     * @param targetHeight The height of the canvas.
+     * @return Grid of the tiles of the image that turns it upright and
+     *         stretches it over the canvas.
+     */
+    private static ImageTileGrid orientationGrid(int orientation, int width, int height,
+                                                 int targetWidth, int targetHeight) {
+        boolean transposed = false;
+        boolean flipX = false;
+        boolean flipY = false;
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                flipX = true;
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                flipX = true;
+                flipY = true;
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                flipY = true;
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                transposed = true;
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                transposed = true;
+                flipX = true;
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                transposed = true;
+                flipX = true;
+                flipY = true;
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                transposed = true;
+                flipY = true;
+                break;
+            default:
+                break;
+        }
+        return new ImageTileGrid(width, height, transposed, flipX, flipY, targetWidth, targetHeight);
+    }
+
+    /**
+     * Copies the image at the given uri into a new file in the import
+     * directory.
+     *
+     * @param uri The uri of the image.
+     * @return The copy.
+     * @throws IOException If the image cannot be read or the copy written.
+     */
+    private File copy(Uri uri) throws IOException {
+        if (!importDir.isDirectory() && !importDir.mkdirs()) {
+            throw new IOException("Cannot create " + importDir);
+        }
+        File file = File.createTempFile("import", ".img", importDir);
+        try (InputStream in = open(uri); OutputStream out = new FileOutputStream(file)) {
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        return file;
+    }
+
+    /**
+     * @param uri The uri of an image.
+     * @return Stream of the image.
+     * @throws FileNotFoundException If the image cannot be opened.
+     */
+    private InputStream open(Uri uri) throws FileNotFoundException {
+        InputStream in = contentResolver.openInputStream(uri);
+        if (in == null) {
+            throw new FileNotFoundException(uri.toString());
+        }
+        return in;
+    }
+}
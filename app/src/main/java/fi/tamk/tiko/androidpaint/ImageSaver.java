@@ -0,0 +1,380 @@
+package fi.tamk.tiko.androidpaint;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.MediaStore;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Saves snapshots of the drawing as PNG files on a background thread.
+ * Only one save runs at a time. If saves are requested while one is
+ * running, only the newest one is kept waiting, so tapping save rapidly
+ * does not encode the same image many times. Progress and results are
+ * reported to a listener on the UI thread.
+ */
+public class ImageSaver {
+
+    /**
+     * Size of the buffer between the PNG encoder and the file.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Number of bytes written between progress reports.
+     */
+    private static final int PROGRESS_INTERVAL = 256 * 1024;
+
+    /**
+     * Interface for receiving the progress and result of a save.
+     * All methods are called on the UI thread.
+     */
+    public interface Listener {
+
+        /**
+         * Called while the image is being written.
+         *
+         * @param bytesWritten Number of bytes written to the file so far.
+         */
+        void onProgress(long bytesWritten);
+
+        /**
+         * Called when the image has been saved and added to the gallery.
+         *
+         * @param file The saved file.
+         */
+        void onSaved(File file);
+
+        /**
+         * Called when saving the image failed.
+         *
+         * @param file The file that could not be saved.
+         * @param e The cause of the failure.
+         */
+        void onFailed(File file, Exception e);
+
+        /**
+         * Called when the save was cancelled or replaced by a newer one
+         * before it finished.
+         *
+         * @param file The file that was not saved.
+         */
+        void onCancelled(File file);
+    }
+
+    /**
+     * One requested save.
+     */
+    private class SaveJob implements Runnable {
+
+        /**
+         * Snapshot of the drawing to save.
+         */
+        private final Bitmap snapshot;
+
+        /**
+         * The file the image is written to.
+         */
+        private final File file;
+
+        /**
+         * Listener that is told about the progress and result.
+         */
+        private final Listener listener;
+
+        /**
+         * Whether the save has been cancelled.
+         */
+        private volatile boolean cancelled;
+
+        /**
+         * Constructs the job.
+         *
+         * @param snapshot Snapshot of the drawing to save.
+         * @param file The file the image is written to.
+         * @param listener Listener that is told about the progress and result.
+         */
+        SaveJob(Bitmap snapshot, File file, Listener listener) {
+            this.snapshot = snapshot;
+            this.file = file;
+            this.listener = listener;
+        }
+
+        /**
+         * Encodes the snapshot into the file, adds the file to the
+         * gallery and reports the result.
+         */
+        @Override
+        public void run() {
+            try {
+                if (!cancelled) {
+                    write();
+                }
+                if (cancelled) {
+                    file.delete();
+                    uiHandler.post(() -> listener.onCancelled(file));
+                } else {
+                    MediaStore.Images.Media.insertImage(contentResolver,
+                            file.getAbsolutePath(), file.getName(), file.getName());
+                    uiHandler.post(() -> listener.onSaved(file));
+                }
+            } catch (InterruptedIOException e) {
+                file.delete();
+                uiHandler.post(() -> listener.onCancelled(file));
+            } catch (Exception e) {
+                file.delete();
+                if (cancelled) {
+                    uiHandler.post(() -> listener.onCancelled(file));
+                } else {
+                    uiHandler.post(() -> listener.onFailed(file, e));
+                }
+            } finally {
+                pool.put(snapshot);
+                finished(this);
+            }
+        }
+
+        /**
+         * Compresses the snapshot as PNG through a buffered stream into
+         * the file.
+         *
+         * @throws IOException If writing fails or the save is cancelled.
+         */
+        private void write() throws IOException {
+            File dir = file.getParentFile();
+            if (dir != null && !dir.exists()) {
+                dir.mkdirs();
+            }
+
+            try (OutputStream out = new ProgressOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE), this)) {
+                // Quality is ignored for PNG, which is always lossless.
+                if (!snapshot.compress(Bitmap.CompressFormat.PNG, 100, out)) {
+                    // The encoder swallows the exception of a cancelled
+                    // write and only returns false.
+                    if (cancelled) {
+                        throw new InterruptedIOException("Save cancelled");
+                    }
+                    throw new IOException("Could not encode " + file.getName());
+                }
+            }
+        }
+    }
+
+    /**
+     * Stream that stops writing when its job is cancelled and reports
+     * the number of written bytes to the listener of the job.
+     */
+    private class ProgressOutputStream extends FilterOutputStream {
+
+        /**
+         * The job whose image is being written.
+         */
+        private final SaveJob job;
+
+        /**
+         * Number of bytes written so far.
+         */
+        private long written;
+
+        /**
+         * Number of written bytes at the last progress report.
+         */
+        private long reported;
+
+        /**
+         * Constructs the stream.
+         *
+         * @param out The stream the bytes are written to.
+         * @param job The job whose image is being written.
+         */
+        ProgressOutputStream(OutputStream out, SaveJob job) {
+            super(out);
+            this.job = job;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            checkCancelled();
+            out.write(b);
+            advance(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            checkCancelled();
+            out.write(b, off, len);
+            advance(len);
+        }
+
+        /**
+         * @throws InterruptedIOException If the job has been cancelled.
+         */
+        private void checkCancelled() throws InterruptedIOException {
+            if (job.cancelled) {
+                throw new InterruptedIOException("Save cancelled");
+            }
+        }
+
+        /**
+         * Counts written bytes and reports progress every PROGRESS_INTERVAL bytes.
+         *
+         * @param count Number of bytes just written.
+         */
+        private void advance(int count) {
+            written += count;
+            if (written - reported >= PROGRESS_INTERVAL) {
+                reported = written;
+                final long progress = written;
+                uiHandler.post(() -> job.listener.onProgress(progress));
+            }
+        }
+    }
+
+    /**
+     * The thread that saves run on.
+     */
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ImageSaver");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    /**
+     * Handler that delivers results on the UI thread.
+     */
+    private final Handler uiHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Content resolver used for adding saved images to the gallery.
+     */
+    private final ContentResolver contentResolver;
+
+    /**
+     * Pool that snapshots are returned to after saving.
+     */
+    private final BitmapPool pool;
+
+    /**
+     * The save that is currently running, or null.
+     */
+    private SaveJob running;
+
+    /**
+     * The save that waits for the running one to finish, or null.
+     */
+    private SaveJob pending;
+
+    /**
+     * Whether the save thread stops once the saves have finished.
+     */
+    private boolean finishing;
+
+    /**
+     * Constructs the saver.
+     *
+     * @param contentResolver Content resolver used for adding saved images
+     *                        to the gallery.
+     * @param pool Pool that snapshots are returned to after saving.
+     */
+    public ImageSaver(ContentResolver contentResolver, BitmapPool pool) {
+        this.contentResolver = contentResolver;
+        this.pool = pool;
+    }
+
+    /**
+     * Requests the given snapshot to be saved into the given file. The
+     * snapshot is owned by the saver from now on and is returned to the
+     * pool when done. If a save is already running, this one waits for
+     * it, replacing any save that was already waiting.
+     *
+     * @param snapshot Snapshot of the drawing to save.
+     * @param file The file the image is written to.
+     * @param listener Listener that is told about the progress and result.
+     */
+    public synchronized void save(Bitmap snapshot, File file, Listener listener) {
+        SaveJob job = new SaveJob(snapshot, file, listener);
+        if (running == null) {
+            running = job;
+            executor.execute(job);
+        } else {
+            if (pending != null) {
+                pool.put(pending.snapshot);
+                final SaveJob replaced = pending;
+                uiHandler.post(() -> replaced.listener.onCancelled(replaced.file));
+            }
+            pending = job;
+        }
+    }
+
+    /**
+     * Cancels the running and the waiting save. The running save stops
+     * at its next write and its partial file is deleted.
+     */
+    public synchronized void cancel() {
+        if (running != null) {
+            running.cancelled = true;
+        }
+        if (pending != null) {
+            pool.put(pending.snapshot);
+            final SaveJob cancelled = pending;
+            uiHandler.post(() -> cancelled.listener.onCancelled(cancelled.file));
+            pending = null;
+        }
+    }
+
+    /**
+     * @return Whether a save is running or waiting.
+     */
+    public synchronized boolean isSaving() {
+        return running != null;
+    }
+
+    /**
+     * Cancels all saves and stops the save thread.
+     */
+    public void shutdown() {
+        cancel();
+        executor.shutdown();
+    }
+
+    /**
+     * Stops the save thread after the running and the waiting save have
+     * finished, for when the activity is only recreated and the saves
+     * should not be lost.
+     */
+    public synchronized void finish() {
+        finishing = true;
+        if (running == null) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Called on the save thread when a job is done. Starts the waiting
+     * job, if there is one.
+     *
+     * @param job The finished job.
+     */
+    private synchronized void finished(SaveJob job) {
+        if (running == job) {
+            running = pending;
+            pending = null;
+            if (running != null) {
+                executor.execute(running);
+            } else if (finishing) {
+                executor.shutdown();
+            }
+        }
+    }
+}
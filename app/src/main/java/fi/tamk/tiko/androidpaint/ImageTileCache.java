@@ -0,0 +1,394 @@
+package fi.tamk.tiko.androidpaint;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Cache of the tiles of the loaded image decoded at its own resolution.
+ * A tile that is not in the cache is queued for decoding the first time
+ * it is asked for, and the listener is told when it is ready. The queue
+ * is served newest first, and queued tiles that are no longer visible
+ * when a decoding thread gets to them are skipped, so panning and zooming
+ * never wait for tiles that were only passed by.
+ *
+ * Tiles are kept in least recently used order by their key, which
+ * contains the sample size, so tiles of the zoom levels used before stay
+ * in the cache until newer tiles push them out, and the oldest tiles are
+ * released to the bitmap pool when the cache grows past its limit.
+ *
+ * All methods must be called on the UI thread, or while holding the lock
+ * given with setLock. Decoded tiles are delivered on the UI thread while
+ * holding that lock.
+ */
+public class ImageTileCache {
+
+    /**
+     * Interface for hearing about decoded tiles. Called on the UI thread.
+     */
+    public interface Listener {
+
+        /**
+         * Called when a tile of the current image has been decoded.
+         *
+         * @param key Key of the tile.
+         */
+        void onTileReady(long key);
+    }
+
+    /**
+     * Tag used for logging tiles that could not be decoded.
+     */
+    private static final String TAG = "ImageTileCache";
+
+    /**
+     * Number of threads that tiles are decoded on.
+     */
+    private static final int DECODE_THREADS = 2;
+
+    /**
+     * Size of a whole tile in bytes.
+     */
+    private static final long TILE_BYTES = (long) ImageTileGrid.TILE_SIZE * ImageTileGrid.TILE_SIZE * 4;
+
+    /**
+     * The threads that tiles are decoded on.
+     */
+    private final ExecutorService executor = Executors.newFixedThreadPool(DECODE_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "ImageTileDecoder");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    /**
+     * Handler that delivers decoded tiles on the UI thread.
+     */
+    private final Handler uiHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * The decoded tiles in least recently used order.
+     */
+    private final LinkedHashMap<Long, Bitmap> tiles = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Keys of the tiles waiting for a decoding thread, newest first.
+     * Guarded by itself, like the other fields shared with the decoding
+     * threads.
+     */
+    private final ArrayDeque<Long> queue = new ArrayDeque<>();
+
+    /**
+     * Keys of the tiles that are queued or being decoded.
+     */
+    private final HashSet<Long> requested = new HashSet<>();
+
+    /**
+     * First column, first row, column after the last and row after the
+     * last of the visible tiles.
+     */
+    private final int[] visible = new int[4];
+
+    /**
+     * Sample size of the visible tiles, 0 if no tiles are visible.
+     */
+    private int visibleSampleSize;
+
+    /**
+     * The image whose tiles are cached, or null.
+     */
+    private ImportedImage image;
+
+    /**
+     * Incremented whenever the image changes, so that tiles of the
+     * previous image are not stored when they arrive.
+     */
+    private int generation;
+
+    /**
+     * Pool that tile bitmaps are taken from and released to.
+     */
+    private final BitmapPool pool;
+
+    /**
+     * Listener told about decoded tiles, or null.
+     */
+    private Listener listener;
+
+    /**
+     * Lock held while a decoded tile is stored and the listener is told.
+     */
+    private Object lock = this;
+
+    /**
+     * Total size of the cached tiles in bytes.
+     */
+    private long currentBytes;
+
+    /**
+     * Largest total size of the cached tiles in bytes.
+     */
+    private long maxBytes;
+
+    /**
+     * Constructs the cache.
+     *
+     * @param pool Pool that tile bitmaps are taken from.
+     * @param maxBytes Largest total size of the tiles in bytes.
+     */
+    public ImageTileCache(BitmapPool pool, long maxBytes) {
+        this.pool = pool;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param listener Listener told about decoded tiles, or null.
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the lock that is held while decoded tiles are delivered, for
+     * when the cache is also used on a thread other than the UI thread.
+     *
+     * @param lock Lock that the other thread holds while using the cache.
+     */
+    public void setLock(Object lock) {
+        this.lock = lock;
+    }
+
+    /**
+     * Sets the image whose tiles are cached. The tiles of the previous
+     * image are released and its queued tiles are forgotten.
+     *
+     * @param image The image, or null.
+     */
+    public void setImage(ImportedImage image) {
+        synchronized (queue) {
+            if (image == this.image) {
+                return;
+            }
+            this.image = image;
+            generation++;
+            queue.clear();
+            requested.clear();
+            visibleSampleSize = 0;
+        }
+        trimToSize(0);
+    }
+
+    /**
+     * @return Largest number of tiles that may be visible at once. Half
+     *         of the cache is left for the tiles around them.
+     */
+    public int getMaxVisibleTiles() {
+        return (int) Math.max(1, maxBytes / 2 / TILE_BYTES);
+    }
+
+    /**
+     * Sets the tiles that are visible. Queued tiles outside of them are
+     * skipped by the decoding threads.
+     *
+     * @param sampleSize Sample size of the visible tiles.
+     * @param range First column, first row, column after the last and row
+     *              after the last of the visible tiles.
+     */
+    public void setVisible(int sampleSize, int[] range) {
+        synchronized (queue) {
+            visibleSampleSize = sampleSize;
+            System.arraycopy(range, 0, visible, 0, 4);
+        }
+    }
+
+    /**
+     * Returns a decoded tile of the image, or queues the tile for
+     * decoding and returns null if it is not in the cache.
+     *
+     * @param key Key of the tile.
+     * @return The tile, or null if it is not ready.
+     */
+    public Bitmap get(long key) {
+        Bitmap tile = tiles.get(key);
+        if (tile == null) {
+            boolean added;
+            synchronized (queue) {
+                added = image != null && requested.add(key);
+                if (added) {
+                    queue.addFirst(key);
+                }
+            }
+            if (added) {
+                executor.execute(this::decodeNext);
+            }
+        }
+        return tile;
+    }
+
+    /**
+     * Decodes the newest queued tile that is still visible. Called on the
+     * decoding threads once for every queued tile, so the queue is empty
+     * when all calls have run.
+     */
+    private void decodeNext() {
+        long key;
+        ImportedImage source;
+        int tileGeneration;
+        synchronized (queue) {
+            Long next;
+            while ((next = queue.pollFirst()) != null && !isVisible(next)) {
+                requested.remove(next);
+            }
+            if (next == null) {
+                return;
+            }
+            key = next;
+            source = image;
+            tileGeneration = generation;
+        }
+
+        int[] rect = new int[4];
+        source.getGrid().getSourceRect(key, rect);
+        Rect region = new Rect(rect[0], rect[1], rect[2], rect[3]);
+        int sampleSize = ImageTileGrid.getKeySampleSize(key);
+        int span = ImageTileGrid.TILE_SIZE * sampleSize;
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inMutable = true;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        // Only whole tiles decode into a bitmap of exactly the tile size.
+        if (region.width() == span && region.height() == span) {
+            options.inBitmap = pool.get(ImageTileGrid.TILE_SIZE, ImageTileGrid.TILE_SIZE,
+                    Bitmap.Config.ARGB_8888);
+        }
+
+        Bitmap tile;
+        try {
+            tile = source.decodeRegion(region, options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap could not be reused for this tile.
+            pool.put(options.inBitmap);
+            options.inBitmap = null;
+            tile = source.decodeRegion(region, options);
+        }
+        if (tile == null) {
+            if (!source.isTiled()) {
+                Log.w(TAG, "Could not decode tile " + region + ", showing the preview only");
+            }
+            if (options.inBitmap != null) {
+                pool.put(options.inBitmap);
+            }
+            synchronized (queue) {
+                if (tileGeneration == generation) {
+                    requested.remove(key);
+                }
+            }
+            return;
+        }
+
+        Bitmap decoded = tile;
+        uiHandler.post(() -> {
+            synchronized (lock) {
+                deliver(key, tileGeneration, decoded);
+            }
+        });
+    }
+
+    /**
+     * @param key Key of a tile.
+     * @return Whether the tile is visible. Must be called while holding
+     *         the lock of the queue.
+     */
+    private boolean isVisible(long key) {
+        int column = ImageTileGrid.getKeyColumn(key);
+        int row = ImageTileGrid.getKeyRow(key);
+        return ImageTileGrid.getKeySampleSize(key) == visibleSampleSize
+                && column >= visible[0] && row >= visible[1]
+                && column < visible[2] && row < visible[3];
+    }
+
+    /**
+     * Stores a decoded tile, unless the image changed while it was being
+     * decoded, and tells the listener.
+     *
+     * @param key Key of the tile.
+     * @param tileGeneration Generation of the image the tile was decoded from.
+     * @param tile The decoded tile.
+     */
+    private void deliver(long key, int tileGeneration, Bitmap tile) {
+        synchronized (queue) {
+            if (tileGeneration != generation) {
+                pool.put(tile);
+                return;
+            }
+            requested.remove(key);
+        }
+
+        Bitmap old = tiles.put(key, tile);
+        if (old != null) {
+            currentBytes -= bytes(old);
+            pool.put(old);
+        }
+        currentBytes += bytes(tile);
+        trimToSize(maxBytes);
+        if (listener != null) {
+            listener.onTileReady(key);
+        }
+    }
+
+    /**
+     * Releases the least recently used tiles until the cache is at most
+     * the given size.
+     *
+     * @param size The size in bytes to trim the cache to.
+     */
+    public void trimToSize(long size) {
+        Iterator<Map.Entry<Long, Bitmap>> it = tiles.entrySet().iterator();
+        while (currentBytes > size && it.hasNext()) {
+            Bitmap tile = it.next().getValue();
+            it.remove();
+            currentBytes -= bytes(tile);
+            pool.put(tile);
+        }
+    }
+
+    /**
+     * @return Total size of the cached tiles in bytes.
+     */
+    public long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    /**
+     * @return Number of cached tiles.
+     */
+    public int size() {
+        return tiles.size();
+    }
+
+    /**
+     * Stops the decoding threads after the running decodes.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * @param tile A tile.
+     * @return Size of the tile bitmap in bytes.
+     */
+    private static long bytes(Bitmap tile) {
+        return (long) tile.getWidth() * tile.getHeight() * 4;
+    }
+}
@@ -0,0 +1,301 @@
+package fi.tamk.tiko.androidpaint;
+
+/**
+ * Divides an imported image that is kept at its own resolution into
+ * square tiles, so that only the tiles that are visible have to be
+ * decoded. Tiles are decoded with a power-of-two sample size chosen by
+ * the zoom of the view, and each sample size has its own grid, so a tile
+ * is identified by its sample size, column and row, packed into a key.
+ *
+ * The image is shown upright, stretched over the whole drawing like the
+ * loaded images always have been. Turning the image upright may swap
+ * its axes and mirror them, and the grid maps areas of the drawing to
+ * areas of the stored image and back through that.
+ *
+ * The class does not use Android classes, so it can be tested on a
+ * plain JVM.
+ */
+public class ImageTileGrid {
+
+    /**
+     * Width and height of a decoded tile in pixels. Tiles at the right
+     * and bottom edges of the image may be smaller.
+     */
+    public static final int TILE_SIZE = 256;
+
+    /**
+     * Largest sample size is 2 to the power of this.
+     */
+    private static final int MAX_LEVEL = 15;
+
+    /**
+     * Number of key bits used for a column or a row.
+     */
+    private static final int INDEX_BITS = 24;
+
+    /**
+     * Mask of the key bits of a column or a row.
+     */
+    private static final long INDEX_MASK = (1L << INDEX_BITS) - 1;
+
+    /**
+     * Size of the image as it is stored.
+     */
+    private final int sourceWidth, sourceHeight;
+
+    /**
+     * Whether the axes of the stored image are swapped to turn it upright.
+     */
+    private final boolean transposed;
+
+    /**
+     * Whether the horizontal axis is mirrored after the axes are swapped.
+     */
+    private final boolean flipX;
+
+    /**
+     * Whether the vertical axis is mirrored after the axes are swapped.
+     */
+    private final boolean flipY;
+
+    /**
+     * Size of the upright image.
+     */
+    private final int width, height;
+
+    /**
+     * Size of the drawing the image is stretched over.
+     */
+    private final int drawingWidth, drawingHeight;
+
+    /**
+     * Reusable array for the tile ranges compared while choosing a
+     * sample size.
+     */
+    private final int[] sampleRange = new int[4];
+
+    /**
+     * Constructs the grid of an image.
+     *
+     * @param sourceWidth Width of the image as it is stored.
+     * @param sourceHeight Height of the image as it is stored.
+     * @param transposed Whether the axes of the image are swapped to turn
+     *                   it upright.
+     * @param flipX Whether the horizontal axis is mirrored after that.
+     * @param flipY Whether the vertical axis is mirrored after that.
+     * @param drawingWidth Width of the drawing.
+     * @param drawingHeight Height of the drawing.
+     */
+    public ImageTileGrid(int sourceWidth, int sourceHeight, boolean transposed,
+                         boolean flipX, boolean flipY, int drawingWidth, int drawingHeight) {
+        this.sourceWidth = sourceWidth;
+        this.sourceHeight = sourceHeight;
+        this.transposed = transposed;
+        this.flipX = flipX;
+        this.flipY = flipY;
+        this.width = transposed ? sourceHeight : sourceWidth;
+        this.height = transposed ? sourceWidth : sourceHeight;
+        this.drawingWidth = drawingWidth;
+        this.drawingHeight = drawingHeight;
+    }
+
+    /**
+     * @return Width of the image as it is stored.
+     */
+    public int getSourceWidth() {
+        return sourceWidth;
+    }
+
+    /**
+     * @return Height of the image as it is stored.
+     */
+    public int getSourceHeight() {
+        return sourceHeight;
+    }
+
+    /**
+     * @return Number of image pixels per unit of the drawing along the
+     *         axis that has fewer of them.
+     */
+    public float getDensity() {
+        return Math.min((float) width / drawingWidth, (float) height / drawingHeight);
+    }
+
+    /**
+     * Chooses the sample size the visible tiles are decoded with: the
+     * largest power of two that still gives at least one image pixel per
+     * pixel of the screen, doubled while more than the given number of
+     * tiles would be visible.
+     *
+     * @param scale Scale of the view.
+     * @param left Left edge of the visible area of the drawing.
+     * @param top Top edge of the visible area of the drawing.
+     * @param right Right edge of the visible area of the drawing.
+     * @param bottom Bottom edge of the visible area of the drawing.
+     * @param maxTiles Largest number of tiles that may be visible.
+     * @return The sample size, or 0 if tiles would not be any sharper
+     *         than the image scaled to the size of the drawing.
+     */
+    public int getSampleSize(float scale, float left, float top, float right, float bottom,
+                             int maxTiles) {
+        float density = getDensity();
+        if (scale <= 1 || density <= 1) {
+            return 0;
+        }
+        int sampleSize = 1;
+        while (sampleSize * 2 <= density / scale && sampleSize < 1 << MAX_LEVEL) {
+            sampleSize *= 2;
+        }
+        int[] range = sampleRange;
+        while (sampleSize < 1 << MAX_LEVEL
+                && getTileRange(left, top, right, bottom, sampleSize, range)
+                && (long) (range[2] - range[0]) * (range[3] - range[1]) > maxTiles) {
+            sampleSize *= 2;
+        }
+        return sampleSize < density ? sampleSize : 0;
+    }
+
+    /**
+     * Finds the tiles that cover an area of the drawing.
+     *
+     * @param left Left edge of the area.
+     * @param top Top edge of the area.
+     * @param right Right edge of the area.
+     * @param bottom Bottom edge of the area.
+     * @param sampleSize Sample size of the tiles.
+     * @param out Array the first column, first row, column after the last
+     *            and row after the last are stored into.
+     * @return Whether the area covers any part of the image.
+     */
+    public boolean getTileRange(float left, float top, float right, float bottom,
+                                int sampleSize, int[] out) {
+        float u0 = left * width / drawingWidth;
+        float u1 = right * width / drawingWidth;
+        float v0 = top * height / drawingHeight;
+        float v1 = bottom * height / drawingHeight;
+        if (flipX) {
+            float u = u0;
+            u0 = width - u1;
+            u1 = width - u;
+        }
+        if (flipY) {
+            float v = v0;
+            v0 = height - v1;
+            v1 = height - v;
+        }
+        float x0 = Math.max(0, transposed ? v0 : u0);
+        float y0 = Math.max(0, transposed ? u0 : v0);
+        float x1 = Math.min(sourceWidth, transposed ? v1 : u1);
+        float y1 = Math.min(sourceHeight, transposed ? u1 : v1);
+        if (x0 >= x1 || y0 >= y1) {
+            return false;
+        }
+        int span = TILE_SIZE * sampleSize;
+        out[0] = (int) (x0 / span);
+        out[1] = (int) (y0 / span);
+        out[2] = (int) Math.ceil(x1 / span);
+        out[3] = (int) Math.ceil(y1 / span);
+        return true;
+    }
+
+    /**
+     * Finds the area of the stored image that a tile is decoded from.
+     *
+     * @param key Key of the tile.
+     * @param out Array the left, top, right and bottom edge of the area
+     *            are stored into.
+     */
+    public void getSourceRect(long key, int[] out) {
+        int span = TILE_SIZE * getKeySampleSize(key);
+        out[0] = getKeyColumn(key) * span;
+        out[1] = getKeyRow(key) * span;
+        out[2] = Math.min(out[0] + span, sourceWidth);
+        out[3] = Math.min(out[1] + span, sourceHeight);
+    }
+
+    /**
+     * Finds the area of the drawing that an area of the stored image
+     * is shown in.
+     *
+     * @param source The left, top, right and bottom edge of the area of
+     *               the stored image.
+     * @param out Array the left, top, right and bottom edge of the area
+     *            of the drawing are stored into.
+     */
+    public void getDrawingRect(int[] source, float[] out) {
+        float u0 = transposed ? source[1] : source[0];
+        float u1 = transposed ? source[3] : source[2];
+        float v0 = transposed ? source[0] : source[1];
+        float v1 = transposed ? source[2] : source[3];
+        float kx = (float) drawingWidth / width;
+        float ky = (float) drawingHeight / height;
+        out[0] = (flipX ? width - u1 : u0) * kx;
+        out[1] = (flipY ? height - v1 : v0) * ky;
+        out[2] = (flipX ? width - u0 : u1) * kx;
+        out[3] = (flipY ? height - v0 : v1) * ky;
+    }
+
+    /**
+     * Computes the transformation that draws a bitmap decoded from the
+     * stored image into its place in the drawing. The values are in the
+     * order of the values of an android.graphics.Matrix.
+     *
+     * @param left Left edge of the area of the stored image the bitmap
+     *             was decoded from.
+     * @param top Top edge of the area of the stored image the bitmap was
+     *            decoded from.
+     * @param pixelWidth Number of image pixels per bitmap pixel horizontally.
+     * @param pixelHeight Number of image pixels per bitmap pixel vertically.
+     * @param out Array of 9 values the transformation is stored into.
+     */
+    public void getTransform(int left, int top, float pixelWidth, float pixelHeight, float[] out) {
+        float kx = (float) drawingWidth / width * (flipX ? -1 : 1);
+        float ky = (float) drawingHeight / height * (flipY ? -1 : 1);
+        float u = transposed ? top : left;
+        float v = transposed ? left : top;
+        out[0] = transposed ? 0 : kx * pixelWidth;
+        out[1] = transposed ? kx * pixelHeight : 0;
+        out[2] = (flipX ? u - width : u) * kx;
+        out[3] = transposed ? ky * pixelWidth : 0;
+        out[4] = transposed ? 0 : ky * pixelHeight;
+        out[5] = (flipY ? v - height : v) * ky;
+        out[6] = 0;
+        out[7] = 0;
+        out[8] = 1;
+    }
+
+    /**
+     * @param sampleSize Sample size of a tile, a power of two.
+     * @param column Column of the tile.
+     * @param row Row of the tile.
+     * @return Key of the tile.
+     */
+    public static long key(int sampleSize, int column, int row) {
+        long level = Integer.numberOfTrailingZeros(sampleSize);
+        return level << (INDEX_BITS * 2) | (column & INDEX_MASK) << INDEX_BITS | (row & INDEX_MASK);
+    }
+
+    /**
+     * @param key Key of a tile.
+     * @return Sample size of the tile.
+     */
+    public static int getKeySampleSize(long key) {
+        return 1 << (int) (key >>> (INDEX_BITS * 2));
+    }
+
+    /**
+     * @param key Key of a tile.
+     * @return Column of the tile.
+     */
+    public static int getKeyColumn(long key) {
+        return (int) (key >>> INDEX_BITS & INDEX_MASK);
+    }
+
+    /**
+     * @param key Key of a tile.
+     * @return Row of the tile.
+     */
+    public static int getKeyRow(long key) {
+        return (int) (key & INDEX_MASK);
+    }
+}
@@ -0,0 +1,150 @@
+package fi.tamk.tiko.androidpaint;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+
+import java.io.File;
+
+/**
+ * An image loaded under the lines and shapes. The image is scaled to the
+ * size of the drawing for the preview, which is drawn when the view is
+ * not zoomed in and is used for the backdrop and color sampling. An image
+ * that has more pixels than the drawing is also kept at its own
+ * resolution in a file, and the visible parts of it are decoded from the
+ * file in tiles when the view is zoomed in, so that no detail is lost and
+ * the whole image never has to fit in memory.
+ */
+public class ImportedImage {
+
+    /**
+     * The image scaled to the size of the drawing.
+     */
+    private final Bitmap preview;
+
+    /**
+     * Grid of the tiles of the image.
+     */
+    private final ImageTileGrid grid;
+
+    /**
+     * Copy of the image at its own resolution, or null if the image is
+     * no larger than the drawing.
+     */
+    private final File file;
+
+    /**
+     * Decoder of the file, or null if the image is no larger than the
+     * drawing. Guarded by this.
+     */
+    private BitmapRegionDecoder decoder;
+
+    /**
+     * Whether decoding a tile has failed, after which no more tiles are
+     * decoded.
+     */
+    private volatile boolean failed;
+
+    /**
+     * Whether the image has been released. Guarded by this.
+     */
+    private boolean released;
+
+    /**
+     * Constructs the object and sets its attributes.
+     *
+     * @param preview The image scaled to the size of the drawing. The
+     *                image owns the bitmap from now on.
+     * @param grid Grid of the tiles of the image.
+     * @param file Copy of the image at its own resolution, or null. The
+     *             image deletes the file when it is released.
+     * @param decoder Decoder opened on the file, or null if there is no
+     *                file. The image recycles it when it is released.
+     */
+    public ImportedImage(Bitmap preview, ImageTileGrid grid, File file,
+                         BitmapRegionDecoder decoder) {
+        this.preview = preview;
+        this.grid = grid;
+        this.file = file;
+        this.decoder = decoder;
+    }
+
+    /**
+     * @return The image scaled to the size of the drawing.
+     */
+    public Bitmap getPreview() {
+        return preview;
+    }
+
+    /**
+     * @return Grid of the tiles of the image.
+     */
+    public ImageTileGrid getGrid() {
+        return grid;
+    }
+
+    /**
+     * @return Whether parts of the image can be decoded at its own
+     *         resolution.
+     */
+    public boolean isTiled() {
+        return file != null && !failed;
+    }
+
+    /**
+     * Decodes an area of the image at its own resolution. Called on the
+     * threads that decode tiles. BitmapRegionDecoder decodes one area at
+     * a time, so concurrent calls wait for each other.
+     *
+     * @param region The area of the image as it is stored.
+     * @param options Options of the decoding, including the sample size.
+     * @return The decoded area, or null if the image has been released
+     *         or the area could not be decoded. After a failure the image
+     *         is no longer tiled, so the failure is not repeated on every
+     *         frame.
+     */
+    public Bitmap decodeRegion(Rect region, BitmapFactory.Options options) {
+        BitmapRegionDecoder regionDecoder;
+        synchronized (this) {
+            if (released || failed || decoder == null) {
+                return null;
+            }
+            regionDecoder = decoder;
+        }
+        Bitmap bitmap;
+        try {
+            bitmap = regionDecoder.decodeRegion(region, options);
+        } catch (IllegalStateException e) {
+            // The decoder was recycled by release while this was waiting.
+            return null;
+        }
+        if (bitmap == null) {
+            failed = true;
+        }
+        return bitmap;
+    }
+
+    /**
+     * Releases the preview to the pool, closes the decoder and deletes
+     * the file. Waits for an area that is being decoded.
+     *
+     * @param pool Pool that the preview is released to.
+     */
+    public void release(BitmapPool pool) {
+        synchronized (this) {
+            if (released) {
+                return;
+            }
+            released = true;
+            if (decoder != null) {
+                decoder.recycle();
+                decoder = null;
+            }
+        }
+        pool.put(preview);
+        if (file != null) {
+            file.delete();
+        }
+    }
+}
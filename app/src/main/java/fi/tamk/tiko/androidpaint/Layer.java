@@ -0,0 +1,180 @@
+package fi.tamk.tiko.androidpaint;
+
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+
+/**
+ * One layer of the drawing. The lines and shapes of a layer are kept in
+ * the index of PaintView with the id of the layer, and the layer owns a
+ * tiled surface that caches them rasterized. The surface is only redrawn
+ * when the lines and shapes of this layer change, and the visibility,
+ * opacity and blend mode are applied when the layer is composited.
+ */
+public class Layer implements ColorSampler.BlendedLayer {
+
+    /**
+     * Opacity of a layer that is drawn as it is.
+     */
+    public static final int OPAQUE = 255;
+
+    /**
+     * Id of the layer that lines and shapes refer to.
+     */
+    private final int id;
+
+    /**
+     * Surface that the lines and shapes of the layer are drawn on.
+     */
+    private final TiledSurface surface;
+
+    /**
+     * Whether the layer is shown.
+     */
+    private boolean visible = true;
+
+    /**
+     * Opacity of the layer from 0 to 255.
+     */
+    private int opacity = OPAQUE;
+
+    /**
+     * How the colors of the layer are mixed with the layers under it.
+     */
+    private LayerBlend blend = LayerBlend.NORMAL;
+
+    /**
+     * Whether the surface contains all the lines and shapes of the
+     * layer. Set to false when the surface has been released or needs
+     * to be rebuilt.
+     */
+    private boolean valid;
+
+    /**
+     * Paint that the surface is composited with, with the opacity as
+     * its alpha and the blend mode as its transfer mode.
+     */
+    private final Paint paint = new Paint(Paint.DITHER_FLAG | Paint.FILTER_BITMAP_FLAG);
+
+    /**
+     * Constructs an empty layer.
+     *
+     * @param id Id of the layer.
+     * @param width The width of the drawing.
+     * @param height The height of the drawing.
+     * @param pool Pool that the tiles of the surface are taken from.
+     */
+    public Layer(int id, int width, int height, BitmapPool pool) {
+        this.id = id;
+        this.surface = new TiledSurface(width, height, pool);
+    }
+
+    /**
+     * @return Id of the layer.
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return Surface that the lines and shapes of the layer are drawn on.
+     */
+    public TiledSurface getSurface() {
+        return surface;
+    }
+
+    /**
+     * @return Whether the layer is shown.
+     */
+    public boolean isVisible() {
+        return visible;
+    }
+
+    /**
+     * @return Opacity of the layer from 0 to 255, 0 if it is hidden.
+     */
+    @Override
+    public int getOpacity() {
+        return visible ? opacity : 0;
+    }
+
+    /**
+     * @return Opacity of the layer from 0 to 255 when it is shown.
+     */
+    public int getOpacitySetting() {
+        return opacity;
+    }
+
+    /**
+     * @return How the colors of the layer are mixed with the layers under it.
+     */
+    @Override
+    public LayerBlend getBlend() {
+        return blend;
+    }
+
+    /**
+     * @return Whether the layer is drawn as it is over the layers under it.
+     */
+    public boolean isPlain() {
+        return opacity == OPAQUE && blend == LayerBlend.NORMAL;
+    }
+
+    /**
+     * @return Paint that the surface is composited with.
+     */
+    public Paint getPaint() {
+        return paint;
+    }
+
+    /**
+     * @return Whether the surface contains all the lines and shapes of the layer.
+     */
+    public boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * @param valid Whether the surface contains all the lines and shapes
+     *              of the layer.
+     */
+    public void setValid(boolean valid) {
+        this.valid = valid;
+    }
+
+    /**
+     * Releases the tiles of the surface. The surface is rebuilt from the
+     * index the next time the layer is drawn.
+     */
+    public void release() {
+        surface.clear();
+        valid = false;
+    }
+
+    /**
+     * @return The visibility, opacity and blend mode packed into an int.
+     */
+    public int getState() {
+        return LayerCommand.packState(visible, opacity, blend);
+    }
+
+    /**
+     * Sets the visibility, opacity and blend mode from a packed state.
+     *
+     * @param state State returned by getState or LayerCommand.packState.
+     */
+    public void setState(int state) {
+        visible = LayerCommand.isVisible(state);
+        opacity = LayerCommand.getOpacity(state);
+        blend = LayerCommand.getBlend(state);
+
+        paint.setAlpha(opacity);
+        paint.setXfermode(blend == LayerBlend.NORMAL ? null
+                : new PorterDuffXfermode(PorterDuff.Mode.valueOf(blend.name())));
+    }
+
+    @Override
+    public void getPixels(int[] out, int x, int y, int width, int height) {
+        surface.getPixels(out, x, y, width, height);
+    }
+}
@@ -0,0 +1,97 @@
+package fi.tamk.tiko.androidpaint;
+
+/**
+ * How the colors of a layer are mixed with the layers under it. Only
+ * modes that leave the layers under it unchanged where the layer is
+ * transparent are offered, since android.graphics.PorterDuff.Mode.MULTIPLY
+ * would clear them there.
+ *
+ * The modes mix colors without premultiplied alpha with the separable
+ * blend functions of the W3C compositing specification, which are what
+ * the PorterDuff modes of the same names do on the canvas, so that
+ * ColorSampler sees the same colors as the screen.
+ */
+public enum LayerBlend {
+
+    /**
+     * The layer is drawn over the layers under it.
+     */
+    NORMAL,
+
+    /**
+     * Keeps the darker of the colors of each channel.
+     */
+    DARKEN,
+
+    /**
+     * Keeps the lighter of the colors of each channel.
+     */
+    LIGHTEN,
+
+    /**
+     * Lightens the colors under the layer like projecting two images
+     * on each other.
+     */
+    SCREEN,
+
+    /**
+     * Multiplies or screens depending on the colors under the layer,
+     * which keeps their highlights and shadows.
+     */
+    OVERLAY;
+
+    /**
+     * Mixes a color of the layer with the color under it.
+     *
+     * @param src The color of the layer.
+     * @param dst The color under it.
+     * @param opacity Opacity of the layer from 0 to 255.
+     * @return The resulting color.
+     */
+    public int composite(int src, int dst, int opacity) {
+        int srcAlpha = (src >>> 24) * opacity / 255;
+        if (srcAlpha == 0) {
+            return dst;
+        }
+        int dstAlpha = dst >>> 24;
+        if (this == NORMAL || dstAlpha == 0) {
+            return SoftwareRenderer.blendPixel(dst, src, srcAlpha);
+        }
+
+        int outAlpha = srcAlpha + dstAlpha * (255 - srcAlpha) / 255;
+        int result = outAlpha << 24;
+        for (int shift = 16; shift >= 0; shift -= 8) {
+            int s = (src >> shift) & 0xFF;
+            int d = (dst >> shift) & 0xFF;
+            int mixed = srcAlpha * (255 - dstAlpha) * s
+                    + srcAlpha * dstAlpha * blend(s, d)
+                    + (255 - srcAlpha) * dstAlpha * d;
+            result |= Math.min(255, mixed / (255 * outAlpha)) << shift;
+        }
+        return result;
+    }
+
+    /**
+     * The blend function of the mode for one channel.
+     *
+     * @param s The channel of the layer from 0 to 255.
+     * @param d The channel under it from 0 to 255.
+     * @return The mixed channel where both colors are opaque.
+     */
+    private int blend(int s, int d) {
+        switch (this) {
+            case DARKEN:
+                return Math.min(s, d);
+            case LIGHTEN:
+                return Math.max(s, d);
+            case SCREEN:
+                return s + d - s * d / 255;
+            case OVERLAY:
+                return 2 * d <= 255
+                        ? 2 * s * d / 255
+                        : 255 - 2 * (255 - s) * (255 - d) / 255;
+            default:
+                return s;
+        }
+    }
+}
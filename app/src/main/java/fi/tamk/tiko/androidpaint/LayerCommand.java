@@ -0,0 +1,146 @@
+package fi.tamk.tiko.androidpaint;
+
+/**
+ * Command that changes the layer stack: adds, removes or moves a layer,
+ * or changes its visibility, opacity or blend mode. The layer is
+ * identified by its id, which is returned by getLayer.
+ *
+ * The visibility, opacity and blend mode of a layer are kept packed into
+ * one int, so that a change of them is stored like a move.
+ */
+public class LayerCommand extends Command {
+
+    /**
+     * Kind of a command that adds a new layer at index getTo.
+     */
+    public static final int ADD = 0;
+
+    /**
+     * Kind of a command that removes the layer at index getFrom.
+     */
+    public static final int REMOVE = 1;
+
+    /**
+     * Kind of a command that moves a layer from index getFrom to index getTo.
+     */
+    public static final int MOVE = 2;
+
+    /**
+     * Kind of a command that changes the packed state of a layer from
+     * getFrom to getTo.
+     */
+    public static final int CHANGE = 3;
+
+    /**
+     * Bit of the visibility in a packed state.
+     */
+    private static final int STATE_VISIBLE = 1;
+
+    /**
+     * Shift of the opacity in a packed state.
+     */
+    private static final int STATE_OPACITY_SHIFT = 1;
+
+    /**
+     * Shift of the blend mode in a packed state.
+     */
+    private static final int STATE_BLEND_SHIFT = 9;
+
+    /**
+     * Packed state of a new layer, which is visible, opaque and drawn
+     * over the layers under it.
+     */
+    public static final int DEFAULT_STATE = packState(true, 255, LayerBlend.NORMAL);
+
+    /**
+     * One of the kind constants.
+     */
+    private final int kind;
+
+    /**
+     * Index or state of the layer before the command.
+     */
+    private final int from;
+
+    /**
+     * Index or state of the layer after the command.
+     */
+    private final int to;
+
+    /**
+     * Constructs the command.
+     *
+     * @param kind One of the kind constants.
+     * @param layer Id of the layer.
+     * @param from Index or state of the layer before the command.
+     * @param to Index or state of the layer after the command.
+     */
+    public LayerCommand(int kind, int layer, int from, int to) {
+        this.kind = kind;
+        this.from = from;
+        this.to = to;
+        setLayer(layer);
+    }
+
+    /**
+     * @return One of the kind constants.
+     */
+    public int getKind() {
+        return kind;
+    }
+
+    /**
+     * @return Index or state of the layer before the command.
+     */
+    public int getFrom() {
+        return from;
+    }
+
+    /**
+     * @return Index or state of the layer after the command.
+     */
+    public int getTo() {
+        return to;
+    }
+
+    /**
+     * Packs the visibility, opacity and blend mode of a layer into an int.
+     *
+     * @param visible Whether the layer is shown.
+     * @param opacity Opacity of the layer from 0 to 255.
+     * @param blend How the colors of the layer are mixed.
+     * @return The packed state.
+     */
+    public static int packState(boolean visible, int opacity, LayerBlend blend) {
+        return (visible ? STATE_VISIBLE : 0)
+                | (opacity & 0xFF) << STATE_OPACITY_SHIFT
+                | blend.ordinal() << STATE_BLEND_SHIFT;
+    }
+
+    /**
+     * @param state A packed state.
+     * @return Whether the layer is shown.
+     */
+    public static boolean isVisible(int state) {
+        return (state & STATE_VISIBLE) != 0;
+    }
+
+    /**
+     * @param state A packed state.
+     * @return Opacity of the layer from 0 to 255.
+     */
+    public static int getOpacity(int state) {
+        return (state >>> STATE_OPACITY_SHIFT) & 0xFF;
+    }
+
+    /**
+     * @param state A packed state.
+     * @return How the colors of the layer are mixed, NORMAL for an
+     *         unknown blend mode.
+     */
+    public static LayerBlend getBlend(int state) {
+        LayerBlend[] blends = LayerBlend.values();
+        int ordinal = state >>> STATE_BLEND_SHIFT;
+        return ordinal < blends.length ? blends[ordinal] : LayerBlend.NORMAL;
+    }
+}
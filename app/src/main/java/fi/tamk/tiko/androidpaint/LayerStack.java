@@ -0,0 +1,461 @@
+package fi.tamk.tiko.androidpaint;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * The layers of the drawing from the bottom to the top, and the layer
+ * that new lines and shapes are drawn on.
+ *
+ * Everything under the active layer, which is the background, the loaded
+ * image and the visible layers below the active one, is composited into
+ * a backdrop surface that is only updated in the areas where it has
+ * changed. Drawing on the active layer therefore only has to draw the
+ * backdrop, the active layer and the layers above it, no matter how many
+ * layers there are below it.
+ *
+ * Layers that are removed from the stack are kept by their ids, so that
+ * the removal can be undone and lines and shapes on them still find them.
+ */
+public class LayerStack {
+
+    /**
+     * Id of the layer every drawing starts with.
+     */
+    public static final int BASE_LAYER = 0;
+
+    /**
+     * The width of the drawing.
+     */
+    private final int width;
+
+    /**
+     * The height of the drawing.
+     */
+    private final int height;
+
+    /**
+     * Pool that the tiles of the surfaces are taken from.
+     */
+    private final BitmapPool pool;
+
+    /**
+     * The layers in the stack from the bottom to the top.
+     */
+    private final ArrayList<Layer> layers = new ArrayList<>();
+
+    /**
+     * Every layer that has been created, by id, including the ones that
+     * have been removed from the stack.
+     */
+    private final HashMap<Integer, Layer> registry = new HashMap<>();
+
+    /**
+     * Id given to the next new layer.
+     */
+    private int nextId = BASE_LAYER + 1;
+
+    /**
+     * Index of the layer that new lines and shapes are drawn on.
+     */
+    private int activeIndex;
+
+    /**
+     * Composite of everything under the active layer.
+     */
+    private final TiledSurface backdrop;
+
+    /**
+     * Area of the backdrop that has changed since it was last composited.
+     */
+    private final Rect backdropDirty = new Rect();
+
+    /**
+     * Area of the backdrop that is being composited.
+     */
+    private final Rect backdropArea = new Rect();
+
+    /**
+     * Reusable rectangle for the area of the backdrop that is being composited.
+     */
+    private final RectF backdropBounds = new RectF();
+
+    /**
+     * The color of the background of the backdrop that is being composited.
+     */
+    private int backdropColor;
+
+    /**
+     * The loaded image of the backdrop that is being composited, or null.
+     */
+    private Bitmap backdropImage;
+
+    /**
+     * Paint used for drawing the loaded image onto the backdrop.
+     */
+    private final Paint backdropPaint = new Paint(Paint.DITHER_FLAG);
+
+    /**
+     * Painter that composites backdropArea onto the tiles of the backdrop.
+     */
+    private final TiledSurface.Painter backdropPainter = this::paintBackdrop;
+
+    /**
+     * Constructs a stack with only the base layer.
+     *
+     * @param width The width of the drawing.
+     * @param height The height of the drawing.
+     * @param pool Pool that the tiles of the surfaces are taken from.
+     */
+    public LayerStack(int width, int height, BitmapPool pool) {
+        this.width = width;
+        this.height = height;
+        this.pool = pool;
+        this.backdrop = new TiledSurface(width, height, pool);
+        layers.add(obtain(BASE_LAYER));
+    }
+
+    /**
+     * @return Number of layers in the stack.
+     */
+    public int size() {
+        return layers.size();
+    }
+
+    /**
+     * @param index Index of a layer from the bottom.
+     * @return The layer.
+     */
+    public Layer get(int index) {
+        return layers.get(index);
+    }
+
+    /**
+     * @param layer A layer.
+     * @return Index of the layer from the bottom, or -1 if it is not in
+     *         the stack.
+     */
+    public int indexOf(Layer layer) {
+        return layers.indexOf(layer);
+    }
+
+    /**
+     * @param id Id of a layer.
+     * @return The layer with the id, also if it has been removed from the
+     *         stack, or null if there is none.
+     */
+    public Layer find(int id) {
+        return registry.get(id);
+    }
+
+    /**
+     * Returns the layer with the given id, creating it if there is none.
+     * Used for layers read from documents and journals.
+     *
+     * @param id Id of the layer.
+     * @return The layer.
+     */
+    public Layer obtain(int id) {
+        Layer layer = registry.get(id);
+        if (layer == null) {
+            layer = new Layer(id, width, height, pool);
+            registry.put(id, layer);
+            nextId = Math.max(nextId, id + 1);
+        }
+        return layer;
+    }
+
+    /**
+     * @return Id for a new layer that no layer has had.
+     */
+    public int newId() {
+        return nextId++;
+    }
+
+    /**
+     * Forgets a layer that is not in the stack and releases its surface.
+     *
+     * @param id Id of the layer.
+     */
+    public void discard(int id) {
+        Layer layer = registry.get(id);
+        if (layer != null && id != BASE_LAYER && !layers.contains(layer)) {
+            layer.release();
+            registry.remove(id);
+        }
+    }
+
+    /**
+     * @return The layer that new lines and shapes are drawn on.
+     */
+    public Layer getActive() {
+        return layers.get(activeIndex);
+    }
+
+    /**
+     * @return Index of the layer that new lines and shapes are drawn on.
+     */
+    public int getActiveIndex() {
+        return activeIndex;
+    }
+
+    /**
+     * Changes the layer that new lines and shapes are drawn on.
+     *
+     * @param index Index of the layer from the bottom.
+     */
+    public void setActiveIndex(int index) {
+        index = Math.max(0, Math.min(layers.size() - 1, index));
+        if (index != activeIndex) {
+            activeIndex = index;
+            invalidateBackdrop();
+        }
+    }
+
+    /**
+     * Inserts a layer into the stack and makes it the active layer.
+     *
+     * @param layer The layer to insert.
+     * @param index Index of the layer from the bottom.
+     */
+    public void add(Layer layer, int index) {
+        index = Math.max(0, Math.min(layers.size(), index));
+        layers.add(index, layer);
+        activeIndex = index;
+        invalidateBackdrop();
+    }
+
+    /**
+     * Removes a layer from the stack, keeping the active layer if it is
+     * another one. The last layer is never removed.
+     *
+     * @param layer The layer to remove.
+     * @return Whether the layer was removed.
+     */
+    public boolean remove(Layer layer) {
+        int index = layers.indexOf(layer);
+        if (index < 0 || layers.size() == 1) {
+            return false;
+        }
+        Layer active = getActive();
+        layers.remove(index);
+        activeIndex = layer == active ? Math.max(0, index - 1) : layers.indexOf(active);
+        invalidateBackdrop();
+        return true;
+    }
+
+    /**
+     * Moves a layer to another index of the stack, keeping the active layer.
+     *
+     * @param layer The layer to move.
+     * @param index The new index of the layer from the bottom.
+     */
+    public void move(Layer layer, int index) {
+        int from = layers.indexOf(layer);
+        if (from < 0) {
+            return;
+        }
+        Layer active = getActive();
+        layers.remove(from);
+        layers.add(Math.max(0, Math.min(layers.size(), index)), layer);
+        activeIndex = layers.indexOf(active);
+        invalidateBackdrop();
+    }
+
+    /**
+     * Leaves only the base layer in the stack with its default state.
+     * The surfaces of the removed layers are released and the surface of
+     * the base layer is cleared.
+     */
+    public void reset() {
+        Layer base = obtain(BASE_LAYER);
+        for (int i = 0; i < layers.size(); i++) {
+            if (layers.get(i) != base) {
+                layers.get(i).release();
+            }
+        }
+        layers.clear();
+        base.getSurface().clear();
+        base.setState(LayerCommand.DEFAULT_STATE);
+        layers.add(base);
+        activeIndex = 0;
+        invalidateBackdrop();
+    }
+
+    /**
+     * Saves the order and the states of the layers and the active layer,
+     * so that a clear can be undone.
+     *
+     * @return The active index followed by the id and the packed state of
+     *         each layer from the bottom.
+     */
+    public int[] saveStructure() {
+        int[] structure = new int[1 + layers.size() * 2];
+        structure[0] = activeIndex;
+        for (int i = 0; i < layers.size(); i++) {
+            structure[1 + i * 2] = layers.get(i).getId();
+            structure[2 + i * 2] = layers.get(i).getState();
+        }
+        return structure;
+    }
+
+    /**
+     * Brings back the layers saved with saveStructure. Layers whose
+     * surfaces were released have to be rebuilt.
+     *
+     * @param structure Array returned by saveStructure.
+     */
+    public void restoreStructure(int[] structure) {
+        layers.clear();
+        for (int i = 1; i + 1 < structure.length; i += 2) {
+            Layer layer = obtain(structure[i]);
+            layer.setState(structure[i + 1]);
+            layers.add(layer);
+        }
+        if (layers.isEmpty()) {
+            layers.add(obtain(BASE_LAYER));
+        }
+        activeIndex = Math.max(0, Math.min(layers.size() - 1, structure[0]));
+        invalidateBackdrop();
+    }
+
+    /**
+     * @param layer A layer.
+     * @return Whether the layer is part of the backdrop, meaning that it
+     *         is in the stack below the active layer.
+     */
+    public boolean isBelowActive(Layer layer) {
+        int index = layers.indexOf(layer);
+        return index >= 0 && index < activeIndex;
+    }
+
+    /**
+     * @return Whether there are layers below the active layer, in which
+     *         case the backdrop is drawn instead of the background.
+     */
+    public boolean hasBackdrop() {
+        return activeIndex > 0;
+    }
+
+    /**
+     * Marks the whole backdrop changed.
+     */
+    public void invalidateBackdrop() {
+        backdropDirty.set(0, 0, width, height);
+    }
+
+    /**
+     * Marks an area of the backdrop changed.
+     *
+     * @param region The area that has changed.
+     */
+    public void invalidateBackdrop(Rect region) {
+        if (hasBackdrop()) {
+            backdropDirty.union(region);
+        }
+    }
+
+    /**
+     * Composites the changed area of the backdrop if it intersects the
+     * area that is drawn. The backdrop is released when there are no
+     * layers below the active layer. The surfaces of the layers below
+     * the active layer must be up to date.
+     *
+     * @param clip The area of the drawing that is drawn.
+     * @param backgroundColor The color of the background.
+     * @param image The loaded image, or null.
+     */
+    public void updateBackdrop(Rect clip, int backgroundColor, Bitmap image) {
+        if (!hasBackdrop()) {
+            if (backdrop.getTileCount() > 0) {
+                backdrop.clear();
+            }
+            return;
+        }
+        if (backdropDirty.isEmpty() || !Rect.intersects(backdropDirty, clip)) {
+            return;
+        }
+        backdropArea.set(backdropDirty);
+        backdropDirty.setEmpty();
+        if (!backdropArea.intersect(0, 0, width, height)) {
+            return;
+        }
+
+        backdropColor = backgroundColor;
+        backdropImage = image;
+        backdropBounds.set(backdropArea);
+        backdrop.clear(backdropArea);
+        backdrop.draw(backdropBounds, backdropArea, backdropPainter);
+        backdropImage = null;
+    }
+
+    /**
+     * Draws the backdrop onto the given canvas.
+     *
+     * @param canvas Canvas the backdrop is drawn on.
+     * @param clip The area that needs to be drawn.
+     * @param paint Paint used for drawing the tiles.
+     */
+    public void drawBackdrop(Canvas canvas, Rect clip, Paint paint) {
+        backdrop.drawTo(canvas, clip, paint);
+    }
+
+    /**
+     * Releases the surfaces of all layers and the backdrop. The stack
+     * must not be used afterwards.
+     */
+    public void release() {
+        for (Layer layer : registry.values()) {
+            layer.release();
+        }
+        registry.clear();
+        layers.clear();
+        backdrop.clear();
+    }
+
+    /**
+     * Releases the tiles of the backdrop. It is composited again the next
+     * time it is drawn.
+     */
+    public void releaseBackdrop() {
+        backdrop.clear();
+        invalidateBackdrop();
+    }
+
+    /**
+     * @return Number of bytes the tiles of the layers in the stack and
+     *         the backdrop take.
+     */
+    public long getByteCount() {
+        long bytes = backdrop.getByteCount();
+        for (int i = 0; i < layers.size(); i++) {
+            bytes += layers.get(i).getSurface().getByteCount();
+        }
+        return bytes;
+    }
+
+    /**
+     * Draws the background, the loaded image and the visible layers below
+     * the active layer inside backdropArea onto a tile of the backdrop.
+     *
+     * @param canvas Canvas of the tile.
+     */
+    private void paintBackdrop(Canvas canvas) {
+        canvas.drawColor(backdropColor);
+        if (backdropImage != null) {
+            canvas.drawBitmap(backdropImage, backdropArea, backdropArea, backdropPaint);
+        }
+        for (int i = 0; i < activeIndex; i++) {
+            Layer layer = layers.get(i);
+            if (layer.getOpacity() > 0) {
+                layer.getSurface().drawTo(canvas, backdropArea, layer.getPaint());
+            }
+        }
+    }
+}
@@ -4,28 +4,35 @@ import android.Manifest;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.net.Uri;
 import android.os.Environment;
-import android.provider.MediaStore;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.DisplayMetrics;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
+import android.view.SurfaceView;
 import android.widget.LinearLayout;
 import android.widget.SeekBar;
 import android.widget.Toast;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.OutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.Calendar;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
 
 import yuku.ambilwarna.AmbilWarnaDialog;
 
@@ -42,11 +49,85 @@ public class MainActivity extends AppCompatActivity {
      */
     private PaintView paintView;
 
+    /**
+     * Saves images on a background thread.
+     */
+    private ImageSaver imageSaver;
+
+    /**
+     * Decodes loaded images on a background thread.
+     */
+    private ImageImporter imageImporter;
+
+    /**
+     * Journal that keeps the drawing over process death and restarts.
+     */
+    private DrawingJournal drawingJournal;
+
+    /**
+     * The thread that editable documents are written and read on, one
+     * at a time, so that opening waits for a save that is still running.
+     * The journal is also opened and replayed on it.
+     */
+    private final ExecutorService documentExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "DrawingDocument");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    /**
+     * Handler that delivers the results of document saves and opens on
+     * the UI thread.
+     */
+    private final Handler uiHandler = new Handler(Looper.getMainLooper());
+
     /**
      * The path extension to make the app save images in the correct folder.
      */
     public final static String APP_PATH_SD_CARD = "/Paint05/";
 
+    /**
+     * Name of the file in the private files of the app that the editable
+     * drawing is saved to.
+     */
+    public final static String DRAWING_FILE_NAME = "drawing.apd";
+
+    /**
+     * Start of the names of the files that render statistics are
+     * dumped to.
+     */
+    private final static String STATS_FILE_PREFIX = "render-stats-";
+
+    /**
+     * Name of the directory in the private files of the app that the
+     * drawing journal is kept in.
+     */
+    public final static String JOURNAL_DIR_NAME = "journal";
+
+    /**
+     * Name of the directory in the private files of the app that copies
+     * of imported images are kept in while they are loaded.
+     */
+    private final static String IMPORT_DIR_NAME = "imports";
+
+    /**
+     * How much the layer opacity menu item lowers the opacity of the
+     * active layer, before it wraps around to fully opaque.
+     */
+    private static final int LAYER_OPACITY_STEP = 64;
+
+    /**
+     * Longest time in milliseconds that opening the journal waits at a
+     * time for the journal of the previous activity to stop writing,
+     * before it is tried again.
+     */
+    private static final long JOURNAL_OPEN_TIMEOUT_MS = 2000;
+
+    /**
+     * Tag used for logging document save and open timings.
+     */
+    private static final String TAG = "MainActivity";
+
     /**
      * Method that is called upon creation of the activity. It initializes
      * the PaintView object and necessary permissions to write and read
@@ -63,6 +144,11 @@ public class MainActivity extends AppCompatActivity {
         DisplayMetrics displayMetrics = new DisplayMetrics();
         getWindowManager().getDefaultDisplay().getMetrics(displayMetrics);
         paintView.init(displayMetrics);
+        paintView.setRenderSurface((SurfaceView) findViewById(R.id.renderSurface));
+        imageSaver = new ImageSaver(getContentResolver(), paintView.getBitmapPool());
+        imageImporter = new ImageImporter(getContentResolver(), paintView.getBitmapPool(),
+                new File(getFilesDir(), IMPORT_DIR_NAME));
+        openJournal(displayMetrics);
 
         int permissionCheck = ContextCompat.checkSelfPermission(this,
                 Manifest.permission.WRITE_EXTERNAL_STORAGE);
@@ -74,6 +160,39 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    /**
+     * Cancels saves that are still running and stops the save and
+     * load threads. When the activity is only recreated, the saves are
+     * finished instead.
+     */
+    @Override
+    protected void onDestroy() {
+        if (drawingJournal != null) {
+            drawingJournal.close();
+        }
+        if (isChangingConfigurations()) {
+            imageSaver.finish();
+        } else {
+            imageSaver.shutdown();
+        }
+        imageImporter.shutdown();
+        documentExecutor.shutdown();
+        paintView.shutdown();
+        super.onDestroy();
+    }
+
+    /**
+     * Releases unused bitmaps and undo checkpoints of the PaintView when the
+     * system is running low on memory.
+     *
+     * @param level The level of memory trimming requested by the system.
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        paintView.trimMemory(level);
+    }
+
     /**
      * Opens device gallery in new activity.
      */
@@ -85,6 +204,8 @@ public class MainActivity extends AppCompatActivity {
 
     /**
      * Returns the image chosen in the activity started in the load() method.
+     * The image is imported on the background thread of the ImageImporter
+     * and given to the PaintView when it is ready.
      *
      * @param requestCode Code used to differentiate between different requests.
      * @param resultCode Code that tells whether the request was completed.
@@ -96,24 +217,36 @@ public class MainActivity extends AppCompatActivity {
 
         if (resultCode == RESULT_OK) {
             Uri targetUri = data.getData();
-            Bitmap bitmap;
-            try {
-                bitmap = BitmapFactory.decodeStream(getContentResolver().openInputStream(targetUri));
-                paintView.loadBitmap(bitmap);
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-            }
+            imageImporter.importImage(targetUri,
+                    paintView.getBitmapWidth(),
+                    paintView.getBitmapHeight(),
+                    new ImageImporter.Listener() {
+                        @Override
+                        public void onImported(ImportedImage image) {
+                            paintView.loadImage(image);
+                        }
+
+                        @Override
+                        public void onFailed(Exception e) {
+                            e.printStackTrace();
+                            Toast.makeText(getApplicationContext(),
+                                    "Loading failed",
+                                    Toast.LENGTH_LONG).show();
+                        }
+                    });
         }
     }
 
     /**
      * Saves the given image into device gallery using path defined before.
+     * A snapshot of the view is taken on the UI thread, and it is
+     * encoded and written on the background thread of the ImageSaver.
      *
      * @param paintView The PaintView from which saved image is created.
      */
     public void save(PaintView paintView) {
 
-        Bitmap image = Bitmap.createBitmap(paintView.getWidth(),
+        Bitmap image = paintView.getBitmapPool().get(paintView.getWidth(),
                 paintView.getHeight(), Bitmap.Config.ARGB_8888);
         Canvas c = new Canvas(image);
         paintView.draw(c);
@@ -123,35 +256,187 @@ public class MainActivity extends AppCompatActivity {
                 Environment.getExternalStoragePublicDirectory(
                         Environment.DIRECTORY_PICTURES).getAbsolutePath()
                         + APP_PATH_SD_CARD;
+        File file = new File(fullPath, createUniqueFileName() + ".png");
 
-        // Check whether the necessary directories for saving exist.
-        // If not, create them.
-        try {
-            File dir = new File(fullPath);
-            if (!dir.exists()) {
-                dir.mkdirs();
+        imageSaver.save(image, file, new ImageSaver.Listener() {
+            @Override
+            public void onProgress(long bytesWritten) {
+                // The size of the PNG is not known beforehand, so there is
+                // no percentage to show.
             }
 
-            OutputStream fOut = null;
-            File file = new File(fullPath, createUniqueFileName() + ".png");
+            @Override
+            public void onSaved(File file) {
+                Toast.makeText(getApplicationContext(),
+                        "Saved " + file.getName(),
+                        Toast.LENGTH_SHORT).show();
+            }
 
-            fOut = new FileOutputStream(file);
+            @Override
+            public void onFailed(File file, Exception e) {
+                e.printStackTrace();
+                Toast.makeText(getApplicationContext(),
+                        "Saving failed",
+                        Toast.LENGTH_LONG).show();
+            }
 
-            // Quality of 100 means no compression. The lower you go,
-            // the stronger the compression. 100 was chosen because the file
-            // size isn't that big even without compression.
-            image.compress(Bitmap.CompressFormat.PNG, 100, fOut);
-            fOut.flush();
-            fOut.close();
+            @Override
+            public void onCancelled(File file) {
+            }
+        });
+    }
 
-            MediaStore.Images.Media.insertImage(this.getContentResolver(),
-                    file.getAbsolutePath(), file.getName(), file.getName());
+    /**
+     * Saves the lines, shapes and history of the drawing as an editable
+     * document in the private files of the app, replacing the previously
+     * saved drawing. The history is copied on the UI thread, and the
+     * copy is encoded and written on the document thread.
+     */
+    public void saveDrawing() {
+        File file = new File(getFilesDir(), DRAWING_FILE_NAME);
+        DrawingDocument document;
+        // The render thread may change the history while it is copied.
+        synchronized (paintView) {
+            document = DrawingDocument.copyOf(paintView.getBitmapWidth(),
+                    paintView.getBitmapHeight(), paintView.getHistory(), false);
+        }
+        documentExecutor.execute(() -> {
+            long start = SystemClock.uptimeMillis();
+            try {
+                long bytes = document.write(file);
+                Log.d(TAG, "Saved " + document.getCommands().size() + " commands in "
+                        + bytes + " bytes in " + (SystemClock.uptimeMillis() - start) + " ms");
+                uiHandler.post(() -> Toast.makeText(getApplicationContext(),
+                        "Drawing saved",
+                        Toast.LENGTH_SHORT).show());
+            } catch (IOException e) {
+                e.printStackTrace();
+                uiHandler.post(() -> Toast.makeText(getApplicationContext(),
+                        "Saving drawing failed",
+                        Toast.LENGTH_LONG).show());
+            }
+        });
+    }
 
-        } catch (Exception e) {
+    /**
+     * Dumps the render statistics of the PaintView into a new text file
+     * in the external files of the app, where it can be copied from to
+     * attach it to a bug report, and logs it.
+     */
+    public void dumpStats() {
+        File dir = getExternalFilesDir(null);
+        if (dir == null) {
+            dir = getFilesDir();
+        }
+        File file = new File(dir, STATS_FILE_PREFIX + System.currentTimeMillis() + ".txt");
+        try (Writer out = new FileWriter(file)) {
+            paintView.dumpStats(out);
+            Log.d(TAG, "Dumped render stats to " + file);
+            Toast.makeText(getApplicationContext(),
+                    "Stats written to " + file,
+                    Toast.LENGTH_LONG).show();
+        } catch (IOException e) {
             e.printStackTrace();
+            Toast.makeText(getApplicationContext(),
+                    "Writing stats failed",
+                    Toast.LENGTH_LONG).show();
+        }
+    }
+
+    /**
+     * Writes and syncs the journal when the activity goes to the
+     * background, since the process may be killed after that.
+     */
+    @Override
+    protected void onPause() {
+        super.onPause();
+        if (drawingJournal != null) {
+            drawingJournal.flush();
+        }
+    }
+
+    /**
+     * Restores the drawing from the journal of the previous run and
+     * starts recording the changes into it. The journal is read on the
+     * document thread, since it may have to wait for the journal of the
+     * previous activity to finish writing, and the drawing is opened on
+     * the UI thread when it is ready.
+     *
+     * @param displayMetrics The size of the screen, which is the size
+     *                       of the drawing.
+     */
+    private void openJournal(DisplayMetrics displayMetrics) {
+        DrawingJournal journal = new DrawingJournal(new File(getFilesDir(), JOURNAL_DIR_NAME),
+                displayMetrics.widthPixels, displayMetrics.heightPixels);
+        drawingJournal = journal;
+        documentExecutor.execute(() -> replayJournal(journal));
+    }
+
+    /**
+     * Opens the journal on the document thread and gives the replayed
+     * drawing to the PaintView on the UI thread, where it replaces what
+     * may have been drawn while the journal was read. If the journal of
+     * the previous activity is still writing, opening is queued again,
+     * until the activity is destroyed.
+     *
+     * @param journal The journal to open.
+     */
+    private void replayJournal(DrawingJournal journal) {
+        try {
+            DrawingDocument document = journal.open(JOURNAL_OPEN_TIMEOUT_MS);
+            uiHandler.post(() -> {
+                if (isDestroyed()) {
+                    journal.close();
+                    return;
+                }
+                paintView.openDocument(document);
+                paintView.setJournal(journal);
+            });
+        } catch (TimeoutException e) {
+            Log.w(TAG, "Waiting for the previous journal to stop writing");
+            uiHandler.post(() -> {
+                if (!isDestroyed()) {
+                    documentExecutor.execute(() -> replayJournal(journal));
+                }
+            });
+        } catch (IOException e) {
+            Log.e(TAG, "Opening the journal failed", e);
+            uiHandler.post(() -> {
+                if (drawingJournal == journal) {
+                    drawingJournal = null;
+                }
+            });
         }
     }
 
+    /**
+     * Opens the drawing saved with saveDrawing, replacing the current
+     * drawing and its history. The document is read on the document
+     * thread, after any save that is still running, and opened on the
+     * UI thread.
+     */
+    public void openDrawing() {
+        File file = new File(getFilesDir(), DRAWING_FILE_NAME);
+        documentExecutor.execute(() -> {
+            long start = SystemClock.uptimeMillis();
+            try {
+                DrawingDocument document = DrawingDocument.read(file);
+                Log.d(TAG, "Read " + document.getCommands().size() + " commands from "
+                        + file.length() + " bytes in " + (SystemClock.uptimeMillis() - start) + " ms");
+                uiHandler.post(() -> {
+                    if (!isDestroyed()) {
+                        paintView.openDocument(document);
+                    }
+                });
+            } catch (IOException e) {
+                e.printStackTrace();
+                uiHandler.post(() -> Toast.makeText(getApplicationContext(),
+                        "Opening drawing failed",
+                        Toast.LENGTH_LONG).show());
+            }
+        });
+    }
+
     /**
      * Creates unique file name based on date and time. Every second has
      * a different file name.
@@ -234,6 +519,19 @@ public class MainActivity extends AppCompatActivity {
                 }).show();
     }
 
+    /**
+     * Shows which layer new lines and shapes are drawn on, and its
+     * visibility, opacity and blend mode.
+     */
+    private void showLayer() {
+        Toast.makeText(getApplicationContext(),
+                "Layer " + (paintView.getActiveLayer() + 1) + "/" + paintView.getLayerCount()
+                        + (paintView.isLayerVisible() ? "" : ", hidden")
+                        + ", opacity " + Math.round(paintView.getLayerOpacity() * 100f / Layer.OPAQUE)
+                        + "%, " + paintView.getLayerBlend().name().toLowerCase(Locale.ROOT),
+                Toast.LENGTH_SHORT).show();
+    }
+
     /**
      * Creates a dialog containing credits, and opens it.
      */
@@ -297,11 +595,11 @@ public class MainActivity extends AppCompatActivity {
             case R.id.clear:
                 paintView.clear();
                 return true;
-            case R.id.undoLine:
-                paintView.undoLine();
+            case R.id.undo:
+                paintView.undo();
                 return true;
-            case R.id.undoShape:
-                paintView.undoShape();
+            case R.id.redo:
+                paintView.redo();
                 return true;
             case R.id.line:
                 paintView.setDrawLine(true);
@@ -321,12 +619,66 @@ public class MainActivity extends AppCompatActivity {
             case R.id.dropper:
                 paintView.setDropperActive(true);
                 return true;
+            case R.id.fill:
+                paintView.setFillActive(true);
+                return true;
+            case R.id.dropperAverage:
+                item.setChecked(!item.isChecked());
+                paintView.setDropperKernelSize(item.isChecked() ? 3 : 1);
+                return true;
+            case R.id.layerAdd:
+                paintView.addLayer();
+                showLayer();
+                return true;
+            case R.id.layerRemove:
+                paintView.removeLayer();
+                showLayer();
+                return true;
+            case R.id.layerNext:
+                paintView.setActiveLayer((paintView.getActiveLayer() + 1)
+                        % paintView.getLayerCount());
+                showLayer();
+                return true;
+            case R.id.layerUp:
+                paintView.moveLayer(1);
+                showLayer();
+                return true;
+            case R.id.layerDown:
+                paintView.moveLayer(-1);
+                showLayer();
+                return true;
+            case R.id.layerHide:
+                paintView.setLayerState(!paintView.isLayerVisible(),
+                        paintView.getLayerOpacity(), paintView.getLayerBlend());
+                showLayer();
+                return true;
+            case R.id.layerOpacity:
+                int opacity = paintView.getLayerOpacity() - LAYER_OPACITY_STEP;
+                paintView.setLayerState(paintView.isLayerVisible(),
+                        opacity <= 0 ? Layer.OPAQUE : opacity, paintView.getLayerBlend());
+                showLayer();
+                return true;
+            case R.id.layerBlend:
+                LayerBlend[] blends = LayerBlend.values();
+                paintView.setLayerState(paintView.isLayerVisible(), paintView.getLayerOpacity(),
+                        blends[(paintView.getLayerBlend().ordinal() + 1) % blends.length]);
+                showLayer();
+                return true;
             case R.id.brushShape:
                 paintView.changeStrokeShape();
                 return true;
             case R.id.brushSize:
                 createSeekDialog();
                 return true;
+            case R.id.multiTouch:
+                item.setChecked(!item.isChecked());
+                paintView.setMultiTouchDrawing(item.isChecked());
+                return true;
+            case R.id.prediction:
+                item.setChecked(!item.isChecked());
+                paintView.setPredictionHorizon(item.isChecked()
+                        ? StrokePredictor.DEFAULT_HORIZON_MS : 0);
+                return true;
             case R.id.save:
                 save(paintView);
                 return true;
@@ -334,6 +686,30 @@ public class MainActivity extends AppCompatActivity {
                 paintView.clear();
                 load();
                 return true;
+            case R.id.saveDrawing:
+                saveDrawing();
+                return true;
+            case R.id.openDrawing:
+                openDrawing();
+                return true;
+            case R.id.resetView:
+                paintView.resetViewport();
+                return true;
+            case R.id.rasterCache:
+                item.setChecked(!item.isChecked());
+                paintView.setRasterCacheEnabled(item.isChecked());
+                return true;
+            case R.id.renderThread:
+                item.setChecked(!item.isChecked());
+                paintView.setRenderThreadEnabled(item.isChecked());
+                return true;
+            case R.id.debugOverlay:
+                item.setChecked(!item.isChecked());
+                paintView.setDebugOverlayEnabled(item.isChecked());
+                return true;
+            case R.id.dumpStats:
+                dumpStats();
+                return true;
             case R.id.credits:
                 openCredits();
                 return true;
@@ -1,18 +1,39 @@
 package fi.tamk.tiko.androidpaint;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.graphics.*;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.os.Trace;
 import android.util.AttributeSet;
 import android.util.DisplayMetrics;
+import android.util.Log;
 import android.view.MotionEvent;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
 import android.view.View;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Class that is used in MainActivity to draw all the lines and shapes.
- * Contains lists of saved lines and shapes, along with information of
+ * Contains the history of drawn lines and shapes, along with information of
  * current brush size, style and color.
+ *
+ * The view can hand its touch events and frames over to a RenderThread
+ * that draws onto a SurfaceView under the view. The render thread holds
+ * the monitor of the view while it handles events and draws, so the
+ * public methods that read or change the drawing are synchronized, and
+ * results of background threads are applied while holding the monitor.
  */
 public class PaintView extends View {
 
@@ -32,19 +53,204 @@ public class PaintView extends View {
     public static final int DEFAULT_BG_COLOR = Color.WHITE;
 
     /**
-     * The amount the user has to move their finger for the app to draw.
+     * Extra space around lines with blur or emboss effect, since the
+     * effects spread the line outside of its stroke width.
      */
-    private static final float TOUCH_TOLERANCE = 4;
+    private static final float EFFECT_OUTSET = 10;
 
     /**
-     * Used as temporary x and y coordinates to aid with drawing.
+     * Size of one cell of the spatial index of lines and shapes.
      */
-    private float mX, mY;
+    private static final float INDEX_CELL_SIZE = 256;
 
     /**
-     * Used as a temporary Path to aid with drawing.
+     * Part of the maximum heap size that unused bitmaps in the bitmap
+     * pool may take by default.
      */
-    private Path mPath;
+    private static final int BITMAP_POOL_FRACTION = 8;
+
+    /**
+     * Default number of commands between raster checkpoints of the history.
+     */
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 20;
+
+    /**
+     * Part of the maximum heap size that raster checkpoints of the
+     * history may take by default.
+     */
+    private static final int CHECKPOINT_FRACTION = 8;
+
+    /**
+     * Part of the maximum heap size that rasterized blur and emboss
+     * lines may take.
+     */
+    private static final int SPRITE_CACHE_FRACTION = 16;
+
+    /**
+     * Part of the maximum heap size that tiles of the loaded image
+     * decoded at its own resolution may take.
+     */
+    private static final int TILE_CACHE_FRACTION = 8;
+
+    /**
+     * Scale from which lines and shapes are drawn directly from the index
+     * instead of by scaling up the tiles of the raster cache, which would
+     * look blurry.
+     */
+    private static final float VECTOR_SCALE = 2;
+
+    /**
+     * Color of the area of the view outside of the drawing.
+     */
+    private static final int OUTSIDE_COLOR = Color.DKGRAY;
+
+    /**
+     * Name of the trace section of onDraw.
+     */
+    private static final String TRACE_DRAW = "PaintView.onDraw";
+
+    /**
+     * Name of the trace section of onTouchEvent.
+     */
+    private static final String TRACE_TOUCH = "PaintView.onTouchEvent";
+
+    /**
+     * Text size of the debug overlay in density-independent pixels.
+     */
+    private static final float OVERLAY_TEXT_SIZE_DP = 12;
+
+    /**
+     * Color of the box behind the text of the debug overlay.
+     */
+    private static final int OVERLAY_BACKGROUND = 0xA0000000;
+
+    /**
+     * Number of pixels of the drawing shown across the dropper loupe.
+     * Odd, so that the sampled pixel is in the middle.
+     */
+    private static final int LOUPE_PIXELS = 15;
+
+    /**
+     * Width and height of the dropper loupe in density-independent pixels.
+     */
+    private static final float LOUPE_SIZE_DP = 120;
+
+    /**
+     * Distance between the finger and the dropper loupe in
+     * density-independent pixels.
+     */
+    private static final float LOUPE_GAP_DP = 32;
+
+    /**
+     * Width of the ring of the dropper loupe that shows the sampled
+     * color, in density-independent pixels.
+     */
+    private static final float LOUPE_RING_DP = 4;
+
+    /**
+     * Number of rows of the drawing composited at a time for the bucket
+     * tool.
+     */
+    private static final int FILL_BAND_ROWS = TiledSurface.TILE_SIZE;
+
+    /**
+     * Tag used for logging stroke simplification results.
+     */
+    private static final String TAG = "PaintView";
+
+    /**
+     * Largest distance a predicted point may be from the last touch
+     * sample in density-independent pixels.
+     */
+    private static final float MAX_PREDICTION_DP = 32;
+
+    /**
+     * Builds the lines that are being drawn from touch samples, one for
+     * each finger. A line is only added to the history and to the raster
+     * cache when its finger is lifted.
+     */
+    private final PointerStrokes strokes = new PointerStrokes();
+
+    /**
+     * Whether every finger draws its own line. Otherwise only the first
+     * finger draws, and a second finger zooms and pans the view.
+     */
+    private boolean multiTouchDrawing;
+
+    /**
+     * Surface under the view that the render thread draws on, or null.
+     */
+    private SurfaceView renderSurface;
+
+    /**
+     * Whether touch events and frames are handed over to the render
+     * thread when the surface exists.
+     */
+    private boolean renderThreadEnabled;
+
+    /**
+     * Thread that handles touch events and draws frames onto the render
+     * surface, or null when the view draws itself on the UI thread.
+     */
+    private volatile RenderThread renderThread;
+
+    /**
+     * Starts the render thread when the surface is created and stops it
+     * before the surface is destroyed.
+     */
+    private final SurfaceHolder.Callback surfaceCallback = new SurfaceHolder.Callback() {
+        @Override
+        public void surfaceCreated(SurfaceHolder holder) {
+            if (renderThreadEnabled) {
+                startRenderThread(holder);
+            }
+        }
+
+        @Override
+        public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+            RenderThread thread = renderThread;
+            if (thread != null) {
+                thread.setSize(width, height);
+            }
+        }
+
+        @Override
+        public void surfaceDestroyed(SurfaceHolder holder) {
+            stopRenderThread();
+        }
+    };
+
+    /**
+     * Id of the finger that drags the shape that is being drawn.
+     */
+    private int shapePointerId = -1;
+
+    /**
+     * Area covered by the segments added to all lines in one move event.
+     */
+    private float strokeDirtyLeft, strokeDirtyTop, strokeDirtyRight, strokeDirtyBottom;
+
+    /**
+     * How far ahead of the last touch sample the lines being drawn are
+     * predicted in milliseconds, 0 if prediction is off.
+     */
+    private int predictionHorizonMs;
+
+    /**
+     * Reusable path of the predicted tail of a line.
+     */
+    private final Path mPredictionPath = new Path();
+
+    /**
+     * Reusable rectangle for the area of the predicted tail of a line.
+     */
+    private final RectF mPredictionBounds = new RectF();
+
+    /**
+     * Logical density of the display, used to scale the simplification
+     * tolerance.
+     */
+    private float density = 1;
 
     /**
      * Used as a temporary Paint to aid with drawing.
@@ -52,14 +258,33 @@ public class PaintView extends View {
     private Paint mPaint;
 
     /**
-     * List of DrawPath objects containing information of drawn lines.
+     * Ordered history of all lines, shapes, background changes, loaded
+     * images and clears, used for undo and redo.
+     */
+    private CommandHistory history = new CommandHistory(DEFAULT_CHECKPOINT_INTERVAL,
+            Runtime.getRuntime().maxMemory() / CHECKPOINT_FRACTION);
+
+    /**
+     * Journal that every change to the history is recorded in, or null.
+     */
+    private DrawingJournal journal;
+
+    /**
+     * Reusable list for the commands removed from the history.
      */
-    private ArrayList<DrawPath> paths = new ArrayList<>();
+    private ArrayList<Command> mRemovedCommands = new ArrayList<>();
 
     /**
-     * List of ColorShape objects containing information of drawn shapes.
+     * Index of the drawn area of all DrawPath and ColorShape objects
+     * that are visible, meaning applied and not cleared, in the order
+     * they were drawn. Used to find the ones inside an area quickly.
      */
-    private ArrayList<ColorShape> shapes = new ArrayList<>();
+    private SpatialIndex<Command> index = new SpatialIndex<>(INDEX_CELL_SIZE);
+
+    /**
+     * Reusable list for the results of index queries.
+     */
+    private ArrayList<Command> mQueryResult = new ArrayList<>();
 
     /**
      * The current color of the brush.
@@ -91,6 +316,130 @@ public class PaintView extends View {
      */
     private boolean dropperActive = false;
 
+    /**
+     * Width of the square of pixels the dropper averages, an odd number.
+     */
+    private int dropperKernel = 1;
+
+    /**
+     * Reads the composited color of the drawing for the dropper from the
+     * background, the loaded image and the layers, only for the area
+     * that is sampled. The layers are set in refreshLayers.
+     */
+    private final ColorSampler colorSampler = new ColorSampler(
+            this::readBackground, this::readImage);
+
+    /**
+     * Composited colors around the pixel under the dropper, row by row.
+     */
+    private final int[] loupePixels = new int[LOUPE_PIXELS * LOUPE_PIXELS];
+
+    /**
+     * Bitmap the colors around the dropper are copied into, drawn scaled
+     * up as the loupe. Created when the dropper is first used.
+     */
+    private Bitmap loupeBitmap;
+
+    /**
+     * Whether the dropper loupe is shown.
+     */
+    private boolean loupeVisible;
+
+    /**
+     * The color under the dropper, averaged over dropperKernel pixels.
+     * Transparent outside of the drawing.
+     */
+    private int loupeColor;
+
+    /**
+     * Area of the view the loupe is drawn in.
+     */
+    private final Rect mLoupeRect = new Rect();
+
+    /**
+     * The whole area of loupeBitmap.
+     */
+    private final Rect mLoupeSource = new Rect(0, 0, LOUPE_PIXELS, LOUPE_PIXELS);
+
+    /**
+     * Reusable rectangle for the area of the drawing that is sampled.
+     */
+    private final Rect mSampleRect = new Rect();
+
+    /**
+     * Reusable rectangle for the part of a layer that is read.
+     */
+    private final Rect mLayerRect = new Rect();
+
+    /**
+     * Paint used for the ring of the loupe and the outline of the
+     * sampled pixels.
+     */
+    private final Paint mLoupeFramePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    /**
+     * Paint used for the area of the loupe outside of the drawing.
+     */
+    private final Paint mLoupeBackgroundPaint = new Paint();
+
+    /**
+     * Whether the next touch will fill the area of similar colors
+     * around the touched pixel.
+     */
+    private boolean fillActive = false;
+
+    /**
+     * Largest difference of a color channel that the bucket tool still
+     * fills over.
+     */
+    private int fillTolerance = FloodFill.DEFAULT_TOLERANCE;
+
+    /**
+     * Finds the filled area. Only used on the fill thread.
+     */
+    private final FloodFill floodFill = new FloodFill();
+
+    /**
+     * The thread that fills are found on.
+     */
+    private final ExecutorService fillExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "FloodFill");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    /**
+     * Threads that compare colors and collect rectangles of large fills
+     * in bands, or null on devices with one core.
+     */
+    private final ExecutorService fillWorkers = Runtime.getRuntime().availableProcessors() > 1
+            ? Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                    runnable -> new Thread(runnable, "FloodFillBand"))
+            : null;
+
+    /**
+     * Handler that delivers finished fills on the UI thread.
+     */
+    private final Handler uiHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Composited colors of the whole drawing that a fill is found from.
+     * Kept between fills, and only touched by the fill thread while
+     * fillPending is true.
+     */
+    private int[] fillPixels;
+
+    /**
+     * Whether a fill is being found on the fill thread.
+     */
+    private boolean fillPending;
+
+    /**
+     * Number of changes made to the drawing, used to drop fills that
+     * were found from a drawing that has changed since.
+     */
+    private int documentVersion;
+
     /**
      * Whether the next stroke will draw a rectangle.
      */
@@ -117,524 +466,3045 @@ public class PaintView extends View {
     private boolean drawRoundedRectangle = false;
 
     /**
-     * Filter that determines how emboss effect should be drawn.
+     * Filter that determines how emboss effect should be drawn.
+     */
+    private MaskFilter mEmboss;
+
+    /**
+     * Filter that determines how blur effect should be drawn.
+     */
+    private MaskFilter mBlur;
+
+    /**
+     * Renderer that lines and shapes are drawn on the canvas with.
+     */
+    private CanvasRenderer mCanvasRenderer;
+
+    /**
+     * Beginning coordinate for drawing shapes. Registered at the
+     * start of drawing a shape and used at the end to draw the shape.
+     */
+    private PointF beginCoordinate = new PointF();
+
+    /**
+     * Ending coordinate for drawing shapes. Registered at the
+     * end of drawing a shape and used along with the beginning coordinate
+     * to draw the shape.
+     */
+    private PointF endCoordinate = new PointF();
+
+    /**
+     * Whether a shape is currently being dragged, in which case a
+     * preview of it is drawn.
+     */
+    private boolean shapeDragging = false;
+
+    /**
+     * Area covered by the shape preview in the previous frame.
+     */
+    private RectF previewBounds = new RectF();
+
+    /**
+     * Reusable rectangle used for drawing the shape preview.
+     */
+    private RectF previewRect = new RectF();
+
+    /**
+     * Reusable rectangle for calculating bounds of lines and shapes.
+     */
+    private RectF mBounds = new RectF();
+
+    /**
+     * Reusable rectangle for the area of the view that needs to be redrawn.
+     */
+    private Rect mDirtyRect = new Rect();
+
+    /**
+     * Reusable rectangle for the area of the view that is being drawn
+     * in onDraw.
+     */
+    private Rect mClipRect = new Rect();
+
+    /**
+     * The layers of the drawing. Each layer has a tiled surface on which
+     * its finished lines and shapes are drawn, which works as a cache of
+     * the committed content, so that onDraw only has to draw the line
+     * that is currently being drawn on top of it. Everything under the
+     * active layer is cached in the backdrop of the stack.
+     */
+    private LayerStack layers;
+
+    /**
+     * The loaded image that is drawn under the lines and shapes. Null if
+     * no image has been loaded. The image is owned by the ImageCommand
+     * that loaded it.
+     */
+    private ImportedImage loadedImage;
+
+    /**
+     * Pool that tiles, loaded images and saved images are taken from
+     * and released to, so that they are not allocated again on every
+     * clear, load and save.
+     */
+    private BitmapPool bitmapPool = new BitmapPool(Runtime.getRuntime().maxMemory() / BITMAP_POOL_FRACTION);
+
+    /**
+     * The line or shape that mItemPainter draws.
+     */
+    private Command mPaintingItem;
+
+    /**
+     * Painter that draws mPaintingItem onto the tiles of a surface.
+     */
+    private TiledSurface.Painter mItemPainter = canvas -> drawItem(canvas, mPaintingItem);
+
+    /**
+     * Reusable rectangle for the area of the drawing that is drawn, used
+     * for the bounds of layers composited with saveLayer.
+     */
+    private RectF mClipBounds = new RectF();
+
+    /**
+     * Whether finished lines and shapes are kept in the raster cache.
+     * When false, every frame replays all lines and shapes like before
+     * the cache existed, which is useful for comparing frame times.
+     */
+    private boolean rasterCacheEnabled = true;
+
+    /**
+     * Paint object that is used for drawing bitmaps.
+     */
+    private Paint mBitmapPaint = new Paint(Paint.DITHER_FLAG);
+
+    /**
+     * Paint object that is used for drawing bitmaps when the view is
+     * zoomed, which filters the scaled bitmaps.
+     */
+    private Paint mScaledBitmapPaint = new Paint(Paint.DITHER_FLAG | Paint.FILTER_BITMAP_FLAG);
+
+    /**
+     * Cache of lines with blur or emboss effect rasterized on a
+     * background thread, so that their filters are not run again every
+     * time they are drawn.
+     */
+    private EffectSpriteCache spriteCache;
+
+    /**
+     * Reusable rectangle for the area of a line drawn from the sprite cache.
+     */
+    private RectF mSpriteBounds = new RectF();
+
+    /**
+     * Whether an area is being redrawn because a sprite became ready.
+     * Lines whose sprites are missing are then drawn with their filters
+     * directly instead of being queued again, since storing a sprite may
+     * have evicted the sprites of the lines around it.
+     */
+    private boolean mDeliveringSprite;
+
+    /**
+     * Cache of the tiles of the loaded image decoded at its own
+     * resolution on background threads, drawn over the preview of the
+     * image when the view is zoomed in.
+     */
+    private ImageTileCache tileCache;
+
+    /**
+     * Sample size the tiles of the loaded image are drawn with in the
+     * current frame, 0 if the preview is sharp enough.
+     */
+    private int tileSampleSize;
+
+    /**
+     * Reusable array for a range of tiles of the loaded image.
+     */
+    private int[] mTileRange = new int[4];
+
+    /**
+     * Reusable array for the area of the loaded image a tile covers.
+     */
+    private int[] mTileSource = new int[4];
+
+    /**
+     * Reusable array for the area of the drawing a tile covers.
+     */
+    private float[] mTileBounds = new float[4];
+
+    /**
+     * Reusable array for the values of mTileMatrix.
+     */
+    private float[] mTileValues = new float[9];
+
+    /**
+     * Reusable matrix that draws a tile into its place in the drawing.
+     */
+    private Matrix mTileMatrix = new Matrix();
+
+    /**
+     * Transform between the coordinates of the drawing and the view,
+     * changed with pinch zoom and two-finger pan.
+     */
+    private final Viewport viewport = new Viewport();
+
+    /**
+     * Whether a two-finger zoom and pan gesture is in progress. No lines
+     * or shapes are drawn until all fingers have been lifted.
+     */
+    private boolean viewGesture;
+
+    /**
+     * Whether the next move event starts a new reference for the zoom
+     * and pan gesture, because the set of fingers has changed.
+     */
+    private boolean gestureRestart;
+
+    /**
+     * Point between the two fingers in the previous gesture event.
+     */
+    private float gestureFocusX, gestureFocusY;
+
+    /**
+     * Distance between the two fingers in the previous gesture event.
+     */
+    private float gestureSpan;
+
+    /**
+     * Number of lines and shapes that intersected the drawn area in the
+     * last frame that drew them from the index.
+     */
+    private int lastVisibleItems;
+
+    /**
+     * Number of lines and shapes that were skipped in the last frame
+     * that drew them from the index, because they were outside of the
+     * drawn area.
+     */
+    private int lastCulledItems;
+
+    /**
+     * Number of lines and shapes drawn from the index in the frame that
+     * is being drawn.
+     */
+    private int frameItemsDrawn;
+
+    /**
+     * Number of lines and shapes culled in the frame that is being drawn.
+     */
+    private int frameItemsCulled;
+
+    /**
+     * Statistics of frames and touch events.
+     */
+    private final RenderStats stats = new RenderStats(RenderStats.DEFAULT_WINDOW);
+
+    /**
+     * Uptime in milliseconds of the oldest touch event that has not been
+     * shown in a frame yet, or -1 if there is none.
+     */
+    private long pendingInputTime = -1;
+
+    /**
+     * Whether the statistics are drawn over the drawing.
+     */
+    private boolean debugOverlay;
+
+    /**
+     * Paint used for the text of the debug overlay.
+     */
+    private final Paint mOverlayPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    /**
+     * Paint used for the box behind the text of the debug overlay.
+     */
+    private final Paint mOverlayBackgroundPaint = new Paint();
+
+    /**
+     * The shape of the brush with which lines are drawn.
+     */
+    private Paint.Cap currentCap = Paint.Cap.ROUND;
+
+    /**
+     * The width of the bitmap.
+     */
+    private int bitmapWidth;
+
+    /**
+     * The height of the bitmap.
+     */
+    private int bitmapHeight;
+
+    /**
+     * Default constructor without a given attribute set.
+     *
+     * @param context The context the object is created in.
+     */
+    public PaintView(Context context) {
+        this(context, null);
+    }
+
+    /**
+     * Constructs the object and sets the mPaint, mEmboss and mBlur attributes.
+     *
+     * @param context The context the object is created in.
+     * @param attributeSet The set of attributes the object is created with.
+     */
+    public PaintView(Context context, AttributeSet attributeSet) {
+        super(context, attributeSet);
+        mPaint = new Paint();
+        mPaint.setAntiAlias(true);
+        mPaint.setDither(true);
+        mPaint.setColor(DEFAULT_COLOR);
+        mPaint.setStyle(Paint.Style.STROKE);
+        mPaint.setStrokeJoin(Paint.Join.ROUND);
+        mPaint.setStrokeCap(Paint.Cap.ROUND);
+        mPaint.setXfermode(null);
+        mPaint.setAlpha(0xff);
+
+        mEmboss = new EmbossMaskFilter(new float[] {1, 1, 1}, 0.4f, 6, 3.5f);
+        mBlur = new BlurMaskFilter(5, BlurMaskFilter.Blur.NORMAL);
+        mCanvasRenderer = new CanvasRenderer(mPaint, mEmboss, mBlur);
+
+        spriteCache = new EffectSpriteCache(bitmapPool,
+                Runtime.getRuntime().maxMemory() / SPRITE_CACHE_FRACTION, mEmboss, mBlur);
+        spriteCache.setListener(this::onSpriteReady);
+        spriteCache.setLock(this);
+        tileCache = new ImageTileCache(bitmapPool,
+                Runtime.getRuntime().maxMemory() / TILE_CACHE_FRACTION);
+        tileCache.setListener(this::onTileReady);
+        tileCache.setLock(this);
+
+        mLoupeFramePaint.setStyle(Paint.Style.STROKE);
+        mLoupeBackgroundPaint.setColor(OUTSIDE_COLOR);
+    }
+
+    /**
+     * Initializes bitmap size, creates the layer stack with its base
+     * layer, and sets color and brush size. Tiles of the layers are only
+     * allocated when something is drawn on them.
+     *
+     * @param metrics Object that contains size of the display.
+     */
+    public void init(DisplayMetrics metrics) {
+        bitmapHeight = metrics.heightPixels;
+        bitmapWidth = metrics.widthPixels;
+        if (metrics.density > 0) {
+            density = metrics.density;
+        }
+
+        layers = new LayerStack(bitmapWidth, bitmapHeight, bitmapPool);
+        refreshLayers();
+        viewport.setDocumentSize(bitmapWidth, bitmapHeight);
+
+        currentColor = DEFAULT_COLOR;
+        strokeWidth = BRUSH_SIZE;
+    }
+
+    /**
+     * Removes emboss and blur effects from brush.
+     */
+    public synchronized void normal() {
+        emboss = false;
+        blur = false;
+    }
+
+    /**
+     * Adds emboss effect to brush.
+     */
+    public synchronized void emboss() {
+        emboss = true;
+        blur = false;
+    }
+
+    /**
+     * Adds blur effect to brush.
+     */
+    public synchronized void blur() {
+        emboss = false;
+        blur = true;
+    }
+
+    /**
+     * Clears the PaintView by setting colors to original and clearing
+     * all drawn lines and shapes and the loaded image. The clear is
+     * added to the history, so it can be undone.
+     */
+    public synchronized void clear() {
+        currentColor = DEFAULT_COLOR;
+        mPaint.setStrokeCap(Paint.Cap.ROUND);
+        cancelStrokes();
+        normal();
+        execute(new ClearCommand());
+    }
+
+    /**
+     * Undoes the last applied command. Undoing a line or shape restores
+     * the area it covered from the nearest checkpoint before it and
+     * replays only the lines and shapes after the checkpoint in that
+     * area. Undoing a clear restores the nearest checkpoint before it
+     * and replays the commands after the checkpoint. Does nothing if
+     * there is nothing to undo.
+     */
+    public synchronized void undo() {
+        Command command = history.undo();
+        if (command == null) {
+            return;
+        }
+        documentVersion++;
+        if (journal != null) {
+            journal.recordUndo(history);
+        }
+
+        if (command instanceof DrawPath || command instanceof ColorShape) {
+            removeFromCache(command);
+        } else if (command instanceof BackgroundCommand) {
+            backgroundColor = ((BackgroundCommand) command).getPreviousColor();
+            layers.invalidateBackdrop();
+            redraw();
+        } else if (command instanceof ImageCommand) {
+            ImageCommand ic = (ImageCommand) command;
+            setLoadedImage(ic.getPreviousImage());
+            backgroundColor = ic.getPreviousBackgroundColor();
+            layers.invalidateBackdrop();
+            redraw();
+        } else if (command instanceof LayerCommand) {
+            applyLayerCommand((LayerCommand) command, true);
+        } else if (command instanceof ClearCommand) {
+            ClearCommand cc = (ClearCommand) command;
+            index = cc.getClearedIndex();
+            cc.setClearedIndex(null);
+            layers.restoreStructure(cc.getClearedLayers());
+            cc.setClearedLayers(null);
+            refreshLayers();
+            restoreTo(history.getPosition());
+        }
+    }
+
+    /**
+     * Applies the last undone command again. A redone line or shape is
+     * drawn over the cache of its layer, so nothing is replayed. Does
+     * nothing if there is nothing to redo.
+     */
+    public synchronized void redo() {
+        Command command = history.redo();
+        if (command != null) {
+            documentVersion++;
+            if (journal != null) {
+                journal.recordRedo(history);
+            }
+            apply(command);
+            saveCheckpointIfNeeded();
+        }
+    }
+
+    /**
+     * @return Whether there is a command to undo.
+     */
+    public synchronized boolean canUndo() {
+        return history.canUndo();
+    }
+
+    /**
+     * @return Whether there is a command to redo.
+     */
+    public synchronized boolean canRedo() {
+        return history.canRedo();
+    }
+
+    /**
+     * Adds a command to the history and applies it. New lines and shapes
+     * are drawn on the active layer. Undone commands that can no longer
+     * be redone are released.
+     *
+     * @param command The command to execute.
+     */
+    private void execute(Command command) {
+        if (command instanceof DrawPath || command instanceof ColorShape) {
+            command.setLayer(layers.getActive().getId());
+        }
+        documentVersion++;
+        history.add(command, mRemovedCommands);
+        releaseRemovedCommands();
+        if (journal != null) {
+            journal.recordExecute(command, history);
+        }
+        apply(command);
+        saveCheckpointIfNeeded();
+    }
+
+    /**
+     * Releases the points of the lines, the images and the added layers
+     * of the commands in mRemovedCommands, and empties the list. While a
+     * fill is being found the commands are kept in the list until it
+     * finishes.
+     */
+    private void releaseRemovedCommands() {
+        if (fillPending) {
+            // The fill thread may still read the preview of a removed
+            // image. The commands are released when the fill finishes.
+            return;
+        }
+        for (int i = 0; i < mRemovedCommands.size(); i++) {
+            Command removed = mRemovedCommands.get(i);
+            if (removed instanceof DrawPath) {
+                spriteCache.remove((DrawPath) removed);
+                ((DrawPath) removed).recycle();
+            } else if (removed instanceof ImageCommand) {
+                ((ImageCommand) removed).getImage().release(bitmapPool);
+            } else if (removed instanceof LayerCommand
+                    && ((LayerCommand) removed).getKind() == LayerCommand.ADD) {
+                layers.discard(removed.getLayer());
+            }
+        }
+        mRemovedCommands.clear();
+    }
+
+    /**
+     * Replaces the drawing and its history with the commands of the given
+     * document. The commands are applied to the index without drawing
+     * them, so the points of lines are only decoded when the cache is
+     * rebuilt on the next onDraw, and undone lines or lines before the
+     * last clear are not decoded at all.
+     *
+     * @param document The document to open.
+     */
+    public synchronized void openDocument(DrawingDocument document) {
+        documentVersion++;
+        cancelStrokes();
+        history.clear(mRemovedCommands);
+        releaseRemovedCommands();
+
+        index = new SpatialIndex<>(INDEX_CELL_SIZE);
+        backgroundColor = DEFAULT_BG_COLOR;
+        setLoadedImage(null);
+        layers.release();
+        layers = new LayerStack(bitmapWidth, bitmapHeight, bitmapPool);
+
+        List<Command> commands = document.getCommands();
+        for (int i = 0; i < commands.size(); i++) {
+            history.add(commands.get(i), mRemovedCommands);
+            if (i < document.getPosition()) {
+                apply(commands.get(i));
+            }
+        }
+        while (history.getPosition() > document.getPosition()) {
+            history.undo();
+        }
+        if (journal != null) {
+            journal.recordReplace(history);
+        }
+        refreshLayers();
+        invalidateCache();
+    }
+
+    /**
+     * Applies a command that has just been added or redone. A line or
+     * shape is added to the index and drawn onto the cache of its layer
+     * once instead of rebuilding it.
+     *
+     * @param command The command to apply.
+     */
+    private void apply(Command command) {
+        if (command instanceof DrawPath || command instanceof ColorShape) {
+            addToIndex(command);
+            Layer layer = layers.find(command.getLayer());
+            if (rasterCacheEnabled && layer != null && layer.isValid()) {
+                paintItem(command, null);
+            }
+            mBounds.roundOut(mDirtyRect);
+            invalidateLayer(layer, mDirtyRect);
+        } else if (command instanceof BackgroundCommand) {
+            backgroundColor = ((BackgroundCommand) command).getColor();
+            layers.invalidateBackdrop();
+            redraw();
+        } else if (command instanceof ImageCommand) {
+            setLoadedImage(((ImageCommand) command).getImage());
+            backgroundColor = Color.TRANSPARENT;
+            layers.invalidateBackdrop();
+            redraw();
+        } else if (command instanceof LayerCommand) {
+            applyLayerCommand((LayerCommand) command, false);
+        } else if (command instanceof ClearCommand) {
+            ((ClearCommand) command).setClearedIndex(index);
+            ((ClearCommand) command).setClearedLayers(layers.saveStructure());
+            index = new SpatialIndex<>(INDEX_CELL_SIZE);
+            backgroundColor = DEFAULT_BG_COLOR;
+            setLoadedImage(null);
+            layers.reset();
+            refreshLayers();
+            redraw();
+        }
+    }
+
+    /**
+     * Applies or undoes a change to the layer stack. A removed layer
+     * releases its surface, and a layer that is added or brought back is
+     * rebuilt from the index the next time it is drawn, so that the
+     * layers under and over it are not rasterized again.
+     *
+     * @param command The command to apply or undo.
+     * @param undo Whether the command is undone.
+     */
+    private void applyLayerCommand(LayerCommand command, boolean undo) {
+        Layer layer = layers.obtain(command.getLayer());
+        switch (command.getKind()) {
+            case LayerCommand.ADD:
+                if (undo) {
+                    layers.remove(layer);
+                    layer.release();
+                } else {
+                    layer.release();
+                    layer.setState(LayerCommand.DEFAULT_STATE);
+                    layers.add(layer, command.getTo());
+                }
+                break;
+            case LayerCommand.REMOVE:
+                if (undo) {
+                    layers.add(layer, command.getFrom());
+                } else {
+                    layers.remove(layer);
+                    layer.release();
+                }
+                break;
+            case LayerCommand.MOVE:
+                layers.move(layer, undo ? command.getFrom() : command.getTo());
+                break;
+            case LayerCommand.CHANGE:
+                layer.setState(undo ? command.getFrom() : command.getTo());
+                layers.invalidateBackdrop();
+                break;
+        }
+        refreshLayers();
+        redraw();
+    }
+
+    /**
+     * Gives the layers of the stack to the color sampler after layers
+     * have been added, removed or moved.
+     */
+    private void refreshLayers() {
+        ColorSampler.Layer[] sampled = new ColorSampler.Layer[2 + layers.size()];
+        sampled[0] = this::readBackground;
+        sampled[1] = this::readImage;
+        for (int i = 0; i < layers.size(); i++) {
+            sampled[2 + i] = layers.get(i);
+        }
+        colorSampler.setLayers(sampled);
+    }
+
+    /**
+     * @return Whether the surfaces of all layers in the stack contain
+     *         all their lines and shapes.
+     */
+    private boolean layersValid() {
+        for (int i = 0; i < layers.size(); i++) {
+            if (!layers.get(i).isValid()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Saves a checkpoint of the layers into the history if one is due.
+     * Checkpoints are only made while the layers are up to date and no
+     * line is drawn without its effect while its sprite is rasterized,
+     * since undo restores areas from the checkpoints. A checkpoint that
+     * waits for sprites is saved when they are delivered.
+     */
+    private void saveCheckpointIfNeeded() {
+        if (rasterCacheEnabled && history.needsCheckpoint() && layersValid()
+                && !spriteCache.isRasterizing()) {
+            CommandHistory.Checkpoint previous = history.getCheckpointBefore(history.getPosition());
+            history.putCheckpoint(new SurfaceCheckpoint(layers, backgroundColor, loadedImage,
+                    bitmapPool, previous instanceof SurfaceCheckpoint
+                            ? (SurfaceCheckpoint) previous : null));
+        }
+    }
+
+    /**
+     * Brings the surfaces of the layers, background color and loaded
+     * image to the state after the given number of commands, starting
+     * from the nearest checkpoint or clear before it. The index and the
+     * layer stack must already be in that state. Changes to the layer
+     * stack are not replayed, since the stack is already up to date.
+     *
+     * @param position Number of applied commands.
+     */
+    private void restoreTo(int position) {
+        int start = history.findReplayStart(position);
+        boolean paint = rasterCacheEnabled;
+        CommandHistory.Checkpoint checkpoint = history.getCheckpoint(start);
+
+        if (checkpoint instanceof SurfaceCheckpoint) {
+            SurfaceCheckpoint sc = (SurfaceCheckpoint) checkpoint;
+            if (paint) {
+                sc.restore(layers);
+            }
+            backgroundColor = sc.getBackgroundColor();
+            loadedImage = sc.getImage();
+        } else {
+            if (paint) {
+                clearLayers();
+            }
+            backgroundColor = DEFAULT_BG_COLOR;
+            loadedImage = null;
+        }
+
+        for (int i = start; i < position; i++) {
+            Command command = history.get(i);
+            if (command instanceof DrawPath || command instanceof ColorShape) {
+                Layer layer = layers.find(command.getLayer());
+                if (paint && layer != null && layer.isValid()) {
+                    paintItem(command, null);
+                }
+            } else if (command instanceof BackgroundCommand) {
+                backgroundColor = ((BackgroundCommand) command).getColor();
+            } else if (command instanceof ImageCommand) {
+                loadedImage = ((ImageCommand) command).getImage();
+                backgroundColor = Color.TRANSPARENT;
+            } else if (command instanceof ClearCommand) {
+                // Only the first replayed command can be a clear, and
+                // the state was already reset above.
+                if (paint) {
+                    clearLayers();
+                }
+            }
+        }
+        tileCache.setImage(loadedImage);
+        layers.invalidateBackdrop();
+        redraw();
+    }
+
+    /**
+     * Makes the surfaces of all layers in the stack transparent and
+     * marks them up to date, before lines and shapes are replayed onto
+     * them.
+     */
+    private void clearLayers() {
+        for (int i = 0; i < layers.size(); i++) {
+            layers.get(i).getSurface().clear();
+            layers.get(i).setValid(true);
+        }
+    }
+
+    /**
+     * Removes an undone line or shape from the index, and brings the
+     * area it covered in the cache of its layer back to the current
+     * position of the history.
+     *
+     * @param item The undone DrawPath or ColorShape.
+     */
+    private void removeFromCache(Command item) {
+        index.remove(item);
+        itemBounds(item, mBounds);
+        mBounds.roundOut(mDirtyRect);
+        Layer layer = layers.find(item.getLayer());
+        if (rasterCacheEnabled && layer != null && layer.isValid()) {
+            restoreRegion(layer, mDirtyRect, history.getPosition());
+        }
+        invalidateLayer(layer, mDirtyRect);
+    }
+
+    /**
+     * Brings an area of the surface of a layer to its state after the
+     * given number of commands. The area is copied from the nearest
+     * checkpoint before the position, or cleared if a clear comes after
+     * it, and only the lines and shapes of the layer after that are
+     * replayed, clipped to the area. The number of replayed commands is
+     * bounded by the checkpoint interval instead of growing with the
+     * history. Without a checkpoint or clear to start from, or if the
+     * layer was not in the checkpoint, the area is redrawn from the
+     * index.
+     *
+     * @param layer The layer to restore.
+     * @param region The area to restore.
+     * @param position Number of applied commands.
+     * @return Number of lines and shapes that were redrawn.
+     */
+    private int restoreRegion(Layer layer, Rect region, int position) {
+        int start = history.findReplayStart(position);
+        CommandHistory.Checkpoint checkpoint = history.getCheckpoint(start);
+        if (checkpoint instanceof SurfaceCheckpoint) {
+            if (!((SurfaceCheckpoint) checkpoint).restore(layer, region)) {
+                return redrawRegion(layer, region);
+            }
+        } else if (start < position && history.get(start) instanceof ClearCommand) {
+            layer.getSurface().clear(region);
+        } else {
+            return redrawRegion(layer, region);
+        }
+
+        int count = 0;
+        for (int i = start; i < position; i++) {
+            Command command = history.get(i);
+            if ((command instanceof DrawPath || command instanceof ColorShape)
+                    && command.getLayer() == layer.getId()) {
+                paintItem(command, region);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Invalidates an area of the view after the content of a layer has
+     * changed there, and the same area of the backdrop if the layer is
+     * below the active layer.
+     *
+     * @param layer The layer that has changed, or null.
+     * @param rect The area that has changed in the coordinates of the drawing.
+     */
+    private void invalidateLayer(Layer layer, Rect rect) {
+        if (layer != null && layers.isBelowActive(layer)) {
+            layers.invalidateBackdrop(rect);
+        }
+        invalidateDocument(rect);
+    }
+
+    /**
+     * Marks the raster caches of all layers outdated, so that they are
+     * rebuilt from the index of lines and shapes on the next onDraw.
+     */
+    private void invalidateCache() {
+        for (int i = 0; i < layers.size(); i++) {
+            layers.get(i).setValid(false);
+        }
+        layers.invalidateBackdrop();
+        redraw();
+    }
+
+    /**
+     * Rebuilds the surfaces of the layers that are outdated, leaving the
+     * surfaces of the other layers as they are.
+     */
+    private void rebuildCache() {
+        for (int i = 0; i < layers.size(); i++) {
+            Layer layer = layers.get(i);
+            if (!layer.isValid()) {
+                rebuildLayer(layer);
+                if (i < layers.getActiveIndex()) {
+                    layers.invalidateBackdrop();
+                }
+            }
+        }
+    }
+
+    /**
+     * Clears the surface of a layer and redraws all visible lines and
+     * shapes of the layer onto it in the order they were drawn.
+     *
+     * @param layer The layer to rebuild.
+     */
+    private void rebuildLayer(Layer layer) {
+        layer.getSurface().clear();
+
+        mQueryResult.clear();
+        index.query(0, 0, bitmapWidth, bitmapHeight, mQueryResult);
+        for (int i = 0; i < mQueryResult.size(); i++) {
+            Command item = mQueryResult.get(i);
+            if (item.getLayer() == layer.getId()) {
+                paintItem(item, null);
+            }
+        }
+        mQueryResult.clear();
+
+        layer.setValid(true);
+    }
+
+    /**
+     * Draws a line or shape onto the tiles of the surface of its layer
+     * that it covers.
+     *
+     * @param item The DrawPath or ColorShape to draw.
+     * @param clip Area outside of which nothing is drawn, or null.
+     */
+    private void paintItem(Command item, Rect clip) {
+        Layer layer = layers.find(item.getLayer());
+        if (layer == null) {
+            return;
+        }
+        itemBounds(item, mBounds);
+        mPaintingItem = item;
+        layer.getSurface().draw(mBounds, clip, mItemPainter);
+        mPaintingItem = null;
+    }
+
+    /**
+     * Draws a line or shape onto the given canvas.
+     *
+     * @param canvas Canvas the item is drawn on.
+     * @param item The DrawPath or ColorShape to draw.
+     */
+    private void drawItem(Canvas canvas, Command item) {
+        mCanvasRenderer.setCanvas(canvas);
+        if (item instanceof DrawPath) {
+            drawPath(canvas, (DrawPath) item);
+        } else {
+            ((ColorShape) item).render(mCanvasRenderer);
+        }
+    }
+
+    /**
+     * Clears the given area of the surface of a layer and redraws the
+     * lines and shapes of the layer that intersect it in the order they
+     * were drawn, leaving the rest of the surface and the other layers
+     * unchanged.
+     *
+     * @param layer The layer to redraw.
+     * @param region The area to redraw.
+     * @return Number of lines and shapes that were redrawn.
+     */
+    private int redrawRegion(Layer layer, Rect region) {
+        layer.getSurface().clear(region);
+
+        mQueryResult.clear();
+        index.query(region.left, region.top, region.right, region.bottom, mQueryResult);
+        int count = 0;
+        for (int i = 0; i < mQueryResult.size(); i++) {
+            Command item = mQueryResult.get(i);
+            if (item.getLayer() == layer.getId()) {
+                paintItem(item, region);
+                count++;
+            }
+        }
+        mQueryResult.clear();
+        return count;
+    }
+
+    /**
+     * Redraws the given area of the surfaces of all layers in the stack.
+     *
+     * @param region The area to redraw.
+     * @return Number of lines and shapes that were redrawn.
+     */
+    private int redrawLayers(Rect region) {
+        int count = 0;
+        for (int i = 0; i < layers.size(); i++) {
+            count += redrawRegion(layers.get(i), region);
+        }
+        return count;
+    }
+
+    /**
+     * Draws the given path with mCanvasRenderer. A finished line with blur or emboss effect is drawn from
+     * its rasterized sprite. Until the sprite is ready, and while the
+     * line is still being drawn, it is drawn without the effect. Lines
+     * too large for the sprite cache, and lines whose sprites are missing
+     * while a delivered sprite is drawn, are drawn with the filter
+     * directly.
+     *
+     * @param canvas Canvas that the path is drawn on.
+     * @param dp The path to draw.
+     */
+    private void drawPath(Canvas canvas, DrawPath dp) {
+        boolean effects = false;
+        if ((dp.getEmboss() || dp.getBlur()) && dp.isFinished()) {
+            itemBounds(dp, mSpriteBounds);
+            EffectSpriteCache.Sprite sprite = mDeliveringSprite
+                    ? spriteCache.peek(dp) : spriteCache.get(dp, mSpriteBounds);
+            if (sprite != null) {
+                sprite.draw(canvas, mBitmapPaint);
+                return;
+            }
+            effects = mDeliveringSprite || !spriteCache.fits(mSpriteBounds);
+        }
+
+        dp.render(mCanvasRenderer, effects);
+    }
+
+    /**
+     * Redraws the area of a line whose sprite has become ready, if the
+     * line is still part of the drawing. The redraw does not queue any
+     * lines, so that when the sprites of overlapping lines do not all fit
+     * in the cache, their deliveries do not keep evicting and queuing
+     * each other. A checkpoint that was waiting for the sprite is saved.
+     *
+     * @param dp The line whose sprite is ready.
+     */
+    private void onSpriteReady(DrawPath dp) {
+        if (!index.contains(dp)) {
+            return;
+        }
+        itemBounds(dp, mBounds);
+        mBounds.roundOut(mDirtyRect);
+        Layer layer = layers.find(dp.getLayer());
+        if (rasterCacheEnabled && layer != null && layer.isValid()) {
+            mDeliveringSprite = true;
+            try {
+                redrawRegion(layer, mDirtyRect);
+            } finally {
+                mDeliveringSprite = false;
+            }
+        }
+        invalidateLayer(layer, mDirtyRect);
+        saveCheckpointIfNeeded();
+    }
+
+    /**
+     * Adds a line or shape to the index with the area it covers when
+     * drawn. The area is also left in mBounds.
+     *
+     * @param item The DrawPath or ColorShape to add.
+     */
+    private void addToIndex(Command item) {
+        itemBounds(item, mBounds);
+        index.insert(item, mBounds.left, mBounds.top, mBounds.right, mBounds.bottom);
+    }
+
+    /**
+     * Stores the area a line or shape covers when drawn into the given
+     * rectangle, including its stroke width and effects.
+     *
+     * @param item The DrawPath or ColorShape whose area is calculated.
+     * @param out The rectangle the area is stored into.
+     */
+    private static void itemBounds(Command item, RectF out) {
+        float outset;
+        if (item instanceof DrawPath) {
+            DrawPath dp = (DrawPath) item;
+            out.set(dp.getLeft(), dp.getTop(), dp.getRight(), dp.getBottom());
+            outset = strokeOutset(dp);
+        } else {
+            ColorShape shape = (ColorShape) item;
+            shapeBounds(shape, out);
+            outset = strokeOutset(shape.getStrokeWidth(), Paint.Cap.ROUND, false);
+        }
+        out.inset(-outset, -outset);
+    }
+
+    /**
+     * Calculates how far outside of its points a line can reach when
+     * drawn, including half of the stroke width, the corners of a square
+     * cap, the spread of blur and emboss effects, and anti-aliasing.
+     *
+     * @param width The width of the line.
+     * @param cap The paint cap of the line.
+     * @param effect Whether the line has blur or emboss effect.
+     * @return The distance from the points to the edge of the drawn area.
+     */
+    private static float strokeOutset(int width, Paint.Cap cap, boolean effect) {
+        float outset = width / 2f;
+        if (cap == Paint.Cap.SQUARE) {
+            outset *= (float) Math.sqrt(2);
+        }
+        if (effect) {
+            outset += EFFECT_OUTSET;
+        }
+        return outset + 1;
+    }
+
+    /**
+     * Stores the area the given shape covers into the given rectangle,
+     * not including its stroke width.
+     *
+     * @param shape The shape whose area is calculated.
+     * @param out The rectangle the area is stored into.
+     */
+    private static void shapeBounds(ColorShape shape, RectF out) {
+        if (shape instanceof FillRegion) {
+            FillRegion fill = (FillRegion) shape;
+            out.set(fill.getLeft(), fill.getTop(), fill.getRight(), fill.getBottom());
+        } else if (shape instanceof ColorRect) {
+            ColorRect rect = (ColorRect) shape;
+            out.set(Math.min(rect.getLeft(), rect.getRight()),
+                    Math.min(rect.getTop(), rect.getBottom()),
+                    Math.max(rect.getLeft(), rect.getRight()),
+                    Math.max(rect.getTop(), rect.getBottom()));
+        } else if (shape instanceof ColorCircle) {
+            ColorCircle circle = (ColorCircle) shape;
+            out.set(circle.getX() - circle.getRadius(),
+                    circle.getY() - circle.getRadius(),
+                    circle.getX() + circle.getRadius(),
+                    circle.getY() + circle.getRadius());
+        } else {
+            out.setEmpty();
+        }
+    }
+
+    /**
+     * Invalidates the area of the view covered by the given rectangle
+     * grown by the given outset.
+     *
+     * @param bounds The area to redraw.
+     * @param outset How much the area is grown on each side.
+     */
+    private void invalidateBounds(RectF bounds, float outset) {
+        invalidateBounds(bounds.left, bounds.top, bounds.right, bounds.bottom, outset);
+    }
+
+    /**
+     * Invalidates the area of the view covered by the given coordinates
+     * grown by the given outset.
+     *
+     * @param left Left edge of the area.
+     * @param top Top edge of the area.
+     * @param right Right edge of the area.
+     * @param bottom Bottom edge of the area.
+     * @param outset How much the area is grown on each side.
+     */
+    private void invalidateBounds(float left, float top, float right, float bottom, float outset) {
+        mDirtyRect.set(
+                (int) Math.floor(left - outset),
+                (int) Math.floor(top - outset),
+                (int) Math.ceil(right + outset),
+                (int) Math.ceil(bottom + outset));
+        invalidateDocument(mDirtyRect);
+    }
+
+    /**
+     * Draws the whole view again, on the render thread if it is running.
+     */
+    private void redraw() {
+        RenderThread thread = renderThread;
+        if (thread != null) {
+            thread.requestFrame();
+        } else {
+            invalidate();
+        }
+    }
+
+    /**
+     * Draws an area of the view again, on the render thread if it is running.
+     *
+     * @param left Left edge of the area.
+     * @param top Top edge of the area.
+     * @param right Right edge of the area.
+     * @param bottom Bottom edge of the area.
+     */
+    private void redraw(int left, int top, int right, int bottom) {
+        RenderThread thread = renderThread;
+        if (thread != null) {
+            thread.requestFrame(left, top, right, bottom);
+        } else {
+            invalidate(left, top, right, bottom);
+        }
+    }
+
+    /**
+     * Invalidates the area of the view that shows the given area of the
+     * drawing.
+     *
+     * @param rect Area in the coordinates of the drawing.
+     */
+    private void invalidateDocument(Rect rect) {
+        if (viewport.isIdentity()) {
+            redraw(rect.left, rect.top, rect.right, rect.bottom);
+        } else {
+            redraw((int) Math.floor(viewport.toViewX(rect.left)),
+                    (int) Math.floor(viewport.toViewY(rect.top)),
+                    (int) Math.ceil(viewport.toViewX(rect.right)),
+                    (int) Math.ceil(viewport.toViewY(rect.bottom)));
+        }
+    }
+
+    /**
+     * @param dp A line.
+     * @return The distance from the points of the line to the edge
+     *         of its drawn area.
+     */
+    private static float strokeOutset(DrawPath dp) {
+        return strokeOutset(dp.getStrokeWidth(), dp.getCap(), dp.getEmboss() || dp.getBlur());
+    }
+
+    /**
+     * Draws the frame, unless the render thread draws it onto the render
+     * surface, in which case the view is left transparent over it.
+     * Drawing the view onto a bitmap, as when saving, always draws the
+     * frame.
+     *
+     * @param canvas Canvas that the view is drawn on.
+     */
+    @Override
+    protected synchronized void onDraw(Canvas canvas) {
+        if (renderThread != null && canvas.isHardwareAccelerated()) {
+            return;
+        }
+        renderFrame(canvas);
+    }
+
+    /**
+     * Draws the frame and records how long it took, how many lines and
+     * shapes were drawn and culled, and how long ago the oldest touch
+     * event it shows happened. The debug overlay is drawn over the frame
+     * when it is enabled. Called on the UI thread or, while holding the
+     * monitor of the view, on the render thread.
+     *
+     * @param canvas Canvas that the frame is drawn on.
+     */
+    void renderFrame(Canvas canvas) {
+        Trace.beginSection(TRACE_DRAW);
+        long start = System.nanoTime();
+        if (pendingInputTime >= 0) {
+            stats.recordInputLatency((SystemClock.uptimeMillis() - pendingInputTime) * 1000000L);
+            pendingInputTime = -1;
+        }
+        frameItemsDrawn = 0;
+        frameItemsCulled = 0;
+        try {
+            drawFrame(canvas);
+        } finally {
+            Trace.endSection();
+        }
+        stats.recordFrame(System.nanoTime() - start, frameItemsDrawn, frameItemsCulled);
+
+        if (loupeVisible) {
+            drawLoupe(canvas);
+        }
+        if (debugOverlay) {
+            drawDebugOverlay(canvas);
+        }
+    }
+
+    /**
+     * Draws the statistics in the top left corner of the view.
+     *
+     * @param canvas Canvas that the view is drawn on.
+     */
+    private void drawDebugOverlay(Canvas canvas) {
+        String[] lines = stats.overlayLines();
+        float textSize = OVERLAY_TEXT_SIZE_DP * density;
+        float width = 0;
+        for (String line : lines) {
+            width = Math.max(width, mOverlayPaint.measureText(line));
+        }
+        canvas.drawRect(0, 0, width + textSize, textSize * (lines.length + 0.5f),
+                mOverlayBackgroundPaint);
+        for (int i = 0; i < lines.length; i++) {
+            canvas.drawText(lines[i], textSize / 2, textSize * (i + 1), mOverlayPaint);
+        }
+    }
+
+    /**
+     * Draws the background color, the loaded image and the non-empty
+     * tiles of the surfaces of the layers on canvas, and the line or
+     * shape preview that is currently being drawn on the active layer,
+     * transformed by the viewport. Everything under the active layer is
+     * drawn from the backdrop, which is only composited again where it
+     * has changed, and the layers over the active layer are composited
+     * every frame, since their blend modes depend on what is under them.
+     * If the cache is disabled, the lines and shapes are redrawn every
+     * frame. When zoomed in far enough, the lines and shapes are drawn
+     * directly instead of the tiles, so that they stay sharp. Only the
+     * part of the drawing inside the clip of the canvas is drawn, and
+     * lines and shapes outside of it are culled with the index.
+     *
+     * @param canvas Canvas that the bitmaps are drawn on.
+     */
+    private void drawFrame(Canvas canvas) {
+        canvas.save();
+
+        if (!canvas.getClipBounds(mClipRect)) {
+            canvas.restore();
+            return;
+        }
+        boolean transformed = !viewport.isIdentity();
+        if (transformed) {
+            canvas.drawColor(OUTSIDE_COLOR);
+            mClipRect.set(
+                    (int) Math.floor(viewport.toDocumentX(mClipRect.left)),
+                    (int) Math.floor(viewport.toDocumentY(mClipRect.top)),
+                    (int) Math.ceil(viewport.toDocumentX(mClipRect.right)),
+                    (int) Math.ceil(viewport.toDocumentY(mClipRect.bottom)));
+        }
+        if (!mClipRect.intersect(0, 0, bitmapWidth, bitmapHeight)) {
+            canvas.restore();
+            return;
+        }
+
+        if (rasterCacheEnabled) {
+            rebuildCache();
+        }
+
+        if (transformed) {
+            canvas.translate(viewport.getOffsetX(), viewport.getOffsetY());
+            canvas.scale(viewport.getScale(), viewport.getScale());
+            canvas.clipRect(mClipRect);
+        }
+        Paint bitmapPaint = viewport.getScale() == 1 ? mBitmapPaint : mScaledBitmapPaint;
+
+        mClipBounds.set(mClipRect);
+        int active = layers.getActiveIndex();
+        tileSampleSize = chooseTileSampleSize();
+
+        if (viewport.getScale() >= VECTOR_SCALE) {
+            drawBackground(canvas, bitmapPaint);
+            drawVisibleItems(canvas, mClipRect);
+        } else {
+            if (!rasterCacheEnabled) {
+                // Replay only the lines and shapes inside the area that
+                // is being redrawn.
+                countCulled(redrawLayers(mClipRect));
+                drawBackground(canvas, bitmapPaint);
+                drawLayers(canvas, 0, active, bitmapPaint);
+            } else if (tileSampleSize > 0) {
+                // The backdrop only has the preview of the image, so the
+                // tiles are drawn under the layers here instead.
+                drawBackground(canvas, bitmapPaint);
+                drawLayers(canvas, 0, active, bitmapPaint);
+            } else {
+                layers.updateBackdrop(mClipRect, backgroundColor,
+                        loadedImage != null ? loadedImage.getPreview() : null);
+                if (layers.hasBackdrop()) {
+                    layers.drawBackdrop(canvas, mClipRect, bitmapPaint);
+                } else {
+                    drawBackground(canvas, bitmapPaint);
+                }
+            }
+
+            Layer layer = layers.getActive();
+            if (layer.getOpacity() > 0) {
+                int save = beginLayer(canvas, layer);
+                layer.getSurface().drawTo(canvas, mClipRect, bitmapPaint);
+                drawPreview(canvas);
+                canvas.restoreToCount(save);
+            }
+            drawLayers(canvas, active + 1, layers.size(), bitmapPaint);
+        }
+
+        canvas.restore();
+    }
+
+    /**
+     * Draws the background color and the loaded image. The tiles of the
+     * image that are decoded are drawn over its preview when the view is
+     * zoomed in, and the missing ones are queued for decoding.
+     *
+     * @param canvas Canvas that the view is drawn on.
+     * @param bitmapPaint Paint used for drawing the image.
+     */
+    private void drawBackground(Canvas canvas, Paint bitmapPaint) {
+        canvas.drawColor(backgroundColor);
+        if (loadedImage == null) {
+            return;
+        }
+        canvas.drawBitmap(loadedImage.getPreview(), mClipRect, mClipRect, bitmapPaint);
+        if (tileSampleSize == 0) {
+            return;
+        }
+
+        ImageTileGrid grid = loadedImage.getGrid();
+        if (!grid.getTileRange(mClipRect.left, mClipRect.top, mClipRect.right, mClipRect.bottom,
+                tileSampleSize, mTileRange)) {
+            return;
+        }
+        for (int row = mTileRange[1]; row < mTileRange[3]; row++) {
+            for (int column = mTileRange[0]; column < mTileRange[2]; column++) {
+                long key = ImageTileGrid.key(tileSampleSize, column, row);
+                Bitmap tile = tileCache.get(key);
+                if (tile == null) {
+                    continue;
+                }
+                grid.getSourceRect(key, mTileSource);
+                grid.getTransform(mTileSource[0], mTileSource[1],
+                        (float) (mTileSource[2] - mTileSource[0]) / tile.getWidth(),
+                        (float) (mTileSource[3] - mTileSource[1]) / tile.getHeight(),
+                        mTileValues);
+                mTileMatrix.setValues(mTileValues);
+                canvas.drawBitmap(tile, mTileMatrix, mScaledBitmapPaint);
+            }
+        }
+    }
+
+    /**
+     * Chooses the sample size the tiles of the loaded image are drawn
+     * with, and tells the tile cache which tiles are visible in the view.
+     *
+     * @return The sample size, or 0 if no tiles are drawn.
+     */
+    private int chooseTileSampleSize() {
+        if (loadedImage == null || !loadedImage.isTiled()) {
+            return 0;
+        }
+        ImageTileGrid grid = loadedImage.getGrid();
+        float left = viewport.toDocumentX(0);
+        float top = viewport.toDocumentY(0);
+        float right = viewport.toDocumentX(getWidth());
+        float bottom = viewport.toDocumentY(getHeight());
+        int sampleSize = grid.getSampleSize(viewport.getScale(), left, top, right, bottom,
+                tileCache.getMaxVisibleTiles());
+        if (sampleSize == 0
+                || !grid.getTileRange(left, top, right, bottom, sampleSize, mTileRange)) {
+            return 0;
+        }
+        tileCache.setVisible(sampleSize, mTileRange);
+        return sampleSize;
+    }
+
+    /**
+     * Draws the area of a decoded tile of the loaded image again.
+     *
+     * @param key Key of the tile.
+     */
+    private void onTileReady(long key) {
+        if (loadedImage == null) {
+            return;
+        }
+        loadedImage.getGrid().getSourceRect(key, mTileSource);
+        loadedImage.getGrid().getDrawingRect(mTileSource, mTileBounds);
+        mDirtyRect.set((int) Math.floor(mTileBounds[0]), (int) Math.floor(mTileBounds[1]),
+                (int) Math.ceil(mTileBounds[2]), (int) Math.ceil(mTileBounds[3]));
+        invalidateDocument(mDirtyRect);
+    }
+
+    /**
+     * Composites the surfaces of the visible layers in the given range
+     * of the stack inside mClipRect.
+     *
+     * @param canvas Canvas that the view is drawn on.
+     * @param from Index of the first layer to draw.
+     * @param to Index after the last layer to draw.
+     * @param bitmapPaint Paint used for layers without opacity or blend mode.
+     */
+    private void drawLayers(Canvas canvas, int from, int to, Paint bitmapPaint) {
+        for (int i = from; i < to; i++) {
+            Layer layer = layers.get(i);
+            if (layer.getOpacity() > 0) {
+                layer.getSurface().drawTo(canvas, mClipRect,
+                        layer.isPlain() ? bitmapPaint : layer.getPaint());
+            }
+        }
+    }
+
+    /**
+     * Starts an offscreen layer of the canvas for a layer that has an
+     * opacity or a blend mode, so that its lines and shapes are mixed
+     * with what is under them together.
+     *
+     * @param canvas Canvas that the view is drawn on.
+     * @param layer The layer that is drawn next.
+     * @return The save count to restore after the layer has been drawn.
+     */
+    private int beginLayer(Canvas canvas, Layer layer) {
+        return layer.isPlain() ? canvas.save() : canvas.saveLayer(mClipBounds, layer.getPaint());
+    }
+
+    /**
+     * Draws the lines or the shape that are currently being drawn.
+     *
+     * @param canvas Canvas that the view is drawn on.
+     */
+    private void drawPreview(Canvas canvas) {
+        for (int i = 0; i < strokes.size(); i++) {
+            DrawPath path = strokes.getPath(i);
+            drawPath(canvas, path);
+            drawPrediction(canvas, path, strokes.getPredictor(strokes.getPointerId(i)));
+        }
+
+        if (shapeDragging) {
+            drawShapePreview(canvas);
+        }
+    }
+
+    /**
+     * Draws the lines and shapes that intersect the given area directly
+     * on the canvas layer by layer in the order they were drawn, skipping
+     * the rest. The preview is drawn with the active layer.
+     *
+     * @param canvas Canvas the lines and shapes are drawn on.
+     * @param area The area of the drawing that is drawn.
+     */
+    private void drawVisibleItems(Canvas canvas, Rect area) {
+        mQueryResult.clear();
+        index.query(area.left, area.top, area.right, area.bottom, mQueryResult);
+        int drawn = 0;
+        for (int l = 0; l < layers.size(); l++) {
+            Layer layer = layers.get(l);
+            if (layer.getOpacity() == 0) {
+                continue;
+            }
+            int save = beginLayer(canvas, layer);
+            for (int i = 0; i < mQueryResult.size(); i++) {
+                Command item = mQueryResult.get(i);
+                if (item.getLayer() == layer.getId()) {
+                    drawItem(canvas, item);
+                    drawn++;
+                }
+            }
+            if (l == layers.getActiveIndex()) {
+                drawPreview(canvas);
+            }
+            canvas.restoreToCount(save);
+        }
+        countCulled(drawn);
+        mQueryResult.clear();
+    }
+
+    /**
+     * Stores the number of drawn and culled lines and shapes of a frame.
+     *
+     * @param visible Number of lines and shapes that were drawn.
+     */
+    private void countCulled(int visible) {
+        lastVisibleItems = visible;
+        lastCulledItems = index.size() - visible;
+        frameItemsDrawn = lastVisibleItems;
+        frameItemsCulled = lastCulledItems;
+    }
+
+    /**
+     * Draws the predicted tail of a line that is being drawn, from where
+     * the drawn line ends through its last point to the predicted points.
+     * The tail is drawn without effects, like the line itself.
+     *
+     * @param canvas Canvas that the view is drawn on.
+     * @param path The line that is being drawn.
+     * @param predictor The predictor of the line.
+     */
+    private void drawPrediction(Canvas canvas, DrawPath path, StrokePredictor predictor) {
+        int count = predictor.getPredictedCount();
+        if (count == 0) {
+            return;
+        }
+        int last = path.getPointCount() - 1;
+        float lastX = path.getX(last);
+        float lastY = path.getY(last);
+        mPredictionPath.reset();
+        if (last > 0) {
+            mPredictionPath.moveTo((lastX + path.getX(last - 1)) / 2,
+                    (lastY + path.getY(last - 1)) / 2);
+            mPredictionPath.lineTo(lastX, lastY);
+        } else {
+            mPredictionPath.moveTo(lastX, lastY);
+        }
+        for (int i = 0; i < count; i++) {
+            mPredictionPath.lineTo(predictor.getPredictedX(i), predictor.getPredictedY(i));
+        }
+
+        mPaint.setColor(path.getColor());
+        mPaint.setStrokeWidth(path.getStrokeWidth());
+        mPaint.setStrokeCap(path.getCap());
+        mPaint.setMaskFilter(null);
+        canvas.drawPath(mPredictionPath, mPaint);
+    }
+
+    /**
+     * Calculates the area covered by the predicted tail of a line, without
+     * the stroke width.
+     *
+     * @param path The line that is being drawn.
+     * @param predictor The predictor of the line.
+     * @param out Rectangle that receives the area.
+     * @return Whether the line has a predicted tail.
+     */
+    private static boolean predictionBounds(DrawPath path, StrokePredictor predictor, RectF out) {
+        int count = predictor.getPredictedCount();
+        if (count == 0) {
+            return false;
+        }
+        int last = path.getPointCount() - 1;
+        float left = path.getX(last);
+        float top = path.getY(last);
+        float right = left;
+        float bottom = top;
+        if (last > 0) {
+            left = Math.min(left, path.getX(last - 1));
+            top = Math.min(top, path.getY(last - 1));
+            right = Math.max(right, path.getX(last - 1));
+            bottom = Math.max(bottom, path.getY(last - 1));
+        }
+        for (int i = 0; i < count; i++) {
+            left = Math.min(left, predictor.getPredictedX(i));
+            top = Math.min(top, predictor.getPredictedY(i));
+            right = Math.max(right, predictor.getPredictedX(i));
+            bottom = Math.max(bottom, predictor.getPredictedY(i));
+        }
+        out.set(left, top, right, bottom);
+        return true;
+    }
+
+    /**
+     * Invalidates the predicted tail of the line a finger is drawing and
+     * forgets it, for when the line is finished or discarded.
+     *
+     * @param pointerId Id of the finger.
+     */
+    private void clearPrediction(int pointerId) {
+        StrokeBuilder builder = strokes.get(pointerId);
+        if (builder == null) {
+            return;
+        }
+        StrokePredictor predictor = strokes.getPredictor(pointerId);
+        if (predictionBounds(builder.getPath(), predictor, mPredictionBounds)) {
+            invalidateBounds(mPredictionBounds, strokeOutset(builder.getPath()));
+        }
+        predictor.reset();
+    }
+
+    /**
+     * Draws the shape that is currently being dragged with current
+     * attributes, using the beginning and ending coordinates the same
+     * way as when the shape is finished.
+     *
+     * @param canvas Canvas that the preview is drawn on.
+     */
+    private void drawShapePreview(Canvas canvas) {
+        mPaint.setColor(currentColor);
+        mPaint.setStrokeWidth(strokeWidth);
+        mPaint.setStrokeCap(currentCap);
+        mPaint.setMaskFilter(null);
+
+        if (drawCircle) {
+            float dx = beginCoordinate.x - endCoordinate.x;
+            float dy = beginCoordinate.y - endCoordinate.y;
+            float radius = (float) (Math.sqrt((dx * dx) + (dy * dy)) / 2);
+            canvas.drawCircle(beginCoordinate.x - dx / 2, beginCoordinate.y - dy / 2,
+                    radius, mPaint);
+        } else if (drawLine) {
+            canvas.drawLine(beginCoordinate.x, beginCoordinate.y,
+                    endCoordinate.x, endCoordinate.y, mPaint);
+        } else {
+            previewRect.set(beginCoordinate.x, beginCoordinate.y,
+                    endCoordinate.x, endCoordinate.y);
+            if (drawRectangle) {
+                canvas.drawRect(previewRect, mPaint);
+            } else if (drawOval) {
+                canvas.drawOval(previewRect, mPaint);
+            } else if (drawRoundedRectangle) {
+                canvas.drawRoundRect(previewRect, RectangleShape.CORNER_RADIUS,
+                        RectangleShape.CORNER_RADIUS, mPaint);
+            }
+        }
+    }
+
+    /**
+     * Calculates the area covered by the shape preview, and invalidates
+     * it together with the area the preview covered in the previous frame.
+     */
+    private void invalidateShapePreview() {
+        float left = Math.min(beginCoordinate.x, endCoordinate.x);
+        float top = Math.min(beginCoordinate.y, endCoordinate.y);
+        float right = Math.max(beginCoordinate.x, endCoordinate.x);
+        float bottom = Math.max(beginCoordinate.y, endCoordinate.y);
+
+        if (drawCircle) {
+            float dx = beginCoordinate.x - endCoordinate.x;
+            float dy = beginCoordinate.y - endCoordinate.y;
+            float radius = (float) (Math.sqrt((dx * dx) + (dy * dy)) / 2);
+            float cx = beginCoordinate.x - dx / 2;
+            float cy = beginCoordinate.y - dy / 2;
+            left = cx - radius;
+            top = cy - radius;
+            right = cx + radius;
+            bottom = cy + radius;
+        }
+
+        float outset = strokeOutset(strokeWidth, currentCap, false);
+        if (!previewBounds.isEmpty()) {
+            invalidateBounds(previewBounds, outset);
+        }
+        previewBounds.set(left, top, right, bottom);
+        invalidateBounds(previewBounds, outset);
+    }
+
+    /**
+     * Method that is called when a finger touches the view to draw a new
+     * line. Creates a new DrawPath object with current attributes, adds
+     * the touched spot as its first point and sets it as the line that
+     * the finger is drawing.
+     *
+     * @param pointerId Id of the finger.
+     * @param x X-coordinate of touched spot.
+     * @param y Y-coordinate of touched spot.
+     * @param time Time of the touch in milliseconds.
+     */
+    private void touchStart(int pointerId, float x, float y, long time) {
+        if (!PointerStrokes.isSupported(pointerId)) {
+            return;
+        }
+        clearPrediction(pointerId);
+        DrawPath dp = new DrawPath(currentColor, emboss, blur, strokeWidth, currentCap);
+        discardStroke(strokes.start(pointerId, dp, x, y));
+        strokes.getPredictor(pointerId).addSample(x, y, time);
+        invalidateBounds(x, y, x, y, strokeOutset(dp));
+    }
+
+    /**
+     * Method that is called when fingers are being moved to draw lines.
+     * Android batches several touch samples of every finger into each
+     * move event, so all historical samples are added to the line of each
+     * finger before the current one. The fingers are handled in one pass
+     * over the pointers of the event, and the area of all added segments
+     * is invalidated once at the end.
+     *
+     * When prediction is on, every sample is also given to the predictor
+     * of the finger with its time, and the tail predicted from the newest
+     * sample replaces the previous one. Both tails are invalidated.
+     *
+     * @param event The move event containing the touch samples.
+     */
+    private void touchMove(MotionEvent event) {
+        strokeDirtyLeft = Float.MAX_VALUE;
+        strokeDirtyTop = Float.MAX_VALUE;
+        strokeDirtyRight = -Float.MAX_VALUE;
+        strokeDirtyBottom = -Float.MAX_VALUE;
+        float outset = 0;
+        float scale = viewport.getScale();
+        float maxPrediction = MAX_PREDICTION_DP * density / scale;
+        int historySize = event.getHistorySize();
+        int pointerCount = event.getPointerCount();
+        for (int p = 0; p < pointerCount; p++) {
+            int pointerId = event.getPointerId(p);
+            StrokeBuilder builder = strokes.get(pointerId);
+            if (builder == null) {
+                continue;
+            }
+            StrokePredictor predictor = strokes.getPredictor(pointerId);
+            if (predictionBounds(builder.getPath(), predictor, mPredictionBounds)) {
+                unionStrokeDirty(mPredictionBounds);
+            }
+
+            builder.resetDirty();
+            for (int h = 0; h < historySize; h++) {
+                float x = viewport.toDocumentX(event.getHistoricalX(p, h));
+                float y = viewport.toDocumentY(event.getHistoricalY(p, h));
+                builder.addSample(x, y, scale);
+                predictor.addSample(x, y, event.getHistoricalEventTime(h));
+            }
+            float x = viewport.toDocumentX(event.getX(p));
+            float y = viewport.toDocumentY(event.getY(p));
+            builder.addSample(x, y, scale);
+            predictor.addSample(x, y, event.getEventTime());
+
+            if (builder.isDirty()) {
+                strokeDirtyLeft = Math.min(strokeDirtyLeft, builder.getDirtyLeft());
+                strokeDirtyTop = Math.min(strokeDirtyTop, builder.getDirtyTop());
+                strokeDirtyRight = Math.max(strokeDirtyRight, builder.getDirtyRight());
+                strokeDirtyBottom = Math.max(strokeDirtyBottom, builder.getDirtyBottom());
+            }
+            predictor.predict(predictionHorizonMs, maxPrediction);
+            if (predictionBounds(builder.getPath(), predictor, mPredictionBounds)) {
+                unionStrokeDirty(mPredictionBounds);
+            }
+            outset = Math.max(outset, strokeOutset(builder.getPath()));
+        }
+
+        if (strokeDirtyLeft <= strokeDirtyRight) {
+            invalidateBounds(strokeDirtyLeft, strokeDirtyTop,
+                    strokeDirtyRight, strokeDirtyBottom, outset);
+        }
+    }
+
+    /**
+     * Adds an area to the area invalidated at the end of a move event.
+     *
+     * @param bounds The area to add.
+     */
+    private void unionStrokeDirty(RectF bounds) {
+        strokeDirtyLeft = Math.min(strokeDirtyLeft, bounds.left);
+        strokeDirtyTop = Math.min(strokeDirtyTop, bounds.top);
+        strokeDirtyRight = Math.max(strokeDirtyRight, bounds.right);
+        strokeDirtyBottom = Math.max(strokeDirtyBottom, bounds.bottom);
+    }
+
+    /**
+     * Method that is called when a finger is lifted from screen.
+     * Ends DrawPath modification by finishing the line of the finger at
+     * its last point, removes points that do not change its shape with
+     * a tolerance scaled by the display density and the zoom, and adds
+     * the line to the history.
+     *
+     * @param pointerId Id of the finger.
+     */
+    private void touchUp(int pointerId) {
+        if (strokes.get(pointerId) == null) {
+            return;
+        }
+        clearPrediction(pointerId);
+        execute(strokes.finish(pointerId, density / viewport.getScale()));
+    }
+
+    /**
+     * Handles the touch events of lines. With multi-finger drawing every
+     * finger that touches the view starts its own line, and otherwise
+     * only the first one does.
+     *
+     * @param event The MotionEvent that the user did.
+     */
+    private void lineDraw(MotionEvent event) {
+        int actionIndex = event.getActionIndex();
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                touchStart(event.getPointerId(actionIndex),
+                        viewport.toDocumentX(event.getX(actionIndex)),
+                        viewport.toDocumentY(event.getY(actionIndex)),
+                        event.getEventTime());
+                break;
+            case MotionEvent.ACTION_POINTER_DOWN:
+                if (multiTouchDrawing) {
+                    touchStart(event.getPointerId(actionIndex),
+                            viewport.toDocumentX(event.getX(actionIndex)),
+                            viewport.toDocumentY(event.getY(actionIndex)),
+                            event.getEventTime());
+                }
+                break;
+            case MotionEvent.ACTION_MOVE:
+                touchMove(event);
+                break;
+            case MotionEvent.ACTION_POINTER_UP:
+            case MotionEvent.ACTION_UP:
+                touchUp(event.getPointerId(actionIndex));
+                break;
+            case MotionEvent.ACTION_CANCEL:
+                cancelStrokes();
+                break;
+        }
+    }
+
+    /**
+     * Discards the lines of all fingers without adding them to the history.
+     */
+    private void cancelStrokes() {
+        while (strokes.size() > 0) {
+            int pointerId = strokes.getPointerId(0);
+            clearPrediction(pointerId);
+            discardStroke(strokes.cancel(pointerId));
+        }
+    }
+
+    /**
+     * Redraws the area of a discarded line without it and recycles it.
+     *
+     * @param cancelled The discarded line, or null.
+     */
+    private void discardStroke(DrawPath cancelled) {
+        if (cancelled != null) {
+            invalidateBounds(cancelled.getLeft(), cancelled.getTop(),
+                    cancelled.getRight(), cancelled.getBottom(),
+                    strokeOutset(cancelled));
+            cancelled.recycle();
+        }
+    }
+
+    /**
+     * Handles a touch event, or hands a copy of it over to the render
+     * thread if it is running.
+     *
+     * @param event The MotionEvent that the user did.
+     * @return Whether the event was handled or not.
+     */
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        RenderThread thread = renderThread;
+        if (thread != null) {
+            thread.post(event);
+            return true;
+        }
+        synchronized (this) {
+            processTouchEvent(event);
+        }
+        return true;
+    }
+
+    /**
+     * Handles a touch event and records how long it took and how many
+     * point arrays and bitmaps it had to allocate because the pools had
+     * none free, which are the allocations the touch path avoids. The time
+     * of the oldest sample of the event is kept until the next frame to
+     * measure the latency from input to frame. Called on the UI thread or,
+     * while holding the monitor of the view, on the render thread.
+     *
+     * @param event The MotionEvent that the user did.
+     */
+    void processTouchEvent(MotionEvent event) {
+        Trace.beginSection(TRACE_TOUCH);
+        long start = System.nanoTime();
+        long misses = poolMissCount();
+        if (pendingInputTime < 0) {
+            pendingInputTime = event.getHistorySize() > 0
+                    ? event.getHistoricalEventTime(0) : event.getEventTime();
+        }
+        try {
+            handleTouchEvent(event);
+        } finally {
+            Trace.endSection();
+        }
+        stats.recordTouch(System.nanoTime() - start, poolMissCount() - misses);
+    }
+
+    /**
+     * @return Number of point arrays and bitmaps allocated so far because
+     *         the pools had none free. Other threads may add to the count
+     *         while a touch event is handled.
+     */
+    private long poolMissCount() {
+        return DrawPath.getPointArrayMissCount() + bitmapPool.getMissCount();
+    }
+
+    /**
+     * Determines what the app should do with each touch event.
+     * It will either zoom and pan the view with two fingers, draw
+     * lines, draw a shape or use the dropper tool to get color of touched
+     * pixel. Touch coordinates are converted into the coordinates of
+     * the drawing with the viewport. With multi-finger drawing the view
+     * is not zoomed or panned, since every finger draws.
+     *
+     * @param event The MotionEvent that the user did.
+     */
+    private void handleTouchEvent(MotionEvent event) {
+        float x = viewport.toDocumentX(event.getX());
+        float y = viewport.toDocumentY(event.getY());
+
+        // Zoom and pan with two fingers
+        if (!multiTouchDrawing
+                && event.getActionMasked() == MotionEvent.ACTION_POINTER_DOWN
+                && event.getPointerCount() == 2) {
+            startViewGesture();
+        }
+        if (viewGesture) {
+            viewGesture(event);
+
+        // Use dropper tool
+        } else if (dropperActive) {
+            dropper(event, x, y);
+
+        // Fill with bucket tool
+        } else if (fillActive) {
+            if (event.getActionMasked() == MotionEvent.ACTION_UP) {
+                startFill((int) Math.floor(x), (int) Math.floor(y));
+            }
+
+        // Draw shape
+        } else if (drawRectangle ||
+                drawCircle ||
+                drawLine ||
+                drawOval ||
+                drawRoundedRectangle) {
+            shapeDraw(event);
+
+        // Draw line
+        } else {
+            lineDraw(event);
+        }
+    }
+
+    /**
+     * Starts a zoom and pan gesture when a second finger touches the
+     * view, discarding the line or shape the first finger started.
+     */
+    private void startViewGesture() {
+        cancelStrokes();
+        if (shapeDragging) {
+            shapeDragging = false;
+            invalidateBounds(previewBounds, strokeOutset(strokeWidth, currentCap, false));
+        }
+        hideLoupe();
+        viewGesture = true;
+        gestureRestart = true;
+    }
+
+    /**
+     * Zooms by the change of the distance between the first two fingers
+     * around the point between them, and pans by the movement of that
+     * point. The gesture ends when the last finger is lifted.
+     *
+     * @param event The MotionEvent that the user did.
+     */
+    private void viewGesture(MotionEvent event) {
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_MOVE:
+                if (event.getPointerCount() < 2) {
+                    break;
+                }
+                float focusX = (event.getX(0) + event.getX(1)) / 2;
+                float focusY = (event.getY(0) + event.getY(1)) / 2;
+                float span = (float) Math.hypot(event.getX(0) - event.getX(1),
+                        event.getY(0) - event.getY(1));
+                if (!gestureRestart) {
+                    viewport.panBy(focusX - gestureFocusX, focusY - gestureFocusY);
+                    if (gestureSpan > 0 && span > 0) {
+                        viewport.zoomBy(span / gestureSpan, focusX, focusY);
+                    }
+                    redraw();
+                }
+                gestureFocusX = focusX;
+                gestureFocusY = focusY;
+                gestureSpan = span;
+                gestureRestart = false;
+                break;
+            case MotionEvent.ACTION_POINTER_DOWN:
+            case MotionEvent.ACTION_POINTER_UP:
+                gestureRestart = true;
+                break;
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_CANCEL:
+                viewGesture = false;
+                break;
+        }
+    }
+
+    /**
+     * Shows the drawing at its own size again.
+     */
+    public synchronized void resetViewport() {
+        viewport.reset();
+        redraw();
+    }
+
+    /**
+     * Keeps the viewport inside the new size of the view.
+     *
+     * @param w The new width of the view.
+     * @param h The new height of the view.
+     * @param oldw The old width of the view.
+     * @param oldh The old height of the view.
+     */
+    @Override
+    protected synchronized void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        viewport.setViewSize(w, h);
+    }
+
+    /**
+     * Changes the brush shape between round and square.
+     */
+    public synchronized void changeStrokeShape() {
+        if (currentCap == Paint.Cap.ROUND) {
+            currentCap = Paint.Cap.SQUARE;
+        } else {
+            currentCap = Paint.Cap.ROUND;
+        }
+    }
+
+    /**
+     * Draws a shape depending on which boolean is active. The shape
+     * follows the finger that started it, and other fingers are ignored.
+     *
+     * @param event The MotionEvent that the user did.
+     */
+    public void shapeDraw(MotionEvent event) {
+        int action = event.getActionMasked();
+        if (action == MotionEvent.ACTION_DOWN) {
+            shapePointerId = event.getPointerId(0);
+        }
+        int pointerIndex = event.findPointerIndex(shapePointerId);
+        if (pointerIndex < 0) {
+            return;
+        }
+        float x = viewport.toDocumentX(event.getX(pointerIndex));
+        float y = viewport.toDocumentY(event.getY(pointerIndex));
+
+        switch(action) {
+            case MotionEvent.ACTION_DOWN:
+                beginCoordinate.x = x;
+                beginCoordinate.y = y;
+                endCoordinate.x = x;
+                endCoordinate.y = y;
+                previewBounds.setEmpty();
+                shapeDragging = true;
+                invalidateShapePreview();
+                break;
+            case MotionEvent.ACTION_MOVE:
+                endCoordinate.x = x;
+                endCoordinate.y = y;
+                invalidateShapePreview();
+                break;
+            case MotionEvent.ACTION_POINTER_UP:
+                if (event.getActionIndex() != pointerIndex) {
+                    break;
+                }
+                // The finger of the shape was lifted, fall through.
+            case MotionEvent.ACTION_UP:
+                // Remove the preview. The finished shape is drawn over it.
+                shapePointerId = -1;
+                shapeDragging = false;
+                invalidateBounds(previewBounds, strokeOutset(strokeWidth, currentCap, false));
+
+                // DRAW RECTANGLE
+                if (drawRectangle ||
+                        drawOval ||
+                        drawRoundedRectangle) {
+
+                    // Determine the shape of the rectangle.
+                    RectangleShape rectangleShape;
+                    if (drawRectangle) {
+                        rectangleShape = RectangleShape.NORMAL;
+                    } else if (drawOval) {
+                        rectangleShape = RectangleShape.OVAL;
+                    } else {
+                        rectangleShape = RectangleShape.ROUNDED;
+                    }
+
+                    // Create new rectangle and add it to the history.
+                    execute(new ColorRect(
+                            currentColor,
+                            strokeWidth,
+                            beginCoordinate.x,
+                            beginCoordinate.y,
+                            endCoordinate.x,
+                            endCoordinate.y,
+                            rectangleShape));
+                    drawRectangle = false;
+                    drawOval = false;
+                    drawRoundedRectangle = false;
+                    break;
+
+                // DRAW CIRCLE
+                } else if (drawCircle) {
+                    // The beginning and ending points define the
+                    // diameter of the circle.
+                    execute(ColorCircle.fromDiameter(
+                            currentColor,
+                            strokeWidth,
+                            beginCoordinate.x,
+                            beginCoordinate.y,
+                            endCoordinate.x,
+                            endCoordinate.y));
+
+                    drawCircle = false;
+                    break;
+
+                // DRAW LINE
+                } else if (drawLine) {
+                    DrawPath dp = new DrawPath(
+                            currentColor,
+                            false,
+                            false,
+                            strokeWidth,
+                            currentCap
+                    );
+                    dp.addPoint(beginCoordinate.x, beginCoordinate.y);
+                    dp.addPoint(endCoordinate.x, endCoordinate.y);
+                    dp.finish();
+                    execute(dp);
+                    drawLine = false;
+                    break;
+                }
+                break;
+        }
+    }
+
+    /**
+     * Starts filling the area of similar colors around the given pixel
+     * with the current color. Under the lock only the tiles of the
+     * layers and their states are taken, sharing the tiles instead of
+     * copying them. The layers that are not in the raster cache are
+     * redrawn from copies of their lines and shapes, and the colors are
+     * composited and the area found, on the fill thread. The fill is
+     * added to the history when it is ready, unless the drawing has
+     * changed in the meantime. Touches outside of the drawing and
+     * touches while a fill is being found are ignored.
+     *
+     * @param x X-coordinate of the pixel.
+     * @param y Y-coordinate of the pixel.
+     */
+    private void startFill(int x, int y) {
+        if (fillPending || x < 0 || y < 0 || x >= bitmapWidth || y >= bitmapHeight) {
+            return;
+        }
+
+        int width = bitmapWidth;
+        int height = bitmapHeight;
+        ArrayList<ColorSampler.Layer> sampled = new ArrayList<>();
+        sampled.add(solidLayer(backgroundColor, width, height));
+        sampled.add(bitmapLayer(loadedImage != null ? loadedImage.getPreview() : null, width, height));
+        ArrayList<TiledSurface.Snapshot> snapshots = new ArrayList<>();
+        ArrayList<TiledSurface> surfaces = new ArrayList<>();
+        TiledSurface[] redrawn = new TiledSurface[layers.size()];
+        for (int i = 0; i < layers.size(); i++) {
+            Layer layer = layers.get(i);
+            if (layer.getOpacity() == 0) {
+                continue;
+            }
+            ColorSampler.Layer pixels;
+            if (rasterCacheEnabled && layer.isValid()) {
+                TiledSurface.Snapshot snapshot = layer.getSurface().share();
+                snapshots.add(snapshot);
+                pixels = snapshot;
+            } else {
+                redrawn[i] = new TiledSurface(width, height, bitmapPool);
+                surfaces.add(redrawn[i]);
+                pixels = redrawn[i]::getPixels;
+            }
+            sampled.add(new ColorSampler.FixedLayer(pixels, layer.getOpacity(), layer.getBlend()));
+        }
+
+        ArrayList<Command> items = new ArrayList<>();
+        ArrayList<TiledSurface> targets = new ArrayList<>();
+        if (!surfaces.isEmpty()) {
+            mQueryResult.clear();
+            index.query(0, 0, width, height, mQueryResult);
+            for (int i = 0; i < mQueryResult.size(); i++) {
+                Command item = mQueryResult.get(i);
+                int layerIndex = layers.indexOf(layers.find(item.getLayer()));
+                if (layerIndex < 0 || redrawn[layerIndex] == null) {
+                    continue;
+                }
+                if (item instanceof DrawPath) {
+                    // Reading the points of a lazily loaded line uses the
+                    // point pool, so it is done here before copying.
+                    ((DrawPath) item).getPointCount();
+                    item = ((DrawPath) item).copy();
+                }
+                items.add(item);
+                targets.add(redrawn[layerIndex]);
+            }
+            mQueryResult.clear();
+        }
+
+        if (fillPixels == null || fillPixels.length != width * height) {
+            fillPixels = new int[width * height];
+        }
+        int[] pixels = fillPixels;
+        CanvasRenderer renderer = new CanvasRenderer(new Paint(mPaint), mEmboss, mBlur);
+        int color = currentColor;
+        int tolerance = fillTolerance;
+        int version = documentVersion;
+        fillPending = true;
+        fillActive = false;
+        fillExecutor.execute(() -> {
+            long start = SystemClock.uptimeMillis();
+            redrawItems(items, targets, renderer);
+            ColorSampler sampler = new ColorSampler(sampled.toArray(new ColorSampler.Layer[0]));
+            for (int top = 0; top < height; top += FILL_BAND_ROWS) {
+                sampler.sample(pixels, top * width, 0, top, width,
+                        Math.min(FILL_BAND_ROWS, height - top));
+            }
+            for (int i = 0; i < surfaces.size(); i++) {
+                surfaces.get(i).clear();
+            }
+
+            int[] rects;
+            try {
+                rects = floodFill.fill(pixels, width, height, x, y, tolerance, fillWorkers);
+            } catch (InterruptedException e) {
+                rects = null;
+            }
+            long millis = SystemClock.uptimeMillis() - start;
+            int[] result = rects;
+            uiHandler.post(() -> finishFill(result, color, version, millis, snapshots));
+        });
+    }
+
+    /**
+     * Draws copies of lines and shapes onto the surfaces of a fill on
+     * the fill thread, and recycles the copied lines.
+     *
+     * @param items The lines and shapes in the order they were drawn.
+     * @param targets The surface each line or shape is drawn onto.
+     * @param renderer Renderer that is only used on the fill thread.
+     */
+    private static void redrawItems(List<Command> items, List<TiledSurface> targets,
+                                    CanvasRenderer renderer) {
+        RectF bounds = new RectF();
+        for (int i = 0; i < items.size(); i++) {
+            Command item = items.get(i);
+            itemBounds(item, bounds);
+            targets.get(i).draw(bounds, null, canvas -> {
+                renderer.setCanvas(canvas);
+                if (item instanceof DrawPath) {
+                    ((DrawPath) item).render(renderer, true);
+                } else {
+                    ((ColorShape) item).render(renderer);
+                }
+            });
+            if (item instanceof DrawPath) {
+                ((DrawPath) item).recycle();
+            }
+        }
+    }
+
+    /**
+     * Returns a layer of one color inside the drawing, which can be read
+     * on any thread.
+     *
+     * @param color The color of the layer.
+     * @param width Width of the drawing.
+     * @param height Height of the drawing.
+     * @return The layer.
+     */
+    private static ColorSampler.Layer solidLayer(int color, int width, int height) {
+        return (out, x, y, areaWidth, areaHeight) -> {
+            Arrays.fill(out, 0, areaWidth * areaHeight, Color.TRANSPARENT);
+            int left = Math.max(x, 0);
+            int right = Math.min(x + areaWidth, width);
+            for (int row = Math.max(y, 0); row < Math.min(y + areaHeight, height) && left < right; row++) {
+                int offset = (row - y) * areaWidth - x;
+                Arrays.fill(out, offset + left, offset + right, color);
+            }
+        };
+    }
+
+    /**
+     * Returns a layer that reads the colors of a bitmap drawn at the top
+     * left corner of the drawing, which can be read on any thread as
+     * long as the bitmap is not changed.
+     *
+     * @param bitmap The bitmap, or null for a transparent layer.
+     * @param width Width of the drawing.
+     * @param height Height of the drawing.
+     * @return The layer.
+     */
+    private static ColorSampler.Layer bitmapLayer(Bitmap bitmap, int width, int height) {
+        Rect area = new Rect();
+        return (out, x, y, areaWidth, areaHeight) -> {
+            Arrays.fill(out, 0, areaWidth * areaHeight, Color.TRANSPARENT);
+            area.set(x, y, x + areaWidth, y + areaHeight);
+            if (bitmap == null || !area.intersect(0, 0, width, height)) {
+                return;
+            }
+            bitmap.getPixels(out, (area.top - y) * areaWidth + area.left - x, areaWidth,
+                    area.left, area.top, area.width(), area.height());
+        };
+    }
+
+    /**
+     * Adds a fill found on the fill thread to the history, and stops
+     * sharing the tiles of the layers with the fill.
+     *
+     * @param rects The filled area as rectangles, or null if finding it
+     *              was interrupted.
+     * @param color The color of the fill.
+     * @param version The value of documentVersion when the fill started.
+     * @param millis How long finding the area took.
+     * @param snapshots The tiles of the layers the fill was found from.
+     */
+    private synchronized void finishFill(int[] rects, int color, int version, long millis,
+                                         List<TiledSurface.Snapshot> snapshots) {
+        fillPending = false;
+        for (int i = 0; i < snapshots.size(); i++) {
+            snapshots.get(i).release();
+        }
+        releaseRemovedCommands();
+        if (rects == null || rects.length == 0) {
+            return;
+        }
+        if (version != documentVersion) {
+            Log.d(TAG, "Dropped fill of a drawing that has changed");
+            return;
+        }
+        Log.d(TAG, "Filled " + rects.length / 4 + " rectangles in " + millis + " ms");
+        execute(new FillRegion(color, rects));
+    }
+
+    /**
+     * Uses the dropper tool. While the finger is down, the color under
+     * it is sampled on every move and shown in the loupe above the
+     * finger. The color is taken when the finger is lifted inside the
+     * drawing, which turns the dropper off.
+     *
+     * @param event The MotionEvent that the user did.
+     * @param x X-coordinate of the finger in the drawing.
+     * @param y Y-coordinate of the finger in the drawing.
+     */
+    private void dropper(MotionEvent event, float x, float y) {
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+            case MotionEvent.ACTION_MOVE:
+                sampleDropper((int) Math.floor(x), (int) Math.floor(y),
+                        event.getX(), event.getY());
+                break;
+            case MotionEvent.ACTION_UP:
+                sampleDropper((int) Math.floor(x), (int) Math.floor(y),
+                        event.getX(), event.getY());
+                if (Color.alpha(loupeColor) != 0) {
+                    currentColor = loupeColor;
+                    dropperActive = false;
+                }
+                hideLoupe();
+                break;
+            case MotionEvent.ACTION_CANCEL:
+                hideLoupe();
+                break;
+        }
+    }
+
+    /**
+     * Samples the composited colors around a pixel of the drawing into
+     * the loupe and moves the loupe above the finger. Only the sampled
+     * pixels are read, so the drawing is not rendered again. If the
+     * raster cache is disabled, the lines and shapes of the sampled
+     * area are replayed onto the surfaces of the layers first.
+     *
+     * @param x X-coordinate of the pixel in the drawing.
+     * @param y Y-coordinate of the pixel in the drawing.
+     * @param viewX X-coordinate of the finger in the view.
+     * @param viewY Y-coordinate of the finger in the view.
+     */
+    private void sampleDropper(int x, int y, float viewX, float viewY) {
+        int half = LOUPE_PIXELS / 2;
+        if (!rasterCacheEnabled) {
+            mSampleRect.set(x - half, y - half, x + half + 1, y + half + 1);
+            if (mSampleRect.intersect(0, 0, bitmapWidth, bitmapHeight)) {
+                redrawLayers(mSampleRect);
+            }
+        } else {
+            rebuildCache();
+        }
+
+        colorSampler.sample(loupePixels, x - half, y - half, LOUPE_PIXELS, LOUPE_PIXELS);
+        int start = half - dropperKernel / 2;
+        loupeColor = ColorSampler.average(loupePixels, LOUPE_PIXELS, start, start, dropperKernel);
+        if (loupeBitmap == null) {
+            loupeBitmap = Bitmap.createBitmap(LOUPE_PIXELS, LOUPE_PIXELS, Bitmap.Config.ARGB_8888);
+        }
+        loupeBitmap.setPixels(loupePixels, 0, LOUPE_PIXELS, 0, 0, LOUPE_PIXELS, LOUPE_PIXELS);
+
+        int size = Math.round(LOUPE_SIZE_DP * density);
+        int gap = Math.round(LOUPE_GAP_DP * density);
+        int left = Math.max(0, Math.min(getWidth() - size, Math.round(viewX) - size / 2));
+        int top = Math.round(viewY) - gap - size;
+        if (top < 0) {
+            top = Math.round(viewY) + gap;
+        }
+        hideLoupe();
+        mLoupeRect.set(left, top, left + size, top + size);
+        loupeVisible = true;
+        invalidateLoupe();
+    }
+
+    /**
+     * Hides the dropper loupe.
+     */
+    private void hideLoupe() {
+        if (loupeVisible) {
+            invalidateLoupe();
+            loupeVisible = false;
+        }
+    }
+
+    /**
+     * Invalidates the area of the view the loupe and its ring cover.
+     */
+    private void invalidateLoupe() {
+        int ring = (int) Math.ceil(LOUPE_RING_DP * density);
+        redraw(mLoupeRect.left - ring, mLoupeRect.top - ring,
+                mLoupeRect.right + ring, mLoupeRect.bottom + ring);
+    }
+
+    /**
+     * Draws the pixels around the dropper scaled up without filtering,
+     * with an outline around the pixels that are averaged and a ring in
+     * the sampled color around the loupe.
+     *
+     * @param canvas Canvas that the view is drawn on.
+     */
+    private void drawLoupe(Canvas canvas) {
+        canvas.drawRect(mLoupeRect, mLoupeBackgroundPaint);
+        canvas.drawBitmap(loupeBitmap, mLoupeSource, mLoupeRect, null);
+
+        float cell = mLoupeRect.width() / (float) LOUPE_PIXELS;
+        float start = LOUPE_PIXELS / 2 - dropperKernel / 2;
+        float left = mLoupeRect.left + start * cell;
+        float top = mLoupeRect.top + start * cell;
+        mLoupeFramePaint.setColor(Color.BLACK);
+        mLoupeFramePaint.setStrokeWidth(density);
+        canvas.drawRect(left, top, left + dropperKernel * cell, top + dropperKernel * cell,
+                mLoupeFramePaint);
+
+        float ring = LOUPE_RING_DP * density;
+        mLoupeFramePaint.setColor(Color.alpha(loupeColor) == 0 ? OUTSIDE_COLOR
+                : loupeColor | 0xFF000000);
+        mLoupeFramePaint.setStrokeWidth(ring);
+        canvas.drawRect(mLoupeRect.left - ring / 2, mLoupeRect.top - ring / 2,
+                mLoupeRect.right + ring / 2, mLoupeRect.bottom + ring / 2, mLoupeFramePaint);
+    }
+
+    /**
+     * Reads the background color for the colors inside the drawing.
+     *
+     * @param out Array the colors are stored into.
+     * @param x Left edge of the area.
+     * @param y Top edge of the area.
+     * @param width Width of the area.
+     * @param height Height of the area.
+     */
+    private void readBackground(int[] out, int x, int y, int width, int height) {
+        Arrays.fill(out, 0, width * height, Color.TRANSPARENT);
+        mLayerRect.set(x, y, x + width, y + height);
+        if (!mLayerRect.intersect(0, 0, bitmapWidth, bitmapHeight)) {
+            return;
+        }
+        for (int row = mLayerRect.top; row < mLayerRect.bottom; row++) {
+            int offset = (row - y) * width - x;
+            Arrays.fill(out, offset + mLayerRect.left, offset + mLayerRect.right, backgroundColor);
+        }
+    }
+
+    /**
+     * Reads the colors of the loaded image, transparent if no image has
+     * been loaded.
+     *
+     * @param out Array the colors are stored into.
+     * @param x Left edge of the area.
+     * @param y Top edge of the area.
+     * @param width Width of the area.
+     * @param height Height of the area.
+     */
+    private void readImage(int[] out, int x, int y, int width, int height) {
+        Arrays.fill(out, 0, width * height, Color.TRANSPARENT);
+        mLayerRect.set(x, y, x + width, y + height);
+        if (loadedImage == null || !mLayerRect.intersect(0, 0, bitmapWidth, bitmapHeight)) {
+            return;
+        }
+        loadedImage.getPreview().getPixels(out, (mLayerRect.top - y) * width + mLayerRect.left - x, width,
+                mLayerRect.left, mLayerRect.top, mLayerRect.width(), mLayerRect.height());
+    }
+
+    /**
+     * Loads the given image as the image drawn under all lines and
+     * shapes, and adds the load to the history.
+     *
+     * @param image Image imported for a drawing of this size. The view
+     *              owns the image from now on.
+     */
+    public synchronized void loadImage(ImportedImage image) {
+        execute(new ImageCommand(image, loadedImage, backgroundColor));
+    }
+
+    /**
+     * Sets the loaded image and the image whose tiles are cached.
+     *
+     * @param image The loaded image, or null.
+     */
+    private void setLoadedImage(ImportedImage image) {
+        loadedImage = image;
+        tileCache.setImage(image);
+    }
+
+    /**
+     * Adds an empty layer over the active layer and makes it the active
+     * layer. The change is added to the history, so it can be undone.
+     */
+    public synchronized void addLayer() {
+        execute(new LayerCommand(LayerCommand.ADD, layers.newId(), -1,
+                layers.getActiveIndex() + 1));
+    }
+
+    /**
+     * Removes the active layer with its lines and shapes. The last layer
+     * is never removed. The change is added to the history, so it can
+     * be undone.
+     */
+    public synchronized void removeLayer() {
+        if (layers.size() > 1) {
+            execute(new LayerCommand(LayerCommand.REMOVE, layers.getActive().getId(),
+                    layers.getActiveIndex(), -1));
+        }
+    }
+
+    /**
+     * Moves the active layer up or down in the stack. The change is
+     * added to the history, so it can be undone.
+     *
+     * @param offset How many places the layer is moved up, negative to
+     *               move it down.
+     */
+    public synchronized void moveLayer(int offset) {
+        int from = layers.getActiveIndex();
+        int to = Math.max(0, Math.min(layers.size() - 1, from + offset));
+        if (to != from) {
+            execute(new LayerCommand(LayerCommand.MOVE, layers.getActive().getId(), from, to));
+        }
+    }
+
+    /**
+     * Changes the visibility, opacity and blend mode of the active layer.
+     * The change is added to the history, so it can be undone.
+     *
+     * @param visible Whether the layer is shown.
+     * @param opacity Opacity of the layer from 0 to 255.
+     * @param blend How the colors of the layer are mixed with the layers
+     *              under it.
+     */
+    public synchronized void setLayerState(boolean visible, int opacity, LayerBlend blend) {
+        Layer layer = layers.getActive();
+        int state = LayerCommand.packState(visible, Math.max(0, Math.min(Layer.OPAQUE, opacity)), blend);
+        if (state != layer.getState()) {
+            execute(new LayerCommand(LayerCommand.CHANGE, layer.getId(), layer.getState(), state));
+        }
+    }
+
+    /**
+     * Makes the layer at the given index the layer that new lines and
+     * shapes are drawn on. This is not added to the history.
+     *
+     * @param index Index of the layer from the bottom.
+     */
+    public synchronized void setActiveLayer(int index) {
+        layers.setActiveIndex(index);
+        redraw();
+    }
+
+    /**
+     * @return Index of the layer that new lines and shapes are drawn on,
+     *         from the bottom.
+     */
+    public synchronized int getActiveLayer() {
+        return layers.getActiveIndex();
+    }
+
+    /**
+     * @return Number of layers in the drawing.
+     */
+    public synchronized int getLayerCount() {
+        return layers.size();
+    }
+
+    /**
+     * @return Whether the active layer is shown.
+     */
+    public synchronized boolean isLayerVisible() {
+        return layers.getActive().isVisible();
+    }
+
+    /**
+     * @return Opacity of the active layer from 0 to 255.
+     */
+    public synchronized int getLayerOpacity() {
+        return layers.getActive().getOpacitySetting();
+    }
+
+    /**
+     * @return How the colors of the active layer are mixed with the
+     *         layers under it.
      */
-    private MaskFilter mEmboss;
+    public synchronized LayerBlend getLayerBlend() {
+        return layers.getActive().getBlend();
+    }
 
     /**
-     * Filter that determines how blur effect should be drawn.
+     * @return The width of the drawing surface.
      */
-    private MaskFilter mBlur;
+    public int getBitmapWidth() {
+        return bitmapWidth;
+    }
 
     /**
-     * Beginning coordinate for drawing shapes. Registered at the
-     * start of drawing a shape and used at the end to draw the shape.
+     * @return The height of the drawing surface.
      */
-    private PointF beginCoordinate = new PointF();
+    public int getBitmapHeight() {
+        return bitmapHeight;
+    }
 
     /**
-     * Ending coordinate for drawing shapes. Registered at the
-     * end of drawing a shape and used along with the beginning coordinate
-     * to draw the shape.
+     * @return Pool that the bitmaps of this view are taken from and
+     *         released to.
      */
-    private PointF endCoordinate = new PointF();
+    public BitmapPool getBitmapPool() {
+        return bitmapPool;
+    }
 
     /**
-     * Bitmap that the canvas is created on and on which all the
-     * lines and shapes are drawn.
+     * @param journal Journal that every change to the history is recorded
+     *                in from now on, or null. The journal copies the
+     *                history for its snapshots while holding the lock of
+     *                the view.
      */
-    private Bitmap mBitmap;
+    public synchronized void setJournal(DrawingJournal journal) {
+        this.journal = journal;
+        if (journal != null) {
+            journal.setLock(this);
+        }
+    }
 
     /**
-     * Bitmap that a loaded image is saved onto.
+     * @return The history of commands made on the drawing.
      */
-    private Bitmap loadedBitmap;
+    public synchronized CommandHistory getHistory() {
+        return history;
+    }
 
     /**
-     * Canvas that the bitmap is drawn on.
+     * Releases memory according to how badly the system needs it.
+     * Checkpoints, rasterized effect lines and decoded tiles of the
+     * loaded image are dropped before the free bitmaps of the pool, since
+     * they can be rebuilt from the history and the image.
+     *
+     * @param level The level given to onTrimMemory.
      */
-    private Canvas mCanvas;
+    public synchronized void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            history.trimCheckpoints(0);
+            spriteCache.trimToSize(0);
+            tileCache.trimToSize(0);
+            colorSampler.trimMemory();
+            layers.releaseBackdrop();
+            if (!fillPending) {
+                fillPixels = null;
+            }
+        }
+        bitmapPool.trimMemory(level);
+    }
 
     /**
-     * Paint object that is used for drawing bitmaps.
+     * Stops the render thread and the background threads that rasterize
+     * blur and emboss lines, decode tiles of the loaded image and find
+     * fills. Should be called when the
+     * activity is destroyed.
      */
-    private Paint mBitmapPaint = new Paint(Paint.DITHER_FLAG);
+    public void shutdown() {
+        stopRenderThread();
+        spriteCache.shutdown();
+        tileCache.shutdown();
+        fillExecutor.shutdown();
+        if (fillWorkers != null) {
+            fillWorkers.shutdown();
+        }
+    }
 
     /**
-     * The shape of the brush with which lines are drawn.
+     * @return The current color of the brush.
      */
-    private Paint.Cap currentCap = Paint.Cap.ROUND;
+    public synchronized int getCurrentColor() {
+        return currentColor;
+    }
 
     /**
-     * The width of the bitmap.
+     * @param currentColor Color that is set to brush.
      */
-    private int bitmapWidth;
+    public synchronized void setCurrentColor(int currentColor) {
+        this.currentColor = currentColor;
+    }
 
     /**
-     * The height of the bitmap.
+     * @return The current color of the background.
      */
-    private int bitmapHeight;
+    public synchronized int getBackgroundColor() {
+        return backgroundColor;
+    }
 
     /**
-     * Default constructor without a given attribute set.
+     * Changes the color of the background. The change is added to the
+     * history, so it can be undone.
      *
-     * @param context The context the object is created in.
+     * @param backgroundColor Color that is set to background.
      */
-    public PaintView(Context context) {
-        this(context, null);
+    public synchronized void setBackgroundColor(int backgroundColor) {
+        execute(new BackgroundCommand(backgroundColor, this.backgroundColor));
     }
 
     /**
-     * Constructs the object and sets the mPaint, mEmboss and mBlur attributes.
-     *
-     * @param context The context the object is created in.
-     * @param attributeSet The set of attributes the object is created with.
+     * @param dropperActive Whether the dropper tool will be active.
      */
-    public PaintView(Context context, AttributeSet attributeSet) {
-        super(context, attributeSet);
-        mPaint = new Paint();
-        mPaint.setAntiAlias(true);
-        mPaint.setDither(true);
-        mPaint.setColor(DEFAULT_COLOR);
-        mPaint.setStyle(Paint.Style.STROKE);
-        mPaint.setStrokeJoin(Paint.Join.ROUND);
-        mPaint.setStrokeCap(Paint.Cap.ROUND);
-        mPaint.setXfermode(null);
-        mPaint.setAlpha(0xff);
-
-        mEmboss = new EmbossMaskFilter(new float[] {1, 1, 1}, 0.4f, 6, 3.5f);
-        mBlur = new BlurMaskFilter(5, BlurMaskFilter.Blur.NORMAL);
+    public synchronized void setDropperActive(boolean dropperActive) {
+        this.dropperActive = dropperActive;
     }
 
     /**
-     * Initializes bitmap size, creates bitmaps and canvas, and sets
-     * color and brush size.
+     * Sets the width of the square of pixels the dropper averages, so
+     * that the color of a textured or anti-aliased area can be picked.
      *
-     * @param metrics Object that contains size of the display.
+     * @param kernel Width of the square, 1 for a single pixel. Even
+     *               widths are rounded up to the next odd width.
      */
-    public void init(DisplayMetrics metrics) {
-        bitmapHeight = metrics.heightPixels;
-        bitmapWidth = metrics.widthPixels;
-
-        mBitmap = Bitmap.createBitmap(bitmapWidth, bitmapHeight, Bitmap.Config.ARGB_8888);
-        loadedBitmap = Bitmap.createBitmap(bitmapWidth, bitmapHeight, Bitmap.Config.ARGB_8888);
-        mCanvas = new Canvas(mBitmap);
-
-        currentColor = DEFAULT_COLOR;
-        strokeWidth = BRUSH_SIZE;
+    public synchronized void setDropperKernelSize(int kernel) {
+        dropperKernel = Math.max(1, Math.min(LOUPE_PIXELS, kernel | 1));
     }
 
     /**
-     * Removes emboss and blur effects from brush.
+     * @param fillActive Whether the next touch will fill the area of
+     *                   similar colors around the touched pixel.
      */
-    public void normal() {
-        emboss = false;
-        blur = false;
+    public synchronized void setFillActive(boolean fillActive) {
+        this.fillActive = fillActive;
     }
 
     /**
-     * Adds emboss effect to brush.
+     * @param fillTolerance Largest difference of a color channel from 0
+     *                      to 255 that the bucket tool still fills over.
      */
-    public void emboss() {
-        emboss = true;
-        blur = false;
+    public synchronized void setFillTolerance(int fillTolerance) {
+        this.fillTolerance = Math.max(0, Math.min(255, fillTolerance));
     }
 
     /**
-     * Adds blur effect to brush.
+     * @param drawRectangle Whether the next stroke will draw a rectangle.
      */
-    public void blur() {
-        emboss = false;
-        blur = true;
+    public synchronized void setDrawRectangle(boolean drawRectangle) {
+        this.drawRectangle = drawRectangle;
     }
 
     /**
-     * Clears the PaintView by setting colors to original, clearing
-     * all drawn lines and shapes, and creating new bitmaps and
-     * canvas in stead of the old ones.
+     * @param drawCircle Whether the next stroke will draw a circle.
      */
-    public void clear() {
-        currentColor = DEFAULT_COLOR;
-        backgroundColor = DEFAULT_BG_COLOR;
-        paths.clear();
-        shapes.clear();
-        mPaint.setStrokeCap(Paint.Cap.ROUND);
-        mBitmap = Bitmap.createBitmap(bitmapWidth, bitmapHeight, Bitmap.Config.ARGB_8888);
-        loadedBitmap = Bitmap.createBitmap(bitmapWidth, bitmapHeight, Bitmap.Config.ARGB_8888);
-        mCanvas = new Canvas(mBitmap);
-        normal();
-        invalidate();
+    public synchronized void setDrawCircle(boolean drawCircle) {
+        this.drawCircle = drawCircle;
     }
 
     /**
-     * Removes last drawn line. If no lines are in the list, does nothing.
+     * @param drawLine Whether the next stroke will draw a line.
      */
-    public void undoLine() {
-        if (paths.size() > 0) {
-            paths.remove(paths.size() - 1);
-        }
-        invalidate();
+    public synchronized void setDrawLine(boolean drawLine) {
+        this.drawLine = drawLine;
     }
 
     /**
-     * Removes last drawn shape. If no shapes are in the list, does nothing.
+     * @param drawOval Whether the next stroke will draw an oval.
      */
-    public void undoShape() {
-        if (shapes.size() > 0) {
-            shapes.remove(shapes.size() - 1);
-        }
-        invalidate();
+    public synchronized void setDrawOval(boolean drawOval) {
+        this.drawOval = drawOval;
     }
 
     /**
-     * Draws all lines, shapes and bitmaps on canvas.
-     *
-     * @param canvas Canvas that the bitmaps are drawn on.
+     * @param drawRoundedRectangle Whether the next stroke will draw a
+     *                             round-cornered rectangle.
      */
-    @Override
-    protected void onDraw(Canvas canvas) {
-        canvas.save();
-        mCanvas.drawColor(backgroundColor);
-
-        // Goes through the paths list, sets mPaint attributes to match
-        // with each path, and draws the path.
-        for (DrawPath dp : paths) {
-            mPaint.setColor(dp.getColor());
-            mPaint.setStrokeWidth(dp.getStrokeWidth());
-            mPaint.setStrokeCap(dp.getCap());
-            mPaint.setMaskFilter(null);
-
-            if (dp.getEmboss())
-                mPaint.setMaskFilter(mEmboss);
-            else if (dp.getBlur())
-                mPaint.setMaskFilter(mBlur);
-
-            mCanvas.drawPath(dp.getPath(), mPaint);
-        }
-
-        // Goes through the shapes list, sets mPaint attributes to match
-        // with each shape, and draws the shape. Does conditional checks
-        // to determine how each shape should be drawn.
-        for (ColorShape shape : shapes) {
-            mPaint.setColor(shape.getColor());
-            mPaint.setStrokeWidth(shape.getStrokeWidth());
-            if (shape instanceof ColorRect) {
-                ColorRect temp = (ColorRect) shape;
-                if (temp.getShape() == RectangleShape.NORMAL) {
-                    mCanvas.drawRect(temp.getRectangle(), mPaint);
-                } else if (temp.getShape() == RectangleShape.OVAL) {
-                    mCanvas.drawOval(temp.getRectangle(), mPaint);
-                } else if (temp.getShape() == RectangleShape.ROUNDED) {
-                    mCanvas.drawRoundRect(temp.getRectangle(), 30, 30, mPaint);
-                }
-            } else if (shape instanceof  ColorCircle) {
-                ColorCircle temp = (ColorCircle) shape;
-                mCanvas.drawCircle(temp.getX(), temp.getY(), temp.getRadius(), mPaint);
-            }
-        }
-
-        canvas.drawBitmap(mBitmap, 0, 0, mBitmapPaint);
-        canvas.drawBitmap(loadedBitmap, 0, 0, mBitmapPaint);
-        canvas.restore();
+    public synchronized void setDrawRoundedRectangle(boolean drawRoundedRectangle) {
+        this.drawRoundedRectangle = drawRoundedRectangle;
     }
 
     /**
-     * Method that is called when starting to draw a new line. Creates
-     * a new DrawPath object with current attributes and adds it to the
-     * list of DrawPaths.
-     *
-     * @param x X-coordinate of touched spot.
-     * @param y Y-coordinate of touched spot.
+     * @return Whether finished lines and shapes are kept in the raster cache.
      */
-    private void touchStart(float x, float y) {
-        mPath = new Path();
-        DrawPath dp = new DrawPath(currentColor, emboss, blur, strokeWidth, mPath, currentCap);
-        paths.add(dp);
-
-        mPath.reset();
-        mPath.moveTo(x, y);
-        mX = x;
-        mY = y;
+    public synchronized boolean isRasterCacheEnabled() {
+        return rasterCacheEnabled;
     }
 
     /**
-     * Method that is called when finger is being moved to draw a new line.
-     * Modifies the current DrawPath by modifying mPath, an attribute of it.
-     *
-     * @param x X-coordinate of touched spot.
-     * @param y Y-coordinate of touched spot.
+     * @param rasterCacheEnabled Whether finished lines and shapes are kept
+     *                           in the raster cache, or replayed every frame.
      */
-    private void touchMove(float x, float y) {
-        float dx = Math.abs(x - mX);
-        float dy = Math.abs(y - mY);
+    public synchronized void setRasterCacheEnabled(boolean rasterCacheEnabled) {
+        this.rasterCacheEnabled = rasterCacheEnabled;
+        invalidateCache();
+    }
 
-        if (dx >= TOUCH_TOLERANCE || dy >= TOUCH_TOLERANCE) {
-            mPath.quadTo(mX, mY, (x + mX) / 2, (y + mY) / 2);
-            mX = x;
-            mY = y;
-        }
+    /**
+     * @return Number of touch samples received while drawing lines,
+     *         including historical samples.
+     */
+    public synchronized long getSamplesReceived() {
+        return strokes.getSamplesReceived();
     }
 
     /**
-     * Method that is called when finger is lifted from screen.
-     * Ends DrawPath modification by drawing the line to its final location.
+     * @return Number of touch samples that passed the touch tolerance
+     *         check and were added to lines.
      */
-    private void touchUp() {
-        mPath.lineTo(mX, mY);
+    public synchronized long getSamplesKept() {
+        return strokes.getSamplesKept();
     }
 
     /**
-     * Determines what the app should do with each touch event.
-     * It will either draw a line, draw a shape or use the dropper
-     * tool to get color of touched pixel.
-     *
-     * @param event The MotionEvent that the user did.
-     * @return Whether the event was handled or not.
+     * @return Number of points of finished lines before simplification.
      */
-    @Override
-    public boolean onTouchEvent(MotionEvent event) {
-        float x = event.getX();
-        float y = event.getY();
+    public synchronized long getStrokePointsIn() {
+        return strokes.getStrokePointsIn();
+    }
 
-        // Use dropper tool
-        if (dropperActive) {
-            currentColor = mBitmap.getPixel((int) x, (int) y);
-            dropperActive = false;
+    /**
+     * @return Number of points of finished lines after simplification.
+     */
+    public synchronized long getStrokePointsOut() {
+        return strokes.getStrokePointsOut();
+    }
 
-        // Draw shape
-        } else if (drawRectangle ||
-                drawCircle ||
-                drawLine ||
-                drawOval ||
-                drawRoundedRectangle) {
-            shapeDraw(event);
+    /**
+     * @return Number of lines and shapes drawn in the last frame that
+     *         drew them from the index.
+     */
+    public synchronized int getLastVisibleItems() {
+        return lastVisibleItems;
+    }
 
-        // Draw line
-        } else {
-            switch (event.getAction()) {
-                case MotionEvent.ACTION_DOWN:
-                    touchStart(x, y);
-                    invalidate();
-                    break;
-                case MotionEvent.ACTION_MOVE:
-                    touchMove(x, y);
-                    invalidate();
-                    break;
-                case MotionEvent.ACTION_UP:
-                    touchUp();
-                    invalidate();
-                    break;
-            }
-        }
+    /**
+     * @return Number of lines and shapes outside of the drawn area that
+     *         were skipped in the last frame that drew them from the index.
+     */
+    public synchronized int getLastCulledItems() {
+        return lastCulledItems;
+    }
 
-        return true;
+    /**
+     * @return Statistics of frames and touch events.
+     */
+    public RenderStats getRenderStats() {
+        return stats;
     }
 
     /**
-     * Changes the brush shape between round and square.
+     * Shows or hides the statistics over the drawing.
+     *
+     * @param debugOverlay Whether the statistics are shown.
      */
-    public void changeStrokeShape() {
-        if (currentCap == Paint.Cap.ROUND) {
-            currentCap = Paint.Cap.SQUARE;
-        } else {
-            currentCap = Paint.Cap.ROUND;
+    public synchronized void setDebugOverlayEnabled(boolean debugOverlay) {
+        if (debugOverlay == this.debugOverlay) {
+            return;
+        }
+        this.debugOverlay = debugOverlay;
+        if (debugOverlay) {
+            mOverlayPaint.setColor(Color.WHITE);
+            mOverlayPaint.setTextSize(OVERLAY_TEXT_SIZE_DP * density);
+            mOverlayBackgroundPaint.setColor(OVERLAY_BACKGROUND);
         }
+        redraw();
     }
 
     /**
-     * Draws a shape depending on which boolean is active.
+     * Writes a snapshot of the statistics and the state of the view that
+     * affects drawing speed, to be attached to bug reports.
      *
-     * @param event The MotionEvent that the user did.
+     * @param out Where the snapshot is written.
+     * @throws IOException If writing fails.
      */
-    public void shapeDraw(MotionEvent event) {
-        float x = event.getX();
-        float y = event.getY();
-
-        switch(event.getAction()) {
-            case MotionEvent.ACTION_DOWN:
-                beginCoordinate.x = x;
-                beginCoordinate.y = y;
-                endCoordinate.x = x;
-                endCoordinate.y = y;
-                invalidate();
-                break;
-            case MotionEvent.ACTION_MOVE:
-                endCoordinate.x = x;
-                endCoordinate.y = y;
-                invalidate();
-                break;
-            case MotionEvent.ACTION_UP:
-
-                // DRAW RECTANGLE
-                if (drawRectangle ||
-                        drawOval ||
-                        drawRoundedRectangle) {
-
-                    // Determine the shape of the rectangle.
-                    RectangleShape rectangleShape;
-                    if (drawRectangle) {
-                        rectangleShape = RectangleShape.NORMAL;
-                    } else if (drawOval) {
-                        rectangleShape = RectangleShape.OVAL;
-                    } else {
-                        rectangleShape = RectangleShape.ROUNDED;
-                    }
-
-                    // Create new rectangle and add it to the shapes list.
-                    shapes.add(new ColorRect(
-                            currentColor,
-                            strokeWidth,
-                            new RectF(
-                                    beginCoordinate.x,
-                                    beginCoordinate.y,
-                                    endCoordinate.x,
-                                    endCoordinate.y),
-                            rectangleShape));
-                    drawRectangle = false;
-                    drawOval = false;
-                    drawRoundedRectangle = false;
-                    invalidate();
-                    break;
-
-                // DRAW CIRCLE
-                } else if (drawCircle) {
-                    // Calculate the difference between the beginning and
-                    // ending coordinates to calculate radius using the
-                    // Pythagorean theorem.
-                    float dx = beginCoordinate.x - endCoordinate.x;
-                    float dy = beginCoordinate.y - endCoordinate.y;
-
-                    // Shift the center of the circle to halfway
-                    // between the beginning and ending points to make
-                    // the two points define the circle's diameter instead
-                    // of its radius.
-                    beginCoordinate.x -= dx/2;
-                    beginCoordinate.y -= dy/2;
-
-                    // Halve the radius to make the circle the correct size.
-                    float radius = (float) (Math.sqrt((dx * dx) + (dy * dy)) / 2);
-
-                    // Add the circle to the shapes list.
-                    shapes.add(new ColorCircle(
-                            currentColor,
-                            strokeWidth,
-                            beginCoordinate.x,
-                            beginCoordinate.y,
-                            radius));
-
-                    drawCircle = false;
-                    invalidate();
-                    break;
+    public synchronized void dumpStats(Writer out) throws IOException {
+        out.append("device ").append(Build.MANUFACTURER).append(' ').append(Build.MODEL)
+                .append(" sdk ").append(String.valueOf(Build.VERSION.SDK_INT)).append('\n');
+        out.append("drawing ").append(String.valueOf(bitmapWidth)).append('x')
+                .append(String.valueOf(bitmapHeight)).append(" view ")
+                .append(String.valueOf(getWidth())).append('x').append(String.valueOf(getHeight()))
+                .append(" scale ").append(String.valueOf(viewport.getScale())).append('\n');
+        out.append("history ").append(String.valueOf(history.size()))
+                .append(" position ").append(String.valueOf(history.getPosition()))
+                .append(" indexed ").append(String.valueOf(index.size()))
+                .append(" raster_cache ").append(String.valueOf(rasterCacheEnabled))
+                .append(" render_thread ").append(String.valueOf(renderThread != null))
+                .append(" layers ").append(String.valueOf(layers.size()))
+                .append(" active ").append(String.valueOf(layers.getActiveIndex()))
+                .append(" layer_bytes ").append(String.valueOf(layers.getByteCount()))
+                .append(" sprites ").append(String.valueOf(spriteCache.size()))
+                .append(" sprite_bytes ").append(String.valueOf(spriteCache.getCurrentBytes()))
+                .append(" image_tiles ").append(String.valueOf(tileCache.size()))
+                .append(" image_tile_bytes ").append(String.valueOf(tileCache.getCurrentBytes()))
+                .append('\n');
+        out.append("samples received ").append(String.valueOf(getSamplesReceived()))
+                .append(" kept ").append(String.valueOf(getSamplesKept()))
+                .append(" stroke_points in ").append(String.valueOf(getStrokePointsIn()))
+                .append(" out ").append(String.valueOf(getStrokePointsOut())).append('\n');
+        out.append("prediction horizon_ms ").append(String.valueOf(predictionHorizonMs))
+                .append(" compared ").append(String.valueOf(strokes.getPredictionCount()))
+                .append(" mean_error ").append(String.valueOf(getMeanPredictionError()))
+                .append(" max_error ").append(String.valueOf(getMaxPredictionError()))
+                .append('\n');
+        stats.dump(out);
+        out.flush();
+    }
 
-                // DRAW LINE
-                } else if (drawLine) {
-                    Path p = new Path();
-                    p.moveTo(beginCoordinate.x, beginCoordinate.y);
-                    p.lineTo(endCoordinate.x, endCoordinate.y);
-                    paths.add(new DrawPath(
-                            currentColor,
-                            false,
-                            false,
-                            strokeWidth,
-                            p,
-                            currentCap
-                    ));
-                    drawLine = false;
-                    invalidate();
-                    break;
-                }
-                break;
-        }
+    /**
+     * @param simplifyStrokes Whether lines are simplified when they
+     *                        are finished.
+     */
+    public synchronized void setStrokeSimplificationEnabled(boolean simplifyStrokes) {
+        strokes.setSimplificationEnabled(simplifyStrokes);
     }
 
     /**
-     * Inserts given bitmap to the loadedBitmap attribute and makes
-     * mCanvas use loadedBitmap for drawing.
+     * Sets how far ahead of the last touch sample the lines being drawn
+     * are predicted. The predicted tail is only drawn, never added to
+     * the line.
      *
-     * @param bmp Bitmap to be added to loadedBitmap.
+     * @param predictionHorizonMs The time predicted ahead in milliseconds,
+     *                            0 to turn prediction off.
      */
-    public void loadBitmap(Bitmap bmp) {
-        backgroundColor = Color.TRANSPARENT;
-        loadedBitmap = Bitmap.createScaledBitmap(bmp, bitmapWidth, bitmapHeight, false);
-        mCanvas.setBitmap(loadedBitmap);
+    public synchronized void setPredictionHorizon(int predictionHorizonMs) {
+        this.predictionHorizonMs = Math.max(0, predictionHorizonMs);
     }
 
     /**
-     * @return The current color of the brush.
+     * @return How far ahead of the last touch sample the lines being
+     *         drawn are predicted in milliseconds, 0 if prediction is off.
      */
-    public int getCurrentColor() {
-        return currentColor;
+    public synchronized int getPredictionHorizon() {
+        return predictionHorizonMs;
     }
 
     /**
-     * @param currentColor Color that is set to brush.
+     * @return Average distance in pixels of the drawing between predicted
+     *         points and where the finger really was at their time.
      */
-    public void setCurrentColor(int currentColor) {
-        this.currentColor = currentColor;
+    public synchronized double getMeanPredictionError() {
+        return strokes.getMeanPredictionError();
     }
 
     /**
-     * @return The current color of the background.
+     * @return Largest distance in pixels of the drawing between a
+     *         predicted point and where the finger really was at its time.
      */
-    public int getBackgroundColor() {
-        return backgroundColor;
+    public synchronized float getMaxPredictionError() {
+        return strokes.getMaxPredictionError();
     }
 
     /**
-     * @param backgroundColor Color that is set to background.
+     * Resets the received and kept touch sample counters, the stroke
+     * simplification counters and the prediction error counters to zero.
      */
-    public void setBackgroundColor(int backgroundColor) {
-        this.backgroundColor = backgroundColor;
-        invalidate();
+    public synchronized void resetSampleCounters() {
+        strokes.resetCounters();
     }
 
     /**
-     * @param dropperActive Whether the dropper tool will be active.
+     * Lets every finger draw its own line, so that several people can
+     * draw at once. Zooming and panning with two fingers is not possible
+     * while it is enabled.
+     *
+     * @param multiTouchDrawing Whether every finger draws its own line.
      */
-    public void setDropperActive(boolean dropperActive) {
-        this.dropperActive = dropperActive;
+    public synchronized void setMultiTouchDrawing(boolean multiTouchDrawing) {
+        this.multiTouchDrawing = multiTouchDrawing;
     }
 
     /**
-     * @param drawRectangle Whether the next stroke will draw a rectangle.
+     * Sets the surface under the view that the render thread draws on.
+     * The surface should be hidden until the render thread is enabled.
+     *
+     * @param renderSurface The surface, which has the size and position
+     *                      of the view.
      */
-    public void setDrawRectangle(boolean drawRectangle) {
-        this.drawRectangle = drawRectangle;
+    public void setRenderSurface(SurfaceView renderSurface) {
+        this.renderSurface = renderSurface;
+        renderSurface.getHolder().addCallback(surfaceCallback);
     }
 
     /**
-     * @param drawCircle Whether the next stroke will draw a circle.
+     * Switches between drawing the view on the UI thread and handing its
+     * touch events and frames over to the render thread. The render
+     * thread is started when the render surface has been created, and
+     * stopped when the surface is hidden. Must not be called while
+     * holding the monitor of the view, since stopping waits for the
+     * render thread.
+     *
+     * @param renderThreadEnabled Whether the render thread is used.
      */
-    public void setDrawCircle(boolean drawCircle) {
-        this.drawCircle = drawCircle;
+    public void setRenderThreadEnabled(boolean renderThreadEnabled) {
+        if (renderSurface == null || renderThreadEnabled == this.renderThreadEnabled) {
+            return;
+        }
+        this.renderThreadEnabled = renderThreadEnabled;
+        if (!renderThreadEnabled) {
+            stopRenderThread();
+        }
+        renderSurface.setVisibility(renderThreadEnabled ? View.VISIBLE : View.GONE);
     }
 
     /**
-     * @param drawLine Whether the next stroke will draw a line.
+     * @return Whether touch events and frames are handed over to the
+     *         render thread.
      */
-    public void setDrawLine(boolean drawLine) {
-        this.drawLine = drawLine;
+    public boolean isRenderThreadEnabled() {
+        return renderThreadEnabled;
     }
 
     /**
-     * @param drawOval Whether the next stroke will draw an oval.
+     * Starts the render thread on a newly created render surface.
+     *
+     * @param holder Holder of the render surface.
      */
-    public void setDrawOval(boolean drawOval) {
-        this.drawOval = drawOval;
+    private void startRenderThread(SurfaceHolder holder) {
+        RenderThread thread = new RenderThread(this, holder);
+        thread.setSize(getWidth(), getHeight());
+        renderThread = thread;
+        thread.start();
+        invalidate();
     }
 
     /**
-     * @param drawRoundedRectangle Whether the next stroke will draw a
-     *                             round-cornered rectangle.
+     * Stops the render thread after it has handled the touch events that
+     * were queued for it, and lets the view draw itself again.
      */
-    public void setDrawRoundedRectangle(boolean drawRoundedRectangle) {
-        this.drawRoundedRectangle = drawRoundedRectangle;
+    private void stopRenderThread() {
+        RenderThread thread = renderThread;
+        if (thread == null) {
+            return;
+        }
+        thread.quit();
+        renderThread = null;
+        invalidate();
     }
 
     /**
      * @param strokeWidth Number that is set as stroke width.
      */
-    public void setStrokeWidth(int strokeWidth) {
+    public synchronized void setStrokeWidth(int strokeWidth) {
         this.strokeWidth = strokeWidth;
     }
 }
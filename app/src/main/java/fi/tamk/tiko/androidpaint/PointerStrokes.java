@@ -0,0 +1,302 @@
+package fi.tamk.tiko.androidpaint;
+
+/**
+ * The lines that are being drawn by several fingers at once, one for
+ * each pointer id. Every pointer id has its own StrokeBuilder, which is
+ * created the first time the id touches the view and reused for all of
+ * its later lines, so drawing does not allocate builders per event.
+ *
+ * Each pointer id also has its own StrokePredictor, which is reset when
+ * the pointer starts a line and fed by the caller with timed samples.
+ *
+ * The ids of the pointers that are drawing are kept in the order their
+ * lines were started, which is the order the lines are previewed and
+ * added to the history in.
+ *
+ * The class does not use Android classes, so it can be tested on a
+ * plain JVM.
+ */
+public class PointerStrokes {
+
+    /**
+     * Number of pointer ids that can draw. Android gives pointer ids
+     * from 0 to 31.
+     */
+    public static final int MAX_POINTERS = 32;
+
+    /**
+     * Builder of each pointer id, or null if the id has not drawn yet.
+     */
+    private final StrokeBuilder[] builders = new StrokeBuilder[MAX_POINTERS];
+
+    /**
+     * Predictor of each pointer id, or null if the id has not drawn yet.
+     */
+    private final StrokePredictor[] predictors = new StrokePredictor[MAX_POINTERS];
+
+    /**
+     * Ids of the pointers that are drawing, in the order their lines
+     * were started.
+     */
+    private final int[] active = new int[MAX_POINTERS];
+
+    /**
+     * Number of pointers that are drawing.
+     */
+    private int activeCount;
+
+    /**
+     * Whether lines are simplified when they are finished.
+     */
+    private boolean simplifyStrokes = true;
+
+    /**
+     * Starts a new line for a pointer at the touched spot. A line the
+     * pointer was already drawing is cancelled and returned, which only
+     * happens if its up event was lost.
+     *
+     * @param pointerId Id of the pointer.
+     * @param path The new line without points.
+     * @param x X-coordinate of touched spot.
+     * @param y Y-coordinate of touched spot.
+     * @return The cancelled line, or null.
+     */
+    public DrawPath start(int pointerId, DrawPath path, float x, float y) {
+        DrawPath cancelled = cancel(pointerId);
+        StrokeBuilder builder = builders[pointerId];
+        if (builder == null) {
+            builder = new StrokeBuilder();
+            builder.setSimplificationEnabled(simplifyStrokes);
+            builders[pointerId] = builder;
+            predictors[pointerId] = new StrokePredictor();
+        }
+        predictors[pointerId].reset();
+        builder.start(path, x, y);
+        active[activeCount++] = pointerId;
+        return cancelled;
+    }
+
+    /**
+     * @param pointerId Id of a pointer.
+     * @return Whether the id can draw, meaning that it is inside the
+     *         range of pointer ids this class keeps.
+     */
+    public static boolean isSupported(int pointerId) {
+        return pointerId >= 0 && pointerId < MAX_POINTERS;
+    }
+
+    /**
+     * @param pointerId Id of a pointer.
+     * @return The builder of the line the pointer is drawing, or null if
+     *         it is not drawing.
+     */
+    public StrokeBuilder get(int pointerId) {
+        if (!isSupported(pointerId)) {
+            return null;
+        }
+        StrokeBuilder builder = builders[pointerId];
+        return builder != null && builder.getPath() != null ? builder : null;
+    }
+
+    /**
+     * @param pointerId Id of a pointer that is drawing.
+     * @return The predictor of the line the pointer is drawing.
+     */
+    public StrokePredictor getPredictor(int pointerId) {
+        return predictors[pointerId];
+    }
+
+    /**
+     * Finishes the line of a pointer and simplifies it.
+     *
+     * @param pointerId Id of the pointer.
+     * @param dp Size of a density-independent pixel in the coordinates
+     *           of the drawing.
+     * @return The finished line, or null if the pointer was not drawing.
+     */
+    public DrawPath finish(int pointerId, float dp) {
+        StrokeBuilder builder = get(pointerId);
+        if (builder == null) {
+            return null;
+        }
+        removeActive(pointerId);
+        return builder.finish(dp);
+    }
+
+    /**
+     * Forgets the line of a pointer without finishing it.
+     *
+     * @param pointerId Id of the pointer.
+     * @return The discarded line, or null if the pointer was not drawing.
+     */
+    public DrawPath cancel(int pointerId) {
+        StrokeBuilder builder = get(pointerId);
+        if (builder == null) {
+            return null;
+        }
+        removeActive(pointerId);
+        return builder.cancel();
+    }
+
+    /**
+     * @return Number of pointers that are drawing.
+     */
+    public int size() {
+        return activeCount;
+    }
+
+    /**
+     * @param index Index from 0 to size() - 1.
+     * @return Id of the pointer that started the index-th of the lines
+     *         that are being drawn.
+     */
+    public int getPointerId(int index) {
+        return active[index];
+    }
+
+    /**
+     * @param index Index from 0 to size() - 1.
+     * @return The index-th of the lines that are being drawn.
+     */
+    public DrawPath getPath(int index) {
+        return builders[active[index]].getPath();
+    }
+
+    /**
+     * @param simplifyStrokes Whether lines are simplified when they
+     *                        are finished.
+     */
+    public void setSimplificationEnabled(boolean simplifyStrokes) {
+        this.simplifyStrokes = simplifyStrokes;
+        for (StrokeBuilder builder : builders) {
+            if (builder != null) {
+                builder.setSimplificationEnabled(simplifyStrokes);
+            }
+        }
+    }
+
+    /**
+     * @return Number of touch samples received by all pointers,
+     *         including historical samples.
+     */
+    public long getSamplesReceived() {
+        long count = 0;
+        for (StrokeBuilder builder : builders) {
+            if (builder != null) {
+                count += builder.getSamplesReceived();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return Number of touch samples of all pointers that passed the
+     *         touch tolerance check and were added to lines.
+     */
+    public long getSamplesKept() {
+        long count = 0;
+        for (StrokeBuilder builder : builders) {
+            if (builder != null) {
+                count += builder.getSamplesKept();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return Number of points of finished lines before simplification.
+     */
+    public long getStrokePointsIn() {
+        long count = 0;
+        for (StrokeBuilder builder : builders) {
+            if (builder != null) {
+                count += builder.getStrokePointsIn();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return Number of points of finished lines after simplification.
+     */
+    public long getStrokePointsOut() {
+        long count = 0;
+        for (StrokeBuilder builder : builders) {
+            if (builder != null) {
+                count += builder.getStrokePointsOut();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return Number of predictions of all pointers that have been
+     *         compared with real samples.
+     */
+    public long getPredictionCount() {
+        long count = 0;
+        for (StrokePredictor predictor : predictors) {
+            if (predictor != null) {
+                count += predictor.getErrorCount();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return Average distance between predicted and real positions, or
+     *         0 if nothing has been predicted.
+     */
+    public double getMeanPredictionError() {
+        long count = 0;
+        double sum = 0;
+        for (StrokePredictor predictor : predictors) {
+            if (predictor != null) {
+                count += predictor.getErrorCount();
+                sum += predictor.getErrorSum();
+            }
+        }
+        return count > 0 ? sum / count : 0;
+    }
+
+    /**
+     * @return Largest distance between a predicted and the real position.
+     */
+    public float getMaxPredictionError() {
+        float max = 0;
+        for (StrokePredictor predictor : predictors) {
+            if (predictor != null) {
+                max = Math.max(max, predictor.getErrorMax());
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Resets the sample, simplification and prediction counters to zero.
+     */
+    public void resetCounters() {
+        for (int i = 0; i < MAX_POINTERS; i++) {
+            if (builders[i] != null) {
+                builders[i].resetCounters();
+                predictors[i].resetCounters();
+            }
+        }
+    }
+
+    /**
+     * Removes a pointer from the ids that are drawing, keeping the order
+     * of the others.
+     *
+     * @param pointerId Id of the pointer.
+     */
+    private void removeActive(int pointerId) {
+        for (int i = 0; i < activeCount; i++) {
+            if (active[i] == pointerId) {
+                System.arraycopy(active, i + 1, active, i, activeCount - i - 1);
+                activeCount--;
+                return;
+            }
+        }
+    }
+}
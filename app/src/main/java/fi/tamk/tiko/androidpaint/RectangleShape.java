@@ -20,5 +20,37 @@ public enum RectangleShape {
     /**
      * Oval that is contained inside given rectangle.
      */
-    OVAL
+    OVAL;
+
+    /**
+     * The corner radius of round-cornered rectangles.
+     */
+    public static final float CORNER_RADIUS = 30;
+
+    /**
+     * Draws this kind of shape inside the given rectangle with the
+     * given renderer.
+     *
+     * @param renderer The renderer the shape is drawn with.
+     * @param left Left edge of the rectangle.
+     * @param top Top edge of the rectangle.
+     * @param right Right edge of the rectangle.
+     * @param bottom Bottom edge of the rectangle.
+     * @param color The color of the shape.
+     * @param strokeWidth The width of the outline of the shape.
+     */
+    public void render(Renderer renderer, float left, float top, float right, float bottom,
+                       int color, float strokeWidth) {
+        switch (this) {
+            case NORMAL:
+                renderer.drawRect(left, top, right, bottom, color, strokeWidth);
+                break;
+            case ROUNDED:
+                renderer.drawRoundRect(left, top, right, bottom, CORNER_RADIUS, color, strokeWidth);
+                break;
+            case OVAL:
+                renderer.drawOval(left, top, right, bottom, color, strokeWidth);
+                break;
+        }
+    }
 }
@@ -0,0 +1,222 @@
+package fi.tamk.tiko.androidpaint;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Rolling statistics of how long frames and touch events take: the
+ * duration of each onDraw, the number of lines and shapes drawn and
+ * culled in it, the time from a touch event to the frame that shows it,
+ * and the duration and pool misses of each touch event.
+ *
+ * Times are recorded in nanoseconds. The statistics can be written as a
+ * text snapshot to attach to bug reports, or as short lines for an
+ * on-screen overlay.
+ */
+public class RenderStats {
+
+    /**
+     * Number of latest frames and touch events the percentiles are
+     * calculated from.
+     */
+    public static final int DEFAULT_WINDOW = 240;
+
+    /**
+     * Duration of each onDraw.
+     */
+    private final RollingHistogram drawTimes;
+
+    /**
+     * Number of lines and shapes drawn from the index in each frame.
+     */
+    private final RollingHistogram itemsDrawn;
+
+    /**
+     * Number of lines and shapes culled in each frame.
+     */
+    private final RollingHistogram itemsCulled;
+
+    /**
+     * Time from the oldest touch event not yet shown to the start of the
+     * frame that shows it.
+     */
+    private final RollingHistogram inputLatencies;
+
+    /**
+     * Duration of each onTouchEvent.
+     */
+    private final RollingHistogram touchTimes;
+
+    /**
+     * Number of point arrays and bitmaps that each onTouchEvent had to
+     * allocate because the pools had none free.
+     */
+    private final RollingHistogram touchPoolMisses;
+
+    /**
+     * Constructs the statistics.
+     *
+     * @param window Number of latest frames and touch events the
+     *               percentiles are calculated from.
+     */
+    public RenderStats(int window) {
+        drawTimes = new RollingHistogram(window);
+        itemsDrawn = new RollingHistogram(window);
+        itemsCulled = new RollingHistogram(window);
+        inputLatencies = new RollingHistogram(window);
+        touchTimes = new RollingHistogram(window);
+        touchPoolMisses = new RollingHistogram(window);
+    }
+
+    /**
+     * Records one frame.
+     *
+     * @param drawNanos Duration of onDraw.
+     * @param drawn Number of lines and shapes drawn from the index.
+     * @param culled Number of lines and shapes culled.
+     */
+    public void recordFrame(long drawNanos, int drawn, int culled) {
+        drawTimes.record(drawNanos);
+        itemsDrawn.record(drawn);
+        itemsCulled.record(culled);
+    }
+
+    /**
+     * @param nanos Time from a touch event to the frame that shows it.
+     */
+    public void recordInputLatency(long nanos) {
+        inputLatencies.record(nanos);
+    }
+
+    /**
+     * Records one touch event.
+     *
+     * @param nanos Duration of onTouchEvent.
+     * @param poolMisses Number of point arrays and bitmaps allocated
+     *                   because the pools had none free.
+     */
+    public void recordTouch(long nanos, long poolMisses) {
+        touchTimes.record(nanos);
+        touchPoolMisses.record(poolMisses);
+    }
+
+    /**
+     * @return Durations of onDraw.
+     */
+    public RollingHistogram getDrawTimes() {
+        return drawTimes;
+    }
+
+    /**
+     * @return Numbers of lines and shapes drawn per frame.
+     */
+    public RollingHistogram getItemsDrawn() {
+        return itemsDrawn;
+    }
+
+    /**
+     * @return Numbers of lines and shapes culled per frame.
+     */
+    public RollingHistogram getItemsCulled() {
+        return itemsCulled;
+    }
+
+    /**
+     * @return Times from touch events to the frames that show them.
+     */
+    public RollingHistogram getInputLatencies() {
+        return inputLatencies;
+    }
+
+    /**
+     * @return Durations of onTouchEvent.
+     */
+    public RollingHistogram getTouchTimes() {
+        return touchTimes;
+    }
+
+    /**
+     * @return Numbers of pool misses per touch event.
+     */
+    public RollingHistogram getTouchPoolMisses() {
+        return touchPoolMisses;
+    }
+
+    /**
+     * Forgets all recorded frames and touch events.
+     */
+    public void reset() {
+        drawTimes.reset();
+        itemsDrawn.reset();
+        itemsCulled.reset();
+        inputLatencies.reset();
+        touchTimes.reset();
+        touchPoolMisses.reset();
+    }
+
+    /**
+     * Returns short lines of the latest statistics for the debug overlay.
+     *
+     * @return The lines of text.
+     */
+    public String[] overlayLines() {
+        return new String[] {
+                String.format(Locale.US, "draw ms  p50 %.2f  p90 %.2f  p99 %.2f",
+                        millis(drawTimes.percentile(0.5)), millis(drawTimes.percentile(0.9)),
+                        millis(drawTimes.percentile(0.99))),
+                String.format(Locale.US, "input ms  p50 %.1f  p99 %.1f",
+                        millis(inputLatencies.percentile(0.5)), millis(inputLatencies.percentile(0.99))),
+                String.format(Locale.US, "touch ms  p50 %.2f  p99 %.2f  misses p50 %d",
+                        millis(touchTimes.percentile(0.5)), millis(touchTimes.percentile(0.99)),
+                        touchPoolMisses.percentile(0.5)),
+                String.format(Locale.US, "items drawn %d  culled %d",
+                        itemsDrawn.latest(), itemsCulled.latest()),
+        };
+    }
+
+    /**
+     * Writes all statistics as a text snapshot.
+     *
+     * @param out Where the snapshot is written.
+     * @throws IOException If writing fails.
+     */
+    public void dump(Appendable out) throws IOException {
+        out.append("metric count window mean p50 p90 p99 max\n");
+        dumpTime(out, "draw_ms", drawTimes);
+        dumpTime(out, "input_latency_ms", inputLatencies);
+        dumpTime(out, "touch_ms", touchTimes);
+        dumpCount(out, "touch_pool_misses", touchPoolMisses);
+        dumpCount(out, "items_drawn", itemsDrawn);
+        dumpCount(out, "items_culled", itemsCulled);
+    }
+
+    /**
+     * Writes one line of a histogram of times in milliseconds.
+     */
+    private static void dumpTime(Appendable out, String name, RollingHistogram histogram)
+            throws IOException {
+        out.append(String.format(Locale.US, "%s %d %d %.3f %.3f %.3f %.3f %.3f\n", name,
+                histogram.getTotalCount(), histogram.size(), histogram.mean() / 1e6,
+                millis(histogram.percentile(0.5)), millis(histogram.percentile(0.9)),
+                millis(histogram.percentile(0.99)), millis(histogram.getMax())));
+    }
+
+    /**
+     * Writes one line of a histogram of counts.
+     */
+    private static void dumpCount(Appendable out, String name, RollingHistogram histogram)
+            throws IOException {
+        out.append(String.format(Locale.US, "%s %d %d %.1f %d %d %d %d\n", name,
+                histogram.getTotalCount(), histogram.size(), histogram.mean(),
+                histogram.percentile(0.5), histogram.percentile(0.9),
+                histogram.percentile(0.99), histogram.getMax()));
+    }
+
+    /**
+     * @param nanos A time in nanoseconds.
+     * @return The time in milliseconds.
+     */
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
@@ -0,0 +1,219 @@
+package fi.tamk.tiko.androidpaint;
+
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.os.Process;
+import android.view.MotionEvent;
+import android.view.SurfaceHolder;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Thread that handles the touch events of a PaintView and draws its
+ * frames onto a surface, so that slow frames do not block the UI thread
+ * and dialogs or menus on the UI thread do not stall drawing.
+ *
+ * The UI thread copies each touch event into a lock-free queue and
+ * returns right away. The render thread handles the queued events and
+ * draws a frame when an area has been invalidated, both while holding
+ * the monitor of the view, which the UI thread also holds when it
+ * changes the drawing. The surface has its own front and back buffer:
+ * the next frame is drawn into the back buffer while the previous one is
+ * shown, and only the invalidated area of it is drawn again.
+ */
+public class RenderThread extends Thread {
+
+    /**
+     * Number of touch events that can wait for the render thread.
+     */
+    private static final int QUEUE_CAPACITY = 256;
+
+    /**
+     * The view whose events are handled and whose frames are drawn.
+     */
+    private final PaintView view;
+
+    /**
+     * Holder of the surface the frames are drawn on.
+     */
+    private final SurfaceHolder holder;
+
+    /**
+     * Copies of the touch events that the render thread has not
+     * handled yet.
+     */
+    private final SpscQueue<MotionEvent> input = new SpscQueue<>(QUEUE_CAPACITY);
+
+    /**
+     * Area of the surface that has been invalidated since the last frame.
+     * Guarded by itself.
+     */
+    private final Rect dirty = new Rect();
+
+    /**
+     * Area of the surface that the current frame draws. Only used on the
+     * render thread.
+     */
+    private final Rect frameDirty = new Rect();
+
+    /**
+     * Size of the surface.
+     */
+    private volatile int width, height;
+
+    /**
+     * Whether an area has been invalidated since the last frame.
+     */
+    private volatile boolean frameRequested;
+
+    /**
+     * Whether the thread keeps running.
+     */
+    private volatile boolean running = true;
+
+    /**
+     * Constructs the thread. It has to be started with start.
+     *
+     * @param view The view whose events are handled and whose frames are drawn.
+     * @param holder Holder of the surface the frames are drawn on.
+     */
+    public RenderThread(PaintView view, SurfaceHolder holder) {
+        super("PaintRender");
+        this.view = view;
+        this.holder = holder;
+    }
+
+    /**
+     * Queues a copy of a touch event for the render thread. Called on the
+     * UI thread. If the queue is full, waits until there is room, since a
+     * lost up event would leave a line unfinished.
+     *
+     * @param event The touch event, which is recycled by the system after
+     *              it has been dispatched.
+     */
+    public void post(MotionEvent event) {
+        MotionEvent copy = MotionEvent.obtain(event);
+        while (!input.offer(copy)) {
+            if (!running) {
+                copy.recycle();
+                return;
+            }
+            LockSupport.unpark(this);
+            Thread.yield();
+        }
+        LockSupport.unpark(this);
+    }
+
+    /**
+     * Sets the size of the surface and invalidates all of it.
+     *
+     * @param width The width of the surface.
+     * @param height The height of the surface.
+     */
+    public void setSize(int width, int height) {
+        this.width = width;
+        this.height = height;
+        requestFrame();
+    }
+
+    /**
+     * Invalidates the whole surface.
+     */
+    public void requestFrame() {
+        requestFrame(0, 0, width, height);
+    }
+
+    /**
+     * Invalidates an area of the surface, which is drawn in the next frame.
+     *
+     * @param left Left edge of the area.
+     * @param top Top edge of the area.
+     * @param right Right edge of the area.
+     * @param bottom Bottom edge of the area.
+     */
+    public void requestFrame(int left, int top, int right, int bottom) {
+        synchronized (dirty) {
+            dirty.union(left, top, right, bottom);
+        }
+        frameRequested = true;
+        LockSupport.unpark(this);
+    }
+
+    /**
+     * Stops the thread and waits for it to finish. The touch events that
+     * are still queued are handled before the thread finishes.
+     */
+    public void quit() {
+        running = false;
+        LockSupport.unpark(this);
+        boolean interrupted = false;
+        while (isAlive()) {
+            try {
+                join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Handles queued touch events and draws frames until quit is called,
+     * parking while there is nothing to do. Waiting for a free buffer of
+     * the surface is done without holding the monitor of the view, so
+     * the UI thread is not blocked by it.
+     */
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+        while (running) {
+            if (input.isEmpty() && !frameRequested) {
+                LockSupport.park(this);
+                continue;
+            }
+            handleInput();
+            if (!frameRequested) {
+                continue;
+            }
+            frameRequested = false;
+            synchronized (dirty) {
+                frameDirty.set(dirty);
+                dirty.setEmpty();
+            }
+            if (frameDirty.isEmpty()) {
+                continue;
+            }
+
+            Canvas canvas = holder.lockCanvas(frameDirty);
+            if (canvas == null) {
+                continue;
+            }
+            try {
+                synchronized (view) {
+                    view.renderFrame(canvas);
+                }
+            } finally {
+                holder.unlockCanvasAndPost(canvas);
+            }
+        }
+        handleInput();
+    }
+
+    /**
+     * Handles and recycles all queued touch events.
+     */
+    private void handleInput() {
+        if (input.isEmpty()) {
+            return;
+        }
+        synchronized (view) {
+            MotionEvent event;
+            while ((event = input.poll()) != null) {
+                view.processTouchEvent(event);
+                event.recycle();
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package fi.tamk.tiko.androidpaint;
+
+/**
+ * Interface that lines and shapes draw themselves through, so that the
+ * same drawing can be rendered on an android.graphics.Canvas by
+ * CanvasRenderer or into an int array by SoftwareRenderer. Lines and the
+ * outlines of shapes are stroked with round joins. Coordinates are in
+ * the coordinates of the drawing and colors are ARGB.
+ */
+public interface Renderer {
+
+    /**
+     * Fills the whole target with the given color, replacing what was
+     * there.
+     *
+     * @param color The color to fill with.
+     */
+    void fill(int color);
+
+    /**
+     * Draws a line smoothed the same way as DrawPath.getPath, with the
+     * color, width, cap and effects of the line.
+     *
+     * @param path The line to draw.
+     * @param effects Whether the blur or emboss effect of the line is
+     *                applied, if the renderer supports it.
+     */
+    void drawPath(DrawPath path, boolean effects);
+
+    /**
+     * Draws the outline of a rectangle.
+     *
+     * @param left Left edge of the rectangle.
+     * @param top Top edge of the rectangle.
+     * @param right Right edge of the rectangle.
+     * @param bottom Bottom edge of the rectangle.
+     * @param color The color of the outline.
+     * @param strokeWidth The width of the outline.
+     */
+    void drawRect(float left, float top, float right, float bottom, int color, float strokeWidth);
+
+    /**
+     * Draws the outline of a rectangle with round corners.
+     *
+     * @param left Left edge of the rectangle.
+     * @param top Top edge of the rectangle.
+     * @param right Right edge of the rectangle.
+     * @param bottom Bottom edge of the rectangle.
+     * @param radius The radius of the corners.
+     * @param color The color of the outline.
+     * @param strokeWidth The width of the outline.
+     */
+    void drawRoundRect(float left, float top, float right, float bottom, float radius,
+                       int color, float strokeWidth);
+
+    /**
+     * Draws the outline of the oval inside a rectangle.
+     *
+     * @param left Left edge of the rectangle.
+     * @param top Top edge of the rectangle.
+     * @param right Right edge of the rectangle.
+     * @param bottom Bottom edge of the rectangle.
+     * @param color The color of the outline.
+     * @param strokeWidth The width of the outline.
+     */
+    void drawOval(float left, float top, float right, float bottom, int color, float strokeWidth);
+
+    /**
+     * Draws the outline of a circle.
+     *
+     * @param x X-coordinate of the center.
+     * @param y Y-coordinate of the center.
+     * @param radius The radius of the circle.
+     * @param color The color of the outline.
+     * @param strokeWidth The width of the outline.
+     */
+    void drawCircle(float x, float y, float radius, int color, float strokeWidth);
+
+    /**
+     * Fills rectangles of whole pixels without anti-aliasing, so that
+     * rectangles that touch leave no seams.
+     *
+     * @param rects The rectangles as left, top, right and bottom edges.
+     * @param color The color to fill with.
+     */
+    void fillRects(int[] rects, int color);
+}
@@ -0,0 +1,147 @@
+package fi.tamk.tiko.androidpaint;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the latest values of a measurement in a ring buffer and gives
+ * percentiles of them, so that the statistics follow what is happening
+ * now instead of the whole session. The total count and the largest
+ * value ever recorded are kept as well.
+ *
+ * Recording does not allocate. Percentiles sort a copy of the window
+ * into an array that is allocated once.
+ */
+public class RollingHistogram {
+
+    /**
+     * The latest values, oldest overwritten first.
+     */
+    private final long[] window;
+
+    /**
+     * Copy of the window that is sorted for percentiles.
+     */
+    private final long[] sorted;
+
+    /**
+     * Index the next value is written to.
+     */
+    private int next;
+
+    /**
+     * Number of values in the window.
+     */
+    private int size;
+
+    /**
+     * Number of values recorded since the last reset.
+     */
+    private long totalCount;
+
+    /**
+     * Largest value recorded since the last reset.
+     */
+    private long max;
+
+    /**
+     * Whether the sorted copy matches the window.
+     */
+    private boolean sortedValid;
+
+    /**
+     * Constructs a histogram of the given number of latest values.
+     *
+     * @param windowSize Number of latest values kept.
+     */
+    public RollingHistogram(int windowSize) {
+        window = new long[windowSize];
+        sorted = new long[windowSize];
+    }
+
+    /**
+     * Adds a value, dropping the oldest one if the window is full.
+     *
+     * @param value The value.
+     */
+    public void record(long value) {
+        window[next] = value;
+        next = (next + 1) % window.length;
+        size = Math.min(size + 1, window.length);
+        totalCount++;
+        max = Math.max(max, value);
+        sortedValid = false;
+    }
+
+    /**
+     * Returns the value below which the given fraction of the values in
+     * the window are, using the nearest rank.
+     *
+     * @param fraction Fraction from 0 to 1, for example 0.99.
+     * @return The percentile, or 0 if the window is empty.
+     */
+    public long percentile(double fraction) {
+        if (size == 0) {
+            return 0;
+        }
+        if (!sortedValid) {
+            System.arraycopy(window, 0, sorted, 0, size);
+            Arrays.sort(sorted, 0, size);
+            sortedValid = true;
+        }
+        int rank = (int) Math.ceil(fraction * size) - 1;
+        return sorted[Math.max(0, Math.min(size - 1, rank))];
+    }
+
+    /**
+     * @return Mean of the values in the window, or 0 if it is empty.
+     */
+    public double mean() {
+        if (size == 0) {
+            return 0;
+        }
+        long sum = 0;
+        for (int i = 0; i < size; i++) {
+            sum += window[i];
+        }
+        return sum / (double) size;
+    }
+
+    /**
+     * @return The latest value, or 0 if none has been recorded.
+     */
+    public long latest() {
+        return size == 0 ? 0 : window[(next + window.length - 1) % window.length];
+    }
+
+    /**
+     * @return Number of values in the window.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return Number of values recorded since the last reset.
+     */
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    /**
+     * @return Largest value recorded since the last reset.
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * Forgets all values.
+     */
+    public void reset() {
+        next = 0;
+        size = 0;
+        totalCount = 0;
+        max = 0;
+        sortedValid = false;
+    }
+}
@@ -0,0 +1,584 @@
+package fi.tamk.tiko.androidpaint;
+
+import java.util.Arrays;
+
+/**
+ * Renderer that draws into an int array of ARGB pixels without any
+ * Android classes, so that drawings can be rendered on a plain JVM for
+ * tests, benchmarks and thumbnails.
+ *
+ * Every line and outline is turned into a polyline, curves being split
+ * into segments that stay within FLATNESS of the curve. Each segment is
+ * stamped into a coverage mask as a capsule, which gives round joins and
+ * caps, and the coverage of a pixel is how far inside the capsule the
+ * center of the pixel is, clamped to one pixel. The mask keeps the
+ * largest coverage of each pixel, so overlapping segments of the same
+ * line do not blend twice, and it is then blended onto the pixels with
+ * the color in one pass.
+ *
+ * Blur is approximated with three box blurs of the mask. Emboss is not
+ * supported and such lines are drawn without the effect.
+ */
+public class SoftwareRenderer implements Renderer {
+
+    /**
+     * Largest distance of the segments of a flattened curve from the curve.
+     */
+    private static final float FLATNESS = 0.2f;
+
+    /**
+     * Radius of the box blur passes that approximate the blur effect
+     * of PaintView at scale 1.
+     */
+    private static final int BLUR_RADIUS = 3;
+
+    /**
+     * Number of box blur passes, which together are close to a gaussian.
+     */
+    private static final int BLUR_PASSES = 3;
+
+    /**
+     * Width of the target in pixels.
+     */
+    private final int width;
+
+    /**
+     * Height of the target in pixels.
+     */
+    private final int height;
+
+    /**
+     * The target pixels in ARGB row by row.
+     */
+    private final int[] pixels;
+
+    /**
+     * Coverage of each pixel by the line or shape being drawn, from 0
+     * to 255. It is cleared when the line or shape has been blended.
+     */
+    private final byte[] coverage;
+
+    /**
+     * Area of the mask that has been written since the last blend.
+     */
+    private int dirtyLeft, dirtyTop, dirtyRight, dirtyBottom;
+
+    /**
+     * Polyline that lines and outlines are flattened into, as x and y
+     * coordinate pairs.
+     */
+    private float[] polyline = new float[64];
+
+    /**
+     * Number of floats in use in the polyline.
+     */
+    private int polylineSize;
+
+    /**
+     * Scale applied to all coordinates and widths, for example to render
+     * thumbnails.
+     */
+    private float scale = 1;
+
+    /**
+     * Constructs a renderer with a transparent target of the given size.
+     *
+     * @param width Width of the target in pixels.
+     * @param height Height of the target in pixels.
+     */
+    public SoftwareRenderer(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.pixels = new int[width * height];
+        this.coverage = new byte[width * height];
+        resetDirty();
+    }
+
+    /**
+     * @param scale Scale applied to all coordinates and widths from now on.
+     */
+    public void setScale(float scale) {
+        this.scale = scale;
+    }
+
+    /**
+     * @return Width of the target in pixels.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return Height of the target in pixels.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return The target pixels in ARGB row by row. The array is not
+     *         copied.
+     */
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    /**
+     * @param x X-coordinate of a pixel.
+     * @param y Y-coordinate of a pixel.
+     * @return The color of the pixel.
+     */
+    public int getPixel(int x, int y) {
+        return pixels[y * width + x];
+    }
+
+    @Override
+    public void fill(int color) {
+        Arrays.fill(pixels, color);
+    }
+
+    @Override
+    public void drawPath(DrawPath path, boolean effects) {
+        int count = path.getPointCount();
+        if (count == 0) {
+            return;
+        }
+        float[] points = path.getPoints();
+
+        // The same curves as DrawPath.getPath: quadratic segments that
+        // use each point as the control point and end halfway to the
+        // next point, and a straight segment to the last point.
+        polylineSize = 0;
+        float x = points[0] * scale;
+        float y = points[1] * scale;
+        addPoint(x, y);
+        for (int i = 1; i < count; i++) {
+            float cx = points[i * 2 - 2] * scale;
+            float cy = points[i * 2 - 1] * scale;
+            float ex = (points[i * 2] * scale + cx) / 2;
+            float ey = (points[i * 2 + 1] * scale + cy) / 2;
+            addQuad(x, y, cx, cy, ex, ey);
+            x = ex;
+            y = ey;
+        }
+        if (path.isFinished()) {
+            addPoint(points[count * 2 - 2] * scale, points[count * 2 - 1] * scale);
+        }
+
+        float halfWidth = path.getStrokeWidth() * scale / 2;
+        strokePolyline(false, halfWidth, (path.getFlags() & DrawPath.FLAG_SQUARE_CAP) != 0);
+        if (effects && path.getBlur()) {
+            blurCoverage(Math.max(1, Math.round(BLUR_RADIUS * scale)));
+        }
+        blend(path.getColor());
+    }
+
+    @Override
+    public void drawRect(float left, float top, float right, float bottom, int color, float strokeWidth) {
+        float l = Math.min(left, right) * scale;
+        float t = Math.min(top, bottom) * scale;
+        float r = Math.max(left, right) * scale;
+        float b = Math.max(top, bottom) * scale;
+        polylineSize = 0;
+        addPoint(l, t);
+        addPoint(r, t);
+        addPoint(r, b);
+        addPoint(l, b);
+        strokePolyline(true, strokeWidth * scale / 2, false);
+        blend(color);
+    }
+
+    @Override
+    public void drawRoundRect(float left, float top, float right, float bottom, float radius,
+                              int color, float strokeWidth) {
+        float l = Math.min(left, right) * scale;
+        float t = Math.min(top, bottom) * scale;
+        float r = Math.max(left, right) * scale;
+        float b = Math.max(top, bottom) * scale;
+        float rad = Math.min(radius * scale, Math.min(r - l, b - t) / 2);
+        polylineSize = 0;
+        addArc(r - rad, t + rad, rad, rad, -Math.PI / 2, Math.PI / 2);
+        addArc(r - rad, b - rad, rad, rad, 0, Math.PI / 2);
+        addArc(l + rad, b - rad, rad, rad, Math.PI / 2, Math.PI / 2);
+        addArc(l + rad, t + rad, rad, rad, Math.PI, Math.PI / 2);
+        strokePolyline(true, strokeWidth * scale / 2, false);
+        blend(color);
+    }
+
+    @Override
+    public void drawOval(float left, float top, float right, float bottom, int color, float strokeWidth) {
+        float l = Math.min(left, right) * scale;
+        float t = Math.min(top, bottom) * scale;
+        float r = Math.max(left, right) * scale;
+        float b = Math.max(top, bottom) * scale;
+        polylineSize = 0;
+        addArc((l + r) / 2, (t + b) / 2, (r - l) / 2, (b - t) / 2, 0, Math.PI * 2);
+        strokePolyline(true, strokeWidth * scale / 2, false);
+        blend(color);
+    }
+
+    @Override
+    public void drawCircle(float x, float y, float radius, int color, float strokeWidth) {
+        polylineSize = 0;
+        addArc(x * scale, y * scale, radius * scale, radius * scale, 0, Math.PI * 2);
+        strokePolyline(true, strokeWidth * scale / 2, false);
+        blend(color);
+    }
+
+    @Override
+    public void fillRects(int[] rects, int color) {
+        int alpha = color >>> 24;
+        for (int i = 0; i < rects.length; i += 4) {
+            int left = Math.max(0, Math.round(rects[i] * scale));
+            int top = Math.max(0, Math.round(rects[i + 1] * scale));
+            int right = Math.min(width, Math.round(rects[i + 2] * scale));
+            int bottom = Math.min(height, Math.round(rects[i + 3] * scale));
+            for (int y = top; y < bottom; y++) {
+                int row = y * width;
+                for (int x = left; x < right; x++) {
+                    pixels[row + x] = blendPixel(pixels[row + x], color, alpha);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a point to the end of the polyline.
+     *
+     * @param x X-coordinate of the point.
+     * @param y Y-coordinate of the point.
+     */
+    private void addPoint(float x, float y) {
+        if (polylineSize + 2 > polyline.length) {
+            polyline = Arrays.copyOf(polyline, polyline.length * 2);
+        }
+        polyline[polylineSize++] = x;
+        polyline[polylineSize++] = y;
+    }
+
+    /**
+     * Adds a quadratic curve from the given start point to the polyline,
+     * split into segments. The start point must already be in it.
+     *
+     * @param x0 X-coordinate of the start point.
+     * @param y0 Y-coordinate of the start point.
+     * @param cx X-coordinate of the control point.
+     * @param cy Y-coordinate of the control point.
+     * @param x1 X-coordinate of the end point.
+     * @param y1 Y-coordinate of the end point.
+     */
+    private void addQuad(float x0, float y0, float cx, float cy, float x1, float y1) {
+        // The distance of the curve from a chord is at most a quarter of
+        // the second difference, divided by the square of the number of
+        // segments.
+        float ddx = x0 - 2 * cx + x1;
+        float ddy = y0 - 2 * cy + y1;
+        float dd = (float) Math.sqrt(ddx * ddx + ddy * ddy);
+        int segments = Math.max(1, (int) Math.ceil(Math.sqrt(dd / (4 * FLATNESS))));
+        for (int s = 1; s <= segments; s++) {
+            float t = s / (float) segments;
+            float u = 1 - t;
+            addPoint(u * u * x0 + 2 * u * t * cx + t * t * x1,
+                    u * u * y0 + 2 * u * t * cy + t * t * y1);
+        }
+    }
+
+    /**
+     * Adds an elliptical arc to the polyline, including its start point.
+     *
+     * @param cx X-coordinate of the center.
+     * @param cy Y-coordinate of the center.
+     * @param rx Horizontal radius.
+     * @param ry Vertical radius.
+     * @param start Angle of the start point in radians.
+     * @param sweep Angle of the arc in radians.
+     */
+    private void addArc(float cx, float cy, float rx, float ry, double start, double sweep) {
+        float radius = Math.max(rx, ry);
+        int segments = 1;
+        if (radius > FLATNESS) {
+            double step = 2 * Math.acos(1 - FLATNESS / radius);
+            segments = Math.max(1, (int) Math.ceil(Math.abs(sweep) / step));
+        }
+        for (int s = 0; s <= segments; s++) {
+            double angle = start + sweep * s / segments;
+            addPoint(cx + rx * (float) Math.cos(angle), cy + ry * (float) Math.sin(angle));
+        }
+    }
+
+    /**
+     * Stamps the segments of the polyline into the coverage mask.
+     *
+     * @param closed Whether the last point is connected to the first.
+     * @param halfWidth Half of the stroke width.
+     * @param squareCap Whether the ends of an open polyline are squared
+     *                  off half of the width past the end points.
+     */
+    private void strokePolyline(boolean closed, float halfWidth, boolean squareCap) {
+        int count = polylineSize / 2;
+        float[] p = polyline;
+        if (count == 1) {
+            stampSegment(p[0], p[1], p[0], p[1], halfWidth);
+        }
+        for (int i = 1; i < count; i++) {
+            stampSegment(p[i * 2 - 2], p[i * 2 - 1], p[i * 2], p[i * 2 + 1], halfWidth);
+        }
+        if (closed && count > 2) {
+            stampSegment(p[count * 2 - 2], p[count * 2 - 1], p[0], p[1], halfWidth);
+        }
+
+        if (squareCap && !closed) {
+            int last = count - 1;
+            stampSquare(p[0], p[1], p[0] - p[Math.min(1, last) * 2], p[1] - p[Math.min(1, last) * 2 + 1],
+                    halfWidth);
+            stampSquare(p[last * 2], p[last * 2 + 1], p[last * 2] - p[Math.max(0, last - 1) * 2],
+                    p[last * 2 + 1] - p[Math.max(0, last - 1) * 2 + 1], halfWidth);
+        }
+    }
+
+    /**
+     * Stamps a segment with round ends into the coverage mask.
+     *
+     * @param ax X-coordinate of the start of the segment.
+     * @param ay Y-coordinate of the start of the segment.
+     * @param bx X-coordinate of the end of the segment.
+     * @param by Y-coordinate of the end of the segment.
+     * @param halfWidth Half of the stroke width.
+     */
+    private void stampSegment(float ax, float ay, float bx, float by, float halfWidth) {
+        float reach = halfWidth + 1;
+        int x0 = Math.max(0, (int) Math.floor(Math.min(ax, bx) - reach));
+        int y0 = Math.max(0, (int) Math.floor(Math.min(ay, by) - reach));
+        int x1 = Math.min(width - 1, (int) Math.ceil(Math.max(ax, bx) + reach));
+        int y1 = Math.min(height - 1, (int) Math.ceil(Math.max(ay, by) + reach));
+        if (x0 > x1 || y0 > y1) {
+            return;
+        }
+        markDirty(x0, y0, x1, y1);
+
+        // Lines thinner than a pixel get coverage in proportion to
+        // their width.
+        float maxCoverage = Math.min(1, halfWidth * 2);
+        float dx = bx - ax;
+        float dy = by - ay;
+        float lengthSquared = dx * dx + dy * dy;
+        for (int y = y0; y <= y1; y++) {
+            float py = y + 0.5f;
+            int row = y * width;
+            for (int x = x0; x <= x1; x++) {
+                float px = x + 0.5f;
+                float t = 0;
+                if (lengthSquared > 0) {
+                    t = ((px - ax) * dx + (py - ay) * dy) / lengthSquared;
+                    t = Math.max(0, Math.min(1, t));
+                }
+                float ex = px - (ax + t * dx);
+                float ey = py - (ay + t * dy);
+                float c = halfWidth + 0.5f - (float) Math.sqrt(ex * ex + ey * ey);
+                if (c > 0) {
+                    cover(row + x, Math.min(c, maxCoverage));
+                }
+            }
+        }
+    }
+
+    /**
+     * Stamps a square centered at an end point and turned along the
+     * direction of the line into the coverage mask, which squares off
+     * the round end of the segment there.
+     *
+     * @param cx X-coordinate of the end point.
+     * @param cy Y-coordinate of the end point.
+     * @param dx X-component of the direction of the line at the end.
+     * @param dy Y-component of the direction of the line at the end.
+     * @param halfWidth Half of the stroke width.
+     */
+    private void stampSquare(float cx, float cy, float dx, float dy, float halfWidth) {
+        float length = (float) Math.sqrt(dx * dx + dy * dy);
+        float ux = 1;
+        float uy = 0;
+        if (length > 0) {
+            ux = dx / length;
+            uy = dy / length;
+        }
+
+        float reach = halfWidth * (float) Math.sqrt(2) + 1;
+        int x0 = Math.max(0, (int) Math.floor(cx - reach));
+        int y0 = Math.max(0, (int) Math.floor(cy - reach));
+        int x1 = Math.min(width - 1, (int) Math.ceil(cx + reach));
+        int y1 = Math.min(height - 1, (int) Math.ceil(cy + reach));
+        if (x0 > x1 || y0 > y1) {
+            return;
+        }
+        markDirty(x0, y0, x1, y1);
+
+        float maxCoverage = Math.min(1, halfWidth * 2);
+        for (int y = y0; y <= y1; y++) {
+            float py = y + 0.5f - cy;
+            int row = y * width;
+            for (int x = x0; x <= x1; x++) {
+                float px = x + 0.5f - cx;
+                float along = Math.abs(px * ux + py * uy);
+                float across = Math.abs(px * uy - py * ux);
+                float c = halfWidth + 0.5f - Math.max(along, across);
+                if (c > 0) {
+                    cover(row + x, Math.min(c, maxCoverage));
+                }
+            }
+        }
+    }
+
+    /**
+     * Raises the coverage of a pixel in the mask to the given value.
+     *
+     * @param index Index of the pixel.
+     * @param value Coverage from 0 to 1, or more for full coverage.
+     */
+    private void cover(int index, float value) {
+        int c = value >= 1 ? 255 : (int) (value * 255 + 0.5f);
+        if (c > (coverage[index] & 0xFF)) {
+            coverage[index] = (byte) c;
+        }
+    }
+
+    /**
+     * Grows the written area of the mask to include the given area.
+     *
+     * @param x0 Left column of the area.
+     * @param y0 Top row of the area.
+     * @param x1 Right column of the area, inclusive.
+     * @param y1 Bottom row of the area, inclusive.
+     */
+    private void markDirty(int x0, int y0, int x1, int y1) {
+        dirtyLeft = Math.min(dirtyLeft, x0);
+        dirtyTop = Math.min(dirtyTop, y0);
+        dirtyRight = Math.max(dirtyRight, x1);
+        dirtyBottom = Math.max(dirtyBottom, y1);
+    }
+
+    /**
+     * Marks the mask empty.
+     */
+    private void resetDirty() {
+        dirtyLeft = Integer.MAX_VALUE;
+        dirtyTop = Integer.MAX_VALUE;
+        dirtyRight = -1;
+        dirtyBottom = -1;
+    }
+
+    /**
+     * Blurs the written area of the mask with BLUR_PASSES box blurs in
+     * both directions, growing the area by the reach of the blur.
+     *
+     * @param radius Radius of each box blur.
+     */
+    private void blurCoverage(int radius) {
+        if (dirtyRight < 0) {
+            return;
+        }
+        int grow = radius * BLUR_PASSES;
+        markDirty(Math.max(0, dirtyLeft - grow), Math.max(0, dirtyTop - grow),
+                Math.min(width - 1, dirtyRight + grow), Math.min(height - 1, dirtyBottom + grow));
+        int w = dirtyRight - dirtyLeft + 1;
+        int h = dirtyBottom - dirtyTop + 1;
+        int[] area = new int[w * h];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                area[y * w + x] = coverage[(dirtyTop + y) * width + dirtyLeft + x] & 0xFF;
+            }
+        }
+
+        int[] line = new int[Math.max(w, h)];
+        for (int pass = 0; pass < BLUR_PASSES; pass++) {
+            for (int y = 0; y < h; y++) {
+                boxBlur(area, y * w, 1, w, radius, line);
+            }
+            for (int x = 0; x < w; x++) {
+                boxBlur(area, x, w, h, radius, line);
+            }
+        }
+
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                coverage[(dirtyTop + y) * width + dirtyLeft + x] = (byte) area[y * w + x];
+            }
+        }
+    }
+
+    /**
+     * Replaces a row or column of values with their averages over a
+     * window of the given radius. Values outside of the row or column
+     * count as zero.
+     *
+     * @param values The values.
+     * @param start Index of the first value of the row or column.
+     * @param stride Distance between consecutive values.
+     * @param length Number of values in the row or column.
+     * @param radius Radius of the window.
+     * @param line Temporary array of at least the given length.
+     */
+    private static void boxBlur(int[] values, int start, int stride, int length, int radius, int[] line) {
+        int window = radius * 2 + 1;
+        int sum = 0;
+        for (int i = 0; i < Math.min(radius, length); i++) {
+            sum += values[start + i * stride];
+        }
+        for (int i = 0; i < length; i++) {
+            if (i + radius < length) {
+                sum += values[start + (i + radius) * stride];
+            }
+            if (i - radius - 1 >= 0) {
+                sum -= values[start + (i - radius - 1) * stride];
+            }
+            line[i] = (sum + window / 2) / window;
+        }
+        for (int i = 0; i < length; i++) {
+            values[start + i * stride] = line[i];
+        }
+    }
+
+    /**
+     * Blends the color onto the pixels with the coverage of the mask as
+     * alpha, and clears the mask.
+     *
+     * @param color The color of the line or shape.
+     */
+    private void blend(int color) {
+        int alpha = color >>> 24;
+        for (int y = dirtyTop; y <= dirtyBottom; y++) {
+            int row = y * width;
+            for (int x = dirtyLeft; x <= dirtyRight; x++) {
+                int m = coverage[row + x] & 0xFF;
+                if (m != 0) {
+                    coverage[row + x] = 0;
+                    pixels[row + x] = blendPixel(pixels[row + x], color, (alpha * m + 127) / 255);
+                }
+            }
+        }
+        resetDirty();
+    }
+
+    /**
+     * Draws a color over a pixel with the source over rule.
+     *
+     * @param dst The color of the pixel.
+     * @param color The color drawn over it. Its own alpha is ignored.
+     * @param alpha Alpha of the drawn color from 0 to 255.
+     * @return The resulting color.
+     */
+    static int blendPixel(int dst, int color, int alpha) {
+        if (alpha >= 255) {
+            return color | 0xFF000000;
+        }
+        if (alpha <= 0) {
+            return dst;
+        }
+        int dstAlpha = dst >>> 24;
+        int dstWeight = dstAlpha * (255 - alpha) / 255;
+        int outAlpha = alpha + dstWeight;
+        int r = (((color >> 16) & 0xFF) * alpha + ((dst >> 16) & 0xFF) * dstWeight) / outAlpha;
+        int g = (((color >> 8) & 0xFF) * alpha + ((dst >> 8) & 0xFF) * dstWeight) / outAlpha;
+        int b = ((color & 0xFF) * alpha + (dst & 0xFF) * dstWeight) / outAlpha;
+        return (outAlpha << 24) | (r << 16) | (g << 8) | b;
+    }
+}
@@ -0,0 +1,462 @@
+package fi.tamk.tiko.androidpaint;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+
+/**
+ * Uniform grid that is used to find the lines and shapes inside an area
+ * without going through all of them. Each item is stored in every grid
+ * cell its bounds touch, so a query only has to look at the cells the
+ * queried area touches. Items that would cover too many cells are kept
+ * in a separate list that every query checks.
+ *
+ * @param <T> Type of the stored items.
+ */
+public class SpatialIndex<T> {
+
+    /**
+     * The largest number of cells an item is stored in. Larger items
+     * are kept in the list of oversized items instead.
+     */
+    private static final int MAX_CELLS_PER_ITEM = 64;
+
+    /**
+     * Orders entries by the order they were inserted in.
+     */
+    private static final Comparator<Entry<?>> INSERTION_ORDER =
+            (a, b) -> Long.compare(a.sequence, b.sequence);
+
+    /**
+     * Bounds and bookkeeping of one stored item.
+     *
+     * @param <T> Type of the stored item.
+     */
+    private static class Entry<T> {
+
+        /**
+         * The stored item.
+         */
+        T item;
+
+        /**
+         * Bounds of the item.
+         */
+        float left, top, right, bottom;
+
+        /**
+         * Range of grid cells the item is stored in.
+         */
+        int minCol, minRow, maxCol, maxRow;
+
+        /**
+         * Whether the item is in the list of oversized items instead
+         * of in grid cells.
+         */
+        boolean oversized;
+
+        /**
+         * Number that tells the order in which items were inserted.
+         */
+        long sequence;
+
+        /**
+         * Number of the last query that found this entry.
+         */
+        int queryStamp;
+    }
+
+    /**
+     * Hash map from cell keys to cell lists with open addressing, so that
+     * looking up a cell does not box its key into a Long.
+     *
+     * @param <V> Type of the values.
+     */
+    private static class CellMap<V> {
+
+        /**
+         * Keys of the slots.
+         */
+        private long[] keys = new long[16];
+
+        /**
+         * Values of the slots, null for empty slots.
+         */
+        private Object[] values = new Object[16];
+
+        /**
+         * Number of stored values.
+         */
+        private int size;
+
+        /**
+         * @param key A key.
+         * @return The value of the key, or null if there is none.
+         */
+        @SuppressWarnings("unchecked")
+        V get(long key) {
+            int mask = keys.length - 1;
+            for (int i = slot(key, mask); values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return (V) values[i];
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Stores a value, replacing the previous value of the key.
+         *
+         * @param key The key.
+         * @param value The value, not null.
+         */
+        void put(long key, V value) {
+            if ((size + 1) * 4 > keys.length * 3) {
+                resize(keys.length * 2);
+            }
+            int mask = keys.length - 1;
+            int i = slot(key, mask);
+            while (values[i] != null) {
+                if (keys[i] == key) {
+                    values[i] = value;
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = value;
+            size++;
+        }
+
+        /**
+         * Removes the value of a key. The values after it in the same
+         * run of slots are shifted back, so no deleted markers are needed.
+         *
+         * @param key The key.
+         */
+        void remove(long key) {
+            int mask = keys.length - 1;
+            int i = slot(key, mask);
+            while (values[i] != null && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            if (values[i] == null) {
+                return;
+            }
+            values[i] = null;
+            size--;
+            for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+                int home = slot(keys[j], mask);
+                // The value at j can fill the hole at i unless its home
+                // slot is cyclically after i and at or before j.
+                boolean between = i <= j ? home > i && home <= j : home > i || home <= j;
+                if (!between) {
+                    keys[i] = keys[j];
+                    values[i] = values[j];
+                    values[j] = null;
+                    i = j;
+                }
+            }
+        }
+
+        /**
+         * @return Number of stored values.
+         */
+        int size() {
+            return size;
+        }
+
+        /**
+         * @return Number of slots, for going through them with valueAt.
+         */
+        int capacity() {
+            return values.length;
+        }
+
+        /**
+         * @param slot Index of a slot.
+         * @return The value in the slot, or null if the slot is empty.
+         */
+        @SuppressWarnings("unchecked")
+        V valueAt(int slot) {
+            return (V) values[slot];
+        }
+
+        /**
+         * Removes all values.
+         */
+        void clear() {
+            Arrays.fill(values, null);
+            size = 0;
+        }
+
+        /**
+         * Moves the values into a table with the given number of slots.
+         *
+         * @param capacity The new number of slots, a power of two.
+         */
+        @SuppressWarnings("unchecked")
+        private void resize(int capacity) {
+            long[] oldKeys = keys;
+            Object[] oldValues = values;
+            keys = new long[capacity];
+            values = new Object[capacity];
+            size = 0;
+            for (int i = 0; i < oldValues.length; i++) {
+                if (oldValues[i] != null) {
+                    put(oldKeys[i], (V) oldValues[i]);
+                }
+            }
+        }
+
+        /**
+         * @param key A key.
+         * @param mask Number of slots minus one.
+         * @return The slot where the search for the key starts.
+         */
+        private static int slot(long key, int mask) {
+            return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+        }
+    }
+
+    /**
+     * Width and height of one grid cell.
+     */
+    private final float cellSize;
+
+    /**
+     * The grid cells that contain items, keyed by their column and row.
+     */
+    private final CellMap<ArrayList<Entry<T>>> cells = new CellMap<>();
+
+    /**
+     * Items that are too large to be stored in cells.
+     */
+    private final ArrayList<Entry<T>> oversized = new ArrayList<>();
+
+    /**
+     * Entries of all stored items, used for removing items.
+     */
+    private final IdentityHashMap<T, Entry<T>> entries = new IdentityHashMap<>();
+
+    /**
+     * Reusable list of the entries found by a query.
+     */
+    private final ArrayList<Entry<T>> found = new ArrayList<>();
+
+    /**
+     * Number given to the next inserted item.
+     */
+    private long nextSequence;
+
+    /**
+     * Number of the current query. Entries remember the last query that
+     * found them so that items in several cells are returned only once.
+     */
+    private int queryStamp;
+
+    /**
+     * Constructs the index.
+     *
+     * @param cellSize Width and height of one grid cell. Should be a few
+     *                 times larger than a typical item.
+     */
+    public SpatialIndex(float cellSize) {
+        this.cellSize = cellSize;
+    }
+
+    /**
+     * Adds an item with the given bounds. If the item is already in the
+     * index, it is moved to the new bounds and counts as inserted last.
+     *
+     * @param item The item to add.
+     * @param left Left edge of the item.
+     * @param top Top edge of the item.
+     * @param right Right edge of the item.
+     * @param bottom Bottom edge of the item.
+     */
+    public void insert(T item, float left, float top, float right, float bottom) {
+        remove(item);
+
+        Entry<T> entry = new Entry<>();
+        entry.item = item;
+        entry.left = left;
+        entry.top = top;
+        entry.right = right;
+        entry.bottom = bottom;
+        entry.minCol = cell(left);
+        entry.minRow = cell(top);
+        entry.maxCol = cell(right);
+        entry.maxRow = cell(bottom);
+        entry.sequence = nextSequence++;
+
+        long cellCount = (long) (entry.maxCol - entry.minCol + 1) * (entry.maxRow - entry.minRow + 1);
+        if (cellCount > MAX_CELLS_PER_ITEM) {
+            entry.oversized = true;
+            oversized.add(entry);
+        } else {
+            for (int row = entry.minRow; row <= entry.maxRow; row++) {
+                for (int col = entry.minCol; col <= entry.maxCol; col++) {
+                    long key = key(col, row);
+                    ArrayList<Entry<T>> list = cells.get(key);
+                    if (list == null) {
+                        list = new ArrayList<>();
+                        cells.put(key, list);
+                    }
+                    list.add(entry);
+                }
+            }
+        }
+        entries.put(item, entry);
+    }
+
+    /**
+     * Removes an item from the index. Does nothing if the item is not
+     * in the index.
+     *
+     * @param item The item to remove.
+     * @return Whether the item was in the index.
+     */
+    public boolean remove(T item) {
+        Entry<T> entry = entries.remove(item);
+        if (entry == null) {
+            return false;
+        }
+
+        if (entry.oversized) {
+            oversized.remove(entry);
+        } else {
+            for (int row = entry.minRow; row <= entry.maxRow; row++) {
+                for (int col = entry.minCol; col <= entry.maxCol; col++) {
+                    long key = key(col, row);
+                    ArrayList<Entry<T>> list = cells.get(key);
+                    list.remove(entry);
+                    if (list.isEmpty()) {
+                        cells.remove(key);
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the items whose bounds intersect the given area. The items
+     * are added to the given collection in the order they were inserted.
+     *
+     * @param left Left edge of the area.
+     * @param top Top edge of the area.
+     * @param right Right edge of the area.
+     * @param bottom Bottom edge of the area.
+     * @param out Collection the found items are added to.
+     */
+    public void query(float left, float top, float right, float bottom, Collection<? super T> out) {
+        queryStamp++;
+        found.clear();
+
+        int minCol = cell(left);
+        int minRow = cell(top);
+        int maxCol = cell(right);
+        int maxRow = cell(bottom);
+        long cellCount = (long) (maxCol - minCol + 1) * (maxRow - minRow + 1);
+
+        if (cellCount > cells.size()) {
+            // The area covers more cells than there are non-empty ones,
+            // so going through the non-empty cells is cheaper.
+            for (int i = 0; i < cells.capacity(); i++) {
+                ArrayList<Entry<T>> list = cells.valueAt(i);
+                if (list != null) {
+                    collect(list, left, top, right, bottom);
+                }
+            }
+        } else {
+            for (int row = minRow; row <= maxRow; row++) {
+                for (int col = minCol; col <= maxCol; col++) {
+                    ArrayList<Entry<T>> list = cells.get(key(col, row));
+                    if (list != null) {
+                        collect(list, left, top, right, bottom);
+                    }
+                }
+            }
+        }
+        collect(oversized, left, top, right, bottom);
+
+        Collections.sort(found, INSERTION_ORDER);
+        for (int i = 0; i < found.size(); i++) {
+            out.add(found.get(i).item);
+        }
+        found.clear();
+    }
+
+    /**
+     * Finds the items whose bounds contain the given point. The items
+     * are added to the given collection in the order they were inserted.
+     *
+     * @param x X-coordinate of the point.
+     * @param y Y-coordinate of the point.
+     * @param out Collection the found items are added to.
+     */
+    public void queryPoint(float x, float y, Collection<? super T> out) {
+        query(x, y, x, y, out);
+    }
+
+    /**
+     * @param item An item.
+     * @return Whether the item is in the index.
+     */
+    public boolean contains(T item) {
+        return entries.containsKey(item);
+    }
+
+    /**
+     * @return Number of items in the index.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Removes all items from the index.
+     */
+    public void clear() {
+        cells.clear();
+        oversized.clear();
+        entries.clear();
+    }
+
+    /**
+     * Adds the entries of the list that intersect the area and have not
+     * been found by the current query yet to the found list.
+     */
+    private void collect(ArrayList<Entry<T>> list, float left, float top, float right, float bottom) {
+        for (int i = 0; i < list.size(); i++) {
+            Entry<T> entry = list.get(i);
+            if (entry.queryStamp != queryStamp
+                    && entry.left <= right && entry.right >= left
+                    && entry.top <= bottom && entry.bottom >= top) {
+                entry.queryStamp = queryStamp;
+                found.add(entry);
+            }
+        }
+    }
+
+    /**
+     * @param coordinate X- or y-coordinate.
+     * @return Column or row of the cell the coordinate is in.
+     */
+    private int cell(float coordinate) {
+        return (int) Math.floor(coordinate / cellSize);
+    }
+
+    /**
+     * @param col Column of a cell.
+     * @param row Row of a cell.
+     * @return Key of the cell in the cell map.
+     */
+    private static long key(int col, int row) {
+        return ((long) col << 32) | (row & 0xFFFFFFFFL);
+    }
+}
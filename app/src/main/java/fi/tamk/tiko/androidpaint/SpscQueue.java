@@ -0,0 +1,105 @@
+package fi.tamk.tiko.androidpaint;
+
+/**
+ * Bounded queue for handing objects from one thread to another without
+ * locking. Exactly one thread may call offer and exactly one other
+ * thread may call poll.
+ *
+ * The items are kept in a ring buffer whose length is a power of two.
+ * The producer only writes the tail and the consumer only writes the
+ * head, and both are volatile, so writing an item into the buffer
+ * before publishing the new tail makes the item visible to the consumer
+ * that reads the tail.
+ *
+ * @param <T> Type of the queued objects.
+ */
+public class SpscQueue<T> {
+
+    /**
+     * The ring buffer of queued items.
+     */
+    private final Object[] items;
+
+    /**
+     * Mask that turns a position into an index of the ring buffer.
+     */
+    private final int mask;
+
+    /**
+     * Position of the next item to poll. Only written by the consumer.
+     */
+    private volatile long head;
+
+    /**
+     * Position of the next item to offer. Only written by the producer.
+     */
+    private volatile long tail;
+
+    /**
+     * Constructs an empty queue.
+     *
+     * @param capacity The smallest number of items the queue must hold.
+     *                 Rounded up to a power of two.
+     */
+    public SpscQueue(int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Capacity out of range: " + capacity);
+        }
+        int length = Integer.highestOneBit(capacity);
+        if (length < capacity) {
+            length <<= 1;
+        }
+        items = new Object[length];
+        mask = length - 1;
+    }
+
+    /**
+     * Adds an item to the end of the queue. Only called by the producer.
+     *
+     * @param item The item to add, not null.
+     * @return Whether the item was added, false if the queue is full.
+     */
+    public boolean offer(T item) {
+        long position = tail;
+        if (position - head == items.length) {
+            return false;
+        }
+        items[(int) position & mask] = item;
+        tail = position + 1;
+        return true;
+    }
+
+    /**
+     * Removes the item at the front of the queue. Only called by the
+     * consumer.
+     *
+     * @return The removed item, or null if the queue is empty.
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        long position = head;
+        if (position == tail) {
+            return null;
+        }
+        int index = (int) position & mask;
+        T item = (T) items[index];
+        items[index] = null;
+        head = position + 1;
+        return item;
+    }
+
+    /**
+     * @return Whether the queue has no items. Exact only on the consumer
+     *         thread, where it can only change from true to false.
+     */
+    public boolean isEmpty() {
+        return head == tail;
+    }
+
+    /**
+     * @return Number of items the queue holds when full.
+     */
+    public int capacity() {
+        return items.length;
+    }
+}
@@ -0,0 +1,271 @@
+package fi.tamk.tiko.androidpaint;
+
+/**
+ * Builds the line that is being drawn from touch samples. Samples closer
+ * than the touch tolerance to the previous point are dropped, the area
+ * covered by the added segments is collected so that the view can be
+ * invalidated once per touch event, and the finished line is simplified.
+ *
+ * The class does not use Android classes, so stroke ingestion can be
+ * measured and tested on a plain JVM.
+ */
+public class StrokeBuilder {
+
+    /**
+     * The amount the user has to move their finger for the app to draw,
+     * in display pixels.
+     */
+    public static final float TOUCH_TOLERANCE = 4;
+
+    /**
+     * Part of the stroke width that a simplified line may differ from
+     * the drawn one. Differences are harder to see on wide lines.
+     */
+    private static final float SIMPLIFY_WIDTH_FRACTION = 0.08f;
+
+    /**
+     * Smallest simplification tolerance in density-independent pixels.
+     */
+    private static final float SIMPLIFY_MIN_TOLERANCE_DP = 0.3f;
+
+    /**
+     * Largest simplification tolerance in density-independent pixels.
+     */
+    private static final float SIMPLIFY_MAX_TOLERANCE_DP = 1.5f;
+
+    /**
+     * Removes redundant points from lines when they are finished.
+     */
+    private final StrokeSimplifier simplifier = new StrokeSimplifier();
+
+    /**
+     * The line that is being drawn, or null.
+     */
+    private DrawPath path;
+
+    /**
+     * Area covered by the segments added since the last resetDirty.
+     */
+    private float dirtyLeft, dirtyTop, dirtyRight, dirtyBottom;
+
+    /**
+     * Whether lines are simplified when they are finished.
+     */
+    private boolean simplifyStrokes = true;
+
+    /**
+     * Number of touch samples received, including the first point of
+     * each line.
+     */
+    private long samplesReceived;
+
+    /**
+     * Number of received touch samples that were added to a line.
+     */
+    private long samplesKept;
+
+    /**
+     * Number of points of finished lines before simplification.
+     */
+    private long strokePointsIn;
+
+    /**
+     * Number of points of finished lines after simplification.
+     */
+    private long strokePointsOut;
+
+    /**
+     * Starts a new line at the touched spot.
+     *
+     * @param path The new line without points.
+     * @param x X-coordinate of touched spot.
+     * @param y Y-coordinate of touched spot.
+     */
+    public void start(DrawPath path, float x, float y) {
+        this.path = path;
+        path.addPoint(x, y);
+        samplesReceived++;
+        samplesKept++;
+    }
+
+    /**
+     * Empties the area covered by added segments.
+     */
+    public void resetDirty() {
+        dirtyLeft = Float.MAX_VALUE;
+        dirtyTop = Float.MAX_VALUE;
+        dirtyRight = -Float.MAX_VALUE;
+        dirtyBottom = -Float.MAX_VALUE;
+    }
+
+    /**
+     * Adds one touch sample to the line, if it is far enough from the
+     * previous point of the line.
+     *
+     * @param x X-coordinate of touched spot.
+     * @param y Y-coordinate of touched spot.
+     * @param scale Zoom of the view, which the touch tolerance is
+     *              divided by.
+     * @return Whether the sample was added.
+     */
+    public boolean addSample(float x, float y, float scale) {
+        samplesReceived++;
+        int last = path.getPointCount() - 1;
+        float lastX = path.getX(last);
+        float lastY = path.getY(last);
+        float dx = Math.abs(x - lastX);
+        float dy = Math.abs(y - lastY);
+        float tolerance = TOUCH_TOLERANCE / scale;
+
+        if (dx < tolerance && dy < tolerance) {
+            return false;
+        }
+        path.addPoint(x, y);
+
+        // The new segment is a quadratic curve from halfway between
+        // the two previous points, controlled by the previous point,
+        // to halfway to the new point. It stays inside the triangle
+        // formed by these three points.
+        float startX = lastX;
+        float startY = lastY;
+        if (last > 0) {
+            startX = (lastX + path.getX(last - 1)) / 2;
+            startY = (lastY + path.getY(last - 1)) / 2;
+        }
+        float endX = (x + lastX) / 2;
+        float endY = (y + lastY) / 2;
+
+        dirtyLeft = Math.min(dirtyLeft, Math.min(startX, Math.min(lastX, endX)));
+        dirtyTop = Math.min(dirtyTop, Math.min(startY, Math.min(lastY, endY)));
+        dirtyRight = Math.max(dirtyRight, Math.max(startX, Math.max(lastX, endX)));
+        dirtyBottom = Math.max(dirtyBottom, Math.max(startY, Math.max(lastY, endY)));
+        samplesKept++;
+        return true;
+    }
+
+    /**
+     * Finishes the line at its last point and removes points that do not
+     * change its shape, with a tolerance that grows with its stroke width
+     * and is kept within limits scaled by the size of a
+     * density-independent pixel in the drawing.
+     *
+     * @param dp Size of a density-independent pixel in the coordinates
+     *           of the drawing.
+     * @return The finished line, which is no longer held by the builder.
+     */
+    public DrawPath finish(float dp) {
+        DrawPath finished = path;
+        path = null;
+        finished.finish();
+        if (simplifyStrokes) {
+            float tolerance = Math.max(SIMPLIFY_MIN_TOLERANCE_DP * dp,
+                    Math.min(SIMPLIFY_MAX_TOLERANCE_DP * dp,
+                            finished.getStrokeWidth() * SIMPLIFY_WIDTH_FRACTION));
+            strokePointsIn += finished.getPointCount();
+            strokePointsOut += finished.simplify(simplifier, tolerance);
+        }
+        return finished;
+    }
+
+    /**
+     * Forgets the line without finishing it. The line is returned so
+     * that its area can be redrawn before it is recycled.
+     *
+     * @return The discarded line, or null if no line was being drawn.
+     */
+    public DrawPath cancel() {
+        DrawPath cancelled = path;
+        path = null;
+        return cancelled;
+    }
+
+    /**
+     * @return The line that is being drawn, or null.
+     */
+    public DrawPath getPath() {
+        return path;
+    }
+
+    /**
+     * @return Whether segments have been added since the last resetDirty.
+     */
+    public boolean isDirty() {
+        return dirtyLeft <= dirtyRight;
+    }
+
+    /**
+     * @return Left edge of the area covered by added segments.
+     */
+    public float getDirtyLeft() {
+        return dirtyLeft;
+    }
+
+    /**
+     * @return Top edge of the area covered by added segments.
+     */
+    public float getDirtyTop() {
+        return dirtyTop;
+    }
+
+    /**
+     * @return Right edge of the area covered by added segments.
+     */
+    public float getDirtyRight() {
+        return dirtyRight;
+    }
+
+    /**
+     * @return Bottom edge of the area covered by added segments.
+     */
+    public float getDirtyBottom() {
+        return dirtyBottom;
+    }
+
+    /**
+     * @param simplifyStrokes Whether lines are simplified when they
+     *                        are finished.
+     */
+    public void setSimplificationEnabled(boolean simplifyStrokes) {
+        this.simplifyStrokes = simplifyStrokes;
+    }
+
+    /**
+     * @return Number of touch samples received, including historical
+     *         samples.
+     */
+    public long getSamplesReceived() {
+        return samplesReceived;
+    }
+
+    /**
+     * @return Number of touch samples that passed the touch tolerance
+     *         check and were added to lines.
+     */
+    public long getSamplesKept() {
+        return samplesKept;
+    }
+
+    /**
+     * @return Number of points of finished lines before simplification.
+     */
+    public long getStrokePointsIn() {
+        return strokePointsIn;
+    }
+
+    /**
+     * @return Number of points of finished lines after simplification.
+     */
+    public long getStrokePointsOut() {
+        return strokePointsOut;
+    }
+
+    /**
+     * Resets the sample and simplification counters to zero.
+     */
+    public void resetCounters() {
+        samplesReceived = 0;
+        samplesKept = 0;
+        strokePointsIn = 0;
+        strokePointsOut = 0;
+    }
+}
@@ -0,0 +1,334 @@
+package fi.tamk.tiko.androidpaint;
+
+/**
+ * Predicts where the finger drawing a line will be in the next few
+ * milliseconds, so that the line can be drawn a little ahead of the last
+ * touch sample and does not seem to trail the finger.
+ *
+ * The prediction extrapolates the last three samples with their velocity
+ * and a damped acceleration, which is stopped where it would turn the
+ * motion around. The predicted points are only kept here and drawn as a
+ * provisional tail; they are replaced with every new prediction and are
+ * never added to the line.
+ *
+ * Each prediction is remembered until real samples reach its time, and
+ * the distance between the predicted point and the real position at
+ * that time is collected as the prediction error.
+ *
+ * The class does not use Android classes, so it can be tested on a
+ * plain JVM.
+ */
+public class StrokePredictor {
+
+    /**
+     * Default time predicted ahead of the last sample in milliseconds.
+     */
+    public static final int DEFAULT_HORIZON_MS = 24;
+
+    /**
+     * Number of points each prediction contains, evenly spaced in time
+     * up to the horizon.
+     */
+    public static final int PREDICTED_POINTS = 3;
+
+    /**
+     * Number of latest samples the prediction is made from.
+     */
+    private static final int SAMPLES = 3;
+
+    /**
+     * Part of the measured acceleration used for extrapolation. Touch
+     * samples are noisy, so the full acceleration overshoots.
+     */
+    private static final float ACCELERATION_DAMPING = 0.5f;
+
+    /**
+     * Number of predictions that can wait for real samples to reach
+     * their time.
+     */
+    private static final int PENDING = 8;
+
+    /**
+     * X-coordinates of the latest samples, the newest last.
+     */
+    private final float[] sampleX = new float[SAMPLES];
+
+    /**
+     * Y-coordinates of the latest samples, the newest last.
+     */
+    private final float[] sampleY = new float[SAMPLES];
+
+    /**
+     * Times of the latest samples in milliseconds, the newest last.
+     */
+    private final long[] sampleTime = new long[SAMPLES];
+
+    /**
+     * Number of samples in use.
+     */
+    private int sampleCount;
+
+    /**
+     * The predicted points of the latest prediction as x and y pairs.
+     */
+    private final float[] predicted = new float[PREDICTED_POINTS * 2];
+
+    /**
+     * Number of points in the latest prediction.
+     */
+    private int predictedCount;
+
+    /**
+     * Times of the last points of predictions waiting to be compared
+     * with real samples, in a ring buffer.
+     */
+    private final long[] pendingTime = new long[PENDING];
+
+    /**
+     * X-coordinates of the last points of the pending predictions.
+     */
+    private final float[] pendingX = new float[PENDING];
+
+    /**
+     * Y-coordinates of the last points of the pending predictions.
+     */
+    private final float[] pendingY = new float[PENDING];
+
+    /**
+     * Index of the oldest pending prediction and the number of them.
+     */
+    private int pendingHead, pendingCount;
+
+    /**
+     * Number of predictions compared with real samples.
+     */
+    private long errorCount;
+
+    /**
+     * Sum of the distances between predicted and real positions.
+     */
+    private double errorSum;
+
+    /**
+     * Largest distance between a predicted and the real position.
+     */
+    private float errorMax;
+
+    /**
+     * Forgets the samples and predictions of the previous line. The
+     * error counters are kept.
+     */
+    public void reset() {
+        sampleCount = 0;
+        predictedCount = 0;
+        pendingHead = 0;
+        pendingCount = 0;
+    }
+
+    /**
+     * Adds a touch sample. Predictions whose time the sample has reached
+     * are compared with the real position, which is interpolated between
+     * the previous sample and this one. A sample with the same time as
+     * the previous one replaces it, and older samples are ignored.
+     *
+     * @param x X-coordinate of the sample.
+     * @param y Y-coordinate of the sample.
+     * @param time Time of the sample in milliseconds.
+     */
+    public void addSample(float x, float y, long time) {
+        if (sampleCount > 0) {
+            int last = sampleCount - 1;
+            long lastTime = sampleTime[last];
+            if (time < lastTime) {
+                return;
+            }
+            if (time == lastTime) {
+                sampleX[last] = x;
+                sampleY[last] = y;
+                return;
+            }
+            measurePending(sampleX[last], sampleY[last], lastTime, x, y, time);
+        }
+
+        if (sampleCount == SAMPLES) {
+            System.arraycopy(sampleX, 1, sampleX, 0, SAMPLES - 1);
+            System.arraycopy(sampleY, 1, sampleY, 0, SAMPLES - 1);
+            System.arraycopy(sampleTime, 1, sampleTime, 0, SAMPLES - 1);
+            sampleCount--;
+        }
+        sampleX[sampleCount] = x;
+        sampleY[sampleCount] = y;
+        sampleTime[sampleCount] = time;
+        sampleCount++;
+    }
+
+    /**
+     * Predicts the positions of the finger after the last sample. Nothing
+     * is predicted before there are two samples.
+     *
+     * @param horizonMs How far ahead of the last sample is predicted in
+     *                  milliseconds, 0 to predict nothing.
+     * @param maxDistance The farthest a predicted point may be from the
+     *                    last sample. Points farther away are pulled
+     *                    back towards it.
+     * @return Number of predicted points.
+     */
+    public int predict(int horizonMs, float maxDistance) {
+        predictedCount = 0;
+        if (horizonMs <= 0 || sampleCount < 2) {
+            return 0;
+        }
+
+        int newest = sampleCount - 1;
+        float lastX = sampleX[newest];
+        float lastY = sampleY[newest];
+        float dt = sampleTime[newest] - sampleTime[newest - 1];
+        float vx = (lastX - sampleX[newest - 1]) / dt;
+        float vy = (lastY - sampleY[newest - 1]) / dt;
+        float ax = 0;
+        float ay = 0;
+        if (sampleCount == SAMPLES) {
+            float previousDt = sampleTime[1] - sampleTime[0];
+            float previousVx = (sampleX[1] - sampleX[0]) / previousDt;
+            float previousVy = (sampleY[1] - sampleY[0]) / previousDt;
+            float interval = (dt + previousDt) / 2;
+            ax = (vx - previousVx) / interval * ACCELERATION_DAMPING;
+            ay = (vy - previousVy) / interval * ACCELERATION_DAMPING;
+        }
+
+        for (int i = 1; i <= PREDICTED_POINTS; i++) {
+            float t = (float) horizonMs * i / PREDICTED_POINTS;
+            float dx = extrapolate(vx, ax, t);
+            float dy = extrapolate(vy, ay, t);
+            float distance = (float) Math.sqrt(dx * dx + dy * dy);
+            if (distance > maxDistance) {
+                dx *= maxDistance / distance;
+                dy *= maxDistance / distance;
+            }
+            predicted[predictedCount * 2] = lastX + dx;
+            predicted[predictedCount * 2 + 1] = lastY + dy;
+            predictedCount++;
+        }
+
+        addPending(sampleTime[newest] + horizonMs,
+                predicted[predictedCount * 2 - 2], predicted[predictedCount * 2 - 1]);
+        return predictedCount;
+    }
+
+    /**
+     * @return Number of points in the latest prediction.
+     */
+    public int getPredictedCount() {
+        return predictedCount;
+    }
+
+    /**
+     * @param index Index of a predicted point.
+     * @return X-coordinate of the point.
+     */
+    public float getPredictedX(int index) {
+        return predicted[index * 2];
+    }
+
+    /**
+     * @param index Index of a predicted point.
+     * @return Y-coordinate of the point.
+     */
+    public float getPredictedY(int index) {
+        return predicted[index * 2 + 1];
+    }
+
+    /**
+     * @return Number of predictions compared with real samples.
+     */
+    public long getErrorCount() {
+        return errorCount;
+    }
+
+    /**
+     * @return Sum of the distances between predicted and real positions.
+     */
+    public double getErrorSum() {
+        return errorSum;
+    }
+
+    /**
+     * @return Largest distance between a predicted and the real position.
+     */
+    public float getErrorMax() {
+        return errorMax;
+    }
+
+    /**
+     * Resets the error counters to zero.
+     */
+    public void resetCounters() {
+        errorCount = 0;
+        errorSum = 0;
+        errorMax = 0;
+    }
+
+    /**
+     * Moves along one axis with the given velocity and acceleration,
+     * stopping where the acceleration would turn the motion around.
+     *
+     * @param velocity Velocity along the axis per millisecond.
+     * @param acceleration Acceleration along the axis per millisecond squared.
+     * @param time Time moved in milliseconds.
+     * @return Distance moved along the axis.
+     */
+    private static float extrapolate(float velocity, float acceleration, float time) {
+        if (velocity * acceleration < 0) {
+            time = Math.min(time, -velocity / acceleration);
+        }
+        return velocity * time + acceleration * time * time / 2;
+    }
+
+    /**
+     * Remembers the last point of a prediction, dropping the oldest
+     * pending prediction if there is no room.
+     *
+     * @param time Time the point was predicted for.
+     * @param x Predicted x-coordinate.
+     * @param y Predicted y-coordinate.
+     */
+    private void addPending(long time, float x, float y) {
+        if (pendingCount == PENDING) {
+            pendingHead = (pendingHead + 1) % PENDING;
+            pendingCount--;
+        }
+        int index = (pendingHead + pendingCount) % PENDING;
+        pendingTime[index] = time;
+        pendingX[index] = x;
+        pendingY[index] = y;
+        pendingCount++;
+    }
+
+    /**
+     * Compares the pending predictions whose time is between two samples
+     * with the real position interpolated between the samples.
+     *
+     * @param x0 X-coordinate of the earlier sample.
+     * @param y0 Y-coordinate of the earlier sample.
+     * @param t0 Time of the earlier sample.
+     * @param x1 X-coordinate of the later sample.
+     * @param y1 Y-coordinate of the later sample.
+     * @param t1 Time of the later sample, after t0.
+     */
+    private void measurePending(float x0, float y0, long t0, float x1, float y1, long t1) {
+        while (pendingCount > 0 && pendingTime[pendingHead] <= t1) {
+            long time = pendingTime[pendingHead];
+            if (time >= t0) {
+                float f = (float) (time - t0) / (t1 - t0);
+                float dx = x0 + (x1 - x0) * f - pendingX[pendingHead];
+                float dy = y0 + (y1 - y0) * f - pendingY[pendingHead];
+                float error = (float) Math.sqrt(dx * dx + dy * dy);
+                errorCount++;
+                errorSum += error;
+                errorMax = Math.max(errorMax, error);
+            }
+            pendingHead = (pendingHead + 1) % PENDING;
+            pendingCount--;
+        }
+    }
+}
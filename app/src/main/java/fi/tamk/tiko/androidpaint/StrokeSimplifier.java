@@ -0,0 +1,137 @@
+package fi.tamk.tiko.androidpaint;
+
+import java.util.Arrays;
+
+/**
+ * Removes points of a finished line that do not change its shape by more
+ * than a tolerance, using the Ramer-Douglas-Peucker algorithm.
+ *
+ * The first and last points are always kept. Between two kept points,
+ * the point farthest from the segment joining them is kept if it is
+ * farther than the tolerance, and both halves are then simplified the
+ * same way. The ranges still to be checked are kept on a stack of ints
+ * instead of recursing, so long lines cannot overflow the call stack.
+ *
+ * The kept points are used as the control points of the smoothed path of
+ * the line just like the original points were, so the simplified line is
+ * drawn as a curve within about the tolerance of the original one.
+ */
+public class StrokeSimplifier {
+
+    /**
+     * Stack of the start and end indices of the ranges still to check.
+     */
+    private int[] stack = new int[64];
+
+    /**
+     * Whether each point is kept.
+     */
+    private boolean[] keep = new boolean[FloatArrayPool.MIN_LENGTH];
+
+    /**
+     * Simplifies the points in place. The kept points are moved to the
+     * start of the array in their original order.
+     *
+     * @param points The points as x and y coordinate pairs.
+     * @param count Number of points in the array.
+     * @param tolerance The largest distance a removed point may have from
+     *                  the simplified line.
+     * @return Number of points kept.
+     */
+    public int simplify(float[] points, int count, float tolerance) {
+        if (count < 3) {
+            return count;
+        }
+        if (keep.length < count) {
+            keep = new boolean[Math.max(count, keep.length * 2)];
+        }
+        Arrays.fill(keep, 0, count, false);
+        keep[0] = true;
+        keep[count - 1] = true;
+
+        float toleranceSquared = tolerance * tolerance;
+        int top = 0;
+        top = push(top, 0, count - 1);
+        while (top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+
+            float ax = points[first * 2];
+            float ay = points[first * 2 + 1];
+            float bx = points[last * 2];
+            float by = points[last * 2 + 1];
+            float farthest = -1;
+            int farthestIndex = -1;
+            for (int i = first + 1; i < last; i++) {
+                float d = distanceSquared(points[i * 2], points[i * 2 + 1], ax, ay, bx, by);
+                if (d > farthest) {
+                    farthest = d;
+                    farthestIndex = i;
+                }
+            }
+
+            if (farthest > toleranceSquared) {
+                keep[farthestIndex] = true;
+                top = push(top, first, farthestIndex);
+                top = push(top, farthestIndex, last);
+            }
+        }
+
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            if (keep[i]) {
+                points[kept * 2] = points[i * 2];
+                points[kept * 2 + 1] = points[i * 2 + 1];
+                kept++;
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Pushes a range onto the stack if it has points between its ends.
+     *
+     * @param top Current number of ints on the stack.
+     * @param first Index of the first point of the range.
+     * @param last Index of the last point of the range.
+     * @return The new number of ints on the stack.
+     */
+    private int push(int top, int first, int last) {
+        if (last - first < 2) {
+            return top;
+        }
+        if (top + 2 > stack.length) {
+            stack = Arrays.copyOf(stack, stack.length * 2);
+        }
+        stack[top] = first;
+        stack[top + 1] = last;
+        return top + 2;
+    }
+
+    /**
+     * Returns the squared distance of a point from a segment. A segment
+     * whose ends are at the same spot, which happens when a line returns
+     * to where it started, is treated as a point.
+     *
+     * @param px X-coordinate of the point.
+     * @param py Y-coordinate of the point.
+     * @param ax X-coordinate of the start of the segment.
+     * @param ay Y-coordinate of the start of the segment.
+     * @param bx X-coordinate of the end of the segment.
+     * @param by Y-coordinate of the end of the segment.
+     * @return The squared distance.
+     */
+    static float distanceSquared(float px, float py, float ax, float ay, float bx, float by) {
+        float dx = bx - ax;
+        float dy = by - ay;
+        float lengthSquared = dx * dx + dy * dy;
+        float t = 0;
+        if (lengthSquared > 0) {
+            t = ((px - ax) * dx + (py - ay) * dy) / lengthSquared;
+            t = Math.max(0, Math.min(1, t));
+        }
+        float ex = px - (ax + t * dx);
+        float ey = py - (ay + t * dy);
+        return ex * ex + ey * ey;
+    }
+}
@@ -0,0 +1,239 @@
+package fi.tamk.tiko.androidpaint;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+/**
+ * Checkpoint of the drawing that contains copies of the tiles of the
+ * surfaces of the layers along with the background color and the loaded
+ * image at that point of the history.
+ *
+ * A tile that has not changed since the previous checkpoint shares its
+ * copy with it instead of being copied again, so a checkpoint after a
+ * few strokes only copies the tiles the strokes touched, and many more
+ * checkpoints fit in the memory limit of the history. Shared copies are
+ * counted and returned to the pool when the last checkpoint using them
+ * is released.
+ *
+ * The byte count of a checkpoint covers only the tiles it copied itself.
+ * Checkpoints are dropped oldest first, so copies that outlive the
+ * checkpoint that made them are all used by the oldest remaining one,
+ * and the memory taken by the checkpoints exceeds their byte count by at
+ * most one copy of each tile of the layers.
+ */
+public class SurfaceCheckpoint implements CommandHistory.Checkpoint {
+
+    /**
+     * Copy of a tile that may be shared by several checkpoints.
+     */
+    private static class TileCopy {
+
+        /**
+         * The copied pixels.
+         */
+        final Bitmap bitmap;
+
+        /**
+         * Stamp of the tile when it was copied.
+         */
+        final long stamp;
+
+        /**
+         * Number of checkpoints using the copy.
+         */
+        int references = 1;
+
+        /**
+         * Constructs the object and sets its attributes.
+         *
+         * @param bitmap The copied pixels.
+         * @param stamp Stamp of the tile when it was copied.
+         */
+        TileCopy(Bitmap bitmap, long stamp) {
+            this.bitmap = bitmap;
+            this.stamp = stamp;
+        }
+    }
+
+    /**
+     * Size of the copy of one tile in bytes.
+     */
+    private static final long TILE_BYTES = (long) TiledSurface.TILE_SIZE * TiledSurface.TILE_SIZE * 4;
+
+    /**
+     * Ids of the layers whose tiles were copied.
+     */
+    private final int[] layerIds;
+
+    /**
+     * Copies of the tiles of the surface of each layer, null for empty
+     * tiles.
+     */
+    private final TileCopy[][] tiles;
+
+    /**
+     * The color of the background.
+     */
+    private final int backgroundColor;
+
+    /**
+     * The loaded image, or null. The image is owned by the ImageCommand
+     * that loaded it, not by the checkpoint.
+     */
+    private final ImportedImage image;
+
+    /**
+     * Pool that the tile copies are released to.
+     */
+    private final BitmapPool pool;
+
+    /**
+     * Number of bytes the tiles copied by this checkpoint take.
+     */
+    private final long byteCount;
+
+    /**
+     * Copies the tiles of the surfaces of the layers in the given stack,
+     * sharing the copies of the previous checkpoint for the tiles that
+     * have not changed since it.
+     *
+     * @param layers The layers to copy.
+     * @param backgroundColor The color of the background.
+     * @param image The loaded image, or null.
+     * @param pool Pool that the tile copies are taken from and released to.
+     * @param previous A checkpoint whose copies are shared, or null.
+     */
+    public SurfaceCheckpoint(LayerStack layers, int backgroundColor, ImportedImage image,
+                             BitmapPool pool, SurfaceCheckpoint previous) {
+        this.layerIds = new int[layers.size()];
+        this.tiles = new TileCopy[layers.size()][];
+        long bytes = 0;
+        for (int i = 0; i < layers.size(); i++) {
+            TiledSurface surface = layers.get(i).getSurface();
+            layerIds[i] = layers.get(i).getId();
+            TileCopy[] shared = previous != null ? previous.findTiles(layerIds[i]) : null;
+            if (shared != null && shared.length != surface.getTileSlotCount()) {
+                shared = null;
+            }
+            TileCopy[] copies = new TileCopy[surface.getTileSlotCount()];
+            for (int j = 0; j < copies.length; j++) {
+                long stamp = surface.getTileStamp(j);
+                if (shared != null && shared[j] != null && shared[j].stamp == stamp) {
+                    copies[j] = shared[j];
+                    copies[j].references++;
+                } else {
+                    Bitmap copy = surface.copyTile(j);
+                    if (copy != null) {
+                        copies[j] = new TileCopy(copy, stamp);
+                        bytes += TILE_BYTES;
+                    }
+                }
+            }
+            tiles[i] = copies;
+        }
+        this.backgroundColor = backgroundColor;
+        this.image = image;
+        this.pool = pool;
+        this.byteCount = bytes;
+    }
+
+    /**
+     * Copies the saved tiles back onto the surfaces of the layers in the
+     * given stack. Layers that were not in the checkpoint are released,
+     * so that they are rebuilt from the index.
+     *
+     * @param layers The layers to restore.
+     */
+    public void restore(LayerStack layers) {
+        for (int i = 0; i < layers.size(); i++) {
+            Layer layer = layers.get(i);
+            TiledSurface surface = layer.getSurface();
+            TileCopy[] copies = findTiles(layer.getId());
+            if (copies != null && copies.length == surface.getTileSlotCount()) {
+                for (int j = 0; j < copies.length; j++) {
+                    TileCopy copy = copies[j];
+                    if (copy == null) {
+                        surface.restoreTile(j, null, 0);
+                    } else {
+                        surface.restoreTile(j, copy.bitmap, copy.stamp);
+                    }
+                }
+                layer.setValid(true);
+            } else {
+                layer.release();
+            }
+        }
+    }
+
+    /**
+     * Copies the saved pixels of one layer inside the given area back
+     * onto its surface, leaving the rest of the surface as it is.
+     *
+     * @param layer The layer to restore.
+     * @param region The area to restore.
+     * @return Whether the layer was in the checkpoint. Nothing is
+     *         restored if it was not.
+     */
+    public boolean restore(Layer layer, Rect region) {
+        TiledSurface surface = layer.getSurface();
+        TileCopy[] copies = findTiles(layer.getId());
+        if (copies == null || copies.length != surface.getTileSlotCount()) {
+            return false;
+        }
+        for (int j = 0; j < copies.length; j++) {
+            TileCopy copy = copies[j];
+            if (copy == null) {
+                surface.restoreTile(j, null, 0, region);
+            } else {
+                surface.restoreTile(j, copy.bitmap, copy.stamp, region);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param id Id of a layer.
+     * @return Copies of the tiles of the layer, or null if the layer was
+     *         not in the checkpoint.
+     */
+    private TileCopy[] findTiles(int id) {
+        for (int i = 0; i < layerIds.length; i++) {
+            if (layerIds[i] == id) {
+                return tiles[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The color of the background.
+     */
+    public int getBackgroundColor() {
+        return backgroundColor;
+    }
+
+    /**
+     * @return The loaded image, or null.
+     */
+    public ImportedImage getImage() {
+        return image;
+    }
+
+    @Override
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    @Override
+    public void release() {
+        for (TileCopy[] layerTiles : tiles) {
+            for (int i = 0; i < layerTiles.length; i++) {
+                TileCopy copy = layerTiles[i];
+                if (copy != null && --copy.references == 0) {
+                    pool.put(copy.bitmap);
+                }
+                layerTiles[i] = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,580 @@
+package fi.tamk.tiko.androidpaint;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drawing surface that is split into square tiles. A tile bitmap is only
+ * allocated when something is drawn into it, so an empty or sparsely
+ * drawn surface takes little memory. Tiles are transparent where nothing
+ * has been drawn, and the background is drawn under them separately.
+ * Tiles that are no longer needed are put in a BitmapPool for reuse.
+ *
+ * Every tile has a stamp that changes whenever the tile is drawn into,
+ * cleared or restored. Stamps are unique across all surfaces, so a copy
+ * of a tile taken with its stamp is still equal to the tile as long as
+ * the stamps match, which lets checkpoints share copies of the tiles
+ * that did not change between them.
+ *
+ * The tiles can be shared with a snapshot that is read on another
+ * thread. The surface never draws into or pools a shared tile: it draws
+ * into a copy instead, and the snapshot gives the tiles that the surface
+ * no longer uses back to the pool when it is released.
+ */
+public class TiledSurface {
+
+    /**
+     * Width and height of one tile in pixels.
+     */
+    public static final int TILE_SIZE = 256;
+
+    /**
+     * Source of the stamps of all surfaces. A tile that has never been
+     * drawn into has stamp 0, which stands for an empty tile.
+     */
+    private static final AtomicLong STAMPS = new AtomicLong();
+
+    /**
+     * Interface for drawing something onto the surface. The painter is
+     * called once for each tile the drawing touches, with a canvas that
+     * is translated so that surface coordinates can be used.
+     */
+    public interface Painter {
+
+        /**
+         * Draws onto the given canvas.
+         *
+         * @param canvas Canvas of one tile, in surface coordinates.
+         */
+        void paint(Canvas canvas);
+    }
+
+    /**
+     * Read-only view of the tiles of a surface at the moment it was
+     * taken. It can be read on another thread while the surface keeps
+     * changing, and must be released on the thread that uses the
+     * surface.
+     */
+    public static class Snapshot implements ColorSampler.Layer {
+
+        /**
+         * The surface the tiles were taken from.
+         */
+        private final TiledSurface surface;
+
+        /**
+         * The tiles row by row, null for empty tiles.
+         */
+        private final Bitmap[] tiles;
+
+        /**
+         * Reusable rectangle for the area being read.
+         */
+        private final Rect area = new Rect();
+
+        /**
+         * Constructs the object and sets its attributes.
+         *
+         * @param surface The surface the tiles were taken from.
+         * @param tiles The shared tiles.
+         */
+        private Snapshot(TiledSurface surface, Bitmap[] tiles) {
+            this.surface = surface;
+            this.tiles = tiles;
+        }
+
+        @Override
+        public void getPixels(int[] out, int x, int y, int width, int height) {
+            surface.readTiles(tiles, area, out, x, y, width, height);
+        }
+
+        /**
+         * Stops sharing the tiles with the surface. Tiles that the
+         * surface has replaced since the snapshot was taken are put in
+         * the pool. The snapshot must not be read after this.
+         */
+        public void release() {
+            surface.unshare(tiles);
+        }
+    }
+
+    /**
+     * The width of the surface.
+     */
+    private final int width;
+
+    /**
+     * The height of the surface.
+     */
+    private final int height;
+
+    /**
+     * Number of tile columns.
+     */
+    private final int cols;
+
+    /**
+     * Number of tile rows.
+     */
+    private final int rows;
+
+    /**
+     * The tiles row by row. Null for tiles that nothing has been drawn into.
+     */
+    private final Bitmap[] tiles;
+
+    /**
+     * Stamps of the contents of the tiles row by row.
+     */
+    private final long[] stamps;
+
+    /**
+     * Whether each tile is shared with a snapshot.
+     */
+    private final boolean[] shared;
+
+    /**
+     * Whether a snapshot of the surface has not been released yet.
+     */
+    private boolean snapshotTaken;
+
+    /**
+     * Number of allocated tiles.
+     */
+    private int tileCount;
+
+    /**
+     * Pool that tiles are taken from and released to.
+     */
+    private final BitmapPool pool;
+
+    /**
+     * Canvas that is moved from tile to tile while drawing.
+     */
+    private final Canvas tileCanvas = new Canvas();
+
+    /**
+     * Reusable rectangle for the area being drawn.
+     */
+    private final Rect area = new Rect();
+
+    /**
+     * Constructs the surface without allocating any tiles.
+     *
+     * @param width The width of the surface.
+     * @param height The height of the surface.
+     * @param pool Pool that tiles are taken from and released to.
+     */
+    public TiledSurface(int width, int height, BitmapPool pool) {
+        this.width = width;
+        this.height = height;
+        this.pool = pool;
+        cols = (width + TILE_SIZE - 1) / TILE_SIZE;
+        rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        tiles = new Bitmap[cols * rows];
+        stamps = new long[cols * rows];
+        shared = new boolean[cols * rows];
+    }
+
+    /**
+     * Draws with the given painter onto every tile the given area
+     * touches, allocating the tiles if needed.
+     *
+     * @param bounds The area the drawing covers.
+     * @param clip Area outside of which nothing is drawn, or null.
+     * @param painter The painter that does the drawing.
+     */
+    public void draw(RectF bounds, Rect clip, Painter painter) {
+        bounds.roundOut(area);
+        if (clip != null && !area.intersect(clip)) {
+            return;
+        }
+        if (!area.intersect(0, 0, width, height)) {
+            return;
+        }
+
+        for (int row = area.top / TILE_SIZE; row <= (area.bottom - 1) / TILE_SIZE; row++) {
+            for (int col = area.left / TILE_SIZE; col <= (area.right - 1) / TILE_SIZE; col++) {
+                int tileX = col * TILE_SIZE;
+                int tileY = row * TILE_SIZE;
+                int index = row * cols + col;
+                tileCanvas.setBitmap(obtainTile(index));
+                stamps[index] = STAMPS.incrementAndGet();
+                tileCanvas.save();
+                tileCanvas.translate(-tileX, -tileY);
+                tileCanvas.clipRect(area);
+                painter.paint(tileCanvas);
+                tileCanvas.restore();
+            }
+        }
+        tileCanvas.setBitmap(null);
+    }
+
+    /**
+     * Makes the given area transparent. Tiles that are completely inside
+     * the area are released back to the pool.
+     *
+     * @param region The area to clear.
+     */
+    public void clear(Rect region) {
+        area.set(region);
+        if (!area.intersect(0, 0, width, height)) {
+            return;
+        }
+
+        for (int row = area.top / TILE_SIZE; row <= (area.bottom - 1) / TILE_SIZE; row++) {
+            for (int col = area.left / TILE_SIZE; col <= (area.right - 1) / TILE_SIZE; col++) {
+                int index = row * cols + col;
+                Bitmap tile = tiles[index];
+                if (tile == null) {
+                    continue;
+                }
+
+                int tileX = col * TILE_SIZE;
+                int tileY = row * TILE_SIZE;
+                if (area.left <= tileX && area.top <= tileY
+                        && area.right >= tileX + TILE_SIZE
+                        && area.bottom >= tileY + TILE_SIZE) {
+                    releaseTile(index);
+                } else {
+                    tileCanvas.setBitmap(obtainTile(index));
+                    tileCanvas.save();
+                    tileCanvas.translate(-tileX, -tileY);
+                    tileCanvas.clipRect(area);
+                    tileCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+                    tileCanvas.restore();
+                    stamps[index] = STAMPS.incrementAndGet();
+                }
+            }
+        }
+        tileCanvas.setBitmap(null);
+    }
+
+    /**
+     * Releases all tiles, making the whole surface transparent.
+     */
+    public void clear() {
+        for (int i = 0; i < tiles.length; i++) {
+            if (tiles[i] != null) {
+                releaseTile(i);
+            }
+        }
+    }
+
+    /**
+     * Draws the allocated tiles that intersect the given area onto
+     * the given canvas.
+     *
+     * @param canvas Canvas the tiles are drawn on.
+     * @param clip The area that needs to be drawn.
+     * @param paint Paint used for drawing the tiles.
+     */
+    public void drawTo(Canvas canvas, Rect clip, Paint paint) {
+        area.set(clip);
+        if (!area.intersect(0, 0, width, height)) {
+            return;
+        }
+
+        for (int row = area.top / TILE_SIZE; row <= (area.bottom - 1) / TILE_SIZE; row++) {
+            for (int col = area.left / TILE_SIZE; col <= (area.right - 1) / TILE_SIZE; col++) {
+                Bitmap tile = tiles[row * cols + col];
+                if (tile != null) {
+                    canvas.drawBitmap(tile, col * TILE_SIZE, row * TILE_SIZE, paint);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Number of tiles of the surface, allocated or not.
+     */
+    public int getTileSlotCount() {
+        return tiles.length;
+    }
+
+    /**
+     * @param index Index of a tile, row by row.
+     * @return Stamp of the current content of the tile.
+     */
+    public long getTileStamp(int index) {
+        return stamps[index];
+    }
+
+    /**
+     * Copies a tile into a bitmap taken from the pool.
+     *
+     * @param index Index of the tile, row by row.
+     * @return The copy, or null if the tile is empty.
+     */
+    public Bitmap copyTile(int index) {
+        if (tiles[index] == null) {
+            return null;
+        }
+        Bitmap copy = pool.get(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+        tileCanvas.setBitmap(copy);
+        tileCanvas.drawBitmap(tiles[index], 0, 0, null);
+        tileCanvas.setBitmap(null);
+        return copy;
+    }
+
+    /**
+     * Replaces the content of a tile with a copy taken with copyTile. The
+     * copy is not modified and can be restored again. Nothing is drawn if
+     * the tile still has the stamp of the copy.
+     *
+     * @param index Index of the tile, row by row.
+     * @param copy The copy, or null to make the tile empty.
+     * @param stamp Stamp of the tile when the copy was taken.
+     */
+    public void restoreTile(int index, Bitmap copy, long stamp) {
+        if (copy == null) {
+            if (tiles[index] != null) {
+                releaseTile(index);
+            }
+            return;
+        }
+        if (tiles[index] != null && stamps[index] == stamp) {
+            return;
+        }
+        if (tiles[index] != null && shared[index]) {
+            releaseTile(index);
+        }
+        Bitmap tile = tiles[index];
+        if (tile == null) {
+            tile = obtainTile(index);
+        } else {
+            tile.eraseColor(Color.TRANSPARENT);
+        }
+        tileCanvas.setBitmap(tile);
+        tileCanvas.drawBitmap(copy, 0, 0, null);
+        tileCanvas.setBitmap(null);
+        stamps[index] = stamp;
+    }
+
+    /**
+     * Replaces the part of a tile inside the given area with the same
+     * part of a copy taken with copyTile, leaving the rest of the tile
+     * as it is. Nothing is drawn if the tile does not touch the area or
+     * still has the stamp of the copy.
+     *
+     * @param index Index of the tile, row by row.
+     * @param copy The copy, or null for an empty tile.
+     * @param stamp Stamp of the tile when the copy was taken.
+     * @param region The area to restore.
+     */
+    public void restoreTile(int index, Bitmap copy, long stamp, Rect region) {
+        int tileX = (index % cols) * TILE_SIZE;
+        int tileY = (index / cols) * TILE_SIZE;
+        area.set(region);
+        if (!area.intersect(tileX, tileY, tileX + TILE_SIZE, tileY + TILE_SIZE)) {
+            return;
+        }
+        if (area.width() == TILE_SIZE && area.height() == TILE_SIZE) {
+            restoreTile(index, copy, stamp);
+            return;
+        }
+        if (tiles[index] == null ? copy == null : stamps[index] == stamp) {
+            return;
+        }
+
+        tileCanvas.setBitmap(obtainTile(index));
+        tileCanvas.save();
+        tileCanvas.translate(-tileX, -tileY);
+        tileCanvas.clipRect(area);
+        tileCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+        if (copy != null) {
+            tileCanvas.drawBitmap(copy, tileX, tileY, null);
+        }
+        tileCanvas.restore();
+        tileCanvas.setBitmap(null);
+        stamps[index] = STAMPS.incrementAndGet();
+    }
+
+    /**
+     * @param x X-coordinate of a pixel.
+     * @param y Y-coordinate of a pixel.
+     * @return The color of the pixel, transparent if nothing has been
+     *         drawn there or the pixel is outside of the surface.
+     */
+    public int getPixel(int x, int y) {
+        if (x < 0 || y < 0 || x >= width || y >= height) {
+            return Color.TRANSPARENT;
+        }
+        Bitmap tile = tiles[(y / TILE_SIZE) * cols + x / TILE_SIZE];
+        if (tile == null) {
+            return Color.TRANSPARENT;
+        }
+        return tile.getPixel(x % TILE_SIZE, y % TILE_SIZE);
+    }
+
+    /**
+     * Reads the colors of an area row by row with one call per tile.
+     * Pixels where nothing has been drawn or that are outside of the
+     * surface are transparent.
+     *
+     * @param out Array the colors are stored into, at least
+     *            width * height long.
+     * @param x Left edge of the area.
+     * @param y Top edge of the area.
+     * @param areaWidth Width of the area.
+     * @param areaHeight Height of the area.
+     */
+    public void getPixels(int[] out, int x, int y, int areaWidth, int areaHeight) {
+        readTiles(tiles, area, out, x, y, areaWidth, areaHeight);
+    }
+
+    /**
+     * Shares the tiles with a snapshot that can be read on another
+     * thread. Only one snapshot can be taken at a time.
+     *
+     * @return The snapshot.
+     * @throws IllegalStateException If the previous snapshot has not
+     *                               been released.
+     */
+    public Snapshot share() {
+        if (snapshotTaken) {
+            throw new IllegalStateException("The previous snapshot has not been released");
+        }
+        snapshotTaken = true;
+        for (int i = 0; i < tiles.length; i++) {
+            shared[i] = tiles[i] != null;
+        }
+        return new Snapshot(this, tiles.clone());
+    }
+
+    /**
+     * Stops sharing the tiles of a snapshot, putting the tiles the
+     * surface no longer uses in the pool.
+     *
+     * @param snapshotTiles The tiles of the snapshot.
+     */
+    private void unshare(Bitmap[] snapshotTiles) {
+        for (int i = 0; i < snapshotTiles.length; i++) {
+            if (snapshotTiles[i] == null) {
+                continue;
+            }
+            if (tiles[i] == snapshotTiles[i]) {
+                shared[i] = false;
+            } else {
+                pool.put(snapshotTiles[i]);
+            }
+        }
+        snapshotTaken = false;
+    }
+
+    /**
+     * Reads the colors of an area of the given tiles row by row with one
+     * call per tile.
+     *
+     * @param from The tiles of this surface or of a snapshot of it.
+     * @param rect Rectangle used for the area being read.
+     * @param out Array the colors are stored into, at least
+     *            width * height long.
+     * @param x Left edge of the area.
+     * @param y Top edge of the area.
+     * @param areaWidth Width of the area.
+     * @param areaHeight Height of the area.
+     */
+    private void readTiles(Bitmap[] from, Rect rect, int[] out, int x, int y,
+                           int areaWidth, int areaHeight) {
+        Arrays.fill(out, 0, areaWidth * areaHeight, Color.TRANSPARENT);
+        rect.set(x, y, x + areaWidth, y + areaHeight);
+        if (!rect.intersect(0, 0, width, height)) {
+            return;
+        }
+
+        for (int row = rect.top / TILE_SIZE; row <= (rect.bottom - 1) / TILE_SIZE; row++) {
+            for (int col = rect.left / TILE_SIZE; col <= (rect.right - 1) / TILE_SIZE; col++) {
+                Bitmap tile = from[row * cols + col];
+                if (tile == null) {
+                    continue;
+                }
+                int left = Math.max(rect.left, col * TILE_SIZE);
+                int top = Math.max(rect.top, row * TILE_SIZE);
+                int right = Math.min(rect.right, (col + 1) * TILE_SIZE);
+                int bottom = Math.min(rect.bottom, (row + 1) * TILE_SIZE);
+                tile.getPixels(out, (top - y) * areaWidth + left - x, areaWidth,
+                        left - col * TILE_SIZE, top - row * TILE_SIZE, right - left, bottom - top);
+            }
+        }
+    }
+
+    /**
+     * @return The width of the surface.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return The height of the surface.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return Number of allocated tiles.
+     */
+    public int getTileCount() {
+        return tileCount;
+    }
+
+    /**
+     * @return Number of bytes used by the allocated tiles.
+     */
+    public long getByteCount() {
+        return (long) tileCount * TILE_SIZE * TILE_SIZE * 4;
+    }
+
+    /**
+     * Returns the tile at the given index for drawing into, taking one
+     * from the pool or allocating it if the tile is empty. A tile that
+     * is shared with a snapshot is left to the snapshot and replaced
+     * with a copy.
+     *
+     * @param index Index of the tile.
+     * @return The tile bitmap.
+     */
+    private Bitmap obtainTile(int index) {
+        Bitmap tile = tiles[index];
+        if (tile == null) {
+            tile = pool.get(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+            tiles[index] = tile;
+            tileCount++;
+        } else if (shared[index]) {
+            Bitmap copy = pool.get(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+            tileCanvas.setBitmap(copy);
+            tileCanvas.drawBitmap(tile, 0, 0, null);
+            tileCanvas.setBitmap(null);
+            tiles[index] = copy;
+            shared[index] = false;
+            tile = copy;
+        }
+        return tile;
+    }
+
+    /**
+     * Removes the tile at the given index and gives it back to the pool.
+     *
+     * @param index Index of the tile.
+     */
+    private void releaseTile(int index) {
+        if (shared[index]) {
+            shared[index] = false;
+        } else {
+            pool.put(tiles[index]);
+        }
+        tiles[index] = null;
+        stamps[index] = STAMPS.incrementAndGet();
+        tileCount--;
+    }
+}
@@ -0,0 +1,225 @@
+package fi.tamk.tiko.androidpaint;
+
+/**
+ * Transform between the coordinates of the drawing and the coordinates
+ * of the view it is shown in. A point of the drawing is shown at
+ * x * scale + offsetX, y * scale + offsetY of the view.
+ *
+ * The offset is kept so that the drawing covers the view whenever it is
+ * larger than the view, and is centered in the view when it is smaller.
+ */
+public class Viewport {
+
+    /**
+     * Default smallest scale.
+     */
+    public static final float DEFAULT_MIN_SCALE = 0.25f;
+
+    /**
+     * Default largest scale.
+     */
+    public static final float DEFAULT_MAX_SCALE = 16;
+
+    /**
+     * Width of the drawing.
+     */
+    private float documentWidth;
+
+    /**
+     * Height of the drawing.
+     */
+    private float documentHeight;
+
+    /**
+     * Width of the view.
+     */
+    private float viewWidth;
+
+    /**
+     * Height of the view.
+     */
+    private float viewHeight;
+
+    /**
+     * Number of view pixels per pixel of the drawing.
+     */
+    private float scale = 1;
+
+    /**
+     * Position of the left edge of the drawing in the view.
+     */
+    private float offsetX;
+
+    /**
+     * Position of the top edge of the drawing in the view.
+     */
+    private float offsetY;
+
+    /**
+     * Smallest allowed scale.
+     */
+    private float minScale = DEFAULT_MIN_SCALE;
+
+    /**
+     * Largest allowed scale.
+     */
+    private float maxScale = DEFAULT_MAX_SCALE;
+
+    /**
+     * Sets the size of the drawing and keeps the offset valid.
+     *
+     * @param width Width of the drawing.
+     * @param height Height of the drawing.
+     */
+    public void setDocumentSize(float width, float height) {
+        documentWidth = width;
+        documentHeight = height;
+        clampOffset();
+    }
+
+    /**
+     * Sets the size of the view and keeps the offset valid.
+     *
+     * @param width Width of the view.
+     * @param height Height of the view.
+     */
+    public void setViewSize(float width, float height) {
+        viewWidth = width;
+        viewHeight = height;
+        clampOffset();
+    }
+
+    /**
+     * Shows the drawing at its own size from its top left corner.
+     */
+    public void reset() {
+        scale = 1;
+        offsetX = 0;
+        offsetY = 0;
+        clampOffset();
+    }
+
+    /**
+     * Scales the view around a point of the view, which keeps showing
+     * the same point of the drawing unless the scale or offset limits
+     * are reached.
+     *
+     * @param factor How much the scale is multiplied by.
+     * @param focusX X-coordinate of the point in the view.
+     * @param focusY Y-coordinate of the point in the view.
+     */
+    public void zoomBy(float factor, float focusX, float focusY) {
+        float newScale = Math.max(minScale, Math.min(maxScale, scale * factor));
+        float documentX = toDocumentX(focusX);
+        float documentY = toDocumentY(focusY);
+        scale = newScale;
+        offsetX = focusX - documentX * scale;
+        offsetY = focusY - documentY * scale;
+        clampOffset();
+    }
+
+    /**
+     * Moves the drawing in the view.
+     *
+     * @param dx Distance to move in view pixels to the right.
+     * @param dy Distance to move in view pixels down.
+     */
+    public void panBy(float dx, float dy) {
+        offsetX += dx;
+        offsetY += dy;
+        clampOffset();
+    }
+
+    /**
+     * Keeps the drawing covering the view on each axis where it is
+     * larger than the view, and centered where it is smaller.
+     */
+    private void clampOffset() {
+        offsetX = clampAxis(offsetX, documentWidth * scale, viewWidth);
+        offsetY = clampAxis(offsetY, documentHeight * scale, viewHeight);
+    }
+
+    /**
+     * @param offset Position of the drawing on the axis.
+     * @param size Scaled size of the drawing on the axis.
+     * @param view Size of the view on the axis.
+     * @return The position limited to the allowed range.
+     */
+    private static float clampAxis(float offset, float size, float view) {
+        if (size <= view) {
+            return (view - size) / 2;
+        }
+        return Math.max(view - size, Math.min(0, offset));
+    }
+
+    /**
+     * @param viewX X-coordinate in the view.
+     * @return X-coordinate in the drawing.
+     */
+    public float toDocumentX(float viewX) {
+        return (viewX - offsetX) / scale;
+    }
+
+    /**
+     * @param viewY Y-coordinate in the view.
+     * @return Y-coordinate in the drawing.
+     */
+    public float toDocumentY(float viewY) {
+        return (viewY - offsetY) / scale;
+    }
+
+    /**
+     * @param documentX X-coordinate in the drawing.
+     * @return X-coordinate in the view.
+     */
+    public float toViewX(float documentX) {
+        return documentX * scale + offsetX;
+    }
+
+    /**
+     * @param documentY Y-coordinate in the drawing.
+     * @return Y-coordinate in the view.
+     */
+    public float toViewY(float documentY) {
+        return documentY * scale + offsetY;
+    }
+
+    /**
+     * @return Whether the drawing is shown at its own size from its top
+     *         left corner, in which case no transform is needed.
+     */
+    public boolean isIdentity() {
+        return scale == 1 && offsetX == 0 && offsetY == 0;
+    }
+
+    /**
+     * @return Number of view pixels per pixel of the drawing.
+     */
+    public float getScale() {
+        return scale;
+    }
+
+    /**
+     * @return Position of the left edge of the drawing in the view.
+     */
+    public float getOffsetX() {
+        return offsetX;
+    }
+
+    /**
+     * @return Position of the top edge of the drawing in the view.
+     */
+    public float getOffsetY() {
+        return offsetY;
+    }
+
+    /**
+     * @param minScale Smallest allowed scale.
+     * @param maxScale Largest allowed scale.
+     */
+    public void setScaleLimits(float minScale, float maxScale) {
+        this.minScale = minScale;
+        this.maxScale = maxScale;
+        zoomBy(1, viewWidth / 2, viewHeight / 2);
+    }
+}
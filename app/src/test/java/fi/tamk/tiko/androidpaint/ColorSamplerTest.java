@@ -0,0 +1,85 @@
+package fi.tamk.tiko.androidpaint;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for ColorSampler.
+ */
+public class ColorSamplerTest {
+
+    /**
+     * Layer of a single color inside a 10 x 10 area.
+     */
+    private static ColorSampler.Layer solid(int color) {
+        return (out, x, y, width, height) -> {
+            for (int row = 0; row < height; row++) {
+                for (int col = 0; col < width; col++) {
+                    boolean inside = x + col >= 0 && y + row >= 0 && x + col < 10 && y + row < 10;
+                    out[row * width + col] = inside ? color : 0;
+                }
+            }
+        };
+    }
+
+    @Test
+    public void sample_compositesLayersFromBottomToTop() {
+        ColorSampler sampler = new ColorSampler(solid(0xFFFFFFFF), solid(0x80000000));
+        int[] out = new int[4];
+
+        sampler.sample(out, 9, 9, 2, 2);
+
+        int gray = out[0];
+        assertEquals(0xFF, gray >>> 24);
+        assertEquals(127, (gray >> 16) & 0xFF, 1);
+        assertEquals(gray, (gray & 0xFF0000) >> 16 | (gray & 0xFF0000) >> 8 | gray & 0xFFFF0000);
+        assertEquals(0, out[1]);
+        assertEquals(0, out[3]);
+    }
+
+    @Test
+    public void sample_mixesFixedLayersWithTheirOpacityAndBlend() {
+        ColorSampler sampler = new ColorSampler(solid(0xFF808080),
+                new ColorSampler.FixedLayer(solid(0xFF000000), 0, LayerBlend.NORMAL),
+                new ColorSampler.FixedLayer(solid(0xFFFFFFFF), 255, LayerBlend.DARKEN));
+        int[] out = new int[1];
+
+        sampler.sample(out, 0, 0, 1, 1);
+        assertEquals(0xFF808080, out[0]);
+
+        sampler.setLayers(solid(0xFF808080),
+                new ColorSampler.FixedLayer(solid(0xFF000000), 255, LayerBlend.LIGHTEN));
+        sampler.sample(out, 0, 0, 1, 1);
+        assertEquals(0xFF808080, out[0]);
+    }
+
+    @Test
+    public void average_weightsColorsByAlpha() {
+        int[] colors = {0xFFFF0000, 0x00000000, 0x00000000, 0xFFFF0000};
+
+        assertEquals(0x80FF0000, ColorSampler.average(colors, 2, 0, 0, 2));
+        assertEquals(0, ColorSampler.average(colors, 2, 1, 0, 1));
+    }
+
+    @Test
+    public void sampleAverage_averagesSquareAroundPixel() {
+        int[] stripes = new int[100];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = (i % 10) % 2 == 0 ? 0xFF000000 : 0xFFFFFFFF;
+        }
+        ColorSampler sampler = new ColorSampler((out, x, y, width, height) -> {
+            Arrays.fill(out, 0, width * height, 0);
+            for (int row = 0; row < height; row++) {
+                for (int col = 0; col < width; col++) {
+                    out[row * width + col] = stripes[(y + row) * 10 + x + col];
+                }
+            }
+        });
+
+        assertEquals(0xFF000000, sampler.sampleAverage(4, 4, 1, new int[1]));
+        assertEquals(0xFFAAAAAA, sampler.sampleAverage(4, 4, 3, new int[9]));
+    }
+}
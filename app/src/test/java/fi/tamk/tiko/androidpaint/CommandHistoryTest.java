@@ -0,0 +1,144 @@
+package fi.tamk.tiko.androidpaint;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for CommandHistory.
+ */
+public class CommandHistoryTest {
+
+    /**
+     * Checkpoint that only records whether it has been released.
+     */
+    private static class FakeCheckpoint implements CommandHistory.Checkpoint {
+
+        private final long bytes;
+
+        private boolean released;
+
+        FakeCheckpoint(long bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public long getByteCount() {
+            return bytes;
+        }
+
+        @Override
+        public void release() {
+            released = true;
+        }
+    }
+
+    /**
+     * Adds the given number of lines to the history, storing a
+     * checkpoint whenever one is due.
+     */
+    private static List<FakeCheckpoint> addLines(CommandHistory history, int count, long checkpointBytes) {
+        List<FakeCheckpoint> checkpoints = new ArrayList<>();
+        List<Command> removed = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            history.add(new DrawPath(0, 1, 0), removed);
+            if (history.needsCheckpoint()) {
+                FakeCheckpoint checkpoint = new FakeCheckpoint(checkpointBytes);
+                history.putCheckpoint(checkpoint);
+                checkpoints.add(checkpoint);
+            }
+        }
+        return checkpoints;
+    }
+
+    @Test
+    public void undoRedo_movesPosition() {
+        CommandHistory history = new CommandHistory(10, 1000);
+        List<Command> removed = new ArrayList<>();
+        Command a = new ClearCommand();
+        Command b = new BackgroundCommand(1, 0);
+        history.add(a, removed);
+        history.add(b, removed);
+
+        assertSame(b, history.undo());
+        assertSame(a, history.undo());
+        assertNull(history.undo());
+        assertFalse(history.canUndo());
+        assertSame(a, history.redo());
+        assertSame(b, history.redo());
+        assertNull(history.redo());
+        assertEquals(2, history.getPosition());
+    }
+
+    @Test
+    public void add_removesUndoneCommandsAndTheirCheckpoints() {
+        CommandHistory history = new CommandHistory(2, 1000);
+        List<FakeCheckpoint> checkpoints = addLines(history, 4, 10);
+        assertEquals(2, checkpoints.size());
+
+        history.undo();
+        history.undo();
+        List<Command> removed = new ArrayList<>();
+        history.add(new ClearCommand(), removed);
+
+        assertEquals(2, removed.size());
+        assertEquals(3, history.size());
+        assertFalse(checkpoints.get(0).released);
+        assertTrue(checkpoints.get(1).released);
+        assertEquals(1, history.getCheckpointCount());
+        assertFalse(history.canRedo());
+    }
+
+    @Test
+    public void findReplayStart_usesNearestCheckpointOrClear() {
+        CommandHistory history = new CommandHistory(5, 1000);
+        addLines(history, 12, 10);
+
+        assertEquals(0, history.findReplayStart(4));
+        assertEquals(5, history.findReplayStart(7));
+        assertEquals(10, history.findReplayStart(12));
+        assertNotNull(history.getCheckpoint(10));
+
+        history.add(new ClearCommand(), new ArrayList<>());
+        addLines(history, 1, 10);
+        assertEquals(12, history.findReplayStart(14));
+    }
+
+    @Test
+    public void getCheckpointBefore_findsLatestEarlierCheckpoint() {
+        CommandHistory history = new CommandHistory(5, 1000);
+        List<FakeCheckpoint> checkpoints = addLines(history, 12, 10);
+
+        assertNull(history.getCheckpointBefore(5));
+        assertSame(checkpoints.get(0), history.getCheckpointBefore(6));
+        assertSame(checkpoints.get(0), history.getCheckpointBefore(10));
+        assertSame(checkpoints.get(1), history.getCheckpointBefore(12));
+    }
+
+    @Test
+    public void putCheckpoint_dropsOldestWhenOverLimit() {
+        CommandHistory history = new CommandHistory(1, 25);
+        List<FakeCheckpoint> checkpoints = addLines(history, 4, 10);
+
+        assertEquals(2, history.getCheckpointCount());
+        assertEquals(20, history.getCheckpointBytes());
+        assertTrue(checkpoints.get(0).released);
+        assertTrue(checkpoints.get(1).released);
+        assertFalse(checkpoints.get(3).released);
+        assertEquals(4, history.findReplayStart(4));
+        assertEquals(0, history.findReplayStart(2));
+    }
+
+    @Test
+    public void replayLength_isBoundedByInterval() {
+        CommandHistory history = new CommandHistory(20, Long.MAX_VALUE);
+        addLines(history, 10000, 1);
+
+        for (int target = 0; target <= history.size(); target += 37) {
+            assertTrue(target - history.findReplayStart(target) < 20);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package fi.tamk.tiko.androidpaint;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the point storage of DrawPath and the pool its
+ * point arrays are borrowed from.
+ */
+public class DrawPathTest {
+
+    @Test
+    public void styleHeader_keepsColorWidthAndFlags() {
+        DrawPath dp = new DrawPath(0xFF123456, 250,
+                DrawPath.FLAG_BLUR | DrawPath.FLAG_SQUARE_CAP);
+
+        assertEquals(0xFF123456, dp.getColor());
+        assertEquals(250, dp.getStrokeWidth());
+        assertTrue(dp.getBlur());
+        assertFalse(dp.getEmboss());
+        assertEquals(DrawPath.FLAG_BLUR | DrawPath.FLAG_SQUARE_CAP, dp.getFlags());
+    }
+
+    @Test
+    public void addPoint_growsPastInitialCapacityAndKeepsPoints() {
+        DrawPath dp = new DrawPath(0, 10, 0);
+        int count = FloatArrayPool.MIN_LENGTH * 3;
+        for (int i = 0; i < count; i++) {
+            dp.addPoint(i, -i);
+        }
+
+        assertEquals(count, dp.getPointCount());
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, dp.getX(i), 0f);
+            assertEquals(-i, dp.getY(i), 0f);
+        }
+    }
+
+    @Test
+    public void addPoint_updatesBounds() {
+        DrawPath dp = new DrawPath(0, 10, 0);
+        dp.addPoint(10, 20);
+        dp.addPoint(-5, 40);
+        dp.addPoint(30, 0);
+
+        assertEquals(-5, dp.getLeft(), 0f);
+        assertEquals(0, dp.getTop(), 0f);
+        assertEquals(30, dp.getRight(), 0f);
+        assertEquals(40, dp.getBottom(), 0f);
+    }
+
+    @Test
+    public void pool_reusesReleasedArrays() {
+        FloatArrayPool pool = new FloatArrayPool(4);
+        float[] first = pool.acquire(100);
+
+        assertEquals(128, first.length);
+        pool.release(first);
+        assertEquals(1, pool.getFreeCount());
+        assertSame(first, pool.acquire(65));
+        assertEquals(0, pool.getFreeCount());
+    }
+
+    @Test
+    public void pool_dropsArraysOverLimit() {
+        FloatArrayPool pool = new FloatArrayPool(1);
+        pool.release(new float[FloatArrayPool.MIN_LENGTH]);
+        pool.release(new float[FloatArrayPool.MIN_LENGTH]);
+        pool.release(new float[FloatArrayPool.MIN_LENGTH + 1]);
+
+        assertEquals(1, pool.getFreeCount());
+    }
+}
@@ -0,0 +1,279 @@
+package fi.tamk.tiko.androidpaint;
+
+import org.junit.Test;
+
+import java.awt.BasicStroke;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests and size checks for DrawingDocument.
+ */
+public class DrawingDocumentTest {
+
+    /**
+     * Creates a history of random lines that wander like finger strokes.
+     */
+    private static CommandHistory randomHistory(Random random, int lines, int points, boolean fractional) {
+        CommandHistory history = new CommandHistory(0, 0);
+        List<Command> removed = new ArrayList<>();
+        for (int i = 0; i < lines; i++) {
+            DrawPath dp = new DrawPath(0xFF000000 | random.nextInt(8),
+                    5 + random.nextInt(3) * 10, random.nextInt(8));
+            float x = random.nextInt(1080);
+            float y = random.nextInt(1920);
+            for (int p = 0; p < points; p++) {
+                x += random.nextInt(41) - 20;
+                y += random.nextInt(41) - 20;
+                if (fractional) {
+                    dp.addPoint(x + random.nextFloat(), y + random.nextFloat());
+                } else {
+                    dp.addPoint(x, y);
+                }
+            }
+            dp.finish();
+            history.add(dp, removed);
+        }
+        return history;
+    }
+
+    /**
+     * Writes the history into a temporary file and reads it back.
+     */
+    private static DrawingDocument roundTrip(CommandHistory history) throws IOException {
+        File file = File.createTempFile("drawing", ".apd");
+        try {
+            DrawingDocument.copyOf(1080, 1920, history, false).write(file);
+            return DrawingDocument.read(file);
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void assertSamePath(DrawPath expected, DrawPath actual) {
+        assertEquals(expected.getColor(), actual.getColor());
+        assertEquals(expected.getStrokeWidth(), actual.getStrokeWidth());
+        assertEquals(expected.getFlags(), actual.getFlags());
+        assertEquals(expected.getLeft(), actual.getLeft(), 0);
+        assertEquals(expected.getBottom(), actual.getBottom(), 0);
+        assertEquals(expected.getPointCount(), actual.getPointCount());
+        for (int i = 0; i < expected.getPointCount(); i++) {
+            assertEquals(Float.floatToRawIntBits(expected.getX(i)), Float.floatToRawIntBits(actual.getX(i)));
+            assertEquals(Float.floatToRawIntBits(expected.getY(i)), Float.floatToRawIntBits(actual.getY(i)));
+        }
+        assertTrue(actual.isFinished());
+    }
+
+    @Test
+    public void roundTrip_keepsCommandsAndPosition() throws IOException {
+        CommandHistory history = randomHistory(new Random(1), 3, 50, false);
+        List<Command> removed = new ArrayList<>();
+        history.add(new BackgroundCommand(0xFF112233, 0xFFFFFFFF), removed);
+        history.add(new ColorCircle(0xFFFF0000, 12, 100.5f, 200.25f, 33.3f), removed);
+        history.add(new ClearCommand(), removed);
+        history.add(randomHistory(new Random(2), 1, 20, true).get(0), removed);
+        history.undo();
+
+        DrawingDocument document = roundTrip(history);
+
+        assertEquals(1080, document.getWidth());
+        assertEquals(1920, document.getHeight());
+        assertEquals(history.size(), document.getCommands().size());
+        assertEquals(history.getPosition(), document.getPosition());
+        for (int i = 0; i < 3; i++) {
+            assertSamePath((DrawPath) history.get(i), (DrawPath) document.getCommands().get(i));
+        }
+        BackgroundCommand bc = (BackgroundCommand) document.getCommands().get(3);
+        assertEquals(0xFF112233, bc.getColor());
+        assertEquals(0xFFFFFFFF, bc.getPreviousColor());
+        ColorCircle circle = (ColorCircle) document.getCommands().get(4);
+        assertEquals(0xFFFF0000, circle.getColor());
+        assertEquals(12, circle.getStrokeWidth());
+        assertEquals(100.5f, circle.getX(), 0);
+        assertEquals(200.25f, circle.getY(), 0);
+        assertEquals(33.3f, circle.getRadius(), 0);
+        assertTrue(document.getCommands().get(5) instanceof ClearCommand);
+        assertSamePath((DrawPath) history.get(6), (DrawPath) document.getCommands().get(6));
+    }
+
+    @Test
+    public void copyOf_writesLikeHistory() throws IOException {
+        CommandHistory history = randomHistory(new Random(4), 3, 30, true);
+        history.undo();
+        DrawingDocument copy = DrawingDocument.copyOf(1080, 1920, history, false);
+        history.add(new ClearCommand(), new ArrayList<Command>());
+
+        File file = File.createTempFile("drawing", ".apd");
+        try {
+            copy.write(file);
+            DrawingDocument document = DrawingDocument.read(file);
+            assertEquals(3, document.getCommands().size());
+            assertEquals(2, document.getPosition());
+            assertNotSame(history.get(0), copy.getCommands().get(0));
+            for (int i = 0; i < 2; i++) {
+                assertSamePath((DrawPath) history.get(i), (DrawPath) document.getCommands().get(i));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void roundTrip_keepsFills() throws IOException {
+        CommandHistory history = randomHistory(new Random(5), 1, 10, false);
+        int[] rects = {10, 20, 300, 21, 9, 21, 301, 400, -2, 400, 0, 1920};
+        history.add(new FillRegion(0x80FF8000, rects), new ArrayList<>());
+        history.add(randomHistory(new Random(6), 1, 10, false).get(0), new ArrayList<>());
+
+        DrawingDocument document = roundTrip(history);
+
+        FillRegion fill = (FillRegion) document.getCommands().get(1);
+        assertEquals(0x80FF8000, fill.getColor());
+        assertArrayEquals(rects, fill.getRects());
+        assertEquals(-2, fill.getLeft());
+        assertEquals(1920, fill.getBottom());
+        assertSamePath((DrawPath) history.get(2), (DrawPath) document.getCommands().get(2));
+    }
+
+    @Test
+    public void roundTrip_keepsLayers() throws IOException {
+        CommandHistory history = randomHistory(new Random(7), 1, 10, false);
+        int state = LayerCommand.packState(false, 128, LayerBlend.SCREEN);
+        history.add(new LayerCommand(LayerCommand.ADD, 3, -1, 1), new ArrayList<>());
+        history.add(new LayerCommand(LayerCommand.CHANGE, 3, LayerCommand.DEFAULT_STATE, state),
+                new ArrayList<>());
+        DrawPath onLayer = (DrawPath) randomHistory(new Random(8), 1, 10, false).get(0);
+        onLayer.setLayer(3);
+        history.add(onLayer, new ArrayList<>());
+
+        DrawingDocument document = roundTrip(history);
+
+        assertEquals(4, document.getCommands().size());
+        assertEquals(0, document.getCommands().get(0).getLayer());
+        LayerCommand add = (LayerCommand) document.getCommands().get(1);
+        assertEquals(LayerCommand.ADD, add.getKind());
+        assertEquals(3, add.getLayer());
+        assertEquals(1, add.getTo());
+        LayerCommand change = (LayerCommand) document.getCommands().get(2);
+        assertEquals(state, change.getTo());
+        assertEquals(LayerBlend.SCREEN, LayerCommand.getBlend(change.getTo()));
+        assertEquals(128, LayerCommand.getOpacity(change.getTo()));
+        assertFalse(LayerCommand.isVisible(change.getTo()));
+        assertEquals(3, document.getCommands().get(3).getLayer());
+        assertSamePath(onLayer, (DrawPath) document.getCommands().get(3));
+    }
+
+    @Test
+    public void read_decodesPointsOnlyWhenNeeded() throws IOException {
+        DrawingDocument document = roundTrip(randomHistory(new Random(3), 2, 10, false));
+        DrawPath first = (DrawPath) document.getCommands().get(0);
+        DrawPath second = (DrawPath) document.getCommands().get(1);
+
+        assertTrue(first.hasPendingPoints());
+        assertTrue(first.getRight() >= first.getLeft());
+        assertTrue(first.hasPendingPoints());
+        assertEquals(10, first.getPointCount());
+        assertFalse(first.hasPendingPoints());
+        assertTrue(second.hasPendingPoints());
+    }
+
+    @Test
+    public void decode_rejectsOtherFiles() {
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[64]);
+        try {
+            DrawingDocument.decode(buffer);
+            fail("expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void zigzag_roundTrips() {
+        int[] values = {0, 1, -1, 63, -64, Integer.MAX_VALUE, Integer.MIN_VALUE};
+        for (int value : values) {
+            assertEquals(value, DrawingDocument.unzigzag(DrawingDocument.zigzag(value)));
+        }
+        assertEquals(1, DrawingDocument.zigzag(-1));
+        assertEquals(2, DrawingDocument.zigzag(1));
+    }
+
+    /**
+     * Checks that a document of 500 lines of 100 points is smaller than
+     * the points stored as raw floats and than the same lines rendered
+     * into a PNG of the size of the screen. Encode and decode speeds are
+     * measured by DocumentBenchmark in the benchmark module.
+     */
+    @Test
+    public void encode_isSmallerThanRawFloatsAndPng() throws IOException {
+        for (boolean fractional : new boolean[] {false, true}) {
+            CommandHistory history = randomHistory(new Random(4), 500, 100, fractional);
+            int points = 500 * 100;
+
+            List<Command> commands = new ArrayList<>();
+            for (int c = 0; c < history.size(); c++) {
+                commands.add(history.get(c));
+            }
+            int documentBytes = join(DrawingDocument.encode(1080, 1920, commands,
+                    history.getPosition())).remaining();
+
+            assertTrue(documentBytes < points * 8);
+            assertTrue(documentBytes < pngSize(history));
+        }
+    }
+
+    private static ByteBuffer join(ByteBuffer[] sections) {
+        int total = 0;
+        for (ByteBuffer section : sections) {
+            total += section.remaining();
+        }
+        ByteBuffer whole = ByteBuffer.allocate(total);
+        for (ByteBuffer section : sections) {
+            whole.put(section.duplicate());
+        }
+        whole.flip();
+        return whole;
+    }
+
+    /**
+     * Renders the lines of the history with anti-aliasing on a white
+     * screen-sized image and returns the size of it as PNG, which is what
+     * saving the image would produce.
+     */
+    private static int pngSize(CommandHistory history) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        BufferedImage image = new BufferedImage(1080, 1920, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setColor(java.awt.Color.WHITE);
+        g.fillRect(0, 0, 1080, 1920);
+        for (int i = 0; i < history.size(); i++) {
+            DrawPath dp = (DrawPath) history.get(i);
+            Path2D.Float path = new Path2D.Float();
+            path.moveTo(dp.getX(0), dp.getY(0));
+            for (int p = 1; p < dp.getPointCount(); p++) {
+                path.lineTo(dp.getX(p), dp.getY(p));
+            }
+            g.setColor(new java.awt.Color(dp.getColor(), true));
+            g.setStroke(new BasicStroke(dp.getStrokeWidth(), BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+            g.draw(path);
+        }
+        g.dispose();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.size();
+    }
+}
@@ -0,0 +1,241 @@
+package fi.tamk.tiko.androidpaint;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for DrawingJournal.
+ */
+public class DrawingJournalTest {
+
+    private File dir;
+
+    /**
+     * Logger that drops the messages, since android.util.Log is not
+     * available on the JVM.
+     */
+    private static final DrawingJournal.Logger QUIET_LOGGER = new DrawingJournal.Logger() {
+        @Override
+        public void debug(String message) {
+        }
+
+        @Override
+        public void warn(String message, Throwable error) {
+        }
+
+        @Override
+        public void error(String message, Throwable error) {
+        }
+    };
+
+    @Before
+    public void createDir() throws IOException {
+        DrawingJournal.setLogger(QUIET_LOGGER);
+        dir = File.createTempFile("journal", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+    }
+
+    @After
+    public void deleteDir() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static DrawPath line(int color, float x) {
+        DrawPath dp = new DrawPath(color, 10, DrawPath.FLAG_BLUR);
+        dp.addPoint(x, 1.5f);
+        dp.addPoint(x + 3, 7.25f);
+        dp.finish();
+        return dp;
+    }
+
+    /**
+     * Executes the command on the history and records it while holding
+     * the lock of the journal, the way PaintView does with its own lock.
+     */
+    private static void execute(DrawingJournal journal, CommandHistory history, Command command) {
+        synchronized (journal) {
+            history.add(command, new ArrayList<Command>());
+            journal.recordExecute(command, history);
+        }
+    }
+
+    private static byte[] concat(ByteBuffer... records) {
+        int total = 0;
+        for (ByteBuffer record : records) {
+            total += record.remaining();
+        }
+        ByteBuffer all = ByteBuffer.allocate(total);
+        for (ByteBuffer record : records) {
+            all.put(record.duplicate());
+        }
+        return all.array();
+    }
+
+    @Test
+    public void reopen_replaysExecuteUndoAndRedo() throws IOException, TimeoutException {
+        DrawingJournal journal = new DrawingJournal(dir, 100, 200);
+        assertTrue(journal.open(5000).getCommands().isEmpty());
+        CommandHistory history = new CommandHistory(0, 0);
+
+        execute(journal, history, line(0xFF0000FF, 1));
+        execute(journal, history, new ColorCircle(0xFF00FF00, 4, 10, 20, 5));
+        execute(journal, history, new BackgroundCommand(0xFF123456, 0xFFFFFFFF));
+        history.undo();
+        journal.recordUndo(history);
+        history.undo();
+        journal.recordUndo(history);
+        history.redo();
+        journal.recordRedo(history);
+        journal.close(5000);
+
+        journal = new DrawingJournal(dir, 100, 200);
+        DrawingDocument document = journal.open(5000);
+        journal.close(5000);
+        List<Command> commands = document.getCommands();
+        assertEquals(3, commands.size());
+        assertEquals(2, document.getPosition());
+        DrawPath dp = (DrawPath) commands.get(0);
+        assertEquals(0xFF0000FF, dp.getColor());
+        assertTrue(dp.getBlur());
+        assertEquals(2, dp.getPointCount());
+        assertEquals(7.25f, dp.getY(1), 0);
+        assertEquals(20, ((ColorCircle) commands.get(1)).getY(), 0);
+        assertEquals(0xFF123456, ((BackgroundCommand) commands.get(2)).getColor());
+    }
+
+    @Test
+    public void replay_stopsAtTruncatedOrCorruptRecord() {
+        byte[] records = concat(DrawingJournal.encode(line(1, 0)),
+                DrawingJournal.encode(new ClearCommand()),
+                DrawingJournal.encode(line(2, 5)));
+        int lastStart = records.length - DrawingJournal.encode(line(2, 5)).remaining();
+
+        List<Command> commands = new ArrayList<>();
+        int[] position = {0};
+        byte[] truncated = Arrays.copyOf(records, records.length - 3);
+        assertEquals(lastStart, DrawingJournal.replay(ByteBuffer.wrap(truncated), commands, position));
+        assertEquals(2, commands.size());
+        assertEquals(2, position[0]);
+
+        commands.clear();
+        position[0] = 0;
+        records[lastStart + 6] ^= 0x40;
+        assertEquals(lastStart, DrawingJournal.replay(ByteBuffer.wrap(records), commands, position));
+        assertEquals(2, commands.size());
+    }
+
+    @Test
+    public void open_cutsOffPartialRecord() throws IOException, TimeoutException {
+        DrawingJournal journal = new DrawingJournal(dir, 100, 200);
+        journal.open(5000);
+        CommandHistory history = new CommandHistory(0, 0);
+        execute(journal, history, line(1, 0));
+        journal.close(5000);
+        File file = new File(dir, "journal-0.apj");
+        long valid = file.length();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(valid);
+            raf.write(new byte[] {40, 0, 0, 0, 1, 2});
+        }
+
+        journal = new DrawingJournal(dir, 100, 200);
+        assertEquals(1, journal.open(5000).getCommands().size());
+        assertEquals(valid, file.length());
+        journal.close(5000);
+    }
+
+    @Test
+    public void open_waitsForPreviousWriter() throws IOException, TimeoutException {
+        DrawingJournal journal = new DrawingJournal(dir, 100, 200);
+        journal.open(5000);
+        CommandHistory history = new CommandHistory(0, 0);
+        for (int i = 0; i < 50; i++) {
+            execute(journal, history, line(i, i));
+        }
+        journal.close();
+
+        DrawingJournal next = new DrawingJournal(dir, 100, 200);
+        assertEquals(50, next.open(5000).getCommands().size());
+        assertTrue(next.close(5000));
+        // The writer of the first journal had stopped before the files
+        // were read, and closing it again does nothing.
+        assertTrue(journal.close(0));
+    }
+
+    @Test
+    public void open_timesOutWhilePreviousWriterIsBusy() throws IOException, TimeoutException {
+        DrawingJournal journal = new DrawingJournal(dir, 100, 200);
+        journal.open(5000);
+        CommandHistory history = new CommandHistory(0, 0);
+        DrawingJournal next = new DrawingJournal(dir, 100, 200);
+        synchronized (journal) {
+            execute(journal, history, line(1, 0));
+            // The writer waits for the lock to copy the history.
+            journal.recordReplace(history);
+            try {
+                next.open(50);
+                fail("expected TimeoutException");
+            } catch (TimeoutException e) {
+                // expected
+            }
+        }
+
+        assertEquals(1, next.open(5000).getCommands().size());
+        assertTrue(next.close(5000));
+        assertTrue(journal.close(0));
+    }
+
+    @Test
+    public void compaction_keepsDrawing() throws IOException, TimeoutException {
+        DrawingJournal journal = new DrawingJournal(dir, 100, 200);
+        journal.open(5000);
+        journal.setCompactThreshold(64);
+        journal.setSyncPolicy(DrawingJournal.SyncPolicy.EVERY_BATCH);
+        CommandHistory history = new CommandHistory(0, 0);
+        for (int i = 0; i < 200; i++) {
+            execute(journal, history, line(i, i));
+            if (i % 20 == 0) {
+                journal.flush();
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        synchronized (journal) {
+            history.undo();
+            journal.recordUndo(history);
+        }
+        journal.close(5000);
+
+        assertFalse(new File(dir, "journal-0.apj").exists());
+        journal = new DrawingJournal(dir, 100, 200);
+        DrawingDocument document = journal.open(5000);
+        journal.close(5000);
+        assertEquals(200, document.getCommands().size());
+        assertEquals(199, document.getPosition());
+        for (int i = 0; i < 200; i++) {
+            assertEquals(i, ((DrawPath) document.getCommands().get(i)).getColor());
+        }
+    }
+}
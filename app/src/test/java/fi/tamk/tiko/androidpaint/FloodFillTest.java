@@ -0,0 +1,124 @@
+package fi.tamk.tiko.androidpaint;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for FloodFill.
+ */
+public class FloodFillTest {
+
+    private static final int WHITE = 0xFFFFFFFF;
+
+    private static final int BLACK = 0xFF000000;
+
+    /**
+     * Draws a one pixel wide black ring on a white image.
+     */
+    private static int[] ring(int width, int height, int cx, int cy, int radius) {
+        int[] pixels = new int[width * height];
+        Arrays.fill(pixels, WHITE);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double distance = Math.hypot(x - cx, y - cy);
+                if (Math.abs(distance - radius) < 1) {
+                    pixels[y * width + x] = BLACK;
+                }
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * Draws the rectangles into a mask of the image.
+     */
+    private static boolean[] paint(int[] rects, int width, int height) {
+        boolean[] mask = new boolean[width * height];
+        for (int i = 0; i < rects.length; i += 4) {
+            for (int y = rects[i + 1]; y < rects[i + 3]; y++) {
+                for (int x = rects[i]; x < rects[i + 2]; x++) {
+                    assertFalse("rectangles overlap", mask[y * width + x]);
+                    mask[y * width + x] = true;
+                }
+            }
+        }
+        return mask;
+    }
+
+    @Test
+    public void fill_staysInsideOutline() throws InterruptedException {
+        int[] pixels = ring(100, 80, 50, 40, 30);
+
+        boolean[] mask = paint(new FloodFill().fill(pixels, 100, 80, 50, 40, 0, null), 100, 80);
+
+        for (int y = 0; y < 80; y++) {
+            for (int x = 0; x < 100; x++) {
+                boolean inside = Math.hypot(x - 50, y - 40) < 29;
+                if (inside) {
+                    assertTrue(mask[y * 100 + x]);
+                }
+                if (pixels[y * 100 + x] == BLACK || Math.hypot(x - 50, y - 40) > 31) {
+                    assertFalse(mask[y * 100 + x]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void fill_mergesEqualRowsIntoOneRectangle() throws InterruptedException {
+        int[] pixels = new int[40 * 30];
+        Arrays.fill(pixels, WHITE);
+
+        int[] rects = new FloodFill().fill(pixels, 40, 30, 3, 7, 0, null);
+
+        assertArrayEquals(new int[] {0, 0, 40, 30}, rects);
+    }
+
+    @Test
+    public void fill_usesTolerance() throws InterruptedException {
+        int[] pixels = new int[10];
+        Arrays.fill(pixels, WHITE);
+        pixels[4] = 0xFFF0F0F0;
+        pixels[7] = 0xFF808080;
+        FloodFill fill = new FloodFill();
+
+        assertArrayEquals(new int[] {0, 0, 4, 1}, fill.fill(pixels, 10, 1, 0, 0, 0, null));
+        assertArrayEquals(new int[] {0, 0, 7, 1}, fill.fill(pixels, 10, 1, 0, 0, 16, null));
+        assertEquals(0, fill.fill(pixels, 10, 1, 10, 0, 16, null).length);
+    }
+
+    /**
+     * Checks that filling a screen-sized image in bands on several
+     * threads covers the same pixels as filling it on one thread. The
+     * speed of both is measured by FillBenchmark in the benchmark module.
+     */
+    @Test
+    public void fill_parallelMatchesSequential() throws InterruptedException {
+        int width = 1080;
+        int height = 1920;
+        int[] pixels = ring(width, height, 540, 960, 500);
+        FloodFill fill = new FloodFill();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            int[] sequential = fill.fill(pixels, width, height, 540, 960, 0, null);
+            int[] parallel = fill.fill(pixels, width, height, 540, 960, 0, executor);
+
+            assertArrayEquals(paint(sequential, width, height), paint(parallel, width, height));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void assertArrayEquals(boolean[] expected, boolean[] actual) {
+        assertTrue(Arrays.equals(expected, actual));
+    }
+
+    private static void assertArrayEquals(int[] expected, int[] actual) {
+        assertTrue(Arrays.toString(actual), Arrays.equals(expected, actual));
+    }
+}
@@ -0,0 +1,73 @@
+package fi.tamk.tiko.androidpaint;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for ImageTileGrid.
+ */
+public class ImageTileGridTest {
+
+    @Test
+    public void getSampleSize_followsZoomAndTileLimit() {
+        ImageTileGrid grid = new ImageTileGrid(4000, 3000, false, false, false, 1000, 750);
+
+        assertEquals(4, grid.getDensity(), 0);
+        assertEquals(0, grid.getSampleSize(1, 0, 0, 1000, 750, 100));
+        assertEquals(2, grid.getSampleSize(2, 0, 0, 500, 375, 100));
+        assertEquals(1, grid.getSampleSize(16, 0, 0, 62.5f, 46.875f, 100));
+        // 8 x 6 tiles at sample size 2 are more than 20, so the next
+        // sample size is used, which is no sharper than the drawing.
+        assertEquals(0, grid.getSampleSize(2, 0, 0, 1000, 750, 20));
+
+        ImageTileGrid small = new ImageTileGrid(800, 600, false, false, false, 1000, 750);
+        assertEquals(0, small.getSampleSize(4, 0, 0, 250, 187.5f, 100));
+    }
+
+    @Test
+    public void getTileRange_mapsRotatedImage() {
+        // An image stored sideways that is rotated 90 degrees to be upright.
+        ImageTileGrid grid = new ImageTileGrid(3000, 4000, true, true, false, 1000, 750);
+        int[] range = new int[4];
+
+        assertTrue(grid.getTileRange(0, 0, 100, 75, 1, range));
+        assertArrayEquals(new int[] {0, 14, 2, 16}, range);
+        assertFalse(grid.getTileRange(1000, 0, 1100, 75, 1, range));
+    }
+
+    @Test
+    public void getTransform_placesTileWhereDrawingRectIs() {
+        ImageTileGrid grid = new ImageTileGrid(3000, 4000, true, true, false, 1000, 750);
+        long key = ImageTileGrid.key(1, 0, 14);
+        int[] source = new int[4];
+        grid.getSourceRect(key, source);
+        assertArrayEquals(new int[] {0, 3584, 256, 3840}, source);
+
+        float[] rect = new float[4];
+        grid.getDrawingRect(source, rect);
+        assertArrayEquals(new float[] {40, 0, 104, 64}, rect, 1e-4f);
+
+        float[] m = new float[9];
+        grid.getTransform(source[0], source[1], 1, 1, m);
+        // The corners of the tile bitmap land on opposite corners of the rect.
+        assertEquals(104, m[2], 1e-4f);
+        assertEquals(0, m[5], 1e-4f);
+        assertEquals(40, m[0] * 256 + m[1] * 256 + m[2], 1e-4f);
+        assertEquals(64, m[3] * 256 + m[4] * 256 + m[5], 1e-4f);
+    }
+
+    @Test
+    public void key_packsSampleSizeColumnAndRow() {
+        long key = ImageTileGrid.key(8, 5, 7);
+        assertEquals(8, ImageTileGrid.getKeySampleSize(key));
+        assertEquals(5, ImageTileGrid.getKeyColumn(key));
+        assertEquals(7, ImageTileGrid.getKeyRow(key));
+        assertNotEquals(key, ImageTileGrid.key(4, 5, 7));
+
+        ImageTileGrid grid = new ImageTileGrid(3000, 2000, false, false, false, 1000, 750);
+        int[] source = new int[4];
+        grid.getSourceRect(ImageTileGrid.key(8, 1, 0), source);
+        assertArrayEquals(new int[] {2048, 0, 3000, 2000}, source);
+    }
+}
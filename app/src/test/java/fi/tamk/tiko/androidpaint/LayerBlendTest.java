@@ -0,0 +1,35 @@
+package fi.tamk.tiko.androidpaint;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for LayerBlend.
+ */
+public class LayerBlendTest {
+
+    @Test
+    public void composite_normalMatchesSourceOver() {
+        assertEquals(SoftwareRenderer.blendPixel(0xFF000000, 0xFFFFFFFF, 128),
+                LayerBlend.NORMAL.composite(0xFFFFFFFF, 0xFF000000, 128));
+        assertEquals(0xFF123456, LayerBlend.NORMAL.composite(0xFF123456, 0xFF000000, 255));
+    }
+
+    @Test
+    public void composite_blendsOpaqueColors() {
+        assertEquals(0xFF202010, LayerBlend.DARKEN.composite(0xFF204060, 0xFF402010, 255));
+        assertEquals(0xFF404060, LayerBlend.LIGHTEN.composite(0xFF204060, 0xFF402010, 255));
+        assertEquals(0xFFC0C0C0, LayerBlend.SCREEN.composite(0xFF808080, 0xFF808080, 255));
+        assertEquals(0xFF000000, LayerBlend.OVERLAY.composite(0xFFFFFFFF, 0xFF000000, 255));
+    }
+
+    @Test
+    public void composite_keepsBackdropWhereLayerIsTransparent() {
+        for (LayerBlend blend : LayerBlend.values()) {
+            assertEquals(0xFF336699, blend.composite(0x00FFFFFF, 0xFF336699, 255));
+            assertEquals(0xFF336699, blend.composite(0xFFFFFFFF, 0xFF336699, 0));
+            assertEquals(0xFF204060, blend.composite(0xFF204060, 0x00000000, 255));
+        }
+    }
+}
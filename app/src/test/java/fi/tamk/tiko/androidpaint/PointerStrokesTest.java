@@ -0,0 +1,53 @@
+package fi.tamk.tiko.androidpaint;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for PointerStrokes.
+ */
+public class PointerStrokesTest {
+
+    @Test
+    public void finish_keepsLinesOfOtherPointers() {
+        PointerStrokes strokes = new PointerStrokes();
+        DrawPath first = new DrawPath(0xFF000000, 10, 0);
+        DrawPath second = new DrawPath(0xFF000000, 10, 0);
+        strokes.start(3, first, 0, 0);
+        strokes.start(7, second, 100, 100);
+        strokes.get(3).addSample(20, 0, 1);
+        strokes.get(7).addSample(100, 120, 1);
+
+        assertSame(first, strokes.finish(3, 1));
+        assertNull(strokes.get(3));
+        assertEquals(1, strokes.size());
+        assertEquals(7, strokes.getPointerId(0));
+        assertSame(second, strokes.getPath(0));
+        assertEquals(2, second.getPointCount());
+        assertEquals(4, strokes.getSamplesReceived());
+    }
+
+    @Test
+    public void start_reusesBuilderOfPointer() {
+        PointerStrokes strokes = new PointerStrokes();
+        strokes.start(1, new DrawPath(0xFF000000, 10, 0), 0, 0);
+        StrokeBuilder builder = strokes.get(1);
+        strokes.finish(1, 1);
+
+        DrawPath lost = new DrawPath(0xFF000000, 10, 0);
+        assertNull(strokes.start(1, lost, 5, 5));
+        assertSame(builder, strokes.get(1));
+        assertSame(lost, strokes.start(1, new DrawPath(0xFF000000, 10, 0), 9, 9));
+        assertEquals(1, strokes.size());
+    }
+
+    @Test
+    public void cancel_ignoresPointersThatAreNotDrawing() {
+        PointerStrokes strokes = new PointerStrokes();
+        assertNull(strokes.cancel(2));
+        assertNull(strokes.get(PointerStrokes.MAX_POINTERS));
+        assertFalse(PointerStrokes.isSupported(-1));
+        assertEquals(0, strokes.size());
+    }
+}
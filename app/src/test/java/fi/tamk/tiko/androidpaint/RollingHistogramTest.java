@@ -0,0 +1,60 @@
+package fi.tamk.tiko.androidpaint;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for RollingHistogram and RenderStats.
+ */
+public class RollingHistogramTest {
+
+    @Test
+    public void percentile_usesNearestRank() {
+        RollingHistogram histogram = new RollingHistogram(100);
+        for (int i = 100; i >= 1; i--) {
+            histogram.record(i);
+        }
+
+        assertEquals(50, histogram.percentile(0.5));
+        assertEquals(90, histogram.percentile(0.9));
+        assertEquals(99, histogram.percentile(0.99));
+        assertEquals(100, histogram.percentile(1));
+        assertEquals(50.5, histogram.mean(), 1e-9);
+    }
+
+    @Test
+    public void record_dropsOldestValuesButKeepsTotals() {
+        RollingHistogram histogram = new RollingHistogram(4);
+        for (int i = 1; i <= 10; i++) {
+            histogram.record(i * 10);
+        }
+        histogram.record(1);
+
+        assertEquals(4, histogram.size());
+        assertEquals(11, histogram.getTotalCount());
+        assertEquals(100, histogram.getMax());
+        assertEquals(1, histogram.latest());
+        assertEquals(1, histogram.percentile(0));
+        assertEquals(100, histogram.percentile(1));
+    }
+
+    @Test
+    public void dump_writesOneLinePerMetric() throws IOException {
+        RenderStats stats = new RenderStats(RenderStats.DEFAULT_WINDOW);
+        stats.recordFrame(2000000, 10, 90);
+        stats.recordFrame(4000000, 20, 80);
+        stats.recordTouch(500000, 3);
+
+        StringBuilder out = new StringBuilder();
+        stats.dump(out);
+        String[] lines = out.toString().split("\n");
+
+        assertEquals(7, lines.length);
+        assertEquals("draw_ms 2 2 3.000 2.000 4.000 4.000 4.000", lines[1]);
+        assertEquals("touch_pool_misses 1 1 3.0 3 3 3 3", lines[4]);
+        assertEquals("items_culled 2 2 85.0 80 90 90 90", lines[6]);
+    }
+}
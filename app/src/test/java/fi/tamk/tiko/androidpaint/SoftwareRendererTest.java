@@ -0,0 +1,207 @@
+package fi.tamk.tiko.androidpaint;
+
+import org.junit.Test;
+
+import java.awt.BasicStroke;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Path2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.geom.RoundRectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for SoftwareRenderer. The golden images are rendered with
+ * Java2D from the same geometry. Rendering speed is measured by
+ * RenderBenchmark in the benchmark module.
+ */
+public class SoftwareRendererTest {
+
+    private static final int WHITE = 0xFFFFFFFF;
+
+    private static DrawPath line(int color, int width, int flags, float... points) {
+        DrawPath dp = new DrawPath(color, width, flags);
+        for (int i = 0; i < points.length; i += 2) {
+            dp.addPoint(points[i], points[i + 1]);
+        }
+        dp.finish();
+        return dp;
+    }
+
+    /**
+     * Lines and shapes of every kind, some of them overlapping.
+     */
+    private static List<Command> scene() {
+        List<Command> commands = new ArrayList<>();
+        commands.add(line(0xFF000000, 10, 0, 20, 20, 60, 40, 100, 30, 140, 80, 120, 140));
+        commands.add(line(0xFFFF0000, 25, DrawPath.FLAG_SQUARE_CAP, 40, 180, 180, 160));
+        commands.add(line(0x800000FF, 15, 0, 30, 120, 90, 60, 170, 120));
+        commands.add(line(0xFF008000, 2, 0, 150, 20, 190, 30, 170, 70));
+        commands.add(new ColorRect(0xFF000080, 6, 200, 20, 260, 90, RectangleShape.NORMAL));
+        commands.add(new ColorRect(0xFF800080, 4, 290, 100, 210, 180, RectangleShape.ROUNDED));
+        commands.add(new ColorRect(0xFF808000, 8, 20, 200, 180, 280, RectangleShape.OVAL));
+        commands.add(new ColorCircle(0xFF008080, 5, 240, 240, 40));
+        return commands;
+    }
+
+    private static int[] renderWithJava2d(List<Command> commands, int width, int height) {
+        System.setProperty("java.awt.headless", "true");
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
+        g.setColor(java.awt.Color.WHITE);
+        g.fillRect(0, 0, width, height);
+        for (Command command : commands) {
+            Shape shape;
+            int cap = BasicStroke.CAP_ROUND;
+            int color;
+            float strokeWidth;
+            if (command instanceof DrawPath) {
+                DrawPath dp = (DrawPath) command;
+                Path2D.Float path = new Path2D.Float();
+                path.moveTo(dp.getX(0), dp.getY(0));
+                for (int i = 1; i < dp.getPointCount(); i++) {
+                    path.quadTo(dp.getX(i - 1), dp.getY(i - 1),
+                            (dp.getX(i) + dp.getX(i - 1)) / 2, (dp.getY(i) + dp.getY(i - 1)) / 2);
+                }
+                path.lineTo(dp.getX(dp.getPointCount() - 1), dp.getY(dp.getPointCount() - 1));
+                shape = path;
+                if ((dp.getFlags() & DrawPath.FLAG_SQUARE_CAP) != 0) {
+                    cap = BasicStroke.CAP_SQUARE;
+                }
+                color = dp.getColor();
+                strokeWidth = dp.getStrokeWidth();
+            } else if (command instanceof ColorCircle) {
+                ColorCircle circle = (ColorCircle) command;
+                float r = circle.getRadius();
+                shape = new Ellipse2D.Float(circle.getX() - r, circle.getY() - r, r * 2, r * 2);
+                color = circle.getColor();
+                strokeWidth = circle.getStrokeWidth();
+            } else {
+                ColorRect rect = (ColorRect) command;
+                float l = Math.min(rect.getLeft(), rect.getRight());
+                float t = Math.min(rect.getTop(), rect.getBottom());
+                float w = Math.abs(rect.getRight() - rect.getLeft());
+                float h = Math.abs(rect.getBottom() - rect.getTop());
+                if (rect.getShape() == RectangleShape.NORMAL) {
+                    shape = new Rectangle2D.Float(l, t, w, h);
+                } else if (rect.getShape() == RectangleShape.OVAL) {
+                    shape = new Ellipse2D.Float(l, t, w, h);
+                } else {
+                    float arc = RectangleShape.CORNER_RADIUS * 2;
+                    shape = new RoundRectangle2D.Float(l, t, w, h, arc, arc);
+                }
+                color = rect.getColor();
+                strokeWidth = rect.getStrokeWidth();
+            }
+            g.setColor(new java.awt.Color(color, true));
+            g.setStroke(new BasicStroke(strokeWidth, cap, BasicStroke.JOIN_ROUND));
+            g.draw(shape);
+        }
+        g.dispose();
+        return image.getRGB(0, 0, width, height, null, 0, width);
+    }
+
+    private static int channelDifference(int a, int b) {
+        int max = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            max = Math.max(max, Math.abs(((a >> shift) & 0xFF) - ((b >> shift) & 0xFF)));
+        }
+        return max;
+    }
+
+    @Test
+    public void render_matchesJava2dGoldenImage() {
+        List<Command> commands = scene();
+        DrawingDocument document = new DrawingDocument(300, 300, commands, commands.size());
+        SoftwareRenderer renderer = new SoftwareRenderer(300, 300);
+        document.render(renderer, WHITE);
+
+        int[] expected = renderWithJava2d(commands, 300, 300);
+        int[] actual = renderer.getPixels();
+        long total = 0;
+        int large = 0;
+        for (int i = 0; i < expected.length; i++) {
+            int difference = channelDifference(expected[i], actual[i]);
+            total += difference;
+            if (difference > 96) {
+                large++;
+            }
+        }
+        double mean = total / (double) expected.length;
+
+        assertTrue(mean < 1.0);
+        assertTrue(large < expected.length / 500);
+    }
+
+    @Test
+    public void drawPath_antiAliasesEdges() {
+        SoftwareRenderer renderer = new SoftwareRenderer(50, 20);
+        renderer.fill(WHITE);
+        renderer.drawPath(line(0xFF000000, 3, 0, 5, 10, 45, 10), false);
+
+        assertEquals(0xFF000000, renderer.getPixel(20, 10));
+        int edge = renderer.getPixel(20, 8) & 0xFF;
+        assertTrue(edge > 0 && edge < 255);
+        assertEquals(WHITE, renderer.getPixel(20, 12));
+        assertEquals(WHITE, renderer.getPixel(2, 10));
+    }
+
+    @Test
+    public void drawPath_squareCapCoversCorners() {
+        SoftwareRenderer round = new SoftwareRenderer(50, 20);
+        round.fill(WHITE);
+        round.drawPath(line(0xFF000000, 10, 0, 10, 10, 30, 10), false);
+        SoftwareRenderer square = new SoftwareRenderer(50, 20);
+        square.fill(WHITE);
+        square.drawPath(line(0xFF000000, 10, DrawPath.FLAG_SQUARE_CAP, 10, 10, 30, 10), false);
+
+        assertEquals(WHITE, round.getPixel(34, 6));
+        assertEquals(0xFF000000, square.getPixel(34, 6));
+        assertEquals(WHITE, square.getPixel(36, 10));
+    }
+
+    @Test
+    public void render_drawsOnlyAfterLastClear() {
+        List<Command> commands = new ArrayList<>();
+        commands.add(line(0xFF000000, 10, 0, 10, 10, 40, 10));
+        commands.add(new ClearCommand());
+        commands.add(new BackgroundCommand(0xFFFF0000, WHITE));
+        commands.add(line(0xFF0000FF, 10, 0, 10, 30, 40, 30));
+        commands.add(line(0xFF00FF00, 10, 0, 10, 30, 40, 30));
+        SoftwareRenderer renderer = new SoftwareRenderer(50, 40);
+        new DrawingDocument(50, 40, commands, 4).render(renderer, WHITE);
+
+        assertEquals(0xFFFF0000, renderer.getPixel(25, 10));
+        assertEquals(0xFF0000FF, renderer.getPixel(25, 30));
+    }
+
+    @Test
+    public void blendPixel_overTransparentKeepsColor() {
+        assertEquals(0x80FF0000, SoftwareRenderer.blendPixel(0, 0xFFFF0000, 0x80));
+        assertEquals(0xFF808080 & 0xFFFEFEFE,
+                SoftwareRenderer.blendPixel(0xFF000000, 0xFFFFFFFF, 0x80) & 0xFFFEFEFE);
+    }
+
+    @Test
+    public void render_thumbnailScalesDrawing() {
+        List<Command> commands = new ArrayList<>();
+        commands.add(line(0xFF000000, 40, 0, 100, 100, 700, 100));
+        DrawingDocument document = new DrawingDocument(1080, 1920, commands, commands.size());
+
+        SoftwareRenderer thumbnail = new SoftwareRenderer(135, 240);
+        thumbnail.setScale(0.125f);
+        document.render(thumbnail, WHITE);
+
+        assertEquals(0xFF000000, thumbnail.getPixel(50, 12));
+        assertEquals(WHITE, thumbnail.getPixel(50, 20));
+        assertEquals(WHITE, thumbnail.getPixel(100, 12));
+    }
+}
@@ -0,0 +1,153 @@
+package fi.tamk.tiko.androidpaint;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for SpatialIndex.
+ */
+public class SpatialIndexTest {
+
+    @Test
+    public void query_findsIntersectingItemsInInsertionOrder() {
+        SpatialIndex<String> index = new SpatialIndex<>(100);
+        index.insert("c", 250, 250, 260, 260);
+        index.insert("a", 0, 0, 50, 50);
+        index.insert("b", 40, 40, 300, 300);
+
+        List<String> found = new ArrayList<>();
+        index.query(45, 45, 255, 255, found);
+
+        assertEquals(Arrays.asList("c", "a", "b"), found);
+    }
+
+    @Test
+    public void query_returnsItemSpanningManyCellsOnce() {
+        SpatialIndex<String> index = new SpatialIndex<>(10);
+        index.insert("wide", 0, 0, 95, 5);
+        index.insert("huge", -1000, -1000, 1000, 1000);
+
+        List<String> found = new ArrayList<>();
+        index.query(0, 0, 100, 100, found);
+
+        assertEquals(Arrays.asList("wide", "huge"), found);
+    }
+
+    @Test
+    public void queryPoint_ignoresItemsOutsidePoint() {
+        SpatialIndex<String> index = new SpatialIndex<>(50);
+        index.insert("inside", 10, 10, 20, 20);
+        index.insert("outside", 30, 30, 40, 40);
+
+        List<String> found = new ArrayList<>();
+        index.queryPoint(15, 15, found);
+
+        assertEquals(Collections.singletonList("inside"), found);
+    }
+
+    @Test
+    public void remove_removesItemFromAllCells() {
+        SpatialIndex<String> index = new SpatialIndex<>(10);
+        index.insert("a", 0, 0, 55, 55);
+        index.insert("huge", -1000, -1000, 1000, 1000);
+
+        assertTrue(index.remove("a"));
+        assertTrue(index.remove("huge"));
+        assertFalse(index.remove("a"));
+
+        List<String> found = new ArrayList<>();
+        index.query(-2000, -2000, 2000, 2000, found);
+        assertTrue(found.isEmpty());
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void remove_keepsOtherItemsInSharedCells() {
+        SpatialIndex<String> index = new SpatialIndex<>(10);
+        Random random = new Random(11);
+        String[] items = new String[400];
+        float[][] bounds = new float[items.length][];
+        for (int i = 0; i < items.length; i++) {
+            float x = random.nextInt(500) - 250;
+            float y = random.nextInt(500) - 250;
+            items[i] = "item" + i;
+            bounds[i] = new float[] {x, y, x + random.nextInt(30), y + random.nextInt(30)};
+            index.insert(items[i], bounds[i][0], bounds[i][1], bounds[i][2], bounds[i][3]);
+        }
+        for (int i = 0; i < items.length; i += 2) {
+            assertTrue(index.remove(items[i]));
+        }
+
+        for (int i = 1; i < items.length; i += 2) {
+            List<String> found = new ArrayList<>();
+            index.queryPoint(bounds[i][0], bounds[i][1], found);
+            assertTrue(found.contains(items[i]));
+            for (int j = 0; j < items.length; j += 2) {
+                assertFalse(found.contains(items[j]));
+            }
+        }
+        assertEquals(items.length / 2, index.size());
+    }
+
+    @Test
+    public void insert_existingItemMovesItAndMakesItLast() {
+        SpatialIndex<String> index = new SpatialIndex<>(10);
+        index.insert("a", 0, 0, 5, 5);
+        index.insert("b", 0, 0, 5, 5);
+        index.insert("a", 100, 100, 105, 105);
+        index.insert("a", 0, 0, 5, 5);
+
+        List<String> found = new ArrayList<>();
+        index.query(0, 0, 200, 200, found);
+
+        assertEquals(Arrays.asList("b", "a"), found);
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    public void query_matchesLinearScanWith10000Items() {
+        int itemCount = 10000;
+        int queryCount = 2000;
+        Random random = new Random(42);
+        float[][] bounds = new float[itemCount][];
+        SpatialIndex<Integer> index = new SpatialIndex<>(128);
+
+        for (int i = 0; i < itemCount; i++) {
+            float x = random.nextFloat() * 4000;
+            float y = random.nextFloat() * 4000;
+            float w = 5 + random.nextFloat() * 150;
+            float h = 5 + random.nextFloat() * 150;
+            bounds[i] = new float[] {x, y, x + w, y + h};
+            index.insert(i, x, y, x + w, y + h);
+        }
+
+        float[][] queries = new float[queryCount][];
+        for (int q = 0; q < queryCount; q++) {
+            float x = random.nextFloat() * 4000;
+            float y = random.nextFloat() * 4000;
+            queries[q] = new float[] {x, y, x + 60, y + 60};
+        }
+
+        List<Integer> fromIndex = new ArrayList<>();
+        List<Integer> fromScan = new ArrayList<>();
+        for (float[] q : queries) {
+            fromIndex.clear();
+            fromScan.clear();
+            index.query(q[0], q[1], q[2], q[3], fromIndex);
+            for (int i = 0; i < itemCount; i++) {
+                float[] b = bounds[i];
+                if (b[0] <= q[2] && b[2] >= q[0] && b[1] <= q[3] && b[3] >= q[1]) {
+                    fromScan.add(i);
+                }
+            }
+            assertEquals(fromScan, fromIndex);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package fi.tamk.tiko.androidpaint;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for SpscQueue.
+ */
+public class SpscQueueTest {
+
+    @Test
+    public void offer_rejectsItemsWhenFull() {
+        SpscQueue<Integer> queue = new SpscQueue<>(3);
+        assertEquals(4, queue.capacity());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertFalse(queue.offer(4));
+
+        assertEquals(Integer.valueOf(0), queue.poll());
+        assertTrue(queue.offer(4));
+        for (int i = 1; i <= 4; i++) {
+            assertEquals(Integer.valueOf(i), queue.poll());
+        }
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void poll_keepsOrderAcrossThreads() throws InterruptedException {
+        final int count = 200000;
+        final SpscQueue<Integer> queue = new SpscQueue<>(64);
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < count; i++) {
+                while (!queue.offer(i)) {
+                    Thread.yield();
+                }
+            }
+        });
+        producer.start();
+
+        int expected = 0;
+        while (expected < count) {
+            Integer item = queue.poll();
+            if (item == null) {
+                Thread.yield();
+                continue;
+            }
+            assertEquals(expected++, item.intValue());
+        }
+        producer.join();
+        assertTrue(queue.isEmpty());
+    }
+}
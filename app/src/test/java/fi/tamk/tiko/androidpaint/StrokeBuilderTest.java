@@ -0,0 +1,46 @@
+package fi.tamk.tiko.androidpaint;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for StrokeBuilder.
+ */
+public class StrokeBuilderTest {
+
+    @Test
+    public void addSample_dropsSamplesWithinTolerance() {
+        StrokeBuilder builder = new StrokeBuilder();
+        builder.start(new DrawPath(0xFF000000, 10, 0), 10, 10);
+        builder.resetDirty();
+
+        assertFalse(builder.addSample(12, 13, 1));
+        assertFalse(builder.isDirty());
+        assertTrue(builder.addSample(12, 13, 2));
+        assertTrue(builder.addSample(20, 10, 1));
+
+        assertEquals(3, builder.getPath().getPointCount());
+        assertEquals(4, builder.getSamplesReceived());
+        assertEquals(3, builder.getSamplesKept());
+        assertEquals(10, builder.getDirtyLeft(), 0);
+        assertEquals(16, builder.getDirtyRight(), 0);
+    }
+
+    @Test
+    public void finish_simplifiesAndReleasesLine() {
+        StrokeBuilder builder = new StrokeBuilder();
+        builder.start(new DrawPath(0xFF000000, 10, 0), 0, 0);
+        for (int i = 1; i <= 20; i++) {
+            builder.addSample(i * 5, i * 5, 1);
+        }
+
+        DrawPath dp = builder.finish(1);
+
+        assertNull(builder.getPath());
+        assertTrue(dp.isFinished());
+        assertEquals(2, dp.getPointCount());
+        assertEquals(21, builder.getStrokePointsIn());
+        assertEquals(2, builder.getStrokePointsOut());
+    }
+}
@@ -0,0 +1,70 @@
+package fi.tamk.tiko.androidpaint;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for StrokePredictor.
+ */
+public class StrokePredictorTest {
+
+    @Test
+    public void predict_extrapolatesConstantVelocity() {
+        StrokePredictor predictor = new StrokePredictor();
+        predictor.addSample(0, 0, 100);
+        predictor.addSample(10, 5, 110);
+        predictor.addSample(20, 10, 120);
+
+        assertEquals(StrokePredictor.PREDICTED_POINTS, predictor.predict(30, 1000));
+        assertEquals(30, predictor.getPredictedX(0), 0.001);
+        assertEquals(50, predictor.getPredictedX(2), 0.001);
+        assertEquals(25, predictor.getPredictedY(2), 0.001);
+    }
+
+    @Test
+    public void predict_needsTwoSamplesAndHorizon() {
+        StrokePredictor predictor = new StrokePredictor();
+        predictor.addSample(5, 5, 0);
+        assertEquals(0, predictor.predict(20, 1000));
+        predictor.addSample(15, 5, 10);
+        assertEquals(0, predictor.predict(0, 1000));
+        assertEquals(0, predictor.getPredictedCount());
+    }
+
+    @Test
+    public void predict_limitsDistanceAndStopsDeceleration() {
+        StrokePredictor predictor = new StrokePredictor();
+        predictor.addSample(0, 0, 0);
+        predictor.addSample(100, 0, 10);
+        predictor.predict(40, 50);
+        assertEquals(150, predictor.getPredictedX(2), 0.001);
+
+        predictor.reset();
+        predictor.addSample(0, 0, 0);
+        predictor.addSample(40, 0, 10);
+        predictor.addSample(50, 0, 20);
+        predictor.predict(300, 1000);
+        float stopped = predictor.getPredictedX(2);
+        assertTrue(stopped > 50);
+        assertEquals(stopped, predictor.getPredictedX(1), 0.001);
+    }
+
+    @Test
+    public void addSample_measuresPredictionError() {
+        StrokePredictor predictor = new StrokePredictor();
+        predictor.addSample(0, 0, 0);
+        predictor.addSample(10, 0, 10);
+        predictor.predict(10, 1000);
+        predictor.addSample(16, 0, 15);
+        assertEquals(0, predictor.getErrorCount());
+
+        predictor.addSample(20, 8, 25);
+        assertEquals(1, predictor.getErrorCount());
+        assertEquals(Math.sqrt(2 * 2 + 4 * 4), predictor.getErrorSum(), 0.001);
+        assertEquals(predictor.getErrorSum(), predictor.getErrorMax(), 0.001);
+
+        predictor.resetCounters();
+        assertEquals(0, predictor.getErrorCount());
+    }
+}
@@ -0,0 +1,81 @@
+package fi.tamk.tiko.androidpaint;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for StrokeSimplifier.
+ */
+public class StrokeSimplifierTest {
+
+    @Test
+    public void simplify_collapsesStraightLine() {
+        float[] points = new float[200];
+        for (int i = 0; i < 100; i++) {
+            points[i * 2] = i * 3;
+            points[i * 2 + 1] = i * 2;
+        }
+
+        int kept = new StrokeSimplifier().simplify(points, 100, 0.5f);
+
+        assertEquals(2, kept);
+        assertEquals(0, points[0], 0);
+        assertEquals(297, points[2], 0);
+        assertEquals(198, points[3], 0);
+    }
+
+    @Test
+    public void simplify_keepsCornersAndClosedLoops() {
+        float[] points = {0, 0, 5, 0, 10, 0, 10, 5, 10, 10, 5, 5, 0, 0};
+
+        int kept = new StrokeSimplifier().simplify(points, 7, 0.5f);
+
+        assertEquals(4, kept);
+        assertArrayEquals(new float[] {0, 0, 10, 0, 10, 10, 0, 0},
+                Arrays.copyOf(points, 8), 0);
+    }
+
+    /**
+     * Checks that every removed point of a wandering line is within the
+     * tolerance of the simplified line, and that most points are removed.
+     */
+    @Test
+    public void simplify_staysWithinTolerance() {
+        Random random = new Random(5);
+        int count = 5000;
+        float[] original = new float[count * 2];
+        float x = 500;
+        float y = 500;
+        double angle = 0;
+        for (int i = 0; i < count; i++) {
+            angle += (random.nextFloat() - 0.5f) * 0.2f;
+            x += (float) Math.cos(angle) * 4 + random.nextFloat() * 0.2f;
+            y += (float) Math.sin(angle) * 4 + random.nextFloat() * 0.2f;
+            original[i * 2] = x;
+            original[i * 2 + 1] = y;
+        }
+        float[] points = original.clone();
+        float tolerance = 1.5f;
+
+        int kept = new StrokeSimplifier().simplify(points, count, tolerance);
+
+        // Each original point lies between two consecutive kept points.
+        int segment = 0;
+        for (int i = 0; i < count; i++) {
+            if (segment < kept - 2 && original[i * 2] == points[segment * 2 + 2]
+                    && original[i * 2 + 1] == points[segment * 2 + 3]) {
+                segment++;
+            }
+            float d = StrokeSimplifier.distanceSquared(original[i * 2], original[i * 2 + 1],
+                    points[segment * 2], points[segment * 2 + 1],
+                    points[segment * 2 + 2], points[segment * 2 + 3]);
+            assertTrue("point " + i, d <= tolerance * tolerance);
+        }
+
+        assertTrue(kept < count / 4);
+    }
+}
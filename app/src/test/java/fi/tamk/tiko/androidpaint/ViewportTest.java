@@ -0,0 +1,56 @@
+package fi.tamk.tiko.androidpaint;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for Viewport.
+ */
+public class ViewportTest {
+
+    private Viewport viewport;
+
+    @Before
+    public void createViewport() {
+        viewport = new Viewport();
+        viewport.setDocumentSize(1000, 2000);
+        viewport.setViewSize(1000, 2000);
+    }
+
+    @Test
+    public void zoomBy_keepsFocusedPoint() {
+        viewport.zoomBy(4, 300, 500);
+
+        assertEquals(4, viewport.getScale(), 0);
+        assertEquals(300, viewport.toDocumentX(300), 1e-3f);
+        assertEquals(500, viewport.toDocumentY(500), 1e-3f);
+        assertEquals(700, viewport.toViewX(viewport.toDocumentX(700)), 1e-3f);
+        assertFalse(viewport.isIdentity());
+    }
+
+    @Test
+    public void panBy_keepsDrawingCoveringView() {
+        viewport.zoomBy(2, 0, 0);
+        viewport.panBy(-300, -5000);
+
+        assertEquals(-300, viewport.getOffsetX(), 0);
+        assertEquals(-2000, viewport.getOffsetY(), 0);
+
+        viewport.panBy(1000, 0);
+        assertEquals(0, viewport.getOffsetX(), 0);
+    }
+
+    @Test
+    public void zoomOut_centersDrawingAndLimitsScale() {
+        viewport.zoomBy(0.001f, 0, 0);
+
+        assertEquals(Viewport.DEFAULT_MIN_SCALE, viewport.getScale(), 0);
+        assertEquals(375, viewport.getOffsetX(), 0);
+        assertEquals(750, viewport.getOffsetY(), 0);
+
+        viewport.reset();
+        assertTrue(viewport.isIdentity());
+    }
+}
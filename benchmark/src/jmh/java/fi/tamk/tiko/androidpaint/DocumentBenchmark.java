@@ -0,0 +1,148 @@
+package fi.tamk.tiko.androidpaint;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of saving and loading the document model, both in memory and
+ * through a file, for lines with fractional points as drawn and for
+ * lines whose points are rounded to whole pixels, which encode smaller.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DocumentBenchmark {
+
+    /**
+     * Number of lines and shapes in the document.
+     */
+    @Param({"100", "1000"})
+    public int items;
+
+    /**
+     * Whether the points of the lines are rounded to whole pixels.
+     */
+    @Param({"false", "true"})
+    public boolean wholePixels;
+
+    /**
+     * The history that is saved.
+     */
+    private CommandHistory history;
+
+    /**
+     * The commands of the history.
+     */
+    private List<Command> commands;
+
+    /**
+     * The saved document in one buffer.
+     */
+    private ByteBuffer encoded;
+
+    /**
+     * File the document is written to and read from.
+     */
+    private File file;
+
+    @Setup
+    public void setUp() throws IOException {
+        history = new StrokeGenerator(5).history(items, 100);
+        if (wholePixels) {
+            history = roundPoints(history);
+        }
+        commands = new ArrayList<>();
+        for (int i = 0; i < history.size(); i++) {
+            commands.add(history.get(i));
+        }
+        encoded = join(encode());
+        file = File.createTempFile("benchmark", ".apd");
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public ByteBuffer[] encode() {
+        return DrawingDocument.encode(StrokeGenerator.WIDTH, StrokeGenerator.HEIGHT,
+                commands, history.getPosition());
+    }
+
+    @Benchmark
+    public int decode() throws IOException {
+        return loadPoints(DrawingDocument.decode(encoded.duplicate()));
+    }
+
+    @Benchmark
+    public int writeAndRead() throws IOException {
+        DrawingDocument.write(file, StrokeGenerator.WIDTH, StrokeGenerator.HEIGHT,
+                commands, history.getPosition());
+        return loadPoints(DrawingDocument.read(file));
+    }
+
+    /**
+     * Reads the points of all lines of a document, which are otherwise
+     * decoded only when the lines are first drawn.
+     */
+    private static int loadPoints(DrawingDocument document) {
+        int points = 0;
+        for (Command command : document.getCommands()) {
+            if (command instanceof DrawPath) {
+                points += ((DrawPath) command).getPointCount();
+            }
+        }
+        return points;
+    }
+
+    /**
+     * Copies a history with the points of its lines rounded to whole pixels.
+     */
+    private static CommandHistory roundPoints(CommandHistory history) {
+        CommandHistory rounded = new CommandHistory(0, 0);
+        List<Command> removed = new ArrayList<>();
+        for (int i = 0; i < history.size(); i++) {
+            Command command = history.get(i);
+            if (command instanceof DrawPath) {
+                DrawPath dp = (DrawPath) command;
+                DrawPath copy = new DrawPath(dp.getColor(), dp.getStrokeWidth(), dp.getFlags());
+                for (int p = 0; p < dp.getPointCount(); p++) {
+                    copy.addPoint(Math.round(dp.getX(p)), Math.round(dp.getY(p)));
+                }
+                copy.finish();
+                copy.setLayer(dp.getLayer());
+                command = copy;
+            }
+            rounded.add(command, removed);
+        }
+        return rounded;
+    }
+
+    private static ByteBuffer join(ByteBuffer[] sections) {
+        int total = 0;
+        for (ByteBuffer section : sections) {
+            total += section.remaining();
+        }
+        ByteBuffer whole = ByteBuffer.allocate(total);
+        for (ByteBuffer section : sections) {
+            whole.put(section.duplicate());
+        }
+        whole.flip();
+        return whole;
+    }
+}
@@ -0,0 +1,91 @@
+package fi.tamk.tiko.androidpaint;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of filling the inside of a large ring on a screen-sized image,
+ * with all work on the calling thread and with the bands of rows run on
+ * a pool of threads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FillBenchmark {
+
+    /**
+     * Width of the image.
+     */
+    private static final int WIDTH = 1080;
+
+    /**
+     * Height of the image.
+     */
+    private static final int HEIGHT = 1920;
+
+    /**
+     * Radius of the ring around the center of the image.
+     */
+    private static final int RADIUS = 500;
+
+    /**
+     * Number of threads the bands are run on in the parallel fill.
+     */
+    private static final int THREADS = 4;
+
+    /**
+     * Colors of the image, white with a one pixel wide black ring.
+     */
+    private int[] pixels;
+
+    /**
+     * The fill under measurement.
+     */
+    private final FloodFill fill = new FloodFill();
+
+    /**
+     * Threads the parallel fill runs the bands on.
+     */
+    private ExecutorService executor;
+
+    @Setup
+    public void setUp() {
+        pixels = new int[WIDTH * HEIGHT];
+        Arrays.fill(pixels, 0xFFFFFFFF);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                double distance = Math.hypot(x - WIDTH / 2, y - HEIGHT / 2);
+                if (Math.abs(distance - RADIUS) < 1) {
+                    pixels[y * WIDTH + x] = 0xFF000000;
+                }
+            }
+        }
+        executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public int[] sequential() throws InterruptedException {
+        return fill.fill(pixels, WIDTH, HEIGHT, WIDTH / 2, HEIGHT / 2, 0, null);
+    }
+
+    @Benchmark
+    public int[] parallel() throws InterruptedException {
+        return fill.fill(pixels, WIDTH, HEIGHT, WIDTH / 2, HEIGHT / 2, 0, executor);
+    }
+}
@@ -0,0 +1,72 @@
+package fi.tamk.tiko.androidpaint;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of rendering a whole document with the software renderer as the
+ * history grows, at full size and as a thumbnail.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RenderBenchmark {
+
+    /**
+     * Scale of the thumbnails.
+     */
+    private static final float THUMBNAIL_SCALE = 0.125f;
+
+    /**
+     * Number of lines and shapes in the document.
+     */
+    @Param({"50", "200", "1000"})
+    public int items;
+
+    /**
+     * The rendered document.
+     */
+    private DrawingDocument document;
+
+    /**
+     * Renderer of the size of the document.
+     */
+    private SoftwareRenderer full;
+
+    /**
+     * Renderer of the size of the thumbnail.
+     */
+    private SoftwareRenderer thumbnail;
+
+    @Setup
+    public void setUp() {
+        List<Command> commands = new StrokeGenerator(3).drawing(items, 100);
+        document = new DrawingDocument(StrokeGenerator.WIDTH, StrokeGenerator.HEIGHT,
+                commands, commands.size());
+        full = new SoftwareRenderer(StrokeGenerator.WIDTH, StrokeGenerator.HEIGHT);
+        thumbnail = new SoftwareRenderer((int) (StrokeGenerator.WIDTH * THUMBNAIL_SCALE),
+                (int) (StrokeGenerator.HEIGHT * THUMBNAIL_SCALE));
+        thumbnail.setScale(THUMBNAIL_SCALE);
+    }
+
+    @Benchmark
+    public int[] renderFull() {
+        document.render(full, 0xFFFFFFFF);
+        return full.getPixels();
+    }
+
+    @Benchmark
+    public int[] renderThumbnail() {
+        document.render(thumbnail, 0xFFFFFFFF);
+        return thumbnail.getPixels();
+    }
+}
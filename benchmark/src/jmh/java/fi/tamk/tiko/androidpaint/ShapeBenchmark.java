@@ -0,0 +1,97 @@
+package fi.tamk.tiko.androidpaint;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of finishing a shape as shapeDraw of PaintView does when the
+ * finger is lifted: creating the rectangle, oval or circle from the
+ * dragged points and adding it to the history and the spatial index.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ShapeBenchmark {
+
+    /**
+     * Number of distinct drags that are finished in turn.
+     */
+    private static final int DRAGS = 1024;
+
+    /**
+     * Start and end points of the drags.
+     */
+    private final float[] drags = new float[DRAGS * 4];
+
+    /**
+     * History the shapes are added to.
+     */
+    private CommandHistory history;
+
+    /**
+     * Index the shapes are added to.
+     */
+    private SpatialIndex<Command> index;
+
+    /**
+     * Commands removed from the history, which stays empty.
+     */
+    private final List<Command> removed = new ArrayList<>();
+
+    /**
+     * Area of the created shape.
+     */
+    private final float[] bounds = new float[4];
+
+    /**
+     * Number of shapes created.
+     */
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(2);
+        for (int i = 0; i < drags.length; i += 2) {
+            drags[i] = random.nextFloat() * StrokeGenerator.WIDTH;
+            drags[i + 1] = random.nextFloat() * StrokeGenerator.HEIGHT;
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void resetDrawing() {
+        history = new CommandHistory(0, 0);
+        index = new SpatialIndex<>(256);
+        next = 0;
+    }
+
+    @Benchmark
+    public ColorShape finishShape() {
+        int drag = (next % DRAGS) * 4;
+        int kind = next % 4;
+        next++;
+
+        ColorShape shape;
+        if (kind == 3) {
+            shape = ColorCircle.fromDiameter(0xFF000000, 10,
+                    drags[drag], drags[drag + 1], drags[drag + 2], drags[drag + 3]);
+        } else {
+            shape = new ColorRect(0xFF000000, 10,
+                    drags[drag], drags[drag + 1], drags[drag + 2], drags[drag + 3],
+                    RectangleShape.values()[kind]);
+        }
+        history.add(shape, removed);
+        StrokeGenerator.insert(index, shape, bounds);
+        return shape;
+    }
+}
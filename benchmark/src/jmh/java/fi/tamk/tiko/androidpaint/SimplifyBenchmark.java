@@ -0,0 +1,73 @@
+package fi.tamk.tiko.androidpaint;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of simplifying the points of one long wandering line on its own,
+ * apart from building the line.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SimplifyBenchmark {
+
+    /**
+     * The largest distance a removed point may have from the simplified
+     * line, the largest tolerance StrokeBuilder uses at a density of 1.
+     */
+    private static final float TOLERANCE = 1.5f;
+
+    /**
+     * Number of points in the line.
+     */
+    @Param({"500", "5000"})
+    public int points;
+
+    /**
+     * The points of the line as drawn.
+     */
+    private float[] original;
+
+    /**
+     * Copy of the points that is simplified in place.
+     */
+    private float[] work;
+
+    /**
+     * The simplifier under measurement.
+     */
+    private final StrokeSimplifier simplifier = new StrokeSimplifier();
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(5);
+        original = new float[points * 2];
+        float x = 500;
+        float y = 500;
+        double angle = 0;
+        for (int i = 0; i < points; i++) {
+            angle += (random.nextFloat() - 0.5f) * 0.2f;
+            x += (float) Math.cos(angle) * 4 + random.nextFloat() * 0.2f;
+            y += (float) Math.sin(angle) * 4 + random.nextFloat() * 0.2f;
+            original[i * 2] = x;
+            original[i * 2 + 1] = y;
+        }
+        work = new float[original.length];
+    }
+
+    @Benchmark
+    public int simplify() {
+        System.arraycopy(original, 0, work, 0, original.length);
+        return simplifier.simplify(work, points, TOLERANCE);
+    }
+}
@@ -0,0 +1,112 @@
+package fi.tamk.tiko.androidpaint;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of finding the items in a small area with the spatial index,
+ * compared with going through all items.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SpatialIndexBenchmark {
+
+    /**
+     * Width and height of the area the items are spread over.
+     */
+    private static final float AREA_SIZE = 4000;
+
+    /**
+     * Width and height of a queried area.
+     */
+    private static final float QUERY_SIZE = 60;
+
+    /**
+     * Number of queried areas used in turn.
+     */
+    private static final int QUERIES = 2000;
+
+    /**
+     * Number of items in the index.
+     */
+    @Param({"1000", "10000"})
+    public int items;
+
+    /**
+     * Bounds of the items as left, top, right and bottom.
+     */
+    private float[][] bounds;
+
+    /**
+     * Queried areas as left, top, right and bottom.
+     */
+    private float[][] queries;
+
+    /**
+     * The index under measurement.
+     */
+    private SpatialIndex<Integer> index;
+
+    /**
+     * Reusable list of the found items.
+     */
+    private final ArrayList<Integer> found = new ArrayList<>();
+
+    /**
+     * Index of the next queried area.
+     */
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        bounds = new float[items][];
+        index = new SpatialIndex<>(128);
+        for (int i = 0; i < items; i++) {
+            float x = random.nextFloat() * AREA_SIZE;
+            float y = random.nextFloat() * AREA_SIZE;
+            float w = 5 + random.nextFloat() * 150;
+            float h = 5 + random.nextFloat() * 150;
+            bounds[i] = new float[] {x, y, x + w, y + h};
+            index.insert(i, x, y, x + w, y + h);
+        }
+
+        queries = new float[QUERIES][];
+        for (int q = 0; q < QUERIES; q++) {
+            float x = random.nextFloat() * AREA_SIZE;
+            float y = random.nextFloat() * AREA_SIZE;
+            queries[q] = new float[] {x, y, x + QUERY_SIZE, y + QUERY_SIZE};
+        }
+    }
+
+    @Benchmark
+    public int query() {
+        float[] q = queries[next++ % QUERIES];
+        found.clear();
+        index.query(q[0], q[1], q[2], q[3], found);
+        return found.size();
+    }
+
+    @Benchmark
+    public int linearScan() {
+        float[] q = queries[next++ % QUERIES];
+        int count = 0;
+        for (float[] b : bounds) {
+            if (b[0] <= q[2] && b[2] >= q[0] && b[1] <= q[3] && b[3] >= q[1]) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
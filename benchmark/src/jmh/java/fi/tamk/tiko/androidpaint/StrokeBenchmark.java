@@ -0,0 +1,83 @@
+package fi.tamk.tiko.androidpaint;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning the touch samples of one stroke into a finished line,
+ * as touchStart, touchMove and touchUp of PaintView do: the touch
+ * tolerance check, adding points, collecting the area to invalidate for
+ * each touch event, and simplifying the finished line.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StrokeBenchmark {
+
+    /**
+     * Number of samples batched into one move event.
+     */
+    private static final int SAMPLES_PER_EVENT = 4;
+
+    /**
+     * Number of touch samples in a stroke.
+     */
+    @Param({"50", "500"})
+    public int samples;
+
+    /**
+     * Whether finished lines are simplified.
+     */
+    @Param({"true", "false"})
+    public boolean simplify;
+
+    /**
+     * Touch samples of the strokes that are drawn in turn.
+     */
+    private float[][] strokes;
+
+    /**
+     * The builder under measurement.
+     */
+    private StrokeBuilder builder;
+
+    /**
+     * Index of the next stroke to draw.
+     */
+    private int next;
+
+    @Setup
+    public void setUp() {
+        StrokeGenerator generator = new StrokeGenerator(1);
+        strokes = new float[64][];
+        for (int i = 0; i < strokes.length; i++) {
+            strokes[i] = generator.touchSamples(samples);
+        }
+        builder = new StrokeBuilder();
+        builder.setSimplificationEnabled(simplify);
+    }
+
+    @Benchmark
+    public int drawStroke() {
+        float[] stroke = strokes[next++ % strokes.length];
+        builder.start(new DrawPath(0xFF000000, 10, 0), stroke[0], stroke[1]);
+        for (int i = 2; i < stroke.length; i += 2) {
+            if ((i / 2) % SAMPLES_PER_EVENT == 1) {
+                builder.resetDirty();
+            }
+            builder.addSample(stroke[i], stroke[i + 1], 1);
+        }
+        DrawPath dp = builder.finish(1);
+        int points = dp.getPointCount();
+        dp.recycle();
+        return points;
+    }
+}
@@ -0,0 +1,191 @@
+package fi.tamk.tiko.androidpaint;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates synthetic touch strokes and drawings with seeded randomness,
+ * so that every run of a benchmark works on the same input.
+ *
+ * A stroke is a finger moving over a screen-sized area with a velocity
+ * that turns and changes speed smoothly, sampled the way a touch screen
+ * reports it, including samples that are closer together than the touch
+ * tolerance.
+ */
+public class StrokeGenerator {
+
+    /**
+     * Width of the generated drawings.
+     */
+    public static final int WIDTH = 1080;
+
+    /**
+     * Height of the generated drawings.
+     */
+    public static final int HEIGHT = 1920;
+
+    /**
+     * Largest distance the finger moves between two samples.
+     */
+    private static final float MAX_SPEED = 24;
+
+    /**
+     * Source of all randomness.
+     */
+    private final Random random;
+
+    /**
+     * Constructs the generator.
+     *
+     * @param seed Seed of the randomness.
+     */
+    public StrokeGenerator(long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * Generates the touch samples of one stroke.
+     *
+     * @param samples Number of samples.
+     * @return The samples as x and y coordinate pairs.
+     */
+    public float[] touchSamples(int samples) {
+        float[] out = new float[samples * 2];
+        float x = random.nextFloat() * WIDTH;
+        float y = random.nextFloat() * HEIGHT;
+        double angle = random.nextDouble() * Math.PI * 2;
+        float speed = random.nextFloat() * MAX_SPEED;
+        for (int i = 0; i < samples; i++) {
+            out[i * 2] = x;
+            out[i * 2 + 1] = y;
+            angle += random.nextGaussian() * 0.15;
+            speed = Math.max(0, Math.min(MAX_SPEED, speed + (float) random.nextGaussian() * 2));
+            x = Math.max(0, Math.min(WIDTH, x + (float) Math.cos(angle) * speed));
+            y = Math.max(0, Math.min(HEIGHT, y + (float) Math.sin(angle) * speed));
+        }
+        return out;
+    }
+
+    /**
+     * Builds a finished line from touch samples the way PaintView does.
+     *
+     * @param builder The builder that filters and simplifies the samples.
+     * @param samples Touch samples as x and y coordinate pairs.
+     * @return The finished line.
+     */
+    public DrawPath stroke(StrokeBuilder builder, float[] samples) {
+        DrawPath dp = new DrawPath(0xFF000000 | random.nextInt(0x1000000),
+                5 + random.nextInt(4) * 10, random.nextInt(2) * DrawPath.FLAG_SQUARE_CAP);
+        builder.start(dp, samples[0], samples[1]);
+        for (int i = 2; i < samples.length; i += 2) {
+            builder.addSample(samples[i], samples[i + 1], 1);
+        }
+        return builder.finish(1);
+    }
+
+    /**
+     * Generates a random shape of any kind.
+     *
+     * @return The shape.
+     */
+    public ColorShape shape() {
+        int color = 0xFF000000 | random.nextInt(0x1000000);
+        int strokeWidth = 5 + random.nextInt(4) * 10;
+        float x0 = random.nextFloat() * WIDTH;
+        float y0 = random.nextFloat() * HEIGHT;
+        float x1 = x0 + (random.nextFloat() - 0.5f) * 600;
+        float y1 = y0 + (random.nextFloat() - 0.5f) * 600;
+        int kind = random.nextInt(RectangleShape.values().length + 1);
+        if (kind == RectangleShape.values().length) {
+            return ColorCircle.fromDiameter(color, strokeWidth, x0, y0, x1, y1);
+        }
+        return new ColorRect(color, strokeWidth, x0, y0, x1, y1, RectangleShape.values()[kind]);
+    }
+
+    /**
+     * Generates a drawing of lines with a shape after every tenth line.
+     *
+     * @param items Number of lines and shapes.
+     * @param samplesPerStroke Number of touch samples of each line.
+     * @return The commands of the drawing in history order.
+     */
+    public List<Command> drawing(int items, int samplesPerStroke) {
+        StrokeBuilder builder = new StrokeBuilder();
+        List<Command> commands = new ArrayList<>(items);
+        for (int i = 0; i < items; i++) {
+            if (i % 10 == 9) {
+                commands.add(shape());
+            } else {
+                commands.add(stroke(builder, touchSamples(samplesPerStroke)));
+            }
+        }
+        return commands;
+    }
+
+    /**
+     * Stores the area of the points or outline of a line or shape grown
+     * by its stroke width, which covers it when drawn.
+     *
+     * @param item The DrawPath or ColorShape.
+     * @param out Array the left, top, right and bottom edges are stored into.
+     */
+    public static void bounds(Command item, float[] out) {
+        float outset;
+        if (item instanceof DrawPath) {
+            DrawPath dp = (DrawPath) item;
+            out[0] = dp.getLeft();
+            out[1] = dp.getTop();
+            out[2] = dp.getRight();
+            out[3] = dp.getBottom();
+            outset = dp.getStrokeWidth();
+        } else if (item instanceof ColorCircle) {
+            ColorCircle circle = (ColorCircle) item;
+            out[0] = circle.getX() - circle.getRadius();
+            out[1] = circle.getY() - circle.getRadius();
+            out[2] = circle.getX() + circle.getRadius();
+            out[3] = circle.getY() + circle.getRadius();
+            outset = circle.getStrokeWidth();
+        } else {
+            ColorRect rect = (ColorRect) item;
+            out[0] = Math.min(rect.getLeft(), rect.getRight());
+            out[1] = Math.min(rect.getTop(), rect.getBottom());
+            out[2] = Math.max(rect.getLeft(), rect.getRight());
+            out[3] = Math.max(rect.getTop(), rect.getBottom());
+            outset = rect.getStrokeWidth();
+        }
+        out[0] -= outset;
+        out[1] -= outset;
+        out[2] += outset;
+        out[3] += outset;
+    }
+
+    /**
+     * Adds a line or shape to a spatial index with the area that covers
+     * it when drawn, like PaintView does.
+     *
+     * @param index The index.
+     * @param item The DrawPath or ColorShape to add.
+     * @param bounds Temporary array of four floats.
+     */
+    public static void insert(SpatialIndex<Command> index, Command item, float[] bounds) {
+        bounds(item, bounds);
+        index.insert(item, bounds[0], bounds[1], bounds[2], bounds[3]);
+    }
+
+    /**
+     * Generates a drawing into a history with all of its commands applied.
+     *
+     * @param items Number of lines and shapes.
+     * @param samplesPerStroke Number of touch samples of each line.
+     * @return The history.
+     */
+    public CommandHistory history(int items, int samplesPerStroke) {
+        CommandHistory history = new CommandHistory(0, 0);
+        List<Command> removed = new ArrayList<>();
+        for (Command command : drawing(items, samplesPerStroke)) {
+            history.add(command, removed);
+        }
+        return history;
+    }
+}
@@ -0,0 +1,135 @@
+package fi.tamk.tiko.androidpaint;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of undoing and redoing the last line or shape as the history
+ * grows: moving the history position, updating the spatial index and
+ * finding the lines and shapes that have to be redrawn in the area of
+ * the undone one.
+ *
+ * undoAndRedo finds them in the index of the whole drawing, so their
+ * number grows with the history. undoAndRedoFromCheckpoint finds them
+ * like PaintView does, among the commands after the nearest checkpoint
+ * whose tiles the area is restored from, so the cost stays flat.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class UndoBenchmark {
+
+    /**
+     * Number of commands between checkpoints, like in PaintView.
+     */
+    private static final int CHECKPOINT_INTERVAL = 20;
+
+    /**
+     * Checkpoint without tiles, since only the commands that are
+     * replayed after it are measured.
+     */
+    private static final CommandHistory.Checkpoint EMPTY_CHECKPOINT = new CommandHistory.Checkpoint() {
+        @Override
+        public long getByteCount() {
+            return 0;
+        }
+
+        @Override
+        public void release() {
+        }
+    };
+
+    /**
+     * Number of lines and shapes in the history.
+     */
+    @Param({"100", "1000", "10000"})
+    public int items;
+
+    /**
+     * The history that is undone and redone.
+     */
+    private CommandHistory history;
+
+    /**
+     * The same history with a checkpoint every CHECKPOINT_INTERVAL
+     * commands.
+     */
+    private CommandHistory checkpointed;
+
+    /**
+     * Index of the applied lines and shapes.
+     */
+    private SpatialIndex<Command> index;
+
+    /**
+     * Lines and shapes found in the area of the undone one.
+     */
+    private final List<Command> queryResult = new ArrayList<>();
+
+    /**
+     * Area of the undone line or shape.
+     */
+    private final float[] bounds = new float[4];
+
+    /**
+     * Area of a replayed line or shape.
+     */
+    private final float[] replayedBounds = new float[4];
+
+    @Setup
+    public void setUp() {
+        history = new StrokeGenerator(4).history(items, 50);
+        index = new SpatialIndex<>(256);
+        for (int i = 0; i < history.size(); i++) {
+            StrokeGenerator.insert(index, history.get(i), bounds);
+        }
+
+        checkpointed = new CommandHistory(CHECKPOINT_INTERVAL, Long.MAX_VALUE);
+        List<Command> removed = new ArrayList<>();
+        for (Command command : new StrokeGenerator(4).drawing(items, 50)) {
+            checkpointed.add(command, removed);
+            if (checkpointed.needsCheckpoint()) {
+                checkpointed.putCheckpoint(EMPTY_CHECKPOINT);
+            }
+        }
+    }
+
+    @Benchmark
+    public int undoAndRedo() {
+        Command command = history.undo();
+        index.remove(command);
+        queryResult.clear();
+        StrokeGenerator.bounds(command, bounds);
+        index.query(bounds[0], bounds[1], bounds[2], bounds[3], queryResult);
+        history.redo();
+        index.insert(command, bounds[0], bounds[1], bounds[2], bounds[3]);
+        return queryResult.size();
+    }
+
+    @Benchmark
+    public int undoAndRedoFromCheckpoint() {
+        Command command = checkpointed.undo();
+        StrokeGenerator.bounds(command, bounds);
+        int position = checkpointed.getPosition();
+        int replayed = 0;
+        for (int i = checkpointed.findReplayStart(position); i < position; i++) {
+            StrokeGenerator.bounds(checkpointed.get(i), replayedBounds);
+            if (replayedBounds[0] < bounds[2] && bounds[0] < replayedBounds[2]
+                    && replayedBounds[1] < bounds[3] && bounds[1] < replayedBounds[3]) {
+                replayed++;
+            }
+        }
+        checkpointed.redo();
+        return replayed;
+    }
+}